@@ -1,20 +1,561 @@
 package controller;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import lib.TextDecoder;
+import model.BodyStructure;
+import model.HeaderCache;
+import model.HeaderFetcher;
+import model.ImapIdleWatcher;
+import model.ImapIdleWatcher.MailboxEvent;
+import model.ImapPipeline;
+import model.MailboxSync;
+import model.MessageStore;
+import model.PartFetcher;
+import model.SearchIndex;
+import model.ThreadIndex;
 import view.IEmailDisplay;
+import view.IEmailDisplay.EmailDisplayEvent;
 
 /**
  * A class that represents the central application controller.
  * @author Janty Azmat
  */
 public class Hive {
+
+	/**
+	 * Holds the lazily created Executor that reads and decodes the stored emails (daemon threads, so neither the
+	 * display's thread nor a connection's thread is held up by it).
+	 */
+	private static class DecoderHolder {
+		private static final ExecutorService DECODER = Executors.newCachedThreadPool(run -> {
+			var outThrd = new Thread(run, "Hive-decoder");
+			outThrd.setDaemon(true);
+			return outThrd;
+		});
+	}
+
 	// Fields
 //	private static final String SECURE_SAVE_DIR = "secu_config/";
 //	private static final String DBASE_FILE = "EasyEmail.db";
 //	private static final int SECURE_ITER_COUNT = 40000;
+	public static final int MAX_FETCH_PARALLELISM = 4;	// Servers commonly limit the connections per account (and count the IDLE one too)
+	private static final int DEFAULT_FETCH_PARALLELISM = 2;
 	private IEmailDisplay meView;
+	private Map<String, Integer> meParallelism;
+	private String meMailboxServer;
+	private String meMailboxName;
+	private List<ImapPipeline> meMailboxPipes;
+	private PartFetcher meParts;
+	private MessageStore meStore;
+	private HeaderCache meHeaders;
+	private SearchIndex meIndex;
+	private ThreadIndex meThreads;
+	private MailboxSync meSync;
+	private ImapIdleWatcher meWatcher;
+	private long[] meListed;	// The UIDs displayed by the listings of the open mailbox ('null' until its first listing)
+	private CompletableFuture<Void> meListing;
+	private boolean meIsListWanted;
 
 	public Hive(IEmailDisplay theView) {
 		this.meView = theView;
+		this.meParallelism = new ConcurrentHashMap<>();
+		this.meHeaders = new HeaderCache();
+		this.meView.addEventListener(EmailDisplayEvent.EMAIL_LIST_REQUESTED, (emit, data) -> this.listEmails());
+		this.meView.addEventListener(EmailDisplayEvent.EMAIL_DATA_REQUESTED, (emit, data) -> this.showEmail(((Number)data).longValue()));
+		this.meView.addEventListener(EmailDisplayEvent.EMAIL_SEARCH_REQUESTED, (emit, data) -> this.searchEmails((String)data));
+	}
+
+	/**
+	 * Sets how many connections are used at once to list the emails of a server (capped to 'MAX_FETCH_PARALLELISM').
+	 * @param serverAddress				the server's address.
+	 * @param fetchParallelism			the number of connections.
+	 * @throws IllegalArgumentException	when the specified number is less than 1.
+	 */
+	public void setFetchParallelism(String serverAddress, int fetchParallelism) throws IllegalArgumentException {
+		if (fetchParallelism < 1) {
+			throw new IllegalArgumentException("The fetch parallelism should be at least 1.");
+		}
+		this.meParallelism.put(serverAddress, Math.min(fetchParallelism, Hive.MAX_FETCH_PARALLELISM));
+	}
+
+	/**
+	 * Used to get how many connections are used at once to list the emails of a server.
+	 * @param serverAddress	the server's address.
+	 * @return				the number of connections.
+	 */
+	public int getFetchParallelism(String serverAddress) {
+		return this.meParallelism.getOrDefault(serverAddress, Hive.DEFAULT_FETCH_PARALLELISM);
+	}
+
+	/**
+	 * Sets the mailbox that is listed when the view requests the email list.
+	 * @param serverAddress		the server's address.
+	 * @param mailboxName		the mailbox's name (what the headers are cached under).
+	 * @param mailboxPipelines	pipelines of logged in connections with the mailbox selected (only as many as the server's
+	 * 							fetch parallelism are used).
+	 */
+	public void openMailbox(String serverAddress, String mailboxName, List<ImapPipeline> mailboxPipelines) {
+		this.openMailbox(serverAddress, mailboxName, mailboxPipelines, null, null, null, null);
+	}
+
+	/**
+	 * Sets the mailbox that is listed when the view requests the email list, the local store of its messages (the
+	 * emails found there are shown without fetching them, and the others are added to it once shown), the index they
+	 * are searched with (the stored emails it is missing are indexed in the background), the index of its threads (the
+	 * listed emails are added to their threads), and the checkpoints it is synchronized with (after its first listing,
+	 * the listings only fetch what changed since the one before).
+	 * @param serverAddress		the server's address.
+	 * @param mailboxName		the mailbox's name (what the headers are cached under).
+	 * @param mailboxPipelines	pipelines of logged in connections with the mailbox selected (only as many as the server's
+	 * 							fetch parallelism are used).
+	 * @param messageStore		the store of the mailbox's messages (for its current UIDVALIDITY), or 'null' for none.
+	 * @param searchIndex		the full-text index of the stored messages (for the same UIDVALIDITY), or 'null' for none.
+	 * @param threadIndex		the index of the mailbox's threads (for the same UIDVALIDITY), or 'null' for none.
+	 * @param mailboxSync		the checkpoints of the server's mailboxes, or 'null' to list the whole mailbox every time.
+	 */
+	public void openMailbox(String serverAddress, String mailboxName, List<ImapPipeline> mailboxPipelines, MessageStore messageStore, SearchIndex searchIndex,
+			ThreadIndex threadIndex, MailboxSync mailboxSync) {
+		ImapIdleWatcher tmpWatcher;
+		synchronized (this) {
+			this.meMailboxServer = serverAddress;
+			this.meMailboxName = mailboxName;
+			this.meMailboxPipes = List.copyOf(mailboxPipelines);
+			this.meParts = this.meMailboxPipes.isEmpty() ? null : new PartFetcher(this.meMailboxPipes.get(this.meMailboxPipes.size() - 1)); // The one listing uses last
+			this.meStore = messageStore;
+			this.meIndex = searchIndex;
+			this.meThreads = threadIndex;
+			this.meSync = mailboxSync;
+			this.meListed = null;
+			tmpWatcher = this.meWatcher;
+			this.meWatcher = null;
+		}
+		if (tmpWatcher != null) { // Stopped unlocked, as its events lock this to refresh
+			tmpWatcher.stop();
+		}
+		if (messageStore != null && searchIndex != null) {
+			searchIndex.indexStore(messageStore).exceptionally(err -> {
+				this.meView.displayWarning("Indexing the stored emails failed: " + err.getMessage());
+				return 0;
+			});
+		}
+	}
+
+	/**
+	 * Watches the open mailbox for changes the server reports (see 'ImapIdleWatcher'), and lists its emails again on
+	 * every change: with checkpoints (see 'openMailbox'), only what changed is fetched, and changes reported while a
+	 * listing runs make one more listing after it. Watching stops when a mailbox is opened, or watched, again.
+	 * @param idlePipeline				the pipeline of another logged in connection with the mailbox selected (it cannot
+	 * 									be used for anything else while watching).
+	 * @throws IllegalArgumentException	when the specified pipeline is one of the open mailbox's.
+	 * @throws IllegalStateException	when no mailbox is open, or the connection is not yet connected.
+	 */
+	public void watchMailbox(ImapPipeline idlePipeline) throws IllegalArgumentException, IllegalStateException {
+		var tmpWatcher = new ImapIdleWatcher(idlePipeline);
+		tmpWatcher.addEventListener(MailboxEvent.EXISTS_CHANGED, (emit, data) -> this.listEmails());
+		tmpWatcher.addEventListener(MailboxEvent.MESSAGE_EXPUNGED, (emit, data) -> this.listEmails());
+		tmpWatcher.addEventListener(MailboxEvent.MESSAGE_CHANGED, (emit, data) -> this.listEmails());
+		tmpWatcher.addEventListener(MailboxEvent.WATCH_FAILED, (emit, data) -> this.meView.displayWarning("Watching the mailbox for changes failed: " + ((Throwable)data).getMessage()));
+		ImapIdleWatcher tmpOld;
+		synchronized (this) {
+			if (this.meMailboxPipes == null || this.meMailboxPipes.isEmpty()) {
+				throw new IllegalStateException("No mailbox is open.");
+			}
+			if (this.meMailboxPipes.contains(idlePipeline)) {
+				throw new IllegalArgumentException("The watching connection cannot be one the mailbox is listed over.");
+			}
+			tmpOld = this.meWatcher;
+			this.meWatcher = tmpWatcher;
+		}
+		if (tmpOld != null) {
+			tmpOld.stop();
+		}
+		tmpWatcher.start();
+	}
+
+	/**
+	 * Used to get the cache of the fetched headers (to see its hit rate, or to lower its size bound).
+	 * @return	the header cache.
+	 */
+	public HeaderCache getHeaderCache() {
+		return this.meHeaders;
+	}
+
+	/**
+	 * Lists the emails of the open mailbox in chunks fetched over several connections, and displays every chunk as soon
+	 * as it (and the ones before it) arrive. The flags of every email are fetched, but the rest of its headers only if
+	 * they are not cached (the fetched ones are cached), and every chunk is displayed in UID order. If the mailbox has
+	 * checkpoints and was already listed, only what changed since is fetched instead: the new emails and the flag
+	 * changes are displayed over the list, and the expunged emails are removed from it. A listing requested while one
+	 * is running is done once more after it (so what changed meanwhile is not missed).
+	 * @return	a future that completes when the listing is done (whether it succeeded or not).
+	 */
+	public CompletableFuture<Void> listEmails() {
+		List<ImapPipeline> tmpPipes;
+		String tmpServer;
+		String tmpMailbox;
+		ThreadIndex tmpThreads;
+		SearchIndex tmpIndex;
+		MailboxSync tmpSync;
+		long[] tmpListed;
+		CompletableFuture<Void> outListing;
+		synchronized (this) {
+			if (this.meListing != null && !this.meListing.isDone()) {
+				this.meIsListWanted = true;
+				return this.meListing;
+			}
+			tmpPipes = this.meMailboxPipes;
+			tmpServer = this.meMailboxServer;
+			tmpMailbox = this.meMailboxName;
+			tmpThreads = this.meThreads;
+			tmpIndex = this.meIndex;
+			tmpSync = this.meSync;
+			tmpListed = this.meListed;
+			if (tmpPipes == null || tmpPipes.isEmpty()) {
+				this.meView.displayWarning("No mailbox is open.");
+				return CompletableFuture.completedFuture(null);
+			}
+			outListing = this.meListing = new CompletableFuture<>();
+		}
+		var tmpFetcher = new HeaderFetcher(tmpPipes.subList(0, Math.min(tmpPipes.size(), this.getFetchParallelism(tmpServer))));
+		CompletableFuture<long[]> tmpListing;
+		if (tmpSync != null && tmpListed != null) {
+			tmpListing = this.refreshEmails(tmpFetcher, tmpPipes, tmpServer, tmpMailbox, tmpThreads, tmpIndex, tmpSync, tmpListed);
+		} else if (tmpSync != null) {
+			var tmpOld = tmpSync.getCheckpoint(tmpMailbox);
+			tmpListing = tmpSync.mark(tmpPipes.get(0), tmpMailbox).thenCompose(check -> {
+				if (tmpOld != null && tmpOld.getUidValidity() != check.getUidValidity()) {
+					this.meHeaders.invalidateMailbox(tmpServer, tmpMailbox);
+				}
+				return this.listAllEmails(tmpFetcher, tmpServer, tmpMailbox, tmpThreads);
+			});
+		} else {
+			tmpListing = this.listAllEmails(tmpFetcher, tmpServer, tmpMailbox, tmpThreads);
+		}
+		tmpListing.handle((uids, err) -> {
+			var tmpIsWanted = false;
+			try {
+				synchronized (this) {
+					if (this.meMailboxPipes == tmpPipes) {
+						this.meListed = uids; // After a failure, the next listing is a whole one (what the sync fetched was not all displayed)
+					}
+					tmpIsWanted = this.meIsListWanted;
+					this.meIsListWanted = false;
+				}
+			} finally {
+				outListing.complete(null); // Whatever happens next, the listings waiting behind this one are not held up
+			}
+			try {
+				if (err != null) {
+					this.meView.displayError("Listing the emails failed: " + err.getMessage());
+				}
+			} finally {
+				if (tmpIsWanted) {
+					this.listEmails();
+				}
+			}
+			return null;
+		});
+		return outListing;
+	}
+
+	private CompletableFuture<long[]> listAllEmails(HeaderFetcher theFetcher, String serverAddress, String mailboxName, ThreadIndex theThreads) {
+		return theFetcher.searchAll().thenCompose(uids -> {
+			if (uids.length == 0) {
+				this.meView.displayEamilList(List.of(), true);
+				return CompletableFuture.completedFuture(uids);
+			}
+			var tmpIsFirst = new boolean[] {true};
+			var tmpHits = new ConcurrentHashMap<Long, List<byte[][]>>(); // The cached headers of the chunks being fetched
+			return theFetcher.fetch(uids, HeaderFetcher.DEFAULT_CHUNK_SIZE, HeaderFetcher.FLAG_ITEMS, uid -> this.isHeaderMissing(serverAddress, mailboxName, uid, tmpHits),
+					HeaderFetcher.HEADER_ITEMS, (flags, headers) -> {
+				this.meHeaders.putAll(serverAddress, mailboxName, headers);
+				var tmpChunk = HeaderFetcher.mergeFlags(flags, headers, tmpHits::remove);
+				this.threadEmails(theThreads, tmpChunk); // Skips the ones already threaded
+				this.meView.displayEamilList(tmpChunk, tmpIsFirst[0]);
+				tmpIsFirst[0] = false;
+			}).thenApply(none -> uids);
+		});
+	}
+
+	/**
+	 * Fetches what changed in the open mailbox since it was listed (see 'MailboxSync.sync'), and displays it over the
+	 * listed emails.
+	 * @return	a future that completes with the UIDs listed after the changes.
+	 */
+	private CompletableFuture<long[]> refreshEmails(HeaderFetcher theFetcher, List<ImapPipeline> mailboxPipes, String serverAddress, String mailboxName, ThreadIndex theThreads,
+			SearchIndex theIndex, MailboxSync theSync, long[] listedUids) {
+		var tmpFlagLines = new ArrayList<byte[][]>(); // Only added to on the read-thread, and read after the sync completes
+		return theSync.sync(mailboxPipes.get(0), mailboxName, "(UID)", line -> {}, tmpFlagLines::add).thenCompose(result -> {
+			if (result.isFull()) { // A new UIDVALIDITY: the UIDs known before mean other emails now
+				this.meHeaders.invalidateMailbox(serverAddress, mailboxName);
+				synchronized (this) {
+					if (this.meMailboxPipes == mailboxPipes) {
+						this.meStore = null;
+						this.meIndex = null;
+						this.meThreads = null;
+					}
+				}
+				this.meView.displayWarning("The mailbox was recreated on the server, so its stored emails and indexes are no longer used.");
+				return this.listAllEmails(theFetcher, serverAddress, mailboxName, null);
+			}
+			var tmpRemoved = result.getExpungedCount() == 0L ? CompletableFuture.completedFuture(new long[0])
+					: theFetcher.searchAll().thenApply(uids -> Arrays.stream(listedUids).filter(uid -> Arrays.binarySearch(uids, uid) < 0).toArray());
+			return tmpRemoved.thenCompose(removed -> {
+				if (removed.length > 0) {
+					this.removeEmails(serverAddress, mailboxName, theThreads, theIndex, removed);
+				}
+				var tmpChanged = Arrays.stream(HeaderFetcher.listUids(tmpFlagLines)).filter(uid -> Arrays.binarySearch(removed, uid) < 0).toArray();
+				var tmpHits = new ConcurrentHashMap<Long, List<byte[][]>>();
+				var tmpMissing = Arrays.stream(tmpChanged).filter(uid -> this.isHeaderMissing(serverAddress, mailboxName, uid, tmpHits)).toArray();
+				var tmpHeaders = new ArrayList<byte[][]>();
+				var tmpFetched = tmpMissing.length == 0 ? CompletableFuture.<Void>completedFuture(null)
+						: theFetcher.fetch(tmpMissing, HeaderFetcher.DEFAULT_CHUNK_SIZE, HeaderFetcher.HEADER_ITEMS, tmpHeaders::addAll); // Chunks arrive one at a time
+				return tmpFetched.thenApply(none -> {
+					this.meHeaders.putAll(serverAddress, mailboxName, tmpHeaders);
+					var tmpLines = HeaderFetcher.mergeFlags(tmpFlagLines, tmpHeaders, tmpHits::remove);
+					if (!tmpLines.isEmpty()) {
+						this.threadEmails(theThreads, tmpLines);
+						this.meView.displayEamilList(tmpLines, false);
+					}
+					var outUids = Arrays.copyOf(listedUids, listedUids.length + tmpChanged.length);
+					System.arraycopy(tmpChanged, 0, outUids, listedUids.length, tmpChanged.length);
+					Arrays.sort(outUids);
+					return Arrays.stream(outUids).distinct().filter(uid -> Arrays.binarySearch(removed, uid) < 0).toArray();
+				});
+			});
+		});
+	}
+
+	private boolean isHeaderMissing(String serverAddress, String mailboxName, long emailUid, Map<Long, List<byte[][]>> foundHeaders) {
+		var tmpLines = this.meHeaders.get(serverAddress, mailboxName, emailUid);
+		if (tmpLines != null) {
+			foundHeaders.put(emailUid, tmpLines);
+		}
+		return tmpLines == null;
+	}
+
+	private void removeEmails(String serverAddress, String mailboxName, ThreadIndex theThreads, SearchIndex theIndex, long[] emailUids) {
+		this.meView.displayRemovedEmails(emailUids);
+		for (var tmpUid : emailUids) {
+			this.meHeaders.invalidate(serverAddress, mailboxName, tmpUid);
+		}
+		try {
+			if (theThreads != null) {
+				for (var tmpUid : emailUids) {
+					theThreads.remove(tmpUid);
+				}
+			}
+		} catch (IOException e) {
+			this.meView.displayWarning("Removing expunged emails from their threads failed: " + e.getMessage());
+		}
+		if (theIndex != null) {
+			theIndex.remove(emailUids).exceptionally(err -> {
+				this.meView.displayWarning("Removing expunged emails from the search index failed: " + err.getMessage());
+				return null;
+			});
+		}
+	}
+
+	private void threadEmails(ThreadIndex theThreads, List<byte[][]> listLines) {
+		if (theThreads != null) {
+			try {
+				theThreads.addAll(listLines);
+			} catch (IOException e) {
+				this.meView.displayWarning("Keeping the email threads failed: " + e.getMessage()); // They are threaded when listed again
+			}
+		}
+	}
+
+	/**
+	 * Lists the threads of the open mailbox whose latest email is in the specified date range, latest first (from the
+	 * thread index, without fetching anything).
+	 * @param fromDate	the start of the range in milliseconds since the epoch (inclusive).
+	 * @param toDate	the end of the range in milliseconds since the epoch (inclusive).
+	 * @param maxCount	the most threads listed (the latest ones are kept).
+	 * @return			the threads (none if the open mailbox has no thread index).
+	 */
+	public List<ThreadIndex.Conversation> listConversations(long fromDate, long toDate, int maxCount) {
+		ThreadIndex tmpThreads;
+		synchronized (this) {
+			tmpThreads = this.meThreads;
+		}
+		return tmpThreads == null ? List.of() : tmpThreads.listConversations(fromDate, toDate, maxCount);
+	}
+
+	/**
+	 * Lists the emails of the specified email's thread in the order they are shown (see 'ThreadIndex.listConversation').
+	 * @param emailUid	the UID of an email in the thread.
+	 * @return			an array of the UID and the depth of each email (none if the email is not threaded).
+	 */
+	public List<long[]> listConversation(long emailUid) {
+		ThreadIndex tmpThreads;
+		synchronized (this) {
+			tmpThreads = this.meThreads;
+		}
+		return tmpThreads == null ? List.of() : tmpThreads.listConversation(emailUid);
+	}
+
+	/**
+	 * Shows an email of the open mailbox. If the local store has it, it is read from there; if not, its structure is
+	 * fetched first, then only its text part is fetched and displayed, and its other parts (attachments, inline images)
+	 * follow in the background: with a local store, the whole email is streamed into it and they are read from there
+	 * (so nothing is fetched twice), and without one they are fetched one by one. The stored emails are read and decoded
+	 * in the background, and only what was decoded is handed to the display.
+	 * @param emailUid	the email's UID.
+	 * @return			a future that completes when the text is displayed (whether it succeeded or not).
+	 */
+	public CompletableFuture<Void> showEmail(long emailUid) {
+		PartFetcher tmpParts;
+		MessageStore tmpStore;
+		SearchIndex tmpIndex;
+		synchronized (this) {
+			tmpParts = this.meParts;
+			tmpStore = this.meStore;
+			tmpIndex = this.meIndex;
+		}
+		if (tmpParts == null) {
+			this.meView.displayWarning("No mailbox is open.");
+			return CompletableFuture.completedFuture(null);
+		}
+		var tmpIsStored = tmpStore == null ? CompletableFuture.completedFuture(false) : CompletableFuture.supplyAsync(() -> {
+			try {
+				var tmpRaw = tmpStore.read(emailUid);
+				if (tmpRaw != null) {
+					this.displayStoredEmail(emailUid, tmpRaw, false);
+					return true;
+				}
+			} catch (IOException | IllegalStateException e) {
+				this.meView.displayWarning("Reading the stored email failed (fetching it instead): " + e.getMessage());
+			}
+			return false;
+		}, DecoderHolder.DECODER);
+		return tmpIsStored.thenCompose(isShown -> isShown ? CompletableFuture.<Void>completedFuture(null) : tmpParts.fetchStructure(emailUid).thenCompose(struct -> {
+			var tmpText = struct.findTextPart(true);
+			var tmpTextFuture = tmpText == null ? CompletableFuture.<byte[]>completedFuture(null) : tmpParts.fetchPart(emailUid, tmpText);
+			return tmpTextFuture.thenAccept(text -> {
+				this.displayText(emailUid, tmpText, text);
+				if (tmpStore == null || !this.storeEmail(tmpParts, tmpStore, tmpIndex, emailUid, struct, tmpText)) {
+					this.fetchOtherParts(tmpParts, emailUid, struct, tmpText);
+				}
+			});
+		})).handle((none, err) -> {
+			if (err != null) {
+				this.meView.displayError("Showing the email failed: " + err.getMessage());
+			}
+			return null;
+		});
+	}
+
+	private void displayText(long emailUid, BodyStructure textPart, byte[] textContent) {
+		this.meView.displayEmailData(emailUid, textPart == null ? null : textPart.getType(), textContent == null ? null : TextDecoder.decode(textContent, 0, textContent.length, TextDecoder.charsetOf(textPart.getParameter("charset"))));
+	}
+
+	/**
+	 * Displays an email read from the local store (all of it, or all but its text if that is already displayed).
+	 */
+	private void displayStoredEmail(long emailUid, ByteBuffer rawEmail, boolean isTextDisplayed) {
+		var tmpBodies = new HashMap<String, byte[]>();
+		var tmpStruct = BodyStructure.parse(rawEmail, tmpBodies);
+		var tmpText = tmpStruct.findTextPart(true);
+		if (!isTextDisplayed) {
+			this.displayText(emailUid, tmpText, tmpText == null ? null : tmpBodies.get(tmpText.getPath()));
+		}
+		for (var tmpPart : tmpStruct.listOtherLeaves(tmpText)) {
+			this.meView.displayEmailPart(emailUid, tmpPart.getPath(), tmpPart.getType(), tmpPart.getFileName(), tmpBodies.get(tmpPart.getPath()));
+		}
+	}
+
+	private void fetchOtherParts(PartFetcher theParts, long emailUid, BodyStructure theStruct, BodyStructure textPart) {
+		for (var tmpPart : theStruct.listOtherLeaves(textPart)) {
+			theParts.fetchPartInBackground(emailUid, tmpPart).thenAccept(content -> this.meView.displayEmailPart(emailUid, tmpPart.getPath(), tmpPart.getType(), tmpPart.getFileName(), content));
+		}
+	}
+
+	/**
+	 * Streams the whole email into the local store in the background, then displays its parts other than the text from
+	 * there (or fetches them one by one if storing it fails). Committing and decoding it are left to the decoder, not
+	 * the connection's thread.
+	 * @return	'true' if the email is being stored ('false' if the store could not take it).
+	 */
+	private boolean storeEmail(PartFetcher theParts, MessageStore theStore, SearchIndex theIndex, long emailUid, BodyStructure theStruct, BodyStructure textPart) {
+		MessageStore.Appender tmpAppender;
+		try {
+			tmpAppender = theStore.openAppend(emailUid);
+		} catch (IOException | IllegalStateException e) {
+			this.meView.displayWarning("Keeping the email locally failed: " + e.getMessage()); // It is fetched again next time
+			return false;
+		}
+		theParts.fetchMessageInBackground(emailUid, tmpAppender).whenCompleteAsync((none, err) -> {
+			if (err != null) {
+				tmpAppender.close();
+				if (!(err.getCause() instanceof IllegalStateException)) { // If not, it is already being stored (and is displayed when it is)
+					this.meView.displayWarning("Fetching the email's attachments failed: " + err.getMessage());
+				}
+				return;
+			}
+			ByteBuffer tmpRaw;
+			try {
+				tmpAppender.commit();
+				tmpRaw = theStore.read(emailUid);
+			} catch (IOException | IllegalStateException e) {
+				this.meView.displayWarning("Keeping the email locally failed: " + e.getMessage());
+				this.fetchOtherParts(theParts, emailUid, theStruct, textPart);
+				return;
+			}
+			if (theIndex != null) {
+				theIndex.add(emailUid, tmpRaw);
+			}
+			this.displayStoredEmail(emailUid, tmpRaw, true);
+		}, DecoderHolder.DECODER);
+		return true;
+	}
+
+	/**
+	 * Searches the stored emails of the open mailbox in the background, and displays the result (see 'SearchIndex' for
+	 * the query's syntax).
+	 * @param searchQuery	the query (like 'invoice from:alice').
+	 * @return				a future that completes when the result is displayed (whether the search succeeded or not).
+	 */
+	public CompletableFuture<Void> searchEmails(String searchQuery) {
+		SearchIndex tmpIndex;
+		synchronized (this) {
+			tmpIndex = this.meIndex;
+		}
+		if (tmpIndex == null) {
+			this.meView.displayWarning("The open mailbox has no search index.");
+			return CompletableFuture.completedFuture(null);
+		}
+		return tmpIndex.search(searchQuery).thenAccept(uids -> this.meView.displaySearchResult(searchQuery, uids)).handle((none, err) -> {
+			if (err != null) {
+				this.meView.displayError("Searching the emails failed: " + err.getMessage());
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * Fetches a part of an email of the open mailbox on demand (from the cache if it was already fetched in the
+	 * background, and ahead of other background fetches if not).
+	 * @param emailUid	the email's UID.
+	 * @param leafPart	the part (a leaf of the email's structure).
+	 * @return			a future that completes with the decoded content of the part.
+	 */
+	public CompletableFuture<byte[]> fetchEmailPart(long emailUid, BodyStructure leafPart) {
+		PartFetcher tmpParts;
+		synchronized (this) {
+			tmpParts = this.meParts;
+		}
+		return tmpParts == null ? CompletableFuture.failedFuture(new IllegalStateException("No mailbox is open.")) : tmpParts.fetchPart(emailUid, leafPart);
 	}
 
 	public void start() {
@@ -0,0 +1,135 @@
+package lib;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * A class that represents a streaming base64 decoder (RFC 2045). Line breaks, white space and other bytes outside the
+ * alphabet are skipped, so MIME bodies can be passed as they are received, in chunks split anywhere. Padding ends a
+ * quantum, so concatenated encodings decode correctly too.
+ * @author Janty Azmat
+ */
+public class Base64Decoder implements IStreamDecoder {
+	// Fields
+	private static final byte[] VALUES = new byte[256];
+	static {
+		Arrays.fill(Base64Decoder.VALUES, (byte)-1);
+		var tmpChars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for (var i = 0; i < tmpChars.length(); i++) {
+			Base64Decoder.VALUES[tmpChars.charAt(i)] = (byte)i;
+		}
+		Base64Decoder.VALUES['='] = -2;
+	}
+	private int meAcc;		// The bits of the quantum so far
+	private int meCount;	// The number of characters in the quantum so far
+
+	@Override
+	public int getMaxDecoded(int srcLength) {
+		return (this.meCount + srcLength) / 4 * 3 + 2;
+	}
+
+	@Override
+	public int decode(byte[] srcBuffer, int srcOffset, int srcLength, byte[] dstBuffer, int dstOffset) throws IndexOutOfBoundsException {
+		Objects.checkFromIndexSize(srcOffset, srcLength, srcBuffer.length);
+		var tmpAcc = this.meAcc;
+		var tmpCount = this.meCount;
+		var tmpOut = dstOffset;
+		var tmpEnd = srcOffset + srcLength;
+		var tmpFastEnd = tmpEnd - 3;
+		var i = srcOffset;
+		while (i < tmpEnd) {
+			if (tmpCount == 0) { // The fast path: whole quanta of alphabet characters
+				while (i < tmpFastEnd) {
+					int tmpA = Base64Decoder.VALUES[srcBuffer[i] & 0xFF], tmpB = Base64Decoder.VALUES[srcBuffer[i + 1] & 0xFF];
+					int tmpC = Base64Decoder.VALUES[srcBuffer[i + 2] & 0xFF], tmpD = Base64Decoder.VALUES[srcBuffer[i + 3] & 0xFF];
+					if ((tmpA | tmpB | tmpC | tmpD) < 0) {
+						break; // A line break, padding, or garbage (handled one byte at a time)
+					}
+					var tmpBits = tmpA << 18 | tmpB << 12 | tmpC << 6 | tmpD;
+					dstBuffer[tmpOut] = (byte)(tmpBits >> 16);
+					dstBuffer[tmpOut + 1] = (byte)(tmpBits >> 8);
+					dstBuffer[tmpOut + 2] = (byte)tmpBits;
+					tmpOut += 3;
+					i += 4;
+				}
+				if (i == tmpEnd) {
+					break;
+				}
+			}
+			var tmpVal = Base64Decoder.VALUES[srcBuffer[i++] & 0xFF];
+			if (tmpVal >= 0) {
+				tmpAcc = tmpAcc << 6 | tmpVal;
+				if (++tmpCount == 4) {
+					dstBuffer[tmpOut++] = (byte)(tmpAcc >> 16);
+					dstBuffer[tmpOut++] = (byte)(tmpAcc >> 8);
+					dstBuffer[tmpOut++] = (byte)tmpAcc;
+					tmpAcc = 0;
+					tmpCount = 0;
+				}
+			} else if (tmpVal == -2 && tmpCount > 0) { // Padding ends the quantum
+				tmpOut = Base64Decoder.flushQuantum(tmpAcc, tmpCount, dstBuffer, tmpOut);
+				tmpAcc = 0;
+				tmpCount = 0;
+			}
+		}
+		this.meAcc = tmpAcc;
+		this.meCount = tmpCount;
+		return tmpOut - dstOffset;
+	}
+
+	@Override
+	public void decode(ByteBuffer srcBuffer, ByteBuffer dstBuffer) {
+		var tmpAcc = this.meAcc;
+		var tmpCount = this.meCount;
+		while (srcBuffer.hasRemaining() && dstBuffer.remaining() >= 3) {
+			var tmpVal = Base64Decoder.VALUES[srcBuffer.get() & 0xFF];
+			if (tmpVal >= 0) {
+				tmpAcc = tmpAcc << 6 | tmpVal;
+				if (++tmpCount == 4) {
+					dstBuffer.put((byte)(tmpAcc >> 16)).put((byte)(tmpAcc >> 8)).put((byte)tmpAcc);
+					tmpAcc = 0;
+					tmpCount = 0;
+				}
+			} else if (tmpVal == -2 && tmpCount > 0) {
+				if (tmpCount > 1) {
+					dstBuffer.put((byte)(tmpAcc >> (tmpCount * 6 - 8)));
+				}
+				if (tmpCount > 2) {
+					dstBuffer.put((byte)(tmpAcc >> (tmpCount * 6 - 16)));
+				}
+				tmpAcc = 0;
+				tmpCount = 0;
+			}
+		}
+		this.meAcc = tmpAcc;
+		this.meCount = tmpCount;
+	}
+
+	@Override
+	public int finish(byte[] dstBuffer, int dstOffset) {
+		var outCount = Base64Decoder.flushQuantum(this.meAcc, this.meCount, dstBuffer, dstOffset) - dstOffset; // Missing padding is tolerated
+		this.reset();
+		return outCount;
+	}
+
+	@Override
+	public void reset() {
+		this.meAcc = 0;
+		this.meCount = 0;
+	}
+
+	/**
+	 * Writes the whole bytes of an incomplete quantum (2 characters give 1 byte, and 3 give 2).
+	 * @return	the offset after the written bytes.
+	 */
+	private static int flushQuantum(int quantumBits, int charCount, byte[] dstBuffer, int dstOffset) {
+		if (charCount > 1) {
+			dstBuffer[dstOffset++] = (byte)(quantumBits >> (charCount * 6 - 8));
+		}
+		if (charCount > 2) {
+			dstBuffer[dstOffset++] = (byte)(quantumBits >> (charCount * 6 - 16));
+		}
+		return dstOffset;
+	}
+}
@@ -0,0 +1,340 @@
+package lib;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A class that represents a pool of direct (off-heap) ByteBuffers in size classes (two per power of two, from 4 KB to
+ * 1 MB). Leased buffers are returned to the pool to be leased again, so the I/O buffers of connections are not
+ * allocated (and garbage collected) on every connect. The pool never allocates more than its memory cap of direct
+ * memory: when the cap is reached, idle buffers of other classes are dropped, and if that is not enough (or the size is
+ * above the largest class) a heap buffer is leased instead.
+ * With leak detection on, every lease remembers where it happened, and a leased buffer that becomes unreachable without
+ * being released is reported (and no longer counted against the cap). Without it, an unreleased buffer stays counted.
+ * Either way, the leased buffers are tracked by identity, so releasing a buffer that is not leased (like one that was
+ * already released) is ignored instead of handing it out twice.
+ * @author Janty Azmat
+ */
+public class BufferPool {
+
+	/**
+	 * Holds the lazily created shared BufferPool.
+	 */
+	private static class SharedHolder {
+		private static final BufferPool SHARED = new BufferPool(BufferPool.DEFAULT_MEMORY_CAP);
+	}
+
+	/**
+	 * Tracks a leased buffer (and where it was leased when leak detection is on).
+	 */
+	private static class Lease extends PhantomReference<ByteBuffer> {
+		private int meCapacity;
+		private int meKey;
+		private Throwable meSite;
+
+		private Lease(ByteBuffer leasedBuffer, ReferenceQueue<ByteBuffer> refQueue) {
+			super(leasedBuffer, refQueue);
+			this.meCapacity = leasedBuffer.capacity();
+			this.meKey = System.identityHashCode(leasedBuffer);
+			if (refQueue != null) {
+				this.meSite = new Throwable("A pooled buffer of " + this.meCapacity + " bytes was leased here and never released.");
+			}
+		}
+	}
+
+	// Fields
+	public static final long DEFAULT_MEMORY_CAP = 64L << 20;
+	private static final int[] CLASS_SIZES;
+	static {
+		var tmpSizes = new ArrayList<Integer>();
+		for (var tmpSize = 4096; tmpSize <= 1 << 20; tmpSize <<= 1) {
+			tmpSizes.add(tmpSize);
+			if (tmpSize < 1 << 20) {
+				tmpSizes.add(tmpSize + (tmpSize >> 1));
+			}
+		}
+		CLASS_SIZES = tmpSizes.stream().mapToInt(Integer::intValue).toArray();
+	}
+	private long meCap;
+	private ArrayDeque<ByteBuffer>[] meFree;
+	private long meAllocated;	// Direct bytes allocated by this pool and still counted (idle or leased)
+	private long meLeased;
+	private long meLeaseCount;
+	private long meAllocCount;
+	private long meFallbackCount;
+	private long meLeakCount;
+	private ReferenceQueue<ByteBuffer> meRefQueue;	// 'null' when leak detection is off
+	private Map<Integer, List<Lease>> meLeases;	// Keyed by the identity hash of the leased buffer
+	private Consumer<Throwable> meLeakListener;
+
+	/**
+	 * A constructor that takes the maximum amount of direct memory the pool may allocate as a parameter.
+	 * @param memoryCap					the memory cap in bytes.
+	 * @throws IllegalArgumentException	when the specified cap is negative.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public BufferPool(long memoryCap) throws IllegalArgumentException {
+		if (memoryCap < 0L) {
+			throw new IllegalArgumentException("The memory cap cannot be negative.");
+		}
+		this.meCap = memoryCap;
+		this.meFree = new ArrayDeque[BufferPool.CLASS_SIZES.length];
+		for (var i = 0; i < this.meFree.length; i++) {
+			this.meFree[i] = new ArrayDeque<>();
+		}
+		this.meLeases = new HashMap<>();
+	}
+
+	/**
+	 * Used to get the BufferPool that the connections use.
+	 * @return	the shared BufferPool.
+	 */
+	public static BufferPool getShared() {
+		return SharedHolder.SHARED;
+	}
+
+	/**
+	 * Leases a cleared buffer of at least the specified capacity (a direct one of the matching size class, or a heap one
+	 * when the memory cap is reached or the size is above the largest class).
+	 * @param minCapacity				the minimum capacity.
+	 * @return							the leased buffer (to be released once no longer used).
+	 * @throws IllegalArgumentException	when the specified capacity is negative.
+	 */
+	public ByteBuffer lease(int minCapacity) throws IllegalArgumentException {
+		if (minCapacity < 0) {
+			throw new IllegalArgumentException("The capacity cannot be negative.");
+		}
+		var tmpLeaks = this.expungeLeaks();
+		ByteBuffer outBuf = null;
+		var tmpClass = BufferPool.classOf(minCapacity);
+		synchronized (this) {
+			this.meLeaseCount++;
+			if (tmpClass >= 0) {
+				var tmpSize = BufferPool.CLASS_SIZES[tmpClass];
+				outBuf = this.meFree[tmpClass].pollLast(); // The most recently used first
+				if (outBuf == null && this.makeRoom(tmpSize)) {
+					outBuf = ByteBuffer.allocateDirect(tmpSize);
+					this.meAllocated += tmpSize;
+					this.meAllocCount++;
+				}
+			}
+			if (outBuf == null) {
+				this.meFallbackCount++;
+				outBuf = ByteBuffer.allocate(minCapacity);
+			} else {
+				this.meLeased += outBuf.capacity();
+				var tmpLease = new Lease(outBuf, this.meRefQueue);
+				this.meLeases.computeIfAbsent(tmpLease.meKey, key -> new ArrayList<>(1)).add(tmpLease);
+			}
+		}
+		this.reportLeaks(tmpLeaks);
+		return outBuf.clear();
+	}
+
+	/**
+	 * Returns the specified buffer to the pool (heap buffers, and buffers that are not leased from this pool, like ones
+	 * already released, are ignored). The buffer must not be used after that.
+	 * @param leasedBuffer	the buffer to release (or 'null').
+	 */
+	public void release(ByteBuffer leasedBuffer) {
+		if (leasedBuffer == null || !leasedBuffer.isDirect()) {
+			return;
+		}
+		var tmpClass = BufferPool.classOf(leasedBuffer.capacity());
+		if (tmpClass < 0 || BufferPool.CLASS_SIZES[tmpClass] != leasedBuffer.capacity()) {
+			return;
+		}
+		var tmpLeaks = this.expungeLeaks();
+		synchronized (this) {
+			var tmpIsLeased = false;
+			var tmpList = this.meLeases.get(System.identityHashCode(leasedBuffer));
+			if (tmpList != null) {
+				for (var i = 0; i < tmpList.size() && !tmpIsLeased; i++) {
+					if (tmpList.get(i).refersTo(leasedBuffer)) {
+						tmpList.remove(i).clear();
+						tmpIsLeased = true;
+					}
+				}
+				if (tmpList.isEmpty()) {
+					this.meLeases.remove(System.identityHashCode(leasedBuffer));
+				}
+			}
+			if (tmpIsLeased) { // Released twice, it would be leased to two users at once
+				this.meLeased -= leasedBuffer.capacity();
+				this.meFree[tmpClass].addLast(leasedBuffer);
+			}
+		}
+		this.reportLeaks(tmpLeaks);
+	}
+
+	/**
+	 * Sets whether leased buffers are tracked to detect the ones never released (meant for debugging, since every lease
+	 * then records a stack trace).
+	 * @param isDetecting	'true' to turn leak detection on.
+	 * @param leakListener	gets a Throwable whose stack trace shows where each leaked buffer was leased (or 'null').
+	 */
+	public synchronized void setLeakDetection(boolean isDetecting, Consumer<Throwable> leakListener) {
+		this.meLeakListener = leakListener;
+		if (isDetecting && this.meRefQueue == null) {
+			this.meRefQueue = new ReferenceQueue<>(); // The buffers leased before are still tracked, but not detected if leaked
+		} else if (!isDetecting) {
+			this.meRefQueue = null;
+		}
+	}
+
+	/**
+	 * Checks if leased buffers are tracked to detect leaks.
+	 * @return	'true' if leak detection is on.
+	 */
+	public synchronized boolean isLeakDetection() {
+		return this.meRefQueue != null;
+	}
+
+	/**
+	 * Drops all the idle buffers (their memory is freed once they are garbage collected).
+	 */
+	public synchronized void trim() {
+		for (var tmpQueue : this.meFree) {
+			ByteBuffer tmpBuf;
+			while ((tmpBuf = tmpQueue.pollFirst()) != null) {
+				this.meAllocated -= tmpBuf.capacity();
+			}
+		}
+	}
+
+	/**
+	 * Used to get the maximum amount of direct memory this pool may allocate.
+	 * @return	the memory cap in bytes.
+	 */
+	public synchronized long getMemoryCap() {
+		return this.meCap;
+	}
+
+	/**
+	 * Used to get the direct memory allocated by this pool (idle and leased buffers).
+	 * @return	the allocated bytes.
+	 */
+	public synchronized long getAllocatedBytes() {
+		return this.meAllocated;
+	}
+
+	/**
+	 * Used to get the direct memory currently leased.
+	 * @return	the leased bytes.
+	 */
+	public synchronized long getLeasedBytes() {
+		return this.meLeased;
+	}
+
+	/**
+	 * Used to get the number of leases so far.
+	 * @return	the number of leases.
+	 */
+	public synchronized long getLeaseCount() {
+		return this.meLeaseCount;
+	}
+
+	/**
+	 * Used to get the number of direct buffers allocated so far (leases that could not reuse an idle buffer).
+	 * @return	the number of allocations.
+	 */
+	public synchronized long getAllocationCount() {
+		return this.meAllocCount;
+	}
+
+	/**
+	 * Used to get the number of leases that got a heap buffer (because of the memory cap or the size).
+	 * @return	the number of heap fallbacks.
+	 */
+	public synchronized long getFallbackCount() {
+		return this.meFallbackCount;
+	}
+
+	/**
+	 * Used to get the number of leaked buffers detected (while leak detection was on).
+	 * @return	the number of leaks.
+	 */
+	public synchronized long getLeakCount() {
+		return this.meLeakCount;
+	}
+
+	/**
+	 * Makes sure allocating the specified size stays within the cap, dropping idle buffers (the largest first) if needed.
+	 * @param theSize	the size to allocate.
+	 * @return			'true' if the size can be allocated.
+	 */
+	private boolean makeRoom(int theSize) {
+		if (theSize > this.meCap) {
+			return false;
+		}
+		for (var i = this.meFree.length - 1; i >= 0 && this.meAllocated + theSize > this.meCap; i--) {
+			ByteBuffer tmpBuf;
+			while (this.meAllocated + theSize > this.meCap && (tmpBuf = this.meFree[i].pollFirst()) != null) {
+				this.meAllocated -= tmpBuf.capacity();
+			}
+		}
+		return this.meAllocated + theSize <= this.meCap;
+	}
+
+	/**
+	 * Removes the leases whose buffers were garbage collected without being released.
+	 * @return	the leaked leases (or 'null' if there is none).
+	 */
+	private List<Lease> expungeLeaks() {
+		List<Lease> outLeaks = null;
+		synchronized (this) {
+			if (this.meRefQueue == null) {
+				return null;
+			}
+			Lease tmpLease;
+			while ((tmpLease = (Lease)this.meRefQueue.poll()) != null) {
+				var tmpList = this.meLeases.get(tmpLease.meKey);
+				if (tmpList == null || !tmpList.remove(tmpLease)) {
+					continue; // Released before it was enqueued
+				}
+				if (tmpList.isEmpty()) {
+					this.meLeases.remove(tmpLease.meKey);
+				}
+				this.meAllocated -= tmpLease.meCapacity; // Freed with the garbage collected buffer
+				this.meLeased -= tmpLease.meCapacity;
+				this.meLeakCount++;
+				if (outLeaks == null) {
+					outLeaks = new ArrayList<>();
+				}
+				outLeaks.add(tmpLease);
+			}
+		}
+		return outLeaks;
+	}
+
+	private void reportLeaks(List<Lease> leakedLeases) {
+		Consumer<Throwable> tmpListener;
+		synchronized (this) {
+			tmpListener = this.meLeakListener;
+		}
+		if (leakedLeases != null && tmpListener != null) {
+			leakedLeases.forEach(lease -> tmpListener.accept(lease.meSite));
+		}
+	}
+
+	/**
+	 * Finds the smallest size class that fits the specified capacity.
+	 * @param theCapacity	the capacity.
+	 * @return				the index of the size class, or -1 if the capacity is above the largest class.
+	 */
+	private static int classOf(int theCapacity) {
+		for (var i = 0; i < BufferPool.CLASS_SIZES.length; i++) {
+			if (BufferPool.CLASS_SIZES[i] >= theCapacity) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,316 @@
+package lib;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * A class that represents a bounded ring buffer of events between the thread that produces them (like a socket
+ * read-thread) and the listeners that consume them. The events are handed to the listeners in order on an Executor,
+ * so a slow listener does not stall the producer until the buffer is full; what happens then is decided by the
+ * overflow policy. The buffer keeps one spare slot for a final event that has to be delivered even when it is full.
+ * @author Janty Azmat
+ * @param <Ev>	an enumeration type that holds the events' constants.
+ */
+public class EventQueue<Ev extends Enum<Ev>> {
+
+	/**
+	 * An enum that represents what happens when an event is put into a full EventQueue.
+	 * @author Janty Azmat
+	 */
+	public static enum OverflowPolicy {
+
+		/**
+		 * The producer waits until there is room (for a socket read-thread this stops reading, so TCP pushes back on the server).
+		 */
+		BLOCK,
+
+		/**
+		 * The event is rejected right away (the producer should treat it as a failure).
+		 */
+		FAIL
+	}
+
+	/**
+	 * Holds the lazily created default Executor (daemon threads shared by all queues).
+	 */
+	private static class DispatcherHolder {
+		private static final ExecutorService DISPATCHER = Executors.newCachedThreadPool(run -> {
+			var outThrd = new Thread(run, "EventQueue-dispatcher");
+			outThrd.setDaemon(true);
+			return outThrd;
+		});
+	}
+
+	// Fields
+	private BiConsumer<Ev, Object> meTarget;
+	private Executor meExec;
+	private OverflowPolicy mePolicy;
+	private int meCapacity;
+	private Object[] meEvents;
+	private Object[] meData;
+	private int meHead;
+	private int meCount;
+	private boolean meIsAborted;
+	private final ReentrantLock meLock = new ReentrantLock();
+	private final Condition meNotFull = this.meLock.newCondition();
+	private final AtomicBoolean meIsScheduled = new AtomicBoolean();
+	private int meMaxDepth;
+	private long meStallNanos;
+	private long meStallCount;
+	private long meOverflowCount;
+
+	/**
+	 * A constructor that takes the event consumer, the capacity, the overflow policy, and the Executor as parameters.
+	 * @param eventTarget				the consumer that hands the events to the listeners.
+	 * @param queueCapacity				the maximum number of events waiting to be consumed.
+	 * @param overflowPolicy			what happens when an event is put into a full queue.
+	 * @param dispatchExecutor			the Executor that runs the consumer (or 'null' for a shared default one).
+	 * @throws NullPointerException		when the specified consumer or overflow policy is 'null'.
+	 * @throws IllegalArgumentException	when the specified capacity is less than 1.
+	 */
+	public EventQueue(BiConsumer<Ev, Object> eventTarget, int queueCapacity, OverflowPolicy overflowPolicy, Executor dispatchExecutor) throws NullPointerException, IllegalArgumentException {
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("The capacity of the EventQueue should be at least 1.");
+		}
+		this.meTarget = Objects.requireNonNull(eventTarget, "The 'eventTarget' argument cannot be 'null'.");
+		this.mePolicy = Objects.requireNonNull(overflowPolicy, "The 'overflowPolicy' argument cannot be 'null'.");
+		this.meExec = dispatchExecutor == null ? DispatcherHolder.DISPATCHER : dispatchExecutor;
+		this.meCapacity = queueCapacity;
+		this.meEvents = new Object[queueCapacity + 1]; // The spare slot is for 'putFinal'
+		this.meData = new Object[queueCapacity + 1];
+	}
+
+	/**
+	 * Puts the specified event into this queue (waits for room if full and the policy is 'BLOCK').
+	 * @param theEvent		the event.
+	 * @param eventData		the extra data about the event (can be null).
+	 * @return				'false' if the queue is full and the policy is 'FAIL' (or the waiting was interrupted).
+	 */
+	public boolean put(Ev theEvent, Object eventData) {
+		this.meLock.lock();
+		try {
+			if (this.meIsAborted) {
+				return true; // Dropped silently while aborted
+			}
+			if (this.meCount >= this.meCapacity) {
+				if (this.mePolicy == OverflowPolicy.FAIL) {
+					this.meOverflowCount++;
+					return false;
+				}
+				var tmpStart = System.nanoTime();
+				this.meStallCount++;
+				try {
+					while (this.meCount >= this.meCapacity && !this.meIsAborted) {
+						this.meNotFull.await();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				} finally {
+					this.meStallNanos += System.nanoTime() - tmpStart;
+				}
+				if (this.meIsAborted) {
+					return true;
+				}
+			}
+			this.enqueue(theEvent, eventData);
+		} finally {
+			this.meLock.unlock();
+		}
+		this.schedule();
+		return true;
+	}
+
+	/**
+	 * Puts the specified (final) event into this queue without waiting, using the spare slot if the queue is full
+	 * (meant for the last event of a producer, like an interruption notice).
+	 * @param theEvent		the event.
+	 * @param eventData		the extra data about the event (can be null).
+	 * @return				'false' if even the spare slot is taken.
+	 */
+	public boolean putFinal(Ev theEvent, Object eventData) {
+		this.meLock.lock();
+		try {
+			if (this.meIsAborted) {
+				return true;
+			}
+			if (this.meCount > this.meCapacity) {
+				this.meOverflowCount++;
+				return false;
+			}
+			this.enqueue(theEvent, eventData);
+		} finally {
+			this.meLock.unlock();
+		}
+		this.schedule();
+		return true;
+	}
+
+	private void enqueue(Ev theEvent, Object eventData) {
+		var tmpTail = (this.meHead + this.meCount) % this.meEvents.length;
+		this.meEvents[tmpTail] = theEvent;
+		this.meData[tmpTail] = eventData;
+		this.meCount++;
+		this.meMaxDepth = Math.max(this.meMaxDepth, this.meCount);
+	}
+
+	/**
+	 * Makes sure a consumer task is running (only one at a time, so the events stay in order).
+	 */
+	private void schedule() {
+		if (this.meIsScheduled.compareAndSet(false, true)) {
+			this.meExec.execute(this::drain);
+		}
+	}
+
+	/**
+	 * Hands the queued events to the consumer until the queue is empty (runs on the Executor).
+	 */
+	@SuppressWarnings("unchecked")
+	private void drain() {
+		while (true) {
+			Ev tmpEvent;
+			Object tmpData;
+			this.meLock.lock();
+			try {
+				if (this.meCount == 0) {
+					this.meIsScheduled.set(false);
+					return;
+				}
+				tmpEvent = (Ev)this.meEvents[this.meHead];
+				tmpData = this.meData[this.meHead];
+				this.meEvents[this.meHead] = null;
+				this.meData[this.meHead] = null;
+				this.meHead = (this.meHead + 1) % this.meEvents.length;
+				this.meCount--;
+				this.meNotFull.signal();
+			} finally {
+				this.meLock.unlock();
+			}
+			try {
+				this.meTarget.accept(tmpEvent, tmpData);
+			} catch (RuntimeException e) { // A failing listener should not stop the delivery of the next events
+				Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
+			}
+		}
+	}
+
+	/**
+	 * Drops the queued events, releases a waiting producer, and drops whatever is put until 'reset()' is called (used
+	 * when the producer is being stopped).
+	 */
+	public void abort() {
+		this.meLock.lock();
+		try {
+			this.meIsAborted = true;
+			while (this.meCount > 0) {
+				this.meEvents[this.meHead] = null;
+				this.meData[this.meHead] = null;
+				this.meHead = (this.meHead + 1) % this.meEvents.length;
+				this.meCount--;
+			}
+			this.meNotFull.signalAll();
+		} finally {
+			this.meLock.unlock();
+		}
+	}
+
+	/**
+	 * Accepts events again after 'abort()'.
+	 */
+	public void reset() {
+		this.meLock.lock();
+		try {
+			this.meIsAborted = false;
+		} finally {
+			this.meLock.unlock();
+		}
+	}
+
+	/**
+	 * Used to get the capacity of this queue.
+	 * @return	the capacity of this queue.
+	 */
+	public int getCapacity() {
+		return this.meCapacity;
+	}
+
+	/**
+	 * Used to get the overflow policy of this queue.
+	 * @return	the overflow policy of this queue.
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return this.mePolicy;
+	}
+
+	/**
+	 * Used to get the number of events currently waiting to be consumed.
+	 * @return	the current depth of this queue.
+	 */
+	public int getDepth() {
+		this.meLock.lock();
+		try {
+			return this.meCount;
+		} finally {
+			this.meLock.unlock();
+		}
+	}
+
+	/**
+	 * Used to get the highest number of events that were waiting at once.
+	 * @return	the maximum depth of this queue.
+	 */
+	public int getMaxDepth() {
+		this.meLock.lock();
+		try {
+			return this.meMaxDepth;
+		} finally {
+			this.meLock.unlock();
+		}
+	}
+
+	/**
+	 * Used to get the total time the producer spent waiting for room (with the 'BLOCK' policy).
+	 * @return	the total stall time in nanoseconds.
+	 */
+	public long getStallNanos() {
+		this.meLock.lock();
+		try {
+			return this.meStallNanos;
+		} finally {
+			this.meLock.unlock();
+		}
+	}
+
+	/**
+	 * Used to get the number of times the producer had to wait for room (with the 'BLOCK' policy).
+	 * @return	the number of stalls.
+	 */
+	public long getStallCount() {
+		this.meLock.lock();
+		try {
+			return this.meStallCount;
+		} finally {
+			this.meLock.unlock();
+		}
+	}
+
+	/**
+	 * Used to get the number of events rejected because the queue was full (with the 'FAIL' policy).
+	 * @return	the number of rejected events.
+	 */
+	public long getOverflowCount() {
+		this.meLock.lock();
+		try {
+			return this.meOverflowCount;
+		} finally {
+			this.meLock.unlock();
+		}
+	}
+}
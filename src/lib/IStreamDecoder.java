@@ -0,0 +1,54 @@
+package lib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The interface needed for a streaming decoder of a transfer encoding (like base64, or quoted-printable). The encoded
+ * bytes can be passed in chunks split anywhere (the decoder keeps what it needs between calls), and decoding works
+ * from buffer to buffer without allocating anything.
+ * @author Janty Azmat
+ */
+public interface IStreamDecoder {
+
+	/**
+	 * Used to get the most bytes that decoding the specified number of encoded bytes can produce (including what the
+	 * decoder holds from earlier chunks).
+	 * @param srcLength	the number of encoded bytes.
+	 * @return			the most decoded bytes.
+	 */
+	int getMaxDecoded(int srcLength);
+
+	/**
+	 * Decodes the specified encoded bytes into the specified buffer (which should have room for 'getMaxDecoded' bytes).
+	 * @param srcBuffer						the buffer that holds the encoded bytes.
+	 * @param srcOffset						the offset of the encoded bytes in the buffer.
+	 * @param srcLength						the number of encoded bytes.
+	 * @param dstBuffer						the buffer to decode into.
+	 * @param dstOffset						the offset to decode to.
+	 * @return								the number of decoded bytes.
+	 * @throws IndexOutOfBoundsException	when the source range is out of bounds, or the destination is too small.
+	 */
+	int decode(byte[] srcBuffer, int srcOffset, int srcLength, byte[] dstBuffer, int dstOffset) throws IndexOutOfBoundsException;
+
+	/**
+	 * Decodes as many of the remaining bytes of the source buffer as the destination buffer has room for (both
+	 * positions advance). Works with heap, direct, and mapped buffers.
+	 * @param srcBuffer	the buffer that holds the encoded bytes.
+	 * @param dstBuffer	the buffer to decode into.
+	 */
+	void decode(ByteBuffer srcBuffer, ByteBuffer dstBuffer);
+
+	/**
+	 * Ends the encoded data: what the decoder still holds is decoded (or dropped if it cannot be), and the decoder is
+	 * ready for new data.
+	 * @param dstBuffer	the buffer to decode into (should have room for 'getMaxDecoded(0)' bytes).
+	 * @param dstOffset	the offset to decode to.
+	 * @return			the number of decoded bytes.
+	 */
+	int finish(byte[] dstBuffer, int dstOffset);
+
+	/**
+	 * Drops what the decoder holds, and makes it ready for new data.
+	 */
+	void reset();
+}
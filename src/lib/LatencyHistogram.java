@@ -0,0 +1,127 @@
+package lib;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A class that represents a lock-free histogram of durations (in nanoseconds). The durations are counted in
+ * logarithmic buckets (4 per power of two, so a reported percentile is at most about 19% above the real value), which
+ * keeps recording cheap and the memory fixed no matter how many durations are recorded.
+ * @author Janty Azmat
+ */
+public class LatencyHistogram {
+	// Fields
+	private static final int SUB_BITS = 2; // 4 buckets per power of two
+	private static final int BUCKET_COUNT = (63 - LatencyHistogram.SUB_BITS + 1) << LatencyHistogram.SUB_BITS; // Durations are never negative
+	private AtomicLongArray meBuckets;
+	private LongAdder meCount;
+	private LongAdder meTotal;
+	private LongAccumulator meMax;
+
+	/**
+	 * A constructor that creates an empty histogram.
+	 */
+	public LatencyHistogram() {
+		this.meBuckets = new AtomicLongArray(LatencyHistogram.BUCKET_COUNT);
+		this.meCount = new LongAdder();
+		this.meTotal = new LongAdder();
+		this.meMax = new LongAccumulator(Math::max, 0L);
+	}
+
+	/**
+	 * Records the specified duration (negative durations are recorded as 0).
+	 * @param durationNanos	the duration in nanoseconds.
+	 */
+	public void record(long durationNanos) {
+		durationNanos = Math.max(0L, durationNanos);
+		this.meBuckets.incrementAndGet(LatencyHistogram.bucketOf(durationNanos));
+		this.meCount.increment();
+		this.meTotal.add(durationNanos);
+		this.meMax.accumulate(durationNanos);
+	}
+
+	/**
+	 * Used to get the number of recorded durations.
+	 * @return	the number of recorded durations.
+	 */
+	public long getCount() {
+		return this.meCount.sum();
+	}
+
+	/**
+	 * Used to get the average of the recorded durations.
+	 * @return	the average duration in nanoseconds (0 if nothing was recorded).
+	 */
+	public long getMeanNanos() {
+		var tmpCount = this.meCount.sum();
+		return tmpCount == 0L ? 0L : this.meTotal.sum() / tmpCount;
+	}
+
+	/**
+	 * Used to get the longest recorded duration.
+	 * @return	the longest duration in nanoseconds (0 if nothing was recorded).
+	 */
+	public long getMaxNanos() {
+		return this.meMax.get();
+	}
+
+	/**
+	 * Used to get the duration that the specified percentage of the recorded durations did not exceed (the upper bound
+	 * of the bucket it falls in, capped by the longest duration).
+	 * @param thePercentile				the percentile (like 50, 99, or 99.9).
+	 * @return							the duration in nanoseconds (0 if nothing was recorded).
+	 * @throws IllegalArgumentException	when the specified percentile is not between 0 and 100.
+	 */
+	public long getPercentileNanos(double thePercentile) throws IllegalArgumentException {
+		if (!(thePercentile >= 0.0 && thePercentile <= 100.0)) {
+			throw new IllegalArgumentException("The percentile should be between 0 and 100.");
+		}
+		var tmpCounts = new long[LatencyHistogram.BUCKET_COUNT];
+		var tmpTotal = 0L;
+		for (var i = 0; i < tmpCounts.length; i++) { // Copied first, since recording may go on meanwhile
+			tmpCounts[i] = this.meBuckets.get(i);
+			tmpTotal += tmpCounts[i];
+		}
+		if (tmpTotal == 0L) {
+			return 0L;
+		}
+		var tmpRank = Math.max(1L, (long)Math.ceil(tmpTotal * thePercentile / 100.0));
+		var tmpSeen = 0L;
+		for (var i = 0; i < tmpCounts.length; i++) {
+			tmpSeen += tmpCounts[i];
+			if (tmpSeen >= tmpRank) {
+				return Math.min(LatencyHistogram.upperBoundOf(i), this.meMax.get());
+			}
+		}
+		return this.meMax.get();
+	}
+
+	/**
+	 * Maps a duration to its bucket: values below 4 get their own buckets, then every power of two is split into 4.
+	 */
+	private static int bucketOf(long theValue) {
+		if (theValue < (1L << LatencyHistogram.SUB_BITS)) {
+			return (int)theValue;
+		}
+		var tmpExp = 63 - Long.numberOfLeadingZeros(theValue); // The highest set bit
+		var tmpSub = (int)(theValue >>> (tmpExp - LatencyHistogram.SUB_BITS)) & ((1 << LatencyHistogram.SUB_BITS) - 1);
+		return ((tmpExp - LatencyHistogram.SUB_BITS + 1) << LatencyHistogram.SUB_BITS) + tmpSub;
+	}
+
+	private static long upperBoundOf(int bucketIndex) {
+		if (bucketIndex < (1 << LatencyHistogram.SUB_BITS)) {
+			return bucketIndex;
+		}
+		var tmpExp = (bucketIndex >>> LatencyHistogram.SUB_BITS) + LatencyHistogram.SUB_BITS - 1;
+		var tmpSub = bucketIndex & ((1 << LatencyHistogram.SUB_BITS) - 1);
+		var tmpLow = (1L << tmpExp) + ((long)tmpSub << (tmpExp - LatencyHistogram.SUB_BITS));
+		return tmpLow + (1L << (tmpExp - LatencyHistogram.SUB_BITS)) - 1L;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("{count: %d, mean: %.2f ms, p50: %.2f ms, p99: %.2f ms, max: %.2f ms}", this.getCount(), this.getMeanNanos() / 1e6,
+				this.getPercentileNanos(50.0) / 1e6, this.getPercentileNanos(99.0) / 1e6, this.getMaxNanos() / 1e6);
+	}
+}
@@ -0,0 +1,161 @@
+package lib;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * A class that represents a streaming quoted-printable decoder (RFC 2045). The encoded bytes are passed with their
+ * line breaks (CRLF or a bare LF): soft line breaks ('=' at the end of a line) are removed, trailing white space
+ * (transport padding) is dropped, and hard line breaks are kept as they are. The chunks can be split anywhere, even
+ * inside an escape. Malformed escapes are kept as they are.
+ * @author Janty Azmat
+ */
+public class QuotedPrintableDecoder implements IStreamDecoder {
+	// Fields
+	private static final int MAX_HELD_SPACES = 128;		// More white space than a line can hold is not padding
+	private static final int STATE_PLAIN = 0;
+	private static final int STATE_EQUALS = 1;			// After '='
+	private static final int STATE_HEX = 2;				// After '=' and a hex digit
+	private static final int STATE_SOFT_CR = 3;			// After '=' and a CR (a soft line break, if an LF follows)
+	private static final byte[] HEX_VALUES = new byte[256];
+	static {
+		Arrays.fill(QuotedPrintableDecoder.HEX_VALUES, (byte)-1);
+		for (var i = 0; i < 16; i++) {
+			QuotedPrintableDecoder.HEX_VALUES["0123456789ABCDEF".charAt(i)] = (byte)i;
+			QuotedPrintableDecoder.HEX_VALUES["0123456789abcdef".charAt(i)] = (byte)i;
+		}
+	}
+	private int meState;
+	private byte meHigh;				// The hex digit after '=' (as received)
+	private byte[] meSpaces;			// The white space held until it is known not to be trailing
+	private int meSpaceCount;
+	private byte[] meStepBuffer;		// Holds a step's output for the ByteBuffer path
+
+	/**
+	 * Default constructor.
+	 */
+	public QuotedPrintableDecoder() {
+		this.meSpaces = new byte[QuotedPrintableDecoder.MAX_HELD_SPACES];
+		this.meStepBuffer = new byte[QuotedPrintableDecoder.MAX_HELD_SPACES + 3];
+	}
+
+	@Override
+	public int getMaxDecoded(int srcLength) {
+		return srcLength + this.meSpaceCount + 2;
+	}
+
+	@Override
+	public int decode(byte[] srcBuffer, int srcOffset, int srcLength, byte[] dstBuffer, int dstOffset) throws IndexOutOfBoundsException {
+		Objects.checkFromIndexSize(srcOffset, srcLength, srcBuffer.length);
+		var tmpOut = dstOffset;
+		var tmpEnd = srcOffset + srcLength;
+		var i = srcOffset;
+		while (i < tmpEnd) {
+			if (this.meState == QuotedPrintableDecoder.STATE_PLAIN && this.meSpaceCount == 0) { // The fast path: a run of plain bytes
+				var tmpStart = i;
+				for (byte tmpByte; i < tmpEnd && (tmpByte = srcBuffer[i]) != '=' && tmpByte != 32 && tmpByte != 9; i++) {
+				}
+				System.arraycopy(srcBuffer, tmpStart, dstBuffer, tmpOut, i - tmpStart);
+				tmpOut += i - tmpStart;
+				if (i == tmpEnd) {
+					break;
+				}
+			}
+			tmpOut = this.step(srcBuffer[i++], dstBuffer, tmpOut);
+		}
+		return tmpOut - dstOffset;
+	}
+
+	@Override
+	public void decode(ByteBuffer srcBuffer, ByteBuffer dstBuffer) {
+		while (srcBuffer.hasRemaining() && dstBuffer.remaining() >= this.meSpaceCount + 3) {
+			var tmpCount = this.step(srcBuffer.get(), this.meStepBuffer, 0);
+			dstBuffer.put(this.meStepBuffer, 0, tmpCount);
+		}
+	}
+
+	/**
+	 * Decodes one encoded byte.
+	 * @return	the offset after the decoded bytes.
+	 */
+	private int step(byte theByte, byte[] dstBuffer, int dstOffset) {
+		switch (this.meState) {
+			case QuotedPrintableDecoder.STATE_EQUALS:
+				if (QuotedPrintableDecoder.HEX_VALUES[theByte & 0xFF] >= 0) {
+					this.meHigh = theByte;
+					this.meState = QuotedPrintableDecoder.STATE_HEX;
+					return dstOffset;
+				} else if (theByte == 13) {
+					this.meState = QuotedPrintableDecoder.STATE_SOFT_CR;
+					return dstOffset;
+				} else if (theByte == 10 || theByte == 32 || theByte == 9) { // A soft line break (maybe padded)
+					this.meState = theByte == 10 ? QuotedPrintableDecoder.STATE_PLAIN : QuotedPrintableDecoder.STATE_EQUALS;
+					return dstOffset;
+				}
+				dstBuffer[dstOffset++] = '=';
+				this.meState = QuotedPrintableDecoder.STATE_PLAIN;
+				break;
+			case QuotedPrintableDecoder.STATE_HEX:
+				var tmpLow = QuotedPrintableDecoder.HEX_VALUES[theByte & 0xFF];
+				this.meState = QuotedPrintableDecoder.STATE_PLAIN;
+				if (tmpLow >= 0) {
+					dstBuffer[dstOffset++] = (byte)(QuotedPrintableDecoder.HEX_VALUES[this.meHigh & 0xFF] << 4 | tmpLow);
+					return dstOffset;
+				}
+				dstBuffer[dstOffset++] = '=';
+				dstBuffer[dstOffset++] = this.meHigh;
+				break;
+			case QuotedPrintableDecoder.STATE_SOFT_CR:
+				this.meState = QuotedPrintableDecoder.STATE_PLAIN;
+				if (theByte == 10) {
+					return dstOffset;
+				}
+				break;
+			default:
+				break;
+		}
+		if (theByte == 32 || theByte == 9) {
+			if (this.meSpaceCount == this.meSpaces.length) {
+				dstOffset = this.releaseSpaces(dstBuffer, dstOffset);
+			}
+			this.meSpaces[this.meSpaceCount++] = theByte;
+		} else if (theByte == 13 || theByte == 10) {
+			this.meSpaceCount = 0; // Trailing white space is dropped
+			dstBuffer[dstOffset++] = theByte;
+		} else {
+			dstOffset = this.releaseSpaces(dstBuffer, dstOffset);
+			if (theByte == '=') {
+				this.meState = QuotedPrintableDecoder.STATE_EQUALS;
+			} else {
+				dstBuffer[dstOffset++] = theByte;
+			}
+		}
+		return dstOffset;
+	}
+
+	private int releaseSpaces(byte[] dstBuffer, int dstOffset) {
+		System.arraycopy(this.meSpaces, 0, dstBuffer, dstOffset, this.meSpaceCount);
+		dstOffset += this.meSpaceCount;
+		this.meSpaceCount = 0;
+		return dstOffset;
+	}
+
+	@Override
+	public int finish(byte[] dstBuffer, int dstOffset) {
+		var outCount = 0;
+		if (this.meState == QuotedPrintableDecoder.STATE_HEX) {
+			dstBuffer[dstOffset] = '=';
+			dstBuffer[dstOffset + 1] = this.meHigh;
+			outCount = 2;
+		}
+		this.reset(); // A final '=' is a soft line break, and final white space is padding
+		return outCount;
+	}
+
+	@Override
+	public void reset() {
+		this.meState = QuotedPrintableDecoder.STATE_PLAIN;
+		this.meSpaceCount = 0;
+	}
+}
@@ -0,0 +1,275 @@
+package lib;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A class that turns the raw bytes of mail text (header values, body text) into Strings. Most charsets go through the
+ * String constructor (whose ASCII and Latin-1 paths copy the bytes straight into a compact String); the stateful ones
+ * go through a CharsetDecoder kept per thread and per charset. Malformed bytes become replacement characters. Charset names are
+ * looked up once (with the common mislabels mapped to what the senders meant), and unknown ones fall back to UTF-8.
+ * RFC 2047 encoded-words ('=?charset?B?...?=' and '=?charset?Q?...?=') are decoded by a plain scanner; adjacent
+ * encoded-words in the same charset are joined before decoding, so a character split between them stays whole.
+ * @author Janty Azmat
+ */
+public class TextDecoder {
+
+	/**
+	 * Holds the reusable state of one thread.
+	 */
+	private static class Scratch {
+		// Fields
+		private Map<Charset, CharsetDecoder> meDecoders = new HashMap<>();
+		private CharBuffer meChars = CharBuffer.allocate(256);
+		private byte[] meBytes = new byte[256];	// The decoded bytes of a run of encoded-words
+		private byte[] meText = new byte[256];	// The text of a base64 encoded-word
+		private int meByteCount;
+		private Base64Decoder meBase64 = new Base64Decoder();
+	}
+
+	// Fields
+	private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+	private static final Map<String, Charset> CHARSETS = new ConcurrentHashMap<>();
+	private static final Map<String, String> MISLABELS = Map.of(
+			"ks_c_5601-1987", "x-windows-949",	// What Outlook calls Korean
+			"gb2312", "GBK",					// Mostly GBK in the wild
+			"iso-8859-1", "windows-1252",		// Senders of Latin-1 mean Windows-1252 (as the WHATWG says)
+			"us-ascii", "windows-1252",
+			"tis-620", "x-windows-874",
+			"iso-8859-9", "windows-1254");
+
+	private TextDecoder() {
+	}
+
+	/**
+	 * Finds the charset of the specified name (the mislabels senders commonly use are mapped to what they meant).
+	 * @param charsetName	the charset's name (or 'null').
+	 * @return				the charset, or UTF-8 if the name is 'null' or unknown.
+	 */
+	public static Charset charsetOf(String charsetName) {
+		if (charsetName == null) {
+			return StandardCharsets.UTF_8;
+		}
+		var outCharset = TextDecoder.CHARSETS.get(charsetName);
+		if (outCharset == null) {
+			var tmpName = charsetName.strip().toLowerCase(Locale.ROOT);
+			tmpName = TextDecoder.MISLABELS.getOrDefault(tmpName, tmpName);
+			try {
+				outCharset = Charset.forName(tmpName);
+			} catch (IllegalArgumentException e) {
+				outCharset = StandardCharsets.UTF_8;
+			}
+			if (TextDecoder.CHARSETS.size() < 1024) { // Names come from the messages, so the cache is bounded
+				TextDecoder.CHARSETS.put(charsetName, outCharset);
+			}
+		}
+		return outCharset;
+	}
+
+	/**
+	 * Decodes the specified bytes in the specified charset.
+	 * @param srcBuffer		the buffer that holds the bytes.
+	 * @param srcOffset		the offset of the bytes in the buffer.
+	 * @param srcLength		the number of bytes.
+	 * @param theCharset	the charset of the bytes.
+	 * @return				the decoded String.
+	 */
+	public static String decode(byte[] srcBuffer, int srcOffset, int srcLength, Charset theCharset) {
+		if (TextDecoder.isStateful(theCharset)) {
+			return TextDecoder.decodeSlow(TextDecoder.SCRATCH.get(), srcBuffer, srcOffset, srcLength, theCharset);
+		}
+		return new String(srcBuffer, srcOffset, srcLength, theCharset); // ASCII and Latin-1 are plain copies in the JDK
+	}
+
+	/**
+	 * Decodes the specified bytes as UTF-8 (what raw 8-bit headers are, as RFC 6532 allows).
+	 * @param srcBuffer	the buffer that holds the bytes.
+	 * @param srcOffset	the offset of the bytes in the buffer.
+	 * @param srcLength	the number of bytes.
+	 * @return			the decoded String.
+	 */
+	public static String decode(byte[] srcBuffer, int srcOffset, int srcLength) {
+		return TextDecoder.decode(srcBuffer, srcOffset, srcLength, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Decodes the RFC 2047 encoded-words in the specified header value (the white space between adjacent encoded-words
+	 * is dropped; everything else is kept as it is).
+	 * @param headerValue	the header value (like a 'Subject', or the display name of an address).
+	 * @return				the decoded value (the same String if it has no encoded-words).
+	 */
+	public static String decodeWords(String headerValue) {
+		var tmpStart = headerValue.indexOf("=?");
+		if (tmpStart < 0) {
+			return headerValue;
+		}
+		var tmpScratch = TextDecoder.SCRATCH.get();
+		var tmpLen = headerValue.length();
+		var outBuild = new StringBuilder(tmpLen);
+		outBuild.append(headerValue, 0, tmpStart);
+		Charset tmpRunCharset = null;	// The charset of the run of adjacent encoded-words being joined
+		var tmpPos = tmpStart;
+		var tmpPendingSpace = -1;		// Where the white space after the last encoded-word started
+		while (tmpPos < tmpLen) {
+			var tmpWordEnd = tmpPos + 1 < tmpLen && headerValue.charAt(tmpPos) == '=' && headerValue.charAt(tmpPos + 1) == '?' ? TextDecoder.wordEnd(headerValue, tmpPos) : -1;
+			if (tmpWordEnd < 0) {
+				var tmpChar = headerValue.charAt(tmpPos);
+				if (tmpRunCharset != null && (tmpChar == ' ' || tmpChar == '\t' || tmpChar == '\r' || tmpChar == '\n')) {
+					if (tmpPendingSpace < 0) {
+						tmpPendingSpace = tmpPos;
+					}
+				} else {
+					if (tmpRunCharset != null) { // The run ends with plain text
+						TextDecoder.flushRun(tmpScratch, tmpRunCharset, outBuild);
+						tmpRunCharset = null;
+						outBuild.append(headerValue, tmpPendingSpace < 0 ? tmpPos : tmpPendingSpace, tmpPos);
+						tmpPendingSpace = -1;
+					}
+					outBuild.append(tmpChar);
+				}
+				tmpPos++;
+				continue;
+			}
+			// An encoded-word: '=?' charset ['*' language] '?' encoding '?' text '?='
+			var tmpQ1 = headerValue.indexOf('?', tmpPos + 2);
+			var tmpStar = headerValue.indexOf('*', tmpPos + 2);
+			var tmpCharset = TextDecoder.charsetOf(headerValue.substring(tmpPos + 2, tmpStar >= 0 && tmpStar < tmpQ1 ? tmpStar : tmpQ1));
+			var tmpIsBase64 = Character.toUpperCase(headerValue.charAt(tmpQ1 + 1)) == 'B';
+			if (tmpRunCharset != null && tmpRunCharset != tmpCharset) {
+				TextDecoder.flushRun(tmpScratch, tmpRunCharset, outBuild);
+			}
+			tmpRunCharset = tmpCharset;
+			tmpPendingSpace = -1; // White space between encoded-words is dropped
+			TextDecoder.appendWordBytes(tmpScratch, headerValue, tmpQ1 + 3, tmpWordEnd - 2, tmpIsBase64);
+			tmpPos = tmpWordEnd;
+		}
+		if (tmpRunCharset != null) {
+			TextDecoder.flushRun(tmpScratch, tmpRunCharset, outBuild);
+			if (tmpPendingSpace >= 0) {
+				outBuild.append(headerValue, tmpPendingSpace, tmpLen);
+			}
+		}
+		return outBuild.toString();
+	}
+
+	/**
+	 * Decodes the RFC 2047 encoded-words in the specified raw header value bytes (the rest is decoded as UTF-8).
+	 * @param srcBuffer	the buffer that holds the header value.
+	 * @param srcOffset	the offset of the value in the buffer.
+	 * @param srcLength	the length of the value.
+	 * @return			the decoded value.
+	 */
+	public static String decodeWords(byte[] srcBuffer, int srcOffset, int srcLength) {
+		return TextDecoder.decodeWords(TextDecoder.decode(srcBuffer, srcOffset, srcLength));
+	}
+
+	/**
+	 * Checks if the specified charset cannot decode straight from an array (UTF-16/32, UTF-7, and the ISO-2022 ones
+	 * with their escapes), so the String constructor would make a new decoder for every call.
+	 */
+	private static boolean isStateful(Charset theCharset) {
+		if (theCharset == StandardCharsets.UTF_8 || theCharset == StandardCharsets.ISO_8859_1 || theCharset == StandardCharsets.US_ASCII) {
+			return false;
+		}
+		var tmpName = theCharset.name();
+		return tmpName.startsWith("UTF-16") || tmpName.startsWith("UTF-32") || tmpName.startsWith("ISO-2022") || tmpName.equals("UTF-7");
+	}
+
+	private static String decodeSlow(Scratch theScratch, byte[] srcBuffer, int srcOffset, int srcLength, Charset theCharset) {
+		var tmpDecoder = theScratch.meDecoders.computeIfAbsent(theCharset, cs -> cs.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE));
+		var tmpNeed = (int)Math.ceil(srcLength * (double)tmpDecoder.maxCharsPerByte()) + 1;
+		if (theScratch.meChars.capacity() < tmpNeed) {
+			theScratch.meChars = CharBuffer.allocate(Math.max(tmpNeed, theScratch.meChars.capacity() << 1));
+		}
+		var tmpChars = theScratch.meChars.clear();
+		tmpDecoder.reset();
+		tmpDecoder.decode(ByteBuffer.wrap(srcBuffer, srcOffset, srcLength), tmpChars, true);
+		tmpDecoder.flush(tmpChars);
+		return new String(tmpChars.array(), 0, tmpChars.position());
+	}
+
+	/**
+	 * Finds the end of the encoded-word that starts at the specified position.
+	 * @return	the position after its '?=', or -1 if it is not a well-formed encoded-word.
+	 */
+	private static int wordEnd(String theText, int wordStart) {
+		var tmpQ1 = theText.indexOf('?', wordStart + 2);
+		if (tmpQ1 <= wordStart + 2 || tmpQ1 + 3 >= theText.length() || theText.charAt(tmpQ1 + 2) != '?') {
+			return -1;
+		}
+		var tmpEnc = Character.toUpperCase(theText.charAt(tmpQ1 + 1));
+		if (tmpEnc != 'B' && tmpEnc != 'Q') {
+			return -1;
+		}
+		for (var i = wordStart + 2; i < tmpQ1; i++) {
+			var tmpChar = theText.charAt(i);
+			if (tmpChar <= ' ' || tmpChar == '=' || tmpChar > '~') {
+				return -1;
+			}
+		}
+		var tmpQ3 = theText.indexOf("?=", tmpQ1 + 3);
+		if (tmpQ3 < 0) {
+			return -1;
+		}
+		for (var i = tmpQ1 + 3; i < tmpQ3; i++) {
+			if (theText.charAt(i) <= ' ' || theText.charAt(i) > '~') {
+				return -1; // Encoded-words are printable ASCII without white space
+			}
+		}
+		return tmpQ3 + 2;
+	}
+
+	/**
+	 * Decodes the text of an encoded-word into the bytes of the current run.
+	 */
+	private static void appendWordBytes(Scratch theScratch, String theText, int textStart, int textEnd, boolean isBase64) {
+		var tmpNeed = theScratch.meByteCount + textEnd - textStart + 2;
+		if (theScratch.meBytes.length < tmpNeed) {
+			theScratch.meBytes = Arrays.copyOf(theScratch.meBytes, Math.max(tmpNeed, theScratch.meBytes.length << 1));
+		}
+		var tmpBytes = theScratch.meBytes;
+		var tmpCount = theScratch.meByteCount;
+		if (isBase64) {
+			var tmpLen = textEnd - textStart;
+			if (theScratch.meText.length < tmpLen) {
+				theScratch.meText = new byte[Math.max(tmpLen, theScratch.meText.length << 1)];
+			}
+			for (var i = 0; i < tmpLen; i++) {
+				theScratch.meText[i] = (byte)theText.charAt(textStart + i); // The text is ASCII (checked by 'wordEnd')
+			}
+			tmpCount += theScratch.meBase64.decode(theScratch.meText, 0, tmpLen, tmpBytes, tmpCount);
+			tmpCount += theScratch.meBase64.finish(tmpBytes, tmpCount);
+		} else {
+			for (var i = textStart; i < textEnd; i++) {
+				var tmpChar = theText.charAt(i);
+				int tmpHigh, tmpLow;
+				if (tmpChar == '_') {
+					tmpBytes[tmpCount++] = 32;
+				} else if (tmpChar == '=' && i + 2 < textEnd && (tmpHigh = Character.digit(theText.charAt(i + 1), 16)) >= 0 && (tmpLow = Character.digit(theText.charAt(i + 2), 16)) >= 0) {
+					tmpBytes[tmpCount++] = (byte)(tmpHigh << 4 | tmpLow);
+					i += 2;
+				} else {
+					tmpBytes[tmpCount++] = (byte)tmpChar;
+				}
+			}
+		}
+		theScratch.meByteCount = tmpCount;
+	}
+
+	/**
+	 * Decodes the bytes of the current run of encoded-words into the specified builder.
+	 */
+	private static void flushRun(Scratch theScratch, Charset theCharset, StringBuilder outBuild) {
+		outBuild.append(TextDecoder.decode(theScratch.meBytes, 0, theScratch.meByteCount, theCharset));
+		theScratch.meByteCount = 0;
+	}
+}
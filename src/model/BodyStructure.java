@@ -0,0 +1,506 @@
+package model;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import lib.TextDecoder;
+
+/**
+ * A class that represents a part of a message as described by the IMAP server's 'BODYSTRUCTURE' (RFC 3501): its type,
+ * its transfer encoding and size, and (for a multipart or a 'message/rfc822' part) its sub-parts. Knowing the structure
+ * lets the parts be fetched one by one ('BODY.PEEK[path]') instead of fetching the whole message.
+ * Parts are identified by their IMAP section numbers, the same ones 'MimeStreamParser' reports.
+ * @author Janty Azmat
+ */
+public class BodyStructure {
+	// Fields
+	private static final byte[] WORD_BODYSTRUCTURE = "BODYSTRUCTURE".getBytes(StandardCharsets.US_ASCII);
+	private String mePath;
+	private String meType;
+	private Map<String, String> meParams;
+	private String meEncoding;
+	private long meSize;
+	private String meDisposition;
+	private Map<String, String> meDispParams;
+	private String meContentId;
+	private List<BodyStructure> meParts;
+
+	private BodyStructure(String partPath) {
+		this.mePath = partPath;
+		this.meParams = Map.of();
+		this.meDispParams = Map.of();
+		this.meEncoding = "7bit";
+		this.meParts = List.of();
+	}
+
+	/**
+	 * Used to get the part's section number ('' for the multipart body of the top message).
+	 * @return	the part's section number.
+	 */
+	public String getPath() {
+		return this.mePath;
+	}
+
+	/**
+	 * Used to get the part's lower-case 'type/subtype' (like 'text/plain', or 'multipart/mixed').
+	 * @return	the part's type.
+	 */
+	public String getType() {
+		return this.meType;
+	}
+
+	/**
+	 * Used to get a parameter of the part's type (like 'charset', or 'name').
+	 * @param paramName	the parameter's name (case-insensitive).
+	 * @return			the parameter's value, or 'null' if the part does not have it.
+	 */
+	public String getParameter(String paramName) {
+		return this.meParams.get(paramName.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Used to get the part's lower-case transfer encoding (like 'base64').
+	 * @return	the part's transfer encoding.
+	 */
+	public String getEncoding() {
+		return this.meEncoding;
+	}
+
+	/**
+	 * Used to get the size of the part's (still encoded) body in bytes.
+	 * @return	the size of the part's body (0 for a multipart).
+	 */
+	public long getSize() {
+		return this.meSize;
+	}
+
+	/**
+	 * Used to get the part's lower-case disposition (like 'inline', or 'attachment').
+	 * @return	the part's disposition, or 'null' if the part does not have one.
+	 */
+	public String getDisposition() {
+		return this.meDisposition;
+	}
+
+	/**
+	 * Used to get the part's file name (from its disposition's 'filename', or its type's 'name'), with its RFC 2047
+	 * encoded-words decoded.
+	 * @return	the part's file name, or 'null' if the part does not have one.
+	 */
+	public String getFileName() {
+		var outName = this.meDispParams.get("filename");
+		outName = outName != null ? outName : this.meParams.get("name");
+		return outName == null ? null : TextDecoder.decodeWords(outName);
+	}
+
+	/**
+	 * Used to get the part's 'Content-ID' (referenced by 'cid:' URLs in HTML parts).
+	 * @return	the part's 'Content-ID', or 'null' if the part does not have one.
+	 */
+	public String getContentId() {
+		return this.meContentId;
+	}
+
+	/**
+	 * Used to get the sub-parts of a multipart (or the body of a 'message/rfc822' part's message).
+	 * @return	the sub-parts (empty for a leaf part).
+	 */
+	public List<BodyStructure> getParts() {
+		return this.meParts;
+	}
+
+	/**
+	 * Checks if the part is a leaf part (a part with a body that can be fetched).
+	 * @return	'true' if the part is a leaf part.
+	 */
+	public boolean isLeaf() {
+		return this.meParts.isEmpty();
+	}
+
+	/**
+	 * Checks if the part is meant to be saved rather than displayed as the message's text.
+	 * @return	'true' if the part is an attachment.
+	 */
+	public boolean isAttachment() {
+		return "attachment".equals(this.meDisposition) || !this.meType.startsWith("text/") && this.isLeaf();
+	}
+
+	/**
+	 * Finds the part to display as the message's text: the first non-attachment 'text/*' part, taking the preferred one
+	 * of the alternatives of a 'multipart/alternative'.
+	 * @param isHtmlPreferred	'true' to prefer 'text/html' over 'text/plain' among alternatives.
+	 * @return					the part to display, or 'null' if the message has no text part.
+	 */
+	public BodyStructure findTextPart(boolean isHtmlPreferred) {
+		if (this.isLeaf()) {
+			return this.meType.startsWith("text/") && !"attachment".equals(this.meDisposition) ? this : null;
+		}
+		if (this.meType.equals("multipart/alternative")) {
+			BodyStructure outPart = null;
+			for (var tmpPart : this.meParts) { // Alternatives go from the plainest to the richest
+				var tmpText = tmpPart.findTextPart(isHtmlPreferred);
+				if (tmpText != null && (outPart == null || tmpText.meType.equals(isHtmlPreferred ? "text/html" : "text/plain"))) {
+					outPart = tmpText;
+				}
+			}
+			return outPart;
+		}
+		for (var tmpPart : this.meParts) {
+			var outPart = tmpPart.findTextPart(isHtmlPreferred);
+			if (outPart != null) {
+				return outPart;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Lists the leaf parts other than the specified one (the attachments and inline images), in message order.
+	 * @param excludedPart	the part to leave out (like the one from 'findTextPart'), or 'null'.
+	 * @return				the leaf parts.
+	 */
+	public List<BodyStructure> listOtherLeaves(BodyStructure excludedPart) {
+		var outList = new ArrayList<BodyStructure>();
+		this.collectLeaves(excludedPart, outList);
+		return outList;
+	}
+
+	private void collectLeaves(BodyStructure excludedPart, List<BodyStructure> outList) {
+		if (this.isLeaf()) {
+			if (this != excludedPart) {
+				outList.add(this);
+			}
+			return;
+		}
+		for (var tmpPart : this.meParts) {
+			tmpPart.collectLeaves(excludedPart, outList);
+		}
+	}
+
+	@Override
+	public String toString() {
+		var outBuild = new StringBuilder();
+		outBuild.append('[').append(this.mePath).append("] ").append(this.meType);
+		if (this.isLeaf()) {
+			outBuild.append(' ').append(this.meEncoding).append(' ').append(this.meSize);
+		} else {
+			outBuild.append(' ').append(this.meParts);
+		}
+		return outBuild.toString();
+	}
+
+	/**
+	 * Parses the 'BODYSTRUCTURE' item of a message's untagged 'FETCH' response.
+	 * @param responseLines				the lines of the message's response (more than one if the server sent literals).
+	 * @return							the structure of the message's body.
+	 * @throws IllegalArgumentException	when the lines do not hold a valid 'BODYSTRUCTURE'.
+	 */
+	public static BodyStructure parse(List<byte[][]> responseLines) throws IllegalArgumentException {
+		var tmpText = new StringBuilder();
+		var tmpIsFound = false;
+		for (var tmpLine : responseLines) {
+			if (tmpIsFound) {
+				tmpText.append('\n'); // Marks the end of a line that announced a literal
+			}
+			for (var tmpWord : tmpLine) {
+				if (!tmpIsFound && BodyStructure.isItemName(tmpWord)) {
+					tmpIsFound = true;
+				} else if (tmpIsFound) {
+					tmpText.append(TextDecoder.decode(tmpWord, 0, tmpWord.length)).append(' ');
+				}
+			}
+		}
+		if (!tmpIsFound) {
+			throw new IllegalArgumentException("The response has no 'BODYSTRUCTURE'.");
+		}
+		try {
+			var tmpList = new Tokens(tmpText).nextList();
+			return BodyStructure.build(tmpList, "", true);
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("The 'BODYSTRUCTURE' is malformed.", e);
+		}
+	}
+
+	/**
+	 * Parses the structure of a raw message (like one read from a 'MessageStore'), giving the same parts and paths the
+	 * server's 'BODYSTRUCTURE' would (except that the sizes are the decoded ones).
+	 * @param rawMessage	the raw message (read from its position to its limit, which are not changed).
+	 * @param partBodies	gets the decoded body of each leaf part (by its path), or 'null' if only the structure is needed.
+	 * @return				the structure of the message's body.
+	 */
+	public static BodyStructure parse(ByteBuffer rawMessage, Map<String, byte[]> partBodies) {
+		var tmpBuilder = new Builder(partBodies != null);
+		var tmpSrc = rawMessage.duplicate();
+		var tmpChunk = new byte[Math.min(8192, tmpSrc.remaining())];
+		try (var tmpParser = new MimeStreamParser(tmpBuilder)) {
+			while (tmpSrc.hasRemaining()) {
+				var tmpCount = Math.min(tmpChunk.length, tmpSrc.remaining());
+				tmpSrc.get(tmpChunk, 0, tmpCount);
+				tmpParser.write(tmpChunk, 0, tmpCount);
+			}
+		}
+		if (partBodies != null) {
+			tmpBuilder.meBodies.forEach((path, body) -> partBodies.put(path, body.toByteArray()));
+		}
+		return tmpBuilder.meRoot;
+	}
+
+	/**
+	 * Builds the structure from the events of a 'MimeStreamParser'.
+	 */
+	private static class Builder implements MimeStreamParser.Handler {
+		// Fields
+		private boolean meIsKeepingBodies;
+		private BodyStructure meRoot;
+		private ArrayList<BodyStructure> meStack = new ArrayList<>();
+		private Map<String, ByteArrayOutputStream> meBodies = new HashMap<>();
+
+		private Builder(boolean isKeepingBodies) {
+			this.meIsKeepingBodies = isKeepingBodies;
+		}
+
+		@Override
+		public void partStarted(String partPath, boolean isMessage) {
+			var tmpPart = new BodyStructure(partPath);
+			tmpPart.meType = "text/plain";
+			tmpPart.meParams = new HashMap<>();
+			tmpPart.meDispParams = new HashMap<>();
+			if (this.meStack.isEmpty()) {
+				this.meRoot = tmpPart;
+			} else { // A part of a multipart, or the message of a 'message/rfc822' part
+				var tmpParent = this.meStack.get(this.meStack.size() - 1);
+				if (isMessage) {
+					tmpParent.meType = "message/rfc822"; // Also when it is only implied (in a 'multipart/digest')
+				}
+				if (tmpParent.meParts.isEmpty()) {
+					tmpParent.meParts = new ArrayList<>();
+				}
+				tmpParent.meParts.add(tmpPart);
+			}
+			this.meStack.add(tmpPart);
+		}
+
+		@Override
+		public void headerField(String partPath, String fieldName, String fieldValue) {
+			var tmpPart = this.meStack.get(this.meStack.size() - 1);
+			switch (fieldName.toLowerCase(Locale.ROOT)) {
+				case "content-type":
+					tmpPart.meType = MimeStreamParser.mimeType(fieldValue);
+					for (var tmpName : new String[] {"charset", "name", "boundary", "format"}) {
+						var tmpValue = MimeStreamParser.parameter(fieldValue, tmpName);
+						if (tmpValue != null) {
+							tmpPart.meParams.put(tmpName, tmpValue);
+						}
+					}
+					break;
+				case "content-disposition":
+					tmpPart.meDisposition = MimeStreamParser.mimeType(fieldValue);
+					var tmpFileName = MimeStreamParser.parameter(fieldValue, "filename");
+					if (tmpFileName != null) {
+						tmpPart.meDispParams.put("filename", tmpFileName);
+					}
+					break;
+				case "content-transfer-encoding":
+					tmpPart.meEncoding = fieldValue.trim().toLowerCase(Locale.ROOT);
+					break;
+				case "content-id":
+					tmpPart.meContentId = fieldValue.trim();
+					break;
+				default:
+					break;
+			}
+		}
+
+		@Override
+		public void bodyStarted(String partPath, String contentType) {
+			var tmpPart = this.meStack.get(this.meStack.size() - 1);
+			tmpPart.mePath = partPath; // A message's leaf body is under its path plus '1'
+			tmpPart.meType = MimeStreamParser.mimeType(contentType);
+			if (this.meIsKeepingBodies) {
+				this.meBodies.put(partPath, new ByteArrayOutputStream());
+			}
+		}
+
+		@Override
+		public void bodyChunk(String partPath, byte[] chunkBuffer, int chunkOffset, int chunkLength) {
+			this.meStack.get(this.meStack.size() - 1).meSize += chunkLength;
+			if (this.meIsKeepingBodies) {
+				this.meBodies.get(partPath).write(chunkBuffer, chunkOffset, chunkLength);
+			}
+		}
+
+		@Override
+		public void partEnded(String partPath, boolean isMessage) {
+			var tmpPart = this.meStack.remove(this.meStack.size() - 1);
+			tmpPart.meParts = tmpPart.meParts.isEmpty() ? List.of() : Collections.unmodifiableList(tmpPart.meParts);
+		}
+	}
+
+	/**
+	 * Checks if the specified word is the 'BODYSTRUCTURE' item name (possibly opening the response's item list).
+	 */
+	private static boolean isItemName(byte[] theWord) {
+		var tmpName = BodyStructure.WORD_BODYSTRUCTURE;
+		var tmpSkip = theWord.length == tmpName.length + 1 && theWord[0] == '(' ? 1 : 0;
+		if (theWord.length - tmpSkip != tmpName.length) {
+			return false;
+		}
+		for (var i = 0; i < tmpName.length; i++) {
+			if ((theWord[i + tmpSkip] & 0xDF) != tmpName[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Builds a part from its parsed list.
+	 * @param partList		the part's parenthesized list (strings, 'null's for 'NIL', and nested lists).
+	 * @param partPath		the part's section number (for a message's body, the message's own path).
+	 * @param isMessageBody	'true' if the part is the body of a message (the top one, or one inside a 'message/rfc822').
+	 */
+	private static BodyStructure build(List<?> partList, String partPath, boolean isMessageBody) {
+		if (partList.get(0) instanceof List) { // A multipart: its sub-parts, then its subtype
+			var outPart = new BodyStructure(partPath);
+			var tmpParts = new ArrayList<BodyStructure>();
+			var i = 0;
+			for (; i < partList.size() && partList.get(i) instanceof List; i++) {
+				tmpParts.add(BodyStructure.build((List<?>)partList.get(i), partPath.isEmpty() ? Integer.toString(i + 1) : partPath + "." + (i + 1), false));
+			}
+			outPart.meType = "multipart/" + BodyStructure.lower(partList.get(i));
+			outPart.meParams = BodyStructure.params(BodyStructure.at(partList, i + 1));
+			outPart.setDisposition(BodyStructure.at(partList, i + 2));
+			outPart.meParts = Collections.unmodifiableList(tmpParts);
+			return outPart;
+		}
+		var outPart = new BodyStructure(!isMessageBody ? partPath : partPath.isEmpty() ? "1" : partPath + ".1");
+		outPart.meType = BodyStructure.lower(partList.get(0)) + "/" + BodyStructure.lower(partList.get(1));
+		outPart.meParams = BodyStructure.params(partList.get(2));
+		outPart.meContentId = (String)partList.get(3);
+		outPart.meEncoding = partList.get(5) == null ? "7bit" : BodyStructure.lower(partList.get(5));
+		outPart.meSize = partList.get(6) == null ? 0L : Long.parseLong((String)partList.get(6));
+		int tmpExt; // Where the extension data (MD5, disposition...) starts
+		if (outPart.meType.equals("message/rfc822") && partList.size() > 9 && partList.get(8) instanceof List) {
+			outPart.meParts = List.of(BodyStructure.build((List<?>)partList.get(8), outPart.mePath, true));
+			tmpExt = 10;
+		} else {
+			tmpExt = outPart.meType.startsWith("text/") ? 8 : 7;
+		}
+		outPart.setDisposition(BodyStructure.at(partList, tmpExt + 1));
+		return outPart;
+	}
+
+	private void setDisposition(Object dispList) {
+		if (dispList instanceof List && !((List<?>)dispList).isEmpty()) {
+			this.meDisposition = BodyStructure.lower(((List<?>)dispList).get(0));
+			this.meDispParams = BodyStructure.params(BodyStructure.at((List<?>)dispList, 1));
+		}
+	}
+
+	private static Object at(List<?> theList, int theIndex) {
+		return theIndex < theList.size() ? theList.get(theIndex) : null;
+	}
+
+	private static String lower(Object theString) {
+		return theString == null ? "" : ((String)theString).toLowerCase(Locale.ROOT);
+	}
+
+	private static Map<String, String> params(Object paramList) {
+		if (!(paramList instanceof List)) {
+			return Map.of();
+		}
+		var tmpList = (List<?>)paramList;
+		var outMap = new HashMap<String, String>();
+		for (var i = 0; i + 1 < tmpList.size(); i += 2) {
+			if (tmpList.get(i) instanceof String && tmpList.get(i + 1) instanceof String) {
+				outMap.put(BodyStructure.lower(tmpList.get(i)), (String)tmpList.get(i + 1));
+			}
+		}
+		return outMap;
+	}
+
+	/**
+	 * Reads the atoms, strings and lists of a response's text (rebuilt from its words, so runs of spaces inside quoted
+	 * strings become single spaces, which does not matter for a structure or an envelope).
+	 */
+	static class Tokens {
+		// Fields
+		private CharSequence meText;
+		private int mePos;
+
+		Tokens(CharSequence theText) {
+			this.meText = theText;
+		}
+
+		List<Object> nextList() {
+			this.skipSpaces();
+			if (this.meText.charAt(this.mePos++) != '(') {
+				throw new IllegalStateException("A list was expected at " + (this.mePos - 1) + ".");
+			}
+			var outList = new ArrayList<Object>();
+			while (true) {
+				this.skipSpaces();
+				var tmpChar = this.meText.charAt(this.mePos);
+				if (tmpChar == ')') {
+					this.mePos++;
+					return outList;
+				} else if (tmpChar == '(') {
+					outList.add(this.nextList());
+				} else {
+					outList.add(this.nextString());
+				}
+			}
+		}
+
+		private String nextString() {
+			var tmpChar = this.meText.charAt(this.mePos);
+			if (tmpChar == '"') {
+				var outBuild = new StringBuilder();
+				for (this.mePos++; this.meText.charAt(this.mePos) != '"'; this.mePos++) {
+					if (this.meText.charAt(this.mePos) == '\\') {
+						this.mePos++;
+					}
+					outBuild.append(this.meText.charAt(this.mePos));
+				}
+				this.mePos++;
+				return outBuild.toString();
+			}
+			if (tmpChar == '{') { // A literal: its bytes start the next line
+				var tmpLineEnd = this.indexOf('\n', this.mePos);
+				var tmpSize = Integer.parseInt(this.meText.subSequence(this.mePos + 1, this.indexOf('}', this.mePos)).toString());
+				var tmpEnd = this.indexOf('\n', tmpLineEnd + 1);
+				tmpEnd = Math.min(tmpLineEnd + 1 + tmpSize, tmpEnd < 0 ? this.meText.length() : tmpEnd); // Runs of spaces became one
+				var outText = this.meText.subSequence(tmpLineEnd + 1, tmpEnd).toString();
+				this.mePos = tmpEnd;
+				return outText;
+			}
+			var tmpStart = this.mePos;
+			while (this.mePos < this.meText.length() && " ()\n".indexOf(this.meText.charAt(this.mePos)) < 0) {
+				this.mePos++;
+			}
+			var outAtom = this.meText.subSequence(tmpStart, this.mePos).toString();
+			return outAtom.equalsIgnoreCase("NIL") ? null : outAtom;
+		}
+
+		private void skipSpaces() {
+			while (this.meText.charAt(this.mePos) == ' ' || this.meText.charAt(this.mePos) == '\n') {
+				this.mePos++;
+			}
+		}
+
+		private int indexOf(char theChar, int fromIndex) {
+			for (var i = fromIndex; i < this.meText.length(); i++) {
+				if (this.meText.charAt(i) == theChar) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+}
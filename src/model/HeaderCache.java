@@ -0,0 +1,432 @@
+package model;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A class that caches the fetched headers (the 'FETCH' response lines of 'HeaderFetcher') of messages by account,
+ * mailbox and UID, so scrolling back over the email list does not fetch them again. Only the items that never change
+ * should be cached (like 'HeaderFetcher.HEADER_ITEMS'): the flags are fetched with every listing and merged in (see
+ * 'HeaderFetcher.mergeFlags'), as nothing would keep cached ones up to date. The cache is bounded by the
+ * estimated bytes of the cached lines (not their count), and evicts by W-TinyLFU: new entries go to a small LRU window,
+ * and leave it for the main space (a segmented LRU) only if they were used more often than the entry they would
+ * replace there. How often keys were used is estimated by a count-min sketch of 4-bit counters, which are halved
+ * periodically so old popularity fades. A burst of headers seen once (like a scroll to the end of a big mailbox) does
+ * not flush the headers that are used again and again.
+ * @author Janty Azmat
+ */
+public class HeaderCache {
+
+	/**
+	 * Identifies a cached message.
+	 */
+	private static class Key {
+		// Fields
+		private String meAccount;
+		private String meMailbox;
+		private long meUid;
+
+		private Key(String theAccount, String theMailbox, long theUid) {
+			this.meAccount = theAccount;
+			this.meMailbox = theMailbox;
+			this.meUid = theUid;
+		}
+
+		@Override
+		public boolean equals(Object theOther) {
+			if (!(theOther instanceof Key)) {
+				return false;
+			}
+			var tmpOther = (Key)theOther;
+			return this.meUid == tmpOther.meUid && this.meMailbox.equals(tmpOther.meMailbox) && this.meAccount.equals(tmpOther.meAccount);
+		}
+
+		@Override
+		public int hashCode() {
+			return (this.meAccount.hashCode() * 31 + this.meMailbox.hashCode()) * 31 + Long.hashCode(this.meUid);
+		}
+	}
+
+	/**
+	 * Holds a cached entry, linked in the queue it is in.
+	 */
+	private static class Node {
+		// Fields
+		private Key meKey;
+		private List<byte[][]> meLines;
+		private long meWeight;
+		private int meQueue;
+		private Node mePrev;
+		private Node meNext;
+	}
+
+	// Fields
+	public static final long DEFAULT_MAX_BYTES = 16L << 20;
+	private static final int QUEUE_WINDOW = 0;
+	private static final int QUEUE_PROBATION = 1;
+	private static final int QUEUE_PROTECTED = 2;
+	private static final int WINDOW_PERCENT = 1;		// The window's share of the cache
+	private static final int PROTECTED_PERCENT = 80;	// The protected segment's share of the main space
+	private static final int NODE_BYTES = 96;			// What an entry costs besides its lines (the node, key and map entry)
+	private static final int TYPICAL_BYTES = 1024;		// What an entry is expected to cost (sizes the sketch)
+	private static final long[] SEEDS = {0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L};
+	private HashMap<Key, Node> meMap;
+	private Node[] meHeads;				// The sentinels of the queues (the least recently used entry is after it)
+	private long[] meWeights;			// The weight of each queue
+	private long meMaxBytes;
+	private long[] meSketch;			// 16 4-bit counters per long
+	private int meSketchAdds;
+	private int meSketchPeriod;			// The number of counted uses after which the counters are halved
+	private long meHits;
+	private long meMisses;
+	private long meEvictions;
+
+	/**
+	 * Default constructor (with the default size bound).
+	 */
+	public HeaderCache() {
+		this(HeaderCache.DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * A constructor that takes the size bound as a parameter.
+	 * @param maxBytes					the most (estimated) bytes to keep.
+	 * @throws IllegalArgumentException	when the specified bound is negative.
+	 */
+	public HeaderCache(long maxBytes) throws IllegalArgumentException {
+		this.meMap = new HashMap<>();
+		this.meHeads = new Node[3];
+		for (var i = 0; i < this.meHeads.length; i++) {
+			this.meHeads[i] = new Node();
+			this.meHeads[i].mePrev = this.meHeads[i];
+			this.meHeads[i].meNext = this.meHeads[i];
+		}
+		this.meWeights = new long[3];
+		this.setMaxBytes(maxBytes);
+	}
+
+	/**
+	 * Sets the size bound (evicting what is beyond a lower one at once), for machines low on memory.
+	 * @param maxBytes					the most (estimated) bytes to keep.
+	 * @throws IllegalArgumentException	when the specified bound is negative.
+	 */
+	public synchronized void setMaxBytes(long maxBytes) throws IllegalArgumentException {
+		if (maxBytes < 0L) {
+			throw new IllegalArgumentException("The cache's size bound cannot be negative.");
+		}
+		this.meMaxBytes = maxBytes;
+		var tmpEntries = (int)Math.min(1 << 22, Math.max(64L, maxBytes / HeaderCache.TYPICAL_BYTES));
+		var tmpLength = Integer.highestOneBit(tmpEntries - 1) << 1;
+		if (this.meSketch == null || this.meSketch.length != tmpLength) {
+			this.meSketch = new long[tmpLength]; // Popularity is forgotten with a new bound
+			this.meSketchAdds = 0;
+			this.meSketchPeriod = tmpEntries * 10;
+		}
+		this.evict();
+	}
+
+	/**
+	 * Used to get the size bound.
+	 * @return	the most (estimated) bytes to keep.
+	 */
+	public synchronized long getMaxBytes() {
+		return this.meMaxBytes;
+	}
+
+	/**
+	 * Used to get the estimated bytes of the cached entries.
+	 * @return	the cached bytes.
+	 */
+	public synchronized long getBytes() {
+		return this.meWeights[HeaderCache.QUEUE_WINDOW] + this.meWeights[HeaderCache.QUEUE_PROBATION] + this.meWeights[HeaderCache.QUEUE_PROTECTED];
+	}
+
+	/**
+	 * Used to get the number of cached entries.
+	 * @return	the number of entries.
+	 */
+	public synchronized int getCount() {
+		return this.meMap.size();
+	}
+
+	/**
+	 * Used to get the number of lookups that found their entry.
+	 * @return	the number of hits.
+	 */
+	public synchronized long getHitCount() {
+		return this.meHits;
+	}
+
+	/**
+	 * Used to get the number of lookups that did not find their entry.
+	 * @return	the number of misses.
+	 */
+	public synchronized long getMissCount() {
+		return this.meMisses;
+	}
+
+	/**
+	 * Used to get the number of entries evicted to keep within the size bound (not counting invalidated ones).
+	 * @return	the number of evictions.
+	 */
+	public synchronized long getEvictionCount() {
+		return this.meEvictions;
+	}
+
+	/**
+	 * Used to get the ratio of the lookups that found their entry.
+	 * @return	the hit rate (from 0 to 1; 0 if there were no lookups).
+	 */
+	public synchronized double getHitRate() {
+		var tmpTotal = this.meHits + this.meMisses;
+		return tmpTotal == 0L ? 0.0 : (double)this.meHits / tmpTotal;
+	}
+
+	/**
+	 * Gets the cached header lines of the specified message.
+	 * @param accountName	the account (like the server's address).
+	 * @param mailboxName	the mailbox's name.
+	 * @param messageUid	the message's UID.
+	 * @return				the message's 'FETCH' response lines, or 'null' if they are not cached.
+	 */
+	public synchronized List<byte[][]> get(String accountName, String mailboxName, long messageUid) {
+		var tmpKey = new Key(accountName, mailboxName, messageUid);
+		this.countUse(tmpKey);
+		var tmpNode = this.meMap.get(tmpKey);
+		if (tmpNode == null) {
+			this.meMisses++;
+			return null;
+		}
+		this.meHits++;
+		this.touch(tmpNode);
+		return tmpNode.meLines;
+	}
+
+	/**
+	 * Caches the header lines of the specified message (replacing the cached ones).
+	 * @param accountName	the account (like the server's address).
+	 * @param mailboxName	the mailbox's name.
+	 * @param messageUid	the message's UID.
+	 * @param messageLines	the message's 'FETCH' response lines without its flags (not to be changed afterwards).
+	 */
+	public synchronized void put(String accountName, String mailboxName, long messageUid, List<byte[][]> messageLines) {
+		var tmpKey = new Key(Objects.requireNonNull(accountName), Objects.requireNonNull(mailboxName), messageUid);
+		var tmpWeight = HeaderCache.weightOf(messageLines);
+		var tmpNode = this.meMap.get(tmpKey);
+		if (tmpNode != null) {
+			this.meWeights[tmpNode.meQueue] += tmpWeight - tmpNode.meWeight;
+			tmpNode.meLines = messageLines;
+			tmpNode.meWeight = tmpWeight;
+			this.touch(tmpNode);
+		} else if (tmpWeight <= this.meMaxBytes) {
+			this.countUse(tmpKey);
+			tmpNode = new Node();
+			tmpNode.meKey = tmpKey;
+			tmpNode.meLines = messageLines;
+			tmpNode.meWeight = tmpWeight;
+			this.meMap.put(tmpKey, tmpNode);
+			this.link(tmpNode, HeaderCache.QUEUE_WINDOW);
+		}
+		this.evict();
+	}
+
+	/**
+	 * Caches the header lines of every message of a fetched chunk (by the UIDs in them).
+	 * @param accountName	the account (like the server's address).
+	 * @param mailboxName	the mailbox's name.
+	 * @param chunkLines	the untagged lines of the chunk (like 'HeaderFetcher' gives for 'HEADER_ITEMS').
+	 * @return				the number of messages cached (the ones without a UID are not).
+	 */
+	public int putAll(String accountName, String mailboxName, List<byte[][]> chunkLines) {
+		var outCount = 0;
+		for (var tmpLines : HeaderFetcher.splitMessages(chunkLines)) {
+			var tmpUid = ResponseWords.fetchUid(tmpLines.get(0));
+			if (tmpUid >= 0L) {
+				this.put(accountName, mailboxName, tmpUid, tmpLines);
+				outCount++;
+			}
+		}
+		return outCount;
+	}
+
+	/**
+	 * Removes the specified message (like when it was expunged).
+	 * @param accountName	the account (like the server's address).
+	 * @param mailboxName	the mailbox's name.
+	 * @param messageUid	the message's UID.
+	 */
+	public synchronized void invalidate(String accountName, String mailboxName, long messageUid) {
+		var tmpNode = this.meMap.remove(new Key(accountName, mailboxName, messageUid));
+		if (tmpNode != null) {
+			this.unlink(tmpNode);
+		}
+	}
+
+	/**
+	 * Removes all the messages of the specified mailbox (like when its UIDVALIDITY changed).
+	 * @param accountName	the account (like the server's address).
+	 * @param mailboxName	the mailbox's name.
+	 */
+	public synchronized void invalidateMailbox(String accountName, String mailboxName) {
+		var tmpIter = this.meMap.values().iterator();
+		while (tmpIter.hasNext()) {
+			var tmpNode = tmpIter.next();
+			if (tmpNode.meKey.meMailbox.equals(mailboxName) && tmpNode.meKey.meAccount.equals(accountName)) {
+				tmpIter.remove();
+				this.unlink(tmpNode);
+			}
+		}
+	}
+
+	/**
+	 * Removes all the entries (the counters are kept).
+	 */
+	public synchronized void clear() {
+		this.meMap.clear();
+		for (var i = 0; i < this.meHeads.length; i++) {
+			this.meHeads[i].mePrev = this.meHeads[i];
+			this.meHeads[i].meNext = this.meHeads[i];
+			this.meWeights[i] = 0L;
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d entries, %d of %d KB, hit rate %.1f%% (%d hits, %d misses), %d evictions", this.meMap.size(), this.getBytes() >> 10,
+				this.meMaxBytes >> 10, this.getHitRate() * 100.0, this.meHits, this.meMisses, this.meEvictions);
+	}
+
+	/**
+	 * Moves an entry that was used to the most recently used end of its queue (an entry on probation is promoted to the
+	 * protected segment, which demotes its least recently used entries when it gets too big).
+	 */
+	private void touch(Node theNode) {
+		var tmpQueue = theNode.meQueue == HeaderCache.QUEUE_PROBATION ? HeaderCache.QUEUE_PROTECTED : theNode.meQueue;
+		this.unlink(theNode);
+		this.link(theNode, tmpQueue);
+		if (tmpQueue == HeaderCache.QUEUE_PROTECTED) {
+			var tmpMax = (this.meMaxBytes - this.getWindowMax()) * HeaderCache.PROTECTED_PERCENT / 100L;
+			var tmpHead = this.meHeads[HeaderCache.QUEUE_PROTECTED];
+			while (this.meWeights[HeaderCache.QUEUE_PROTECTED] > tmpMax && tmpHead.meNext != theNode) {
+				var tmpDemoted = tmpHead.meNext;
+				this.unlink(tmpDemoted);
+				this.link(tmpDemoted, HeaderCache.QUEUE_PROBATION);
+			}
+		}
+	}
+
+	/**
+	 * Moves what overflows the window to probation, then evicts until the cache is within its bound: of the newest
+	 * entry on probation (the candidate) and the least recently used one (the victim), the one used less often goes.
+	 */
+	private void evict() {
+		var tmpWindowMax = this.getWindowMax();
+		var tmpWindow = this.meHeads[HeaderCache.QUEUE_WINDOW];
+		while (this.meWeights[HeaderCache.QUEUE_WINDOW] > tmpWindowMax && tmpWindow.meNext != tmpWindow) {
+			var tmpNode = tmpWindow.meNext;
+			this.unlink(tmpNode);
+			this.link(tmpNode, HeaderCache.QUEUE_PROBATION);
+		}
+		var tmpProbation = this.meHeads[HeaderCache.QUEUE_PROBATION];
+		while (this.getBytes() > this.meMaxBytes) {
+			Node tmpEvicted;
+			if (tmpProbation.meNext != tmpProbation) {
+				var tmpVictim = tmpProbation.meNext;
+				var tmpCandidate = tmpProbation.mePrev;
+				tmpEvicted = tmpVictim == tmpCandidate || this.frequencyOf(tmpCandidate.meKey) <= this.frequencyOf(tmpVictim.meKey) ? tmpCandidate : tmpVictim;
+			} else if (this.meHeads[HeaderCache.QUEUE_PROTECTED].meNext != this.meHeads[HeaderCache.QUEUE_PROTECTED]) {
+				tmpEvicted = this.meHeads[HeaderCache.QUEUE_PROTECTED].meNext;
+			} else {
+				tmpEvicted = tmpWindow.meNext;
+			}
+			this.unlink(tmpEvicted);
+			this.meMap.remove(tmpEvicted.meKey);
+			this.meEvictions++;
+		}
+	}
+
+	private long getWindowMax() {
+		return Math.max(1L, this.meMaxBytes * HeaderCache.WINDOW_PERCENT / 100L);
+	}
+
+	private void link(Node theNode, int theQueue) {
+		var tmpHead = this.meHeads[theQueue];
+		theNode.meQueue = theQueue;
+		theNode.mePrev = tmpHead.mePrev;
+		theNode.meNext = tmpHead;
+		tmpHead.mePrev.meNext = theNode;
+		tmpHead.mePrev = theNode;
+		this.meWeights[theQueue] += theNode.meWeight;
+	}
+
+	private void unlink(Node theNode) {
+		theNode.mePrev.meNext = theNode.meNext;
+		theNode.meNext.mePrev = theNode.mePrev;
+		theNode.mePrev = null;
+		theNode.meNext = null;
+		this.meWeights[theNode.meQueue] -= theNode.meWeight;
+	}
+
+	/**
+	 * Counts a use of the specified key in the sketch (halving all the counters every sampling period).
+	 */
+	private void countUse(Key theKey) {
+		var tmpHash = HeaderCache.spread(theKey.hashCode());
+		var tmpStart = (tmpHash & 3) << 2;
+		var tmpIsAdded = false;
+		for (var i = 0; i < 4; i++) {
+			var tmpIndex = this.indexOf(tmpHash, i);
+			var tmpShift = (tmpStart + i) << 2;
+			if ((this.meSketch[tmpIndex] >>> tmpShift & 15L) != 15L) {
+				this.meSketch[tmpIndex] += 1L << tmpShift;
+				tmpIsAdded = true;
+			}
+		}
+		if (tmpIsAdded && ++this.meSketchAdds >= this.meSketchPeriod) {
+			for (var i = 0; i < this.meSketch.length; i++) {
+				this.meSketch[i] = this.meSketch[i] >>> 1 & 0x7777777777777777L;
+			}
+			this.meSketchAdds >>>= 1;
+		}
+	}
+
+	/**
+	 * Estimates how often the specified key was used (the least of its four counters).
+	 */
+	private int frequencyOf(Key theKey) {
+		var tmpHash = HeaderCache.spread(theKey.hashCode());
+		var tmpStart = (tmpHash & 3) << 2;
+		var outFreq = 15;
+		for (var i = 0; i < 4; i++) {
+			outFreq = Math.min(outFreq, (int)(this.meSketch[this.indexOf(tmpHash, i)] >>> ((tmpStart + i) << 2) & 15L));
+		}
+		return outFreq;
+	}
+
+	private int indexOf(int theHash, int theDepth) {
+		var tmpHash = (theHash + HeaderCache.SEEDS[theDepth]) * HeaderCache.SEEDS[theDepth];
+		tmpHash += tmpHash >>> 32;
+		return (int)tmpHash & (this.meSketch.length - 1);
+	}
+
+	private static int spread(int theHash) {
+		theHash = (theHash >>> 16 ^ theHash) * 0x45D9F3B;
+		theHash = (theHash >>> 16 ^ theHash) * 0x45D9F3B;
+		return theHash >>> 16 ^ theHash;
+	}
+
+	/**
+	 * Estimates the bytes that the specified lines take on the heap (with the cache's own cost of an entry).
+	 */
+	private static long weightOf(List<byte[][]> theLines) {
+		var outWeight = (long)HeaderCache.NODE_BYTES + 16L + 8L * theLines.size();
+		for (var tmpLine : theLines) {
+			outWeight += 16L + (4L * tmpLine.length + 7L & ~7L);
+			for (var tmpWord : tmpLine) {
+				outWeight += 16L + (tmpWord.length + 7L & ~7L);
+			}
+		}
+		return outWeight;
+	}
+}
@@ -0,0 +1,403 @@
+package model;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.function.LongPredicate;
+
+/**
+ * A class that fetches the headers of many messages over several connections to the same account at once. The UIDs
+ * are split into chunks of consecutive messages; every connection fetches a chunk (with the next one already pipelined
+ * behind it) and takes the next unclaimed chunk when one completes. Completed chunks are handed over strictly in
+ * mailbox order, as soon as all the chunks before them are complete. Every chunk is fetched with a UID set of exactly
+ * its messages (like '5,9,12:15'), so the messages left out of a sparse list are not fetched.
+ * @author Janty Azmat
+ */
+public class HeaderFetcher {
+
+	/**
+	 * Holds the state of one 'fetch' call.
+	 */
+	private static class Job {
+		// Fields
+		private long[] meUids;
+		private int meChunkSize;
+		private byte[] meItems;
+		private LongPredicate meMoreFilter;
+		private byte[] meMoreItems;		// Fetched in a second command for the messages 'meMoreFilter' accepts (or 'null')
+		private BiConsumer<List<byte[][]>, List<byte[][]>> meConsumer;
+		private Object[] meDone;	// The completed chunks not handed over yet (by chunk index)
+		private int meNextClaim;
+		private int meNextDeliver;
+		private CompletableFuture<Void> meFuture = new CompletableFuture<>();
+
+		private int getChunkCount() {
+			return (this.meUids.length + this.meChunkSize - 1) / this.meChunkSize;
+		}
+	}
+
+	// Fields
+	public static final int DEFAULT_CHUNK_SIZE = 500;
+	public static final String DEFAULT_ITEMS = "(UID FLAGS RFC822.SIZE INTERNALDATE ENVELOPE)";
+	public static final String HEADER_ITEMS = "(UID RFC822.SIZE INTERNALDATE ENVELOPE)";	// The items that never change (can be cached)
+	public static final String FLAG_ITEMS = "(UID FLAGS)";
+	private static final int CHUNKS_PER_CONNECTION = 2; // One being answered, and one already sent behind it
+	private static final byte[] WORD_SEARCH = "SEARCH".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] WORD_FLAGS = "FLAGS".getBytes(StandardCharsets.US_ASCII);
+	private List<ImapPipeline> mePipes;
+
+	/**
+	 * A constructor that takes the pipelines to fetch over as a parameter (connections to the same account, with the
+	 * same mailbox selected, and nothing else in flight while fetching).
+	 * @param mailboxPipelines			the pipelines to fetch over.
+	 * @throws IllegalArgumentException	when the specified list is empty.
+	 * @throws NullPointerException		when the specified list (or a pipeline in it) is 'null'.
+	 */
+	public HeaderFetcher(List<ImapPipeline> mailboxPipelines) throws IllegalArgumentException, NullPointerException {
+		if (mailboxPipelines.isEmpty()) {
+			throw new IllegalArgumentException("At least one pipeline is needed.");
+		}
+		mailboxPipelines.forEach(pipe -> Objects.requireNonNull(pipe, "The pipelines cannot be 'null'."));
+		this.mePipes = List.copyOf(mailboxPipelines);
+	}
+
+	/**
+	 * Used to get the UIDs of all the messages in the selected mailbox (using the first pipeline).
+	 * @return	a future that completes with the UIDs in ascending order.
+	 */
+	public CompletableFuture<long[]> searchAll() {
+		return this.mePipes.get(0).submit("UID SEARCH ALL").thenApply(resp -> {
+			if (!resp.isOk()) {
+				throw new IllegalStateException("The server refused 'UID SEARCH': " + resp);
+			}
+			var tmpCount = 0;
+			var outUids = new long[64];
+			for (var tmpLine : resp.getUntagged()) {
+				if (tmpLine.length < 2 || !ResponseWords.equalsIgnoreCase(tmpLine[1], HeaderFetcher.WORD_SEARCH)) {
+					continue;
+				}
+				for (var i = 2; i < tmpLine.length; i++) {
+					var tmpUid = ResponseWords.parseNumber(tmpLine[i]);
+					if (tmpUid > 0L) {
+						if (tmpCount == outUids.length) {
+							outUids = Arrays.copyOf(outUids, tmpCount << 1);
+						}
+						outUids[tmpCount++] = tmpUid;
+					}
+				}
+			}
+			outUids = Arrays.copyOf(outUids, tmpCount);
+			Arrays.sort(outUids); // Servers usually answer in order, but do not have to
+			return outUids;
+		});
+	}
+
+	/**
+	 * Fetches the specified items of the messages with the specified UIDs, in chunks spread over the pipelines.
+	 * @param sortedUids				the UIDs in ascending order.
+	 * @param chunkSize					the number of messages per chunk.
+	 * @param fetchItems				the items to fetch (like 'DEFAULT_ITEMS').
+	 * @param chunkConsumer				gets the untagged lines of every chunk, in mailbox order (runs on the connections' threads,
+	 * 									one call at a time).
+	 * @return							a future that completes after the last chunk was handed over (or exceptionally when
+	 * 									a chunk fails, after which no more chunks are handed over).
+	 * @throws IllegalArgumentException	when the specified chunk size is less than 1.
+	 */
+	public CompletableFuture<Void> fetch(long[] sortedUids, int chunkSize, String fetchItems, Consumer<List<byte[][]>> chunkConsumer) throws IllegalArgumentException {
+		Objects.requireNonNull(chunkConsumer, "The 'chunkConsumer' argument cannot be 'null'.");
+		return this.fetch(sortedUids, chunkSize, fetchItems, null, null, (lines, none) -> chunkConsumer.accept(lines));
+	}
+
+	/**
+	 * Fetches the specified items of the messages with the specified UIDs, and the specified more items of the ones the
+	 * specified filter accepts (like the headers of the ones not cached, besides the flags of all of them), in chunks
+	 * spread over the pipelines. Both commands of a chunk are sent together over the same pipeline.
+	 * @param sortedUids				the UIDs in ascending order.
+	 * @param chunkSize					the number of messages per chunk.
+	 * @param fetchItems				the items to fetch for all the messages (like 'FLAG_ITEMS').
+	 * @param moreFilter				accepts the UIDs whose more items are fetched (called once per UID, when its chunk
+	 * 									is sent), or 'null' for none.
+	 * @param moreItems					the more items to fetch (like 'HEADER_ITEMS'), or 'null' for none.
+	 * @param chunkConsumer				gets the untagged lines of both commands of every chunk, in mailbox order (runs on
+	 * 									the connections' threads, one call at a time).
+	 * @return							a future that completes after the last chunk was handed over (or exceptionally when
+	 * 									a chunk fails, after which no more chunks are handed over).
+	 * @throws IllegalArgumentException	when the specified chunk size is less than 1.
+	 */
+	public CompletableFuture<Void> fetch(long[] sortedUids, int chunkSize, String fetchItems, LongPredicate moreFilter, String moreItems,
+			BiConsumer<List<byte[][]>, List<byte[][]>> chunkConsumer) throws IllegalArgumentException {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("The chunk size should be at least 1.");
+		}
+		var tmpJob = new Job();
+		tmpJob.meUids = sortedUids;
+		tmpJob.meChunkSize = chunkSize;
+		tmpJob.meItems = (" " + fetchItems).getBytes(StandardCharsets.US_ASCII);
+		if (moreFilter != null && moreItems != null) {
+			tmpJob.meMoreFilter = moreFilter;
+			tmpJob.meMoreItems = (" " + moreItems).getBytes(StandardCharsets.US_ASCII);
+		}
+		tmpJob.meConsumer = Objects.requireNonNull(chunkConsumer, "The 'chunkConsumer' argument cannot be 'null'.");
+		tmpJob.meDone = new Object[tmpJob.getChunkCount()];
+		if (tmpJob.meDone.length == 0) {
+			tmpJob.meFuture.complete(null);
+			return tmpJob.meFuture;
+		}
+		for (var i = 0; i < HeaderFetcher.CHUNKS_PER_CONNECTION; i++) {
+			for (var tmpPipe : this.mePipes) {
+				this.fetchNext(tmpJob, tmpPipe);
+			}
+		}
+		return tmpJob.meFuture;
+	}
+
+	/**
+	 * Claims the next chunk of the specified job (if any) and fetches it over the specified pipeline.
+	 */
+	private void fetchNext(Job theJob, ImapPipeline thePipe) {
+		int tmpChunk;
+		synchronized (theJob) {
+			if (theJob.meNextClaim >= theJob.meDone.length || theJob.meFuture.isDone()) {
+				return;
+			}
+			tmpChunk = theJob.meNextClaim++;
+		}
+		var tmpFrom = tmpChunk * theJob.meChunkSize;
+		var tmpTo = Math.min(tmpFrom + theJob.meChunkSize, theJob.meUids.length);
+		CompletableFuture<ImapPipeline.Response> tmpFuture;
+		var tmpMoreFuture = CompletableFuture.<ImapPipeline.Response>completedFuture(null);
+		try {
+			tmpFuture = thePipe.submit(HeaderFetcher.fetchCommand(theJob.meUids, tmpFrom, tmpTo, theJob.meItems));
+			if (theJob.meMoreItems != null) {
+				var tmpMore = new long[tmpTo - tmpFrom];
+				var tmpMoreCount = 0;
+				for (var i = tmpFrom; i < tmpTo; i++) {
+					if (theJob.meMoreFilter.test(theJob.meUids[i])) {
+						tmpMore[tmpMoreCount++] = theJob.meUids[i];
+					}
+				}
+				if (tmpMoreCount > 0) {
+					tmpMoreFuture = thePipe.submit(HeaderFetcher.fetchCommand(tmpMore, 0, tmpMoreCount, theJob.meMoreItems));
+				}
+			}
+		} catch (RuntimeException e) { // Like a dropped connection: the chunk can never be handed over (and a throw from a completion callback is lost)
+			theJob.meFuture.completeExceptionally(e);
+			return;
+		}
+		tmpFuture.thenCombine(tmpMoreFuture, (resp, more) -> {
+			HeaderFetcher.requireOk(resp);
+			if (more != null) {
+				HeaderFetcher.requireOk(more);
+			}
+			return new Object[] {resp.getUntagged(), more == null ? List.of() : more.getUntagged()};
+		}).whenComplete((lines, err) -> {
+			if (err != null) {
+				theJob.meFuture.completeExceptionally(err);
+				return;
+			}
+			this.chunkDone(theJob, tmpChunk, lines);
+			this.fetchNext(theJob, thePipe);
+		});
+	}
+
+	/**
+	 * Makes the 'UID FETCH' command of the specified part of a UID list, with a UID set of exactly the UIDs in it (only
+	 * the runs of consecutive UIDs are collapsed into ranges).
+	 */
+	private static byte[] fetchCommand(long[] sortedUids, int fromIndex, int toIndex, byte[] fetchItems) {
+		var tmpBuild = new StringBuilder(10 + (toIndex - fromIndex) * 8 + fetchItems.length).append("UID FETCH ");
+		var i = fromIndex;
+		while (i < toIndex) {
+			var tmpEnd = i;
+			while (tmpEnd + 1 < toIndex && sortedUids[tmpEnd + 1] == sortedUids[tmpEnd] + 1L) {
+				tmpEnd++;
+			}
+			tmpBuild.append(i == fromIndex ? "" : ",").append(sortedUids[i]);
+			if (tmpEnd > i) {
+				tmpBuild.append(':').append(sortedUids[tmpEnd]);
+			}
+			i = tmpEnd + 1;
+		}
+		var tmpCmd = tmpBuild.toString().getBytes(StandardCharsets.US_ASCII);
+		var outCmd = Arrays.copyOf(tmpCmd, tmpCmd.length + fetchItems.length);
+		System.arraycopy(fetchItems, 0, outCmd, tmpCmd.length, fetchItems.length);
+		return outCmd;
+	}
+
+	private static void requireOk(ImapPipeline.Response fetchResponse) {
+		if (!fetchResponse.isOk()) {
+			throw new IllegalStateException("The server refused 'UID FETCH': " + fetchResponse);
+		}
+	}
+
+	/**
+	 * Records a completed chunk and hands over all the completed chunks that are next in order.
+	 */
+	@SuppressWarnings("unchecked")
+	private void chunkDone(Job theJob, int chunkIndex, Object[] chunkLines) {
+		synchronized (theJob) { // Also keeps the consumer calls one at a time and in order
+			theJob.meDone[chunkIndex] = chunkLines;
+			while (theJob.meNextDeliver < theJob.meDone.length && theJob.meDone[theJob.meNextDeliver] != null && !theJob.meFuture.isDone()) {
+				var tmpLines = (Object[])theJob.meDone[theJob.meNextDeliver];
+				theJob.meDone[theJob.meNextDeliver++] = null;
+				try {
+					theJob.meConsumer.accept((List<byte[][]>)tmpLines[0], (List<byte[][]>)tmpLines[1]);
+				} catch (RuntimeException e) {
+					theJob.meFuture.completeExceptionally(e);
+					return;
+				}
+			}
+			if (theJob.meNextDeliver == theJob.meDone.length) {
+				theJob.meFuture.complete(null);
+			}
+		}
+	}
+
+	/**
+	 * Used to get the number of pipelines fetched over.
+	 * @return	the number of pipelines.
+	 */
+	public int getParallelism() {
+		return this.mePipes.size();
+	}
+
+	/**
+	 * Merges the flags of messages into their header lines (like after fetching 'FLAG_ITEMS' of all the messages and
+	 * 'HEADER_ITEMS' of the ones not cached): the first header line of every message gets the 'FLAGS' item of its flags
+	 * line, so the flags are never taken from what was cached.
+	 * @param flagLines		the untagged lines with the flags (only the 'FETCH' ones with a UID are used).
+	 * @param headerLines	the untagged lines with the fetched headers of some of the messages.
+	 * @param knownHeaders	gets the header lines of the other UIDs (or 'null' if they are not known, which leaves the
+	 * 						message out).
+	 * @return				the merged lines of the messages, in UID order.
+	 */
+	public static List<byte[][]> mergeFlags(List<byte[][]> flagLines, List<byte[][]> headerLines, LongFunction<List<byte[][]>> knownHeaders) {
+		var tmpFetched = new HashMap<Long, List<byte[][]>>();
+		for (var tmpLines : HeaderFetcher.splitMessages(headerLines)) {
+			var tmpUid = ResponseWords.fetchUid(tmpLines.get(0));
+			if (tmpUid > 0L) {
+				tmpFetched.put(tmpUid, tmpLines);
+			}
+		}
+		var tmpUids = new long[flagLines.size()];
+		var tmpLines = new byte[flagLines.size()][][];
+		var tmpCount = 0;
+		var tmpIsSorted = true;
+		for (var tmpLine : flagLines) {
+			var tmpUid = ResponseWords.fetchUid(tmpLine);
+			if (tmpUid > 0L) {
+				tmpIsSorted &= tmpCount == 0 || tmpUids[tmpCount - 1] < tmpUid;
+				tmpUids[tmpCount] = tmpUid;
+				tmpLines[tmpCount++] = tmpLine;
+			}
+		}
+		var tmpOrder = new Integer[tmpCount];
+		for (var i = 0; i < tmpCount; i++) {
+			tmpOrder[i] = i;
+		}
+		if (!tmpIsSorted) { // Servers answer in mailbox order, but do not have to
+			Arrays.sort(tmpOrder, (x, y) -> Long.compare(tmpUids[x], tmpUids[y]));
+		}
+		var outList = new ArrayList<byte[][]>(tmpCount);
+		for (var tmpIndex : tmpOrder) {
+			var tmpHeader = tmpFetched.get(tmpUids[tmpIndex]);
+			if (tmpHeader == null) {
+				tmpHeader = knownHeaders.apply(tmpUids[tmpIndex]);
+			}
+			if (tmpHeader != null && !tmpHeader.isEmpty()) {
+				outList.add(HeaderFetcher.withFlags(tmpHeader.get(0), tmpLines[tmpIndex]));
+				outList.addAll(tmpHeader.subList(1, tmpHeader.size()));
+			}
+		}
+		return outList;
+	}
+
+	/**
+	 * Makes a copy of the specified first line of a message's 'FETCH' response with the 'FLAGS' item of the specified
+	 * flags line put first in its list of items.
+	 */
+	private static byte[][] withFlags(byte[][] headerLine, byte[][] flagLine) {
+		var tmpAt = 3;
+		while (tmpAt < flagLine.length - 1) { // A flags line has no quoted strings or literals to mistake the item for
+			var tmpWord = flagLine[tmpAt];
+			if (ResponseWords.equalsIgnoreCase(tmpWord.length > 0 && tmpWord[0] == '(' ? Arrays.copyOfRange(tmpWord, 1, tmpWord.length) : tmpWord, HeaderFetcher.WORD_FLAGS)) {
+				break;
+			}
+			tmpAt++;
+		}
+		if (tmpAt >= flagLine.length - 1 || headerLine.length < 4 || headerLine[3].length == 0 || headerLine[3][0] != '(') {
+			return headerLine;
+		}
+		var tmpFlags = new ArrayList<byte[]>();
+		var tmpDepth = 0;
+		for (var i = tmpAt + 1; i < flagLine.length; i++) {
+			var tmpWord = flagLine[i];
+			var tmpEnd = tmpWord.length;
+			for (var j = 0; j < tmpWord.length; j++) {
+				tmpDepth += tmpWord[j] == '(' ? 1 : tmpWord[j] == ')' ? -1 : 0;
+				if (tmpDepth == 0) {
+					tmpEnd = j + 1; // Drops what closes the list of items
+					break;
+				}
+			}
+			tmpFlags.add(tmpEnd == tmpWord.length ? tmpWord : Arrays.copyOf(tmpWord, tmpEnd));
+			if (tmpDepth <= 0) {
+				break;
+			}
+		}
+		var tmpRest = Arrays.copyOfRange(headerLine[3], 1, headerLine[3].length);
+		var outLine = new ArrayList<byte[]>(headerLine.length + tmpFlags.size() + 1);
+		outLine.addAll(Arrays.asList(headerLine).subList(0, 3));
+		outLine.add("(FLAGS".getBytes(StandardCharsets.US_ASCII));
+		outLine.addAll(tmpFlags);
+		if (tmpRest.length > 0) {
+			outLine.add(tmpRest);
+		}
+		outLine.addAll(Arrays.asList(headerLine).subList(4, headerLine.length));
+		return outLine.toArray(new byte[outLine.size()][]);
+	}
+
+	/**
+	 * Splits the untagged lines of a fetched chunk into the lines of each message (a message's response may span more
+	 * than one line when the server sends literals).
+	 * @param chunkLines	the untagged lines of a chunk.
+	 * @return				the lines of each message, in order.
+	 */
+	public static List<List<byte[][]>> splitMessages(List<byte[][]> chunkLines) {
+		var outList = new ArrayList<List<byte[][]>>();
+		for (var tmpLine : chunkLines) {
+			if (tmpLine.length > 0 && tmpLine[0].length == 1 && tmpLine[0][0] == '*' || outList.isEmpty()) {
+				outList.add(new ArrayList<>(1));
+			}
+			outList.get(outList.size() - 1).add(tmpLine);
+		}
+		return outList;
+	}
+
+	/**
+	 * Lists the UIDs of the 'FETCH' responses in the specified untagged lines (like the ones a sync got).
+	 * @param chunkLines	the untagged lines.
+	 * @return				the distinct UIDs, ascending.
+	 */
+	public static long[] listUids(List<byte[][]> chunkLines) {
+		var outUids = new long[chunkLines.size()];
+		var tmpCount = 0;
+		for (var tmpLine : chunkLines) {
+			var tmpUid = ResponseWords.fetchUid(tmpLine);
+			if (tmpUid > 0L) {
+				outUids[tmpCount++] = tmpUid;
+			}
+		}
+		outUids = Arrays.copyOf(outUids, tmpCount);
+		Arrays.sort(outUids);
+		return Arrays.stream(outUids).distinct().toArray();
+	}
+}
@@ -0,0 +1,239 @@
+package model;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import lib.EventEmitter;
+
+/**
+ * A class that keeps an IMAP connection (with a selected mailbox) in 'IDLE' so that the server pushes mailbox changes
+ * instead of the client polling for them. The pushed untagged updates are emitted as incremental mailbox events, and
+ * 'IDLE' is re-issued before the server's inactivity timeout (RFC 2177 asks clients to do so at least every 29 minutes).
+ * No other command should be submitted to the pipeline while watching.
+ * @author Janty Azmat
+ */
+public class ImapIdleWatcher extends EventEmitter<ImapIdleWatcher.MailboxEvent> {
+
+	/**
+	 * An enum that represents the events an 'ImapIdleWatcher' object can emit (on the connection's read-thread).
+	 * @author Janty Azmat
+	 */
+	public static enum MailboxEvent {
+
+		/**
+		 * Informs that the number of messages in the mailbox changed (the 'eventData' is the new count as 'Long').
+		 */
+		EXISTS_CHANGED,
+
+		/**
+		 * Informs that a message was expunged (the 'eventData' is its sequence number as 'Long'; later messages shift down by one).
+		 */
+		MESSAGE_EXPUNGED,
+
+		/**
+		 * Informs that the data of a message changed, like its flags (the 'eventData' is the untagged 'FETCH' line as 'byte[][]').
+		 */
+		MESSAGE_CHANGED,
+
+		/**
+		 * Informs that watching stopped because of an error (the 'eventData' is the 'Throwable').
+		 */
+		WATCH_FAILED
+	}
+
+	/**
+	 * Holds the lazily created thread that re-issues the 'IDLE' commands of all watchers.
+	 */
+	private static class TimerHolder {
+		private static final ScheduledExecutorService TIMER;
+		static {
+			var tmpExec = new ScheduledThreadPoolExecutor(1, run -> {
+				var outThrd = new Thread(run, "ImapIdleWatcher-timer");
+				outThrd.setDaemon(true);
+				return outThrd;
+			});
+			tmpExec.setRemoveOnCancelPolicy(true);
+			TIMER = tmpExec;
+		}
+	}
+
+	// Fields
+	public static final long DEFAULT_REISSUE_MILLIS = TimeUnit.MINUTES.toMillis(25);
+	private static final byte[] WORD_EXISTS = "EXISTS".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] WORD_EXPUNGE = "EXPUNGE".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] WORD_FETCH = "FETCH".getBytes(StandardCharsets.US_ASCII);
+	private ImapPipeline mePipe;
+	private long meReissueMillis;
+	private boolean meIsRunning;
+	private boolean meIsIdling;		// The server confirmed the current 'IDLE' with a continuation
+	private boolean meIsDoneWanted;	// 'DONE' should be sent as soon as the server confirms 'IDLE'
+	private boolean meIsDoneSent;
+	private ScheduledFuture<?> meReissueTask;
+	private CompletableFuture<Void> meStopped;
+
+	/**
+	 * A constructor that takes the pipeline of the connection (with a selected mailbox) as a parameter ('IDLE' is
+	 * re-issued every 25 minutes).
+	 * @param imapPipeline				the pipeline of the connection.
+	 * @throws NullPointerException		when the specified pipeline is 'null'.
+	 */
+	public ImapIdleWatcher(ImapPipeline imapPipeline) throws NullPointerException {
+		this(imapPipeline, ImapIdleWatcher.DEFAULT_REISSUE_MILLIS);
+	}
+
+	/**
+	 * A constructor that takes the pipeline of the connection (with a selected mailbox) and the re-issue interval as parameters.
+	 * @param imapPipeline				the pipeline of the connection.
+	 * @param reissueMillis				how long each 'IDLE' lasts before it is ended and re-issued.
+	 * @throws NullPointerException		when the specified pipeline is 'null'.
+	 * @throws IllegalArgumentException	when the specified interval is not positive.
+	 */
+	public ImapIdleWatcher(ImapPipeline imapPipeline, long reissueMillis) throws NullPointerException, IllegalArgumentException {
+		super(MailboxEvent.class);
+		if (reissueMillis <= 0L) {
+			throw new IllegalArgumentException("The re-issue interval should be positive.");
+		}
+		this.mePipe = Objects.requireNonNull(imapPipeline, "The 'imapPipeline' argument cannot be 'null'.");
+		this.meReissueMillis = reissueMillis;
+	}
+
+	/**
+	 * Starts watching the mailbox (issues 'IDLE').
+	 * @throws IllegalStateException	when already watching, or the connection is not yet connected.
+	 */
+	public synchronized void start() throws IllegalStateException {
+		if (this.meIsRunning) {
+			throw new IllegalStateException("Already watching.");
+		}
+		this.meIsRunning = true;
+		this.meStopped = new CompletableFuture<>();
+		try {
+			this.issueIdle();
+		} catch (RuntimeException e) {
+			this.meIsRunning = false;
+			this.meStopped.complete(null);
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops watching the mailbox (ends the current 'IDLE'), after which other commands can be submitted.
+	 * @return	a future that completes when the server has ended 'IDLE'.
+	 */
+	public synchronized CompletableFuture<Void> stop() {
+		if (!this.meIsRunning) {
+			return this.meStopped == null ? CompletableFuture.completedFuture(null) : this.meStopped;
+		}
+		this.meIsRunning = false;
+		this.endIdle();
+		return this.meStopped;
+	}
+
+	/**
+	 * Checks if this watcher is watching the mailbox.
+	 * @return	'true' if watching.
+	 */
+	public synchronized boolean isRunning() {
+		return this.meIsRunning;
+	}
+
+	private void issueIdle() {
+		this.meIsIdling = false;
+		this.meIsDoneWanted = false;
+		this.meIsDoneSent = false;
+		this.mePipe.submit("IDLE", this::handleLine).whenComplete((resp, err) -> this.idleEnded(resp, err));
+		this.meReissueTask = TimerHolder.TIMER.schedule(this::reissue, this.meReissueMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void reissue() {
+		if (this.meIsRunning) {
+			this.endIdle(); // 'idleEnded' issues the next one
+		}
+	}
+
+	/**
+	 * Ends the current 'IDLE' (sends 'DONE' now, or as soon as the server confirms 'IDLE').
+	 */
+	private void endIdle() {
+		if (this.meIsIdling && !this.meIsDoneSent) {
+			this.sendDone();
+		} else {
+			this.meIsDoneWanted = true;
+		}
+	}
+
+	private void sendDone() {
+		this.meIsDoneSent = true;
+		try {
+			this.mePipe.sendContinuation("DONE");
+		} catch (IOException e) {
+			// The connection is broken; 'idleEnded' will report it when the pipeline fails the command
+		}
+	}
+
+	/**
+	 * Called when the tagged response of an 'IDLE' arrives (or the connection fails).
+	 */
+	private synchronized void idleEnded(ImapPipeline.Response idleResponse, Throwable idleError) {
+		if (this.meReissueTask != null) {
+			this.meReissueTask.cancel(false);
+			this.meReissueTask = null;
+		}
+		if (idleError == null && !idleResponse.isOk()) {
+			idleError = new IOException("The server refused 'IDLE': " + idleResponse);
+		}
+		if (idleError != null) {
+			var tmpWasRunning = this.meIsRunning;
+			this.meIsRunning = false;
+			this.meStopped.complete(null);
+			if (tmpWasRunning) {
+				this.emitEvent(MailboxEvent.WATCH_FAILED, idleError);
+			}
+		} else if (this.meIsRunning) {
+			try {
+				this.issueIdle();
+			} catch (RuntimeException e) { // Like a dropped connection (thrown here, it would be lost in the completion callback)
+				this.meIsRunning = false;
+				this.meStopped.complete(null);
+				this.emitEvent(MailboxEvent.WATCH_FAILED, e);
+			}
+		} else {
+			this.meStopped.complete(null);
+		}
+	}
+
+	/**
+	 * Handles the untagged and continuation lines received while idling (runs on the connection's read-thread).
+	 * @param theLine	the words of the received line.
+	 */
+	private void handleLine(byte[][] theLine) {
+		if (theLine.length > 0 && theLine[0].length == 1 && theLine[0][0] == '+') {
+			synchronized (this) {
+				this.meIsIdling = true;
+				if (this.meIsDoneWanted && !this.meIsDoneSent) {
+					this.sendDone();
+				}
+			}
+			return;
+		}
+		if (theLine.length < 3 || theLine[0].length != 1 || theLine[0][0] != '*') {
+			return;
+		}
+		var tmpNum = ResponseWords.parseNumber(theLine[1]);
+		if (tmpNum < 0L) {
+			return;
+		}
+		if (ResponseWords.equalsIgnoreCase(theLine[2], ImapIdleWatcher.WORD_EXISTS)) {
+			this.emitEvent(MailboxEvent.EXISTS_CHANGED, tmpNum);
+		} else if (ResponseWords.equalsIgnoreCase(theLine[2], ImapIdleWatcher.WORD_EXPUNGE)) {
+			this.emitEvent(MailboxEvent.MESSAGE_EXPUNGED, tmpNum);
+		} else if (ResponseWords.equalsIgnoreCase(theLine[2], ImapIdleWatcher.WORD_FETCH)) {
+			this.emitEvent(MailboxEvent.MESSAGE_CHANGED, theLine);
+		}
+	}
+}
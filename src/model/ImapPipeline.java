@@ -0,0 +1,326 @@
+package model;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import lib.IEventEmitter;
+import view.IConnection;
+import view.ReceivedLine;
+import view.SslConnection.ConnectionEvent;
+
+/**
+ * A class that represents a command layer on top of a connection to an IMAP server. Every submitted command gets a
+ * unique tag and a CompletableFuture that completes when the tagged response arrives, so many commands can be in
+ * flight at once (pipelined) instead of waiting a round trip for each.
+ * Untagged and continuation lines are collected for the oldest command still in flight (servers answer in order);
+ * lines arriving while nothing is in flight go to the unsolicited-line listener. The futures complete on the
+ * connection's read-thread, so dependent stages should not block.
+ * @author Janty Azmat
+ */
+public class ImapPipeline implements AutoCloseable {
+
+	/**
+	 * A class that represents the complete response to a command.
+	 * @author Janty Azmat
+	 */
+	public static class Response {
+		// Fields
+		private String meTag;
+		private List<byte[][]> meUntagged;
+		private byte[][] meCompletion;
+
+		private Response(String commandTag, List<byte[][]> untaggedLines, byte[][] completionLine) {
+			this.meTag = commandTag;
+			this.meUntagged = Collections.unmodifiableList(untaggedLines);
+			this.meCompletion = completionLine;
+		}
+
+		/**
+		 * Used to get the tag of the command.
+		 * @return	the tag of the command.
+		 */
+		public String getTag() {
+			return this.meTag;
+		}
+
+		/**
+		 * Used to get the untagged (and continuation) lines received while the command was the oldest one in flight.
+		 * @return	the untagged lines (as words).
+		 */
+		public List<byte[][]> getUntagged() {
+			return this.meUntagged;
+		}
+
+		/**
+		 * Used to get the tagged completion line (the tag, the status, and the rest of the line).
+		 * @return	the completion line (as words).
+		 */
+		public byte[][] getCompletion() {
+			return this.meCompletion;
+		}
+
+		/**
+		 * Used to get the status of the completion ('OK', 'NO', or 'BAD').
+		 * @return	the status of the completion.
+		 */
+		public String getStatus() {
+			return this.meCompletion.length > 1 ? new String(this.meCompletion[1], StandardCharsets.US_ASCII).toUpperCase() : "";
+		}
+
+		/**
+		 * Checks if the command completed successfully.
+		 * @return	'true' if the status of the completion is 'OK'.
+		 */
+		public boolean isOk() {
+			return this.getStatus().equals("OK");
+		}
+
+		@Override
+		public String toString() {
+			var outBuild = new StringBuilder();
+			for (var tmpWord : this.meCompletion) {
+				outBuild.append(outBuild.length() > 0 ? " " : "").append(new String(tmpWord, StandardCharsets.ISO_8859_1));
+			}
+			return outBuild.toString();
+		}
+	}
+
+	/**
+	 * Holds a command in flight.
+	 */
+	private static class Pending {
+		// Fields
+		private byte[] meTag;
+		private List<byte[][]> meUntagged = new ArrayList<>();
+		private Consumer<byte[][]> meListener;
+		private CompletableFuture<Response> meFuture = new CompletableFuture<>();
+
+		private Pending(byte[] commandTag, Consumer<byte[][]> lineListener) {
+			this.meTag = commandTag;
+			this.meListener = lineListener;
+		}
+	}
+
+	// Fields
+	private static final byte[] CRLF = {13, 10};
+	private static final byte[] OK = {'O', 'K'};
+	private IConnection meConn;
+	private ConcurrentLinkedDeque<Pending> mePending;
+	private final Object meSendLock = new Object();
+	private long meNextTag;
+	private volatile Consumer<byte[][]> meUnsolicited;
+	private BiConsumer<IEventEmitter<ConnectionEvent>, Object> meLineListener;
+	private BiConsumer<IEventEmitter<ConnectionEvent>, Object> meInterListener;
+
+	/**
+	 * A constructor that takes the (connected or not yet connected) connection to the IMAP server as a parameter.
+	 * @param imapConnection			the connection to the IMAP server.
+	 * @throws NullPointerException		when the specified connection is 'null'.
+	 */
+	public ImapPipeline(IConnection imapConnection) throws NullPointerException {
+		this.meConn = Objects.requireNonNull(imapConnection, "The 'imapConnection' argument cannot be 'null'.");
+		this.mePending = new ConcurrentLinkedDeque<>();
+		this.meLineListener = (emit, data) -> this.handleLine(data instanceof ReceivedLine ? ((ReceivedLine)data).copy() : (byte[][])data);
+		this.meInterListener = (emit, data) -> this.failAll(new IOException("Receiving from the IMAP server was interrupted."));
+		this.meConn.addEventListener(ConnectionEvent.LINE_RECEIVED, this.meLineListener);
+		this.meConn.addEventListener(ConnectionEvent.RECEIVE_ITERRUPTED, this.meInterListener);
+	}
+
+	/**
+	 * Sends the specified command with a new tag (without waiting for the responses of the commands before it).
+	 * @param imapCommand				the command without the tag and the line ending (e.g. 'UID FETCH 1:* FLAGS').
+	 * @return							a future that completes with the command's response (or exceptionally when the
+	 * 									connection fails before the response arrives).
+	 * @throws IllegalStateException	when the connection is not yet connected.
+	 */
+	public CompletableFuture<Response> submit(String imapCommand) throws IllegalStateException {
+		return this.submit(imapCommand.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Sends the specified command with a new tag (without waiting for the responses of the commands before it).
+	 * @param imapCommand				the command bytes without the tag and the line ending.
+	 * @return							a future that completes with the command's response (or exceptionally when the
+	 * 									connection fails before the response arrives).
+	 * @throws IllegalStateException	when the connection is not yet connected.
+	 */
+	public CompletableFuture<Response> submit(byte[] imapCommand) throws IllegalStateException {
+		return this.submit(imapCommand, null);
+	}
+
+	/**
+	 * Sends the specified command with a new tag, and hands the untagged and continuation lines received while it is the
+	 * oldest command in flight to the specified listener as they arrive (instead of collecting them in the response).
+	 * Useful for long-running commands like 'IDLE'.
+	 * @param imapCommand				the command without the tag and the line ending.
+	 * @param lineListener				the listener of the command's untagged and continuation lines (runs on the
+	 * 									connection's read-thread).
+	 * @return							a future that completes with the command's response (or exceptionally when the
+	 * 									connection fails before the response arrives).
+	 * @throws IllegalStateException	when the connection is not yet connected.
+	 */
+	public CompletableFuture<Response> submit(String imapCommand, Consumer<byte[][]> lineListener) throws IllegalStateException {
+		return this.submit(imapCommand.getBytes(StandardCharsets.UTF_8), lineListener);
+	}
+
+	private CompletableFuture<Response> submit(byte[] imapCommand, Consumer<byte[][]> lineListener) throws IllegalStateException {
+		synchronized (this.meSendLock) { // Keeps the tags in the order they were sent
+			var tmpTag = ("A" + (++this.meNextTag)).getBytes(StandardCharsets.US_ASCII);
+			var tmpCmd = new byte[tmpTag.length + 1 + imapCommand.length + ImapPipeline.CRLF.length];
+			System.arraycopy(tmpTag, 0, tmpCmd, 0, tmpTag.length);
+			tmpCmd[tmpTag.length] = 32;
+			System.arraycopy(imapCommand, 0, tmpCmd, tmpTag.length + 1, imapCommand.length);
+			System.arraycopy(ImapPipeline.CRLF, 0, tmpCmd, tmpCmd.length - ImapPipeline.CRLF.length, ImapPipeline.CRLF.length);
+			var outPend = new Pending(tmpTag, lineListener);
+			this.mePending.add(outPend);
+			try {
+				this.meConn.send(tmpCmd);
+			} catch (IOException e) {
+				this.mePending.remove(outPend);
+				outPend.meFuture.completeExceptionally(e);
+			} catch (RuntimeException e) { // Like not being connected (an orphan would get the replies of the next commands)
+				this.mePending.remove(outPend);
+				throw e;
+			}
+			return outPend.meFuture;
+		}
+	}
+
+	/**
+	 * Sends 'COMPRESS DEFLATE' (RFC 4978) and switches the connection to compressed I/O right after the server's tagged
+	 * 'OK' (nothing else should be submitted until the returned future completes).
+	 * @return							a future that completes with the command's response (the connection stays
+	 * 									uncompressed if the response is not 'OK').
+	 * @throws IllegalStateException	when the connection is not yet connected, or is already compressed.
+	 */
+	public CompletableFuture<Response> compress() throws IllegalStateException {
+		synchronized (this.meSendLock) {
+			var tmpTag = ("A" + (this.meNextTag + 1)).getBytes(StandardCharsets.US_ASCII); // The tag 'submit' will use
+			this.meConn.enableCompression(line -> line.getWordCount() > 1 && line.wordEquals(0, tmpTag) && line.wordEqualsIgnoreCase(1, ImapPipeline.OK));
+			CompletableFuture<Response> outFuture;
+			try {
+				outFuture = this.submit("COMPRESS DEFLATE");
+			} catch (RuntimeException e) { // Left armed, the switch could take a later command's 'OK' for this one's
+				this.disarmCompression();
+				throw e;
+			}
+			return outFuture.whenComplete((resp, err) -> {
+				if (err != null || !resp.isOk()) {
+					this.disarmCompression();
+				}
+			});
+		}
+	}
+
+	private void disarmCompression() {
+		try {
+			this.meConn.enableCompression(null);
+		} catch (IllegalStateException e) {
+			// Disconnected (the switch is reset on connecting), or already switched
+		}
+	}
+
+	/**
+	 * Sends the specified untagged line as the continuation of the command in flight (like 'DONE' to end 'IDLE', or the
+	 * data a '+' continuation request asks for), and flushes it.
+	 * @param continuationLine			the line without the line ending.
+	 * @throws IOException				when an I/O error occurs while writing.
+	 * @throws IllegalStateException	when the connection is not yet connected.
+	 */
+	public void sendContinuation(String continuationLine) throws IOException, IllegalStateException {
+		var tmpLine = (continuationLine + "\r\n").getBytes(StandardCharsets.UTF_8);
+		synchronized (this.meSendLock) {
+			this.meConn.send(tmpLine);
+			this.meConn.flush();
+		}
+	}
+
+	/**
+	 * Writes the commands that are still in the connection's send buffer (only needed when the connection buffers sends).
+	 * @throws IOException				when an I/O error occurs while writing.
+	 * @throws IllegalStateException	when the connection is not yet connected.
+	 */
+	public void flush() throws IOException, IllegalStateException {
+		this.meConn.flush();
+	}
+
+	/**
+	 * Sets the listener of the lines that arrive while no command is in flight (like untagged 'EXISTS' updates).
+	 * @param lineListener	the listener (or 'null' to ignore such lines).
+	 */
+	public void setUnsolicitedListener(Consumer<byte[][]> lineListener) {
+		this.meUnsolicited = lineListener;
+	}
+
+	/**
+	 * Used to get the connection this pipeline runs on (for what goes beside the commands, like a 'LiteralSink').
+	 * @return	the connection to the IMAP server.
+	 */
+	public IConnection getConnection() {
+		return this.meConn;
+	}
+
+	/**
+	 * Used to get the number of commands currently in flight.
+	 * @return	the number of commands in flight.
+	 */
+	public int getInFlightCount() {
+		return this.mePending.size();
+	}
+
+	/**
+	 * Handles a line received from the server (runs on the connection's read-thread).
+	 * @param theLine	the words of the received line.
+	 */
+	private void handleLine(byte[][] theLine) {
+		if (theLine.length > 0 && !(theLine[0].length == 1 && (theLine[0][0] == '*' || theLine[0][0] == '+'))) {
+			for (var tmpPend : this.mePending) { // Normally the first one
+				if (Arrays.equals(tmpPend.meTag, theLine[0])) {
+					this.mePending.remove(tmpPend);
+					tmpPend.meFuture.complete(new Response(new String(tmpPend.meTag, StandardCharsets.US_ASCII), tmpPend.meUntagged, theLine));
+					return;
+				}
+			}
+		}
+		var tmpOldest = this.mePending.peekFirst();
+		if (tmpOldest != null && tmpOldest.meListener != null) {
+			tmpOldest.meListener.accept(theLine);
+		} else if (tmpOldest != null) {
+			tmpOldest.meUntagged.add(theLine);
+		} else {
+			var tmpListener = this.meUnsolicited;
+			if (tmpListener != null) {
+				tmpListener.accept(theLine);
+			}
+		}
+	}
+
+	/**
+	 * Fails all the commands in flight.
+	 * @param theError	the error to fail the commands with.
+	 */
+	private void failAll(IOException theError) {
+		Pending tmpPend;
+		while ((tmpPend = this.mePending.pollFirst()) != null) {
+			tmpPend.meFuture.completeExceptionally(theError);
+		}
+	}
+
+	/**
+	 * Detaches this pipeline from the connection (the connection itself is not closed) and fails the commands still in flight.
+	 */
+	@Override
+	public void close() {
+		this.meConn.removeEventListener(ConnectionEvent.LINE_RECEIVED, this.meLineListener);
+		this.meConn.removeEventListener(ConnectionEvent.RECEIVE_ITERRUPTED, this.meInterListener);
+		this.failAll(new IOException("The IMAP pipeline was closed."));
+	}
+}
@@ -0,0 +1,401 @@
+package model;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
+
+/**
+ * A class that synchronizes mailboxes incrementally. After every sync it keeps a checkpoint of the mailbox (its
+ * UIDVALIDITY, UIDNEXT, HIGHESTMODSEQ and message count) in a file, and the next sync only fetches the messages added
+ * since (UIDs from the old UIDNEXT on) and the flag changes since the old HIGHESTMODSEQ ('CHANGEDSINCE', RFC 7162). A
+ * full resync happens only for a mailbox without a checkpoint, or when its UIDVALIDITY changed.
+ * For servers without CONDSTORE, the flags of all the messages are fetched instead (still without their headers).
+ * Expunged messages are not identified (that needs QRESYNC), but their number is reported.
+ * @author Janty Azmat
+ */
+public class MailboxSync {
+
+	/**
+	 * A class that represents the state of a mailbox at a sync.
+	 * @author Janty Azmat
+	 */
+	public static class Checkpoint {
+		// Fields
+		private long meValidity;
+		private long meUidNext;
+		private long meModSeq;
+		private long meExists;
+
+		private Checkpoint(long uidValidity, long uidNext, long highestModSeq, long existsCount) {
+			this.meValidity = uidValidity;
+			this.meUidNext = uidNext;
+			this.meModSeq = highestModSeq;
+			this.meExists = existsCount;
+		}
+
+		/**
+		 * Used to get the UIDVALIDITY of the mailbox.
+		 * @return	the UIDVALIDITY.
+		 */
+		public long getUidValidity() {
+			return this.meValidity;
+		}
+
+		/**
+		 * Used to get the UIDNEXT of the mailbox (the UID the next new message will at least get).
+		 * @return	the UIDNEXT (or 0 if unknown).
+		 */
+		public long getUidNext() {
+			return this.meUidNext;
+		}
+
+		/**
+		 * Used to get the HIGHESTMODSEQ of the mailbox.
+		 * @return	the HIGHESTMODSEQ (or 0 if the server does not support CONDSTORE for the mailbox).
+		 */
+		public long getHighestModSeq() {
+			return this.meModSeq;
+		}
+
+		/**
+		 * Used to get the number of messages in the mailbox.
+		 * @return	the number of messages.
+		 */
+		public long getExists() {
+			return this.meExists;
+		}
+
+		@Override
+		public String toString() {
+			return this.meValidity + " " + this.meUidNext + " " + this.meModSeq + " " + this.meExists;
+		}
+	}
+
+	/**
+	 * A class that represents the outcome of a sync.
+	 * @author Janty Azmat
+	 */
+	public static class SyncResult {
+		// Fields
+		private boolean meIsFull;
+		private int meNewCount;
+		private int meChangedCount;
+		private long meExpunged;
+		private Checkpoint meCheckpoint;
+
+		private SyncResult(boolean isFull, int newCount, int changedCount, long expungedCount, Checkpoint newCheckpoint) {
+			this.meIsFull = isFull;
+			this.meNewCount = newCount;
+			this.meChangedCount = changedCount;
+			this.meExpunged = expungedCount;
+			this.meCheckpoint = newCheckpoint;
+		}
+
+		/**
+		 * Checks if the whole mailbox was fetched (no checkpoint, or a changed UIDVALIDITY).
+		 * @return	'true' if it was a full resync.
+		 */
+		public boolean isFull() {
+			return this.meIsFull;
+		}
+
+		/**
+		 * Used to get the number of messages fetched as new (all of them for a full resync).
+		 * @return	the number of new messages.
+		 */
+		public int getNewCount() {
+			return this.meNewCount;
+		}
+
+		/**
+		 * Used to get the number of known messages whose flags were fetched.
+		 * @return	the number of flag updates.
+		 */
+		public int getChangedCount() {
+			return this.meChangedCount;
+		}
+
+		/**
+		 * Used to get the number of messages expunged since the last sync.
+		 * @return	the number of expunged messages (0 for a full resync).
+		 */
+		public long getExpungedCount() {
+			return this.meExpunged;
+		}
+
+		/**
+		 * Used to get the checkpoint saved by the sync.
+		 * @return	the new checkpoint.
+		 */
+		public Checkpoint getCheckpoint() {
+			return this.meCheckpoint;
+		}
+
+		@Override
+		public String toString() {
+			return (this.meIsFull ? "full" : "incremental") + " {new: " + this.meNewCount + ", changed: " + this.meChangedCount + ", expunged: " + this.meExpunged + "}";
+		}
+	}
+
+	// Fields
+	private static final byte[] WORD_EXISTS = "EXISTS".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] WORD_UIDVALIDITY = "UIDVALIDITY".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] WORD_UIDNEXT = "UIDNEXT".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] WORD_HIGHESTMODSEQ = "HIGHESTMODSEQ".getBytes(StandardCharsets.US_ASCII);
+	private Path meFile;
+	private Map<String, Checkpoint> meCheckpoints;
+
+	/**
+	 * A constructor that takes the file of the checkpoints as a parameter (loading it if it exists).
+	 * @param checkpointFile	the file of the checkpoints.
+	 * @throws IOException		when the existing file cannot be read.
+	 */
+	public MailboxSync(Path checkpointFile) throws IOException {
+		this.meFile = Objects.requireNonNull(checkpointFile, "The 'checkpointFile' argument cannot be 'null'.");
+		this.meCheckpoints = new HashMap<>();
+		var tmpProps = new Properties();
+		try (var tmpIn = Files.newBufferedReader(checkpointFile, StandardCharsets.UTF_8)) {
+			tmpProps.load(tmpIn);
+		} catch (NoSuchFileException e) {
+			return;
+		}
+		for (var tmpName : tmpProps.stringPropertyNames()) {
+			var tmpVals = tmpProps.getProperty(tmpName).split(" ");
+			if (tmpVals.length == 4) {
+				try {
+					this.meCheckpoints.put(tmpName, new Checkpoint(Long.parseLong(tmpVals[0]), Long.parseLong(tmpVals[1]), Long.parseLong(tmpVals[2]), Long.parseLong(tmpVals[3])));
+				} catch (NumberFormatException e) {
+					// A damaged entry only costs a full resync of its mailbox
+				}
+			}
+		}
+	}
+
+	/**
+	 * Used to get the checkpoint of the specified mailbox.
+	 * @param mailboxName	the name of the mailbox.
+	 * @return				the checkpoint of the last sync (or 'null' if the mailbox was never synchronized).
+	 */
+	public synchronized Checkpoint getCheckpoint(String mailboxName) {
+		return this.meCheckpoints.get(mailboxName);
+	}
+
+	/**
+	 * Removes the checkpoint of the specified mailbox (its next sync will be a full resync).
+	 * @param mailboxName	the name of the mailbox.
+	 * @throws IOException	when the file of the checkpoints cannot be written.
+	 */
+	public synchronized void forget(String mailboxName) throws IOException {
+		if (this.meCheckpoints.remove(mailboxName) != null) {
+			this.save();
+		}
+	}
+
+	/**
+	 * Selects the specified mailbox and saves its current state as its checkpoint without fetching anything, for a
+	 * caller that lists the whole mailbox in its own way (so that its next sync is incremental). Like for 'sync', nothing
+	 * else should be submitted to the pipeline until the returned future completes.
+	 * @param imapPipeline	the pipeline of a logged in connection.
+	 * @param mailboxName	the name of the mailbox.
+	 * @return				a future that completes with the saved checkpoint (or exceptionally when 'SELECT' fails, in
+	 * 						which case the checkpoint is not changed).
+	 */
+	public CompletableFuture<Checkpoint> mark(ImapPipeline imapPipeline, String mailboxName) {
+		return this.select(imapPipeline, mailboxName).thenApply(check -> {
+			this.complete(null, mailboxName, check, 0L); // Without UIDNEXT from the server, the next sync fetches all as new
+			return check;
+		});
+	}
+
+	/**
+	 * Selects the specified mailbox and fetches what changed since its last sync (or all of it, for a full resync), then
+	 * saves its new checkpoint. Nothing else should be submitted to the pipeline until the returned future completes.
+	 * @param imapPipeline		the pipeline of a logged in connection.
+	 * @param mailboxName		the name of the mailbox.
+	 * @param fetchItems		the items to fetch for new messages (should include 'UID', like 'HeaderFetcher.DEFAULT_ITEMS').
+	 * @param messageListener	gets the 'FETCH' response lines of the new messages, including the lines that follow a
+	 * 							literal (runs on the connection's read-thread).
+	 * @param flagListener		gets the 'FETCH' response lines with the flags of the known messages that changed and of
+	 * 							the new messages (runs on the connection's read-thread).
+	 * @return					a future that completes with the outcome of the sync (or exceptionally when a command
+	 * 							fails, in which case the checkpoint is not changed).
+	 */
+	public CompletableFuture<SyncResult> sync(ImapPipeline imapPipeline, String mailboxName, String fetchItems, Consumer<byte[][]> messageListener, Consumer<byte[][]> flagListener) {
+		return this.select(imapPipeline, mailboxName).thenCompose(check -> {
+			var tmpOld = this.getCheckpoint(mailboxName);
+			if (tmpOld == null || tmpOld.meValidity != check.meValidity) {
+				return this.fullSync(imapPipeline, mailboxName, fetchItems, messageListener, check);
+			}
+			return this.incrementalSync(imapPipeline, mailboxName, fetchItems, messageListener, flagListener, tmpOld, check);
+		});
+	}
+
+	private CompletableFuture<Checkpoint> select(ImapPipeline thePipe, String mailboxName) {
+		var tmpQuoted = MailboxSync.quote(mailboxName);
+		return thePipe.submit("SELECT " + tmpQuoted + " (CONDSTORE)").thenCompose(resp -> {
+			if (resp.getStatus().equals("BAD")) { // No CONDSTORE support
+				return thePipe.submit("SELECT " + tmpQuoted);
+			}
+			return CompletableFuture.completedFuture(resp);
+		}).thenCompose(resp -> {
+			if (!resp.isOk()) {
+				return CompletableFuture.failedFuture(new IOException("The server refused 'SELECT': " + resp));
+			}
+			return CompletableFuture.completedFuture(MailboxSync.parseSelect(resp));
+		});
+	}
+
+	private CompletableFuture<SyncResult> fullSync(ImapPipeline thePipe, String mailboxName, String fetchItems, Consumer<byte[][]> messageListener, Checkpoint newCheckpoint) {
+		var tmpCount = new int[1];
+		var tmpMaxUid = new long[1];
+		if (newCheckpoint.meExists == 0L) { // Some servers refuse '1:*' for an empty mailbox
+			return CompletableFuture.supplyAsync(() -> {
+				this.complete(null, mailboxName, newCheckpoint, 0L);
+				return new SyncResult(true, 0, 0, 0L, newCheckpoint);
+			}, Runnable::run);
+		}
+		return thePipe.submit("UID FETCH 1:* " + fetchItems, MailboxSync.messageLines(uid -> {
+			if (uid > 0L && (newCheckpoint.meUidNext == 0L || uid < newCheckpoint.meUidNext)) {
+				tmpCount[0]++;
+				tmpMaxUid[0] = Math.max(tmpMaxUid[0], uid);
+				return true;
+			}
+			return false;
+		}, messageListener)).thenApply(resp -> {
+			this.complete(resp, mailboxName, newCheckpoint, tmpMaxUid[0]);
+			return new SyncResult(true, tmpCount[0], 0, 0L, newCheckpoint);
+		});
+	}
+
+	private CompletableFuture<SyncResult> incrementalSync(ImapPipeline thePipe, String mailboxName, String fetchItems, Consumer<byte[][]> messageListener,
+			Consumer<byte[][]> flagListener, Checkpoint oldCheckpoint, Checkpoint newCheckpoint) {
+		var tmpCounts = new int[2];
+		var tmpMaxUid = new long[1];
+		CompletableFuture<ImapPipeline.Response> tmpNewFuture = null;
+		CompletableFuture<ImapPipeline.Response> tmpFlagFuture = null;
+		if (newCheckpoint.meUidNext == 0L || newCheckpoint.meUidNext > oldCheckpoint.meUidNext) {
+			tmpNewFuture = thePipe.submit("UID FETCH " + Math.max(1L, oldCheckpoint.meUidNext) + ":* " + fetchItems, MailboxSync.messageLines(uid -> {
+				if (uid >= oldCheckpoint.meUidNext && (newCheckpoint.meUidNext == 0L || uid < newCheckpoint.meUidNext)) { // 'n:*' also matches the last message when all UIDs are below 'n'
+					tmpCounts[0]++;
+					tmpMaxUid[0] = Math.max(tmpMaxUid[0], uid);
+					return true;
+				}
+				return false;
+			}, messageListener));
+		}
+		if (newCheckpoint.meExists > 0L) { // Some servers refuse '1:*' for an empty mailbox
+			Consumer<byte[][]> tmpListener = MailboxSync.messageLines(uid -> {
+				if (uid > 0L && uid < oldCheckpoint.meUidNext) {
+					tmpCounts[1]++;
+				}
+				return uid > 0L && (newCheckpoint.meUidNext == 0L || uid < newCheckpoint.meUidNext);
+			}, flagListener);
+			if (oldCheckpoint.meModSeq > 0L && newCheckpoint.meModSeq > 0L) {
+				if (newCheckpoint.meModSeq != oldCheckpoint.meModSeq) {
+					tmpFlagFuture = thePipe.submit("UID FETCH 1:* (UID FLAGS) (CHANGEDSINCE " + oldCheckpoint.meModSeq + ")", tmpListener);
+				}
+			} else {
+				tmpFlagFuture = thePipe.submit("UID FETCH 1:* (UID FLAGS)", tmpListener); // Without MODSEQs, every known message may have changed
+			}
+		}
+		var tmpBoth = CompletableFuture.allOf(
+				tmpNewFuture == null ? CompletableFuture.completedFuture(null) : tmpNewFuture.thenAccept(resp -> MailboxSync.requireOk(resp)),
+				tmpFlagFuture == null ? CompletableFuture.completedFuture(null) : tmpFlagFuture.thenAccept(resp -> MailboxSync.requireOk(resp)));
+		return tmpBoth.thenApply(none -> {
+			this.complete(null, mailboxName, newCheckpoint, tmpMaxUid[0]);
+			var tmpExpunged = Math.max(0L, oldCheckpoint.meExists + tmpCounts[0] - newCheckpoint.meExists);
+			return new SyncResult(false, tmpCounts[0], tmpCounts[1], tmpExpunged, newCheckpoint);
+		});
+	}
+
+	/**
+	 * Wraps the specified listener so that it gets the lines of the 'FETCH' responses whose UID the specified filter
+	 * accepts, and the lines that follow a literal in them (which do not start with '*').
+	 */
+	private static Consumer<byte[][]> messageLines(LongPredicate uidFilter, Consumer<byte[][]> lineListener) {
+		var tmpIsAccepted = new boolean[1];
+		return line -> {
+			if (line.length > 0 && line[0].length == 1 && line[0][0] == '*') {
+				tmpIsAccepted[0] = uidFilter.test(ResponseWords.fetchUid(line));
+			}
+			if (tmpIsAccepted[0]) {
+				lineListener.accept(line);
+			}
+		};
+	}
+
+	/**
+	 * Saves the specified checkpoint after its fetch succeeded (filling in UIDNEXT from the fetched UIDs if the server
+	 * did not report it).
+	 */
+	private void complete(ImapPipeline.Response fetchResponse, String mailboxName, Checkpoint newCheckpoint, long maxUid) {
+		if (fetchResponse != null) {
+			MailboxSync.requireOk(fetchResponse);
+		}
+		if (newCheckpoint.meUidNext == 0L) {
+			var tmpOld = this.getCheckpoint(mailboxName);
+			newCheckpoint.meUidNext = Math.max(maxUid + 1L, tmpOld == null || tmpOld.meValidity != newCheckpoint.meValidity ? 1L : tmpOld.meUidNext);
+		}
+		synchronized (this) {
+			this.meCheckpoints.put(mailboxName, newCheckpoint);
+			try {
+				this.save();
+			} catch (IOException e) {
+				throw new IllegalStateException("Saving the checkpoints failed.", e);
+			}
+		}
+	}
+
+	/**
+	 * Writes all the checkpoints to a temporary file and moves it over the checkpoints' file (so a crash never leaves a
+	 * half-written file).
+	 */
+	private void save() throws IOException {
+		var tmpProps = new Properties();
+		this.meCheckpoints.forEach((name, check) -> tmpProps.setProperty(name, check.toString()));
+		var tmpFile = this.meFile.resolveSibling(this.meFile.getFileName() + ".tmp");
+		try (var tmpOut = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+			tmpProps.store(tmpOut, "Mailbox checkpoints: UIDVALIDITY UIDNEXT HIGHESTMODSEQ EXISTS");
+		}
+		Files.move(tmpFile, this.meFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void requireOk(ImapPipeline.Response theResponse) {
+		if (!theResponse.isOk()) {
+			throw new IllegalStateException("The server refused 'UID FETCH': " + theResponse);
+		}
+	}
+
+	private static Checkpoint parseSelect(ImapPipeline.Response selectResponse) {
+		var outCheck = new Checkpoint(0L, 0L, 0L, 0L);
+		for (var tmpLine : selectResponse.getUntagged()) {
+			if (tmpLine.length > 2 && ResponseWords.equalsIgnoreCase(tmpLine[2], MailboxSync.WORD_EXISTS)) {
+				outCheck.meExists = Math.max(0L, ResponseWords.parseNumber(tmpLine[1]));
+			} else {
+				var tmpNum = ResponseWords.findNumber(tmpLine, MailboxSync.WORD_UIDVALIDITY);
+				if (tmpNum >= 0L) {
+					outCheck.meValidity = tmpNum;
+				} else if ((tmpNum = ResponseWords.findNumber(tmpLine, MailboxSync.WORD_UIDNEXT)) >= 0L) {
+					outCheck.meUidNext = tmpNum;
+				} else if ((tmpNum = ResponseWords.findNumber(tmpLine, MailboxSync.WORD_HIGHESTMODSEQ)) >= 0L) {
+					outCheck.meModSeq = tmpNum;
+				}
+			}
+		}
+		return outCheck;
+	}
+
+	private static String quote(String mailboxName) {
+		return '"' + mailboxName.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+	}
+}
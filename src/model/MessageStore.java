@@ -0,0 +1,637 @@
+package model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * A class that keeps the raw messages of one mailbox on disk, so a message fetched once is read from the page cache
+ * afterwards instead of the network. The messages are appended to a segment file (a record is a small header with the
+ * UID, the length and a CRC-32, then the message), and are read through memory mappings of it. A compact index (sorted
+ * arrays of UIDs and offsets) is kept in memory, and saved to an index file on 'sync' and 'close'.
+ * Reopening is crash-safe: the index file is only saved after the segment is forced to disk, and the records appended
+ * after it are replayed from the segment (checking their CRC-32s; a torn record at the end is cut off). Removing a
+ * message appends a removal record, and once the removed bytes outweigh the live ones the live records are copied to a
+ * new segment file (whose generation number is one higher) that replaces the old one.
+ * A message can also be streamed into the store through an 'Appender' (like straight from the network), so it is never
+ * held in memory whole.
+ * UIDs are only meaningful for one UIDVALIDITY, so opening the store with another one empties it.
+ * @author Janty Azmat
+ */
+public class MessageStore implements AutoCloseable {
+
+	/**
+	 * A channel that streams a message into the store: the written bytes go to a spool file in the store's directory,
+	 * and 'commit' appends them to the segment (replacing the message the store has with the same UID). Closing it
+	 * without committing drops them, and a crash leaves only a temporary file that the next opening deletes.
+	 */
+	public class Appender implements WritableByteChannel {
+		// Fields
+		private long meUid;
+		private Path meFile;
+		private FileChannel meSpool;
+		private CRC32 meCrc;
+		private long meLength;
+
+		private Appender(long messageUid, Path spoolFile) throws IOException {
+			this.meUid = messageUid;
+			this.meFile = spoolFile;
+			this.meSpool = FileChannel.open(spoolFile, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			this.meCrc = new CRC32();
+		}
+
+		@Override
+		public int write(ByteBuffer srcBuffer) throws IOException {
+			if (this.meSpool == null) {
+				throw new ClosedChannelException();
+			}
+			var tmpWritten = srcBuffer.duplicate();
+			var outCount = this.meSpool.write(srcBuffer);
+			this.meCrc.update(tmpWritten.limit(tmpWritten.position() + outCount));
+			this.meLength += outCount;
+			return outCount;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return this.meSpool != null;
+		}
+
+		/**
+		 * Used to get the number of bytes written so far.
+		 * @return	the number of bytes.
+		 */
+		public long getLength() {
+			return this.meLength;
+		}
+
+		/**
+		 * Appends the written message to the store, and closes this appender.
+		 * @throws IOException				when the message cannot be written to the segment (or is too large for it).
+		 * @throws IllegalStateException	when the store is closed.
+		 */
+		public void commit() throws IOException, IllegalStateException {
+			if (this.meSpool == null) {
+				throw new ClosedChannelException();
+			}
+			try {
+				if (this.meLength > Integer.MAX_VALUE) {
+					throw new IOException("The message is too large to store (" + this.meLength + " bytes).");
+				}
+				synchronized (MessageStore.this) {
+					MessageStore.this.requireOpen();
+					var tmpHeader = ByteBuffer.allocate(MessageStore.RECORD_HEADER).putInt(MessageStore.RECORD_MAGIC).putInt((int)this.meLength).putLong(this.meUid)
+							.putInt((int)this.meCrc.getValue()).flip();
+					MessageStore.this.writeRecord(tmpHeader); // Leaves the segment's position right after the header
+					for (var tmpDone = 0L; tmpDone < this.meLength;) {
+						var tmpCount = this.meSpool.transferTo(tmpDone, this.meLength - tmpDone, MessageStore.this.meChannel);
+						if (tmpCount <= 0L) {
+							throw new IOException("The spooled message was cut short.");
+						}
+						tmpDone += tmpCount;
+					}
+					MessageStore.this.delete(this.meUid);
+					MessageStore.this.put(this.meUid, MessageStore.this.meEnd + MessageStore.RECORD_HEADER, (int)this.meLength);
+					MessageStore.this.meEnd += MessageStore.RECORD_HEADER + this.meLength;
+				}
+			} finally {
+				this.close();
+			}
+		}
+
+		/**
+		 * Closes this appender, dropping the written message if it was not committed.
+		 */
+		@Override
+		public void close() {
+			if (this.meSpool != null) {
+				try {
+					this.meSpool.close();
+				} catch (IOException e) {
+					// Deleted anyway
+				}
+				this.meSpool = null;
+				MessageStore.deleteQuietly(this.meFile);
+			}
+		}
+	}
+
+	// Fields
+	private static final int SEGMENT_MAGIC = 0x45455347;		// 'EESG'
+	private static final int INDEX_MAGIC = 0x45454958;			// 'EEIX'
+	private static final int RECORD_MAGIC = 0x4545524D;			// 'EERM'
+	private static final int SEGMENT_HEADER = 24;				// Magic, version, generation, UIDVALIDITY
+	private static final int RECORD_HEADER = 20;				// Magic, length (-1 for a removal), UID, CRC-32
+	private static final int INDEX_HEADER = 32;					// Magic, count, generation, UIDVALIDITY, covered length
+	private static final int INDEX_ENTRY = 20;					// UID, offset, length
+	private static final int VERSION = 1;
+	private static final long WINDOW_SIZE = 64L << 20;			// The size of a mapping
+	private static final long COMPACT_MIN_DEAD = 4L << 20;		// Less removed bytes than this are not worth compacting
+	private static final String INDEX_FILE = "index.dat";
+	private Path meDirectory;
+	private long meUidValidity;
+	private long meGeneration;
+	private FileChannel meChannel;
+	private long meEnd;							// The end of the last whole record
+	private long[] meUids;						// Sorted
+	private long[] meOffsets;					// The offsets of the messages (after their record headers)
+	private int[] meLengths;
+	private int meCount;
+	private long meLiveBytes;					// The bytes of the live records (with their headers)
+	private ArrayList<MappedByteBuffer> meWindows;
+	private boolean meIsIndexSaved;
+
+	/**
+	 * A constructor that takes the store's directory and the mailbox's UIDVALIDITY as parameters (opening the store in
+	 * the directory, or creating it).
+	 * @param storeDirectory	the store's directory (one per mailbox).
+	 * @param uidValidity		the mailbox's UIDVALIDITY (the store is emptied if it was kept for another one).
+	 * @throws IOException		when the store cannot be opened or created.
+	 */
+	public MessageStore(Path storeDirectory, long uidValidity) throws IOException {
+		this.meDirectory = Objects.requireNonNull(storeDirectory, "The 'storeDirectory' argument cannot be 'null'.");
+		this.meUidValidity = uidValidity;
+		this.meUids = new long[64];
+		this.meOffsets = new long[64];
+		this.meLengths = new int[64];
+		this.meWindows = new ArrayList<>();
+		Files.createDirectories(storeDirectory);
+		Path tmpSegment = null;
+		try (var tmpFiles = Files.newDirectoryStream(storeDirectory)) {
+			for (var tmpFile : tmpFiles) {
+				var tmpName = tmpFile.getFileName().toString();
+				if (tmpName.endsWith(".tmp")) { // Left by a crash while compacting or saving the index
+					Files.deleteIfExists(tmpFile);
+				} else if (MessageStore.generationOf(tmpName) > 0L) {
+					if (tmpSegment != null && MessageStore.generationOf(tmpName) < MessageStore.generationOf(tmpSegment.getFileName().toString())) {
+						MessageStore.deleteQuietly(tmpFile); // Replaced by a compacted one
+					} else {
+						if (tmpSegment != null) {
+							MessageStore.deleteQuietly(tmpSegment);
+						}
+						tmpSegment = tmpFile;
+					}
+				}
+			}
+		}
+		if (tmpSegment == null || !this.openSegment(tmpSegment)) {
+			this.meGeneration = tmpSegment == null ? 0L : MessageStore.generationOf(tmpSegment.getFileName().toString());
+			this.rewrite(); // A new store, or another UIDVALIDITY: starts empty
+			if (tmpSegment != null) {
+				MessageStore.deleteQuietly(tmpSegment);
+			}
+		} else if (!this.loadIndex()) {
+			this.replay(MessageStore.SEGMENT_HEADER);
+		}
+	}
+
+	/**
+	 * Opens the specified segment file if it holds a valid header with the store's UIDVALIDITY.
+	 * @return	'true' if the segment was opened.
+	 */
+	private boolean openSegment(Path segmentFile) throws IOException {
+		var tmpChannel = FileChannel.open(segmentFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		var tmpHeader = ByteBuffer.allocate(MessageStore.SEGMENT_HEADER);
+		while (tmpHeader.hasRemaining() && tmpChannel.read(tmpHeader, tmpHeader.position()) > 0) {
+		}
+		tmpHeader.flip();
+		if (tmpHeader.remaining() < MessageStore.SEGMENT_HEADER || tmpHeader.getInt() != MessageStore.SEGMENT_MAGIC
+				|| tmpHeader.getInt() != MessageStore.VERSION || (this.meGeneration = tmpHeader.getLong()) <= 0L || tmpHeader.getLong() != this.meUidValidity) {
+			tmpChannel.close();
+			return false;
+		}
+		this.meChannel = tmpChannel;
+		this.meEnd = tmpChannel.size();
+		return true;
+	}
+
+	/**
+	 * Loads the index file if it belongs to the open segment, and replays the records appended after it was saved.
+	 * @return	'true' if the index was loaded.
+	 */
+	private boolean loadIndex() throws IOException {
+		byte[] tmpBytes;
+		try {
+			tmpBytes = Files.readAllBytes(this.meDirectory.resolve(MessageStore.INDEX_FILE));
+		} catch (IOException e) {
+			return false;
+		}
+		if (tmpBytes.length < MessageStore.INDEX_HEADER + 4) {
+			return false;
+		}
+		var tmpCrc = new CRC32();
+		tmpCrc.update(tmpBytes, 0, tmpBytes.length - 4);
+		var tmpBuf = ByteBuffer.wrap(tmpBytes);
+		if (tmpBuf.getInt(tmpBytes.length - 4) != (int)tmpCrc.getValue() || tmpBuf.getInt() != MessageStore.INDEX_MAGIC) {
+			return false;
+		}
+		var tmpCount = tmpBuf.getInt();
+		var tmpCovered = 0L;
+		if (tmpCount < 0 || tmpBytes.length != MessageStore.INDEX_HEADER + tmpCount * MessageStore.INDEX_ENTRY + 4 || tmpBuf.getLong() != this.meGeneration
+				|| tmpBuf.getLong() != this.meUidValidity || (tmpCovered = tmpBuf.getLong()) > this.meEnd || tmpCovered < MessageStore.SEGMENT_HEADER) {
+			return false; // Not this segment's index (a crash came between a compaction and saving its index)
+		}
+		this.ensureCapacity(tmpCount);
+		for (var i = 0; i < tmpCount; i++) {
+			this.meUids[i] = tmpBuf.getLong();
+			this.meOffsets[i] = tmpBuf.getLong();
+			this.meLengths[i] = tmpBuf.getInt();
+			this.meLiveBytes += MessageStore.RECORD_HEADER + this.meLengths[i];
+		}
+		this.meCount = tmpCount;
+		this.replay(tmpCovered);
+		return true;
+	}
+
+	/**
+	 * Applies the records of the segment from the specified offset on, and cuts the segment off at the first record that
+	 * is not whole (or whose CRC-32 does not match).
+	 */
+	private void replay(long fromOffset) throws IOException {
+		var tmpSize = this.meChannel.size();
+		var tmpHeader = ByteBuffer.allocate(MessageStore.RECORD_HEADER);
+		var tmpChunk = ByteBuffer.allocate(64 << 10);
+		var tmpCrc = new CRC32();
+		var tmpPos = fromOffset;
+		while (tmpPos + MessageStore.RECORD_HEADER <= tmpSize) {
+			tmpHeader.clear();
+			while (tmpHeader.hasRemaining() && this.meChannel.read(tmpHeader, tmpPos + tmpHeader.position()) > 0) {
+			}
+			tmpHeader.flip();
+			if (tmpHeader.remaining() < MessageStore.RECORD_HEADER || tmpHeader.getInt() != MessageStore.RECORD_MAGIC) {
+				break;
+			}
+			var tmpLength = tmpHeader.getInt();
+			var tmpUid = tmpHeader.getLong();
+			var tmpSum = tmpHeader.getInt();
+			if (tmpLength < -1 || tmpPos + MessageStore.RECORD_HEADER + Math.max(tmpLength, 0) > tmpSize) {
+				break;
+			}
+			var tmpData = tmpPos + MessageStore.RECORD_HEADER;
+			if (tmpLength >= 0) {
+				tmpCrc.reset();
+				for (var tmpDone = 0L; tmpDone < tmpLength;) {
+					tmpChunk.clear().limit((int)Math.min(tmpChunk.capacity(), tmpLength - tmpDone));
+					var tmpRead = this.meChannel.read(tmpChunk, tmpData + tmpDone);
+					if (tmpRead <= 0) {
+						break;
+					}
+					tmpCrc.update(tmpChunk.flip());
+					tmpDone += tmpRead;
+				}
+				if ((int)tmpCrc.getValue() != tmpSum) {
+					break;
+				}
+				this.put(tmpUid, tmpData, tmpLength);
+			} else {
+				this.delete(tmpUid);
+			}
+			tmpPos = tmpData + Math.max(tmpLength, 0);
+		}
+		if (tmpPos < tmpSize) {
+			this.meChannel.truncate(tmpPos); // A torn write at the end
+		}
+		this.meEnd = tmpPos;
+		this.meIsIndexSaved = tmpPos == fromOffset;
+	}
+
+	/**
+	 * Used to get the UIDVALIDITY that the store's UIDs belong to.
+	 * @return	the UIDVALIDITY.
+	 */
+	public long getUidValidity() {
+		return this.meUidValidity;
+	}
+
+	/**
+	 * Used to get the number of messages in the store.
+	 * @return	the number of messages.
+	 */
+	public synchronized int getCount() {
+		return this.meCount;
+	}
+
+	/**
+	 * Used to get the number of bytes the store's messages take in the segment (with their record headers).
+	 * @return	the number of live bytes.
+	 */
+	public synchronized long getLiveBytes() {
+		return this.meLiveBytes;
+	}
+
+	/**
+	 * Used to get the number of bytes in the segment that compacting would free (removed or replaced messages).
+	 * @return	the number of dead bytes.
+	 */
+	public synchronized long getDeadBytes() {
+		return this.meEnd - MessageStore.SEGMENT_HEADER - this.meLiveBytes;
+	}
+
+	/**
+	 * Used to get the UIDs of the store's messages.
+	 * @return	the UIDs, in ascending order.
+	 */
+	public synchronized long[] getUids() {
+		return Arrays.copyOf(this.meUids, this.meCount);
+	}
+
+	/**
+	 * Checks if the store has the specified message.
+	 * @param messageUid	the message's UID.
+	 * @return				'true' if the store has the message.
+	 */
+	public synchronized boolean contains(long messageUid) {
+		return Arrays.binarySearch(this.meUids, 0, this.meCount, messageUid) >= 0;
+	}
+
+	/**
+	 * Reads the specified message: the returned buffer is a read-only view of a mapping of the segment (so reading it
+	 * touches the page cache only), and stays valid even after the message is removed or the store is closed.
+	 * @param messageUid	the message's UID.
+	 * @return				the raw message, or 'null' if the store does not have it.
+	 * @throws IOException	when the segment cannot be mapped.
+	 */
+	public synchronized ByteBuffer read(long messageUid) throws IOException {
+		var tmpIndex = Arrays.binarySearch(this.meUids, 0, this.meCount, messageUid);
+		if (tmpIndex < 0) {
+			return null;
+		}
+		this.requireOpen();
+		var tmpOffset = this.meOffsets[tmpIndex];
+		var tmpLength = this.meLengths[tmpIndex];
+		var tmpWindow = (int)(tmpOffset / MessageStore.WINDOW_SIZE);
+		var tmpWindowStart = tmpWindow * MessageStore.WINDOW_SIZE;
+		if (tmpOffset + tmpLength > tmpWindowStart + MessageStore.WINDOW_SIZE) { // Spans two windows: mapped on its own
+			return this.meChannel.map(FileChannel.MapMode.READ_ONLY, tmpOffset, tmpLength).asReadOnlyBuffer();
+		}
+		while (this.meWindows.size() <= tmpWindow) {
+			this.meWindows.add(null);
+		}
+		var tmpMap = this.meWindows.get(tmpWindow);
+		if (tmpMap == null || tmpMap.capacity() < tmpOffset + tmpLength - tmpWindowStart) { // The last window grows with the segment
+			tmpMap = this.meChannel.map(FileChannel.MapMode.READ_ONLY, tmpWindowStart, Math.min(MessageStore.WINDOW_SIZE, this.meEnd - tmpWindowStart));
+			this.meWindows.set(tmpWindow, tmpMap);
+		}
+		return tmpMap.slice((int)(tmpOffset - tmpWindowStart), tmpLength).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Appends the specified message to the store (replacing the one it has with the same UID).
+	 * @param messageUid	the message's UID.
+	 * @param msgBuffer		the buffer that holds the raw message.
+	 * @param msgOffset		the offset of the message in the buffer.
+	 * @param msgLength		the length of the message.
+	 * @throws IOException	when the message cannot be written.
+	 */
+	public synchronized void append(long messageUid, byte[] msgBuffer, int msgOffset, int msgLength) throws IOException {
+		Objects.checkFromIndexSize(msgOffset, msgLength, msgBuffer.length);
+		this.requireOpen();
+		var tmpCrc = new CRC32();
+		tmpCrc.update(msgBuffer, msgOffset, msgLength);
+		var tmpHeader = ByteBuffer.allocate(MessageStore.RECORD_HEADER).putInt(MessageStore.RECORD_MAGIC).putInt(msgLength).putLong(messageUid).putInt((int)tmpCrc.getValue()).flip();
+		this.writeRecord(tmpHeader, ByteBuffer.wrap(msgBuffer, msgOffset, msgLength));
+		this.delete(messageUid);
+		this.put(messageUid, this.meEnd + MessageStore.RECORD_HEADER, msgLength);
+		this.meEnd += MessageStore.RECORD_HEADER + msgLength;
+	}
+
+	/**
+	 * Opens an appender that streams a message into the store (see 'Appender').
+	 * @param messageUid				the message's UID.
+	 * @return							the appender (to be committed, or closed).
+	 * @throws IOException				when the spool file cannot be created.
+	 * @throws IllegalStateException	when the store is closed.
+	 */
+	public synchronized Appender openAppend(long messageUid) throws IOException, IllegalStateException {
+		this.requireOpen();
+		var tmpFile = Files.createTempFile(this.meDirectory, "append-", ".tmp");
+		try {
+			return new Appender(messageUid, tmpFile);
+		} catch (IOException e) {
+			MessageStore.deleteQuietly(tmpFile);
+			throw e;
+		}
+	}
+
+	/**
+	 * Removes the specified message from the store (its bytes are freed by a later compaction, which starts on its own
+	 * once the removed bytes outweigh the live ones).
+	 * @param messageUid	the message's UID.
+	 * @return				'true' if the store had the message.
+	 * @throws IOException	when the removal cannot be written.
+	 */
+	public synchronized boolean remove(long messageUid) throws IOException {
+		if (!this.contains(messageUid)) {
+			return false;
+		}
+		this.requireOpen();
+		this.writeRecord(ByteBuffer.allocate(MessageStore.RECORD_HEADER).putInt(MessageStore.RECORD_MAGIC).putInt(-1).putLong(messageUid).putInt(0).flip());
+		this.delete(messageUid);
+		this.meEnd += MessageStore.RECORD_HEADER;
+		var tmpDead = this.getDeadBytes();
+		if (tmpDead > this.meLiveBytes && tmpDead >= MessageStore.COMPACT_MIN_DEAD) {
+			this.compact();
+		}
+		return true;
+	}
+
+	private void writeRecord(ByteBuffer... recordParts) throws IOException {
+		this.meChannel.position(this.meEnd);
+		while (recordParts[0].hasRemaining() || recordParts[recordParts.length - 1].hasRemaining()) {
+			this.meChannel.write(recordParts);
+		}
+		this.meIsIndexSaved = false;
+	}
+
+	/**
+	 * Copies the live messages to a new segment file that replaces the current one (freeing the removed bytes).
+	 * @throws IOException	when the new segment cannot be written (the current one is kept then).
+	 */
+	public synchronized void compact() throws IOException {
+		this.requireOpen();
+		this.rewrite();
+	}
+
+	/**
+	 * Forces the segment to disk, then saves the index (so reopening does not need to replay the segment).
+	 * @throws IOException	when the segment or the index cannot be written.
+	 */
+	public synchronized void sync() throws IOException {
+		this.requireOpen();
+		if (this.meIsIndexSaved) {
+			return;
+		}
+		this.meChannel.force(true);
+		var tmpBuf = ByteBuffer.allocate(MessageStore.INDEX_HEADER + this.meCount * MessageStore.INDEX_ENTRY + 4);
+		tmpBuf.putInt(MessageStore.INDEX_MAGIC).putInt(this.meCount).putLong(this.meGeneration).putLong(this.meUidValidity).putLong(this.meEnd);
+		for (var i = 0; i < this.meCount; i++) {
+			tmpBuf.putLong(this.meUids[i]).putLong(this.meOffsets[i]).putInt(this.meLengths[i]);
+		}
+		var tmpCrc = new CRC32();
+		tmpCrc.update(tmpBuf.array(), 0, tmpBuf.position());
+		tmpBuf.putInt((int)tmpCrc.getValue()).flip();
+		var tmpFile = this.meDirectory.resolve(MessageStore.INDEX_FILE);
+		var tmpTemp = this.meDirectory.resolve(MessageStore.INDEX_FILE + ".tmp");
+		try (var tmpOut = FileChannel.open(tmpTemp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			while (tmpBuf.hasRemaining()) {
+				tmpOut.write(tmpBuf);
+			}
+			tmpOut.force(true);
+		}
+		Files.move(tmpTemp, tmpFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.meIsIndexSaved = true;
+	}
+
+	/**
+	 * Syncs and closes the store (the buffers returned by 'read' stay valid).
+	 * @throws IOException	when the store cannot be synced.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (this.meChannel != null) {
+			try {
+				this.sync();
+			} finally {
+				this.meChannel.close();
+				this.meChannel = null;
+				this.meWindows.clear();
+			}
+		}
+	}
+
+	/**
+	 * Writes the live messages to a new segment file (a temporary one, forced to disk and then renamed), switches to it,
+	 * and saves its index. A crash before the rename leaves the old segment as it was, and one after it leaves the new
+	 * segment to be replayed (the old index does not match its generation).
+	 */
+	private void rewrite() throws IOException {
+		var tmpGeneration = this.meGeneration + 1L;
+		var tmpName = "segment-" + tmpGeneration + ".dat";
+		var tmpTemp = this.meDirectory.resolve(tmpName + ".tmp");
+		var tmpOffsets = new long[this.meCount];
+		var tmpEnd = (long)MessageStore.SEGMENT_HEADER;
+		try (var tmpOut = FileChannel.open(tmpTemp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			var tmpHeader = ByteBuffer.allocate(MessageStore.SEGMENT_HEADER);
+			tmpHeader.putInt(MessageStore.SEGMENT_MAGIC).putInt(MessageStore.VERSION).putLong(tmpGeneration).putLong(this.meUidValidity).flip();
+			while (tmpHeader.hasRemaining()) {
+				tmpOut.write(tmpHeader);
+			}
+			var tmpRecord = ByteBuffer.allocate(MessageStore.RECORD_HEADER);
+			var tmpCrc = new CRC32();
+			for (var i = 0; i < this.meCount; i++) {
+				var tmpMessage = this.read(this.meUids[i]);
+				tmpCrc.reset();
+				tmpCrc.update(tmpMessage.duplicate());
+				tmpRecord.clear().putInt(MessageStore.RECORD_MAGIC).putInt(this.meLengths[i]).putLong(this.meUids[i]).putInt((int)tmpCrc.getValue()).flip();
+				while (tmpRecord.hasRemaining() || tmpMessage.hasRemaining()) {
+					tmpOut.write(new ByteBuffer[] {tmpRecord, tmpMessage});
+				}
+				tmpOffsets[i] = tmpEnd + MessageStore.RECORD_HEADER;
+				tmpEnd = tmpOffsets[i] + this.meLengths[i];
+			}
+			tmpOut.force(true);
+		} catch (IOException e) {
+			MessageStore.deleteQuietly(tmpTemp);
+			throw e;
+		}
+		var tmpFile = Files.move(tmpTemp, this.meDirectory.resolve(tmpName), StandardCopyOption.ATOMIC_MOVE);
+		var tmpOld = this.meGeneration > 0L ? this.meDirectory.resolve("segment-" + this.meGeneration + ".dat") : null;
+		if (this.meChannel != null) {
+			this.meChannel.close(); // The mappings handed out stay valid
+		}
+		this.meChannel = FileChannel.open(tmpFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.meWindows.clear();
+		this.meGeneration = tmpGeneration;
+		this.meEnd = tmpEnd;
+		System.arraycopy(tmpOffsets, 0, this.meOffsets, 0, this.meCount);
+		this.meIsIndexSaved = false;
+		this.sync();
+		if (tmpOld != null) {
+			MessageStore.deleteQuietly(tmpOld); // Retried on the next opening if it is still mapped (on Windows)
+		}
+	}
+
+	/**
+	 * Adds the specified message to the index (keeping the UIDs sorted; new messages have the highest UIDs mostly).
+	 */
+	private void put(long messageUid, long dataOffset, int dataLength) {
+		var tmpIndex = Arrays.binarySearch(this.meUids, 0, this.meCount, messageUid);
+		if (tmpIndex >= 0) {
+			this.meLiveBytes -= MessageStore.RECORD_HEADER + this.meLengths[tmpIndex];
+		} else {
+			tmpIndex = -tmpIndex - 1;
+			this.ensureCapacity(this.meCount + 1);
+			System.arraycopy(this.meUids, tmpIndex, this.meUids, tmpIndex + 1, this.meCount - tmpIndex);
+			System.arraycopy(this.meOffsets, tmpIndex, this.meOffsets, tmpIndex + 1, this.meCount - tmpIndex);
+			System.arraycopy(this.meLengths, tmpIndex, this.meLengths, tmpIndex + 1, this.meCount - tmpIndex);
+			this.meCount++;
+		}
+		this.meUids[tmpIndex] = messageUid;
+		this.meOffsets[tmpIndex] = dataOffset;
+		this.meLengths[tmpIndex] = dataLength;
+		this.meLiveBytes += MessageStore.RECORD_HEADER + dataLength;
+	}
+
+	/**
+	 * Removes the specified message from the index.
+	 */
+	private void delete(long messageUid) {
+		var tmpIndex = Arrays.binarySearch(this.meUids, 0, this.meCount, messageUid);
+		if (tmpIndex >= 0) {
+			this.meLiveBytes -= MessageStore.RECORD_HEADER + this.meLengths[tmpIndex];
+			this.meCount--;
+			System.arraycopy(this.meUids, tmpIndex + 1, this.meUids, tmpIndex, this.meCount - tmpIndex);
+			System.arraycopy(this.meOffsets, tmpIndex + 1, this.meOffsets, tmpIndex, this.meCount - tmpIndex);
+			System.arraycopy(this.meLengths, tmpIndex + 1, this.meLengths, tmpIndex, this.meCount - tmpIndex);
+		}
+	}
+
+	private void ensureCapacity(int theCount) {
+		if (this.meUids.length < theCount) {
+			var tmpLength = Math.max(theCount, this.meUids.length << 1);
+			this.meUids = Arrays.copyOf(this.meUids, tmpLength);
+			this.meOffsets = Arrays.copyOf(this.meOffsets, tmpLength);
+			this.meLengths = Arrays.copyOf(this.meLengths, tmpLength);
+		}
+	}
+
+	private void requireOpen() {
+		if (this.meChannel == null) {
+			throw new IllegalStateException("The store is closed.");
+		}
+	}
+
+	/**
+	 * Extracts the generation number of a segment file's name.
+	 * @return	the generation number, or 0 if the name is not a segment file's.
+	 */
+	private static long generationOf(String fileName) {
+		if (!fileName.startsWith("segment-") || !fileName.endsWith(".dat")) {
+			return 0L;
+		}
+		try {
+			return Long.parseLong(fileName.substring(8, fileName.length() - 4));
+		} catch (NumberFormatException e) {
+			return 0L;
+		}
+	}
+
+	private static void deleteQuietly(Path theFile) {
+		try {
+			Files.deleteIfExists(theFile);
+		} catch (IOException e) {
+			// Left for the next opening
+		}
+	}
+}
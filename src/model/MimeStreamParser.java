@@ -0,0 +1,532 @@
+package model;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Objects;
+import lib.Base64Decoder;
+import lib.IStreamDecoder;
+import lib.QuotedPrintableDecoder;
+import lib.TextDecoder;
+import view.ReceivedLine;
+
+/**
+ * A class that represents a push-style MIME parser. The bytes of a message are pushed into it as they arrive (it is an
+ * OutputStream, so it can be the target of 'Pop3Client.retrieve' or of a 'LiteralSink' channel) or line by line from
+ * 'LINE_RECEIVED' events ('feedLine'), and it reports the message's structure to a 'Handler' on the way: where each
+ * part starts and ends, each header field, and the body of each leaf part in decoded chunks (base64 and
+ * quoted-printable are decoded on the fly).
+ * Only the header field being parsed, the line being framed and one output block are held, so parsing a message of any
+ * size takes constant memory, and it can start before the message has finished downloading.
+ * Parts are identified by their IMAP section numbers (like '1', '2.1'). The header of a message (the top one, or one
+ * inside a 'message/rfc822' part) is reported under the message's own path ('' for the top one), and the body of a
+ * non-multipart message under that path plus '1'.
+ * @author Janty Azmat
+ */
+public class MimeStreamParser extends OutputStream {
+
+	/**
+	 * The interface required from the receiver of the parsed structure (all methods do nothing by default). The
+	 * methods are called on the thread that pushes the bytes.
+	 * @author Janty Azmat
+	 */
+	public static interface Handler {
+
+		/**
+		 * Called when a part (or a message) starts; its header fields follow.
+		 * @param partPath	the part's section number ('' for the top message).
+		 * @param isMessage	'true' if it is a message (the top one, or the content of a 'message/rfc822' part).
+		 */
+		default void partStarted(String partPath, boolean isMessage) {
+		}
+
+		/**
+		 * Called for each header field of the current part (unfolded, but not yet decoded from RFC 2047 words).
+		 * @param partPath		the part's section number.
+		 * @param fieldName		the field's name.
+		 * @param fieldValue	the field's value.
+		 */
+		default void headerField(String partPath, String fieldName, String fieldValue) {
+		}
+
+		/**
+		 * Called when the body of a leaf part starts.
+		 * @param partPath		the section number of the body.
+		 * @param contentType	the part's 'Content-Type' value (with its parameters), or the default one.
+		 */
+		default void bodyStarted(String partPath, String contentType) {
+		}
+
+		/**
+		 * Called with each decoded chunk of the body of a leaf part (the buffer is reused after the call returns).
+		 * @param partPath		the section number of the body.
+		 * @param chunkBuffer	the buffer that holds the chunk.
+		 * @param chunkOffset	the offset of the chunk in the buffer.
+		 * @param chunkLength	the length of the chunk.
+		 */
+		default void bodyChunk(String partPath, byte[] chunkBuffer, int chunkOffset, int chunkLength) {
+		}
+
+		/**
+		 * Called when a part (or a message) ends.
+		 * @param partPath	the part's section number.
+		 * @param isMessage	'true' if it is a message.
+		 */
+		default void partEnded(String partPath, boolean isMessage) {
+		}
+	}
+
+	/**
+	 * Holds what is known about a part that has started and not yet ended.
+	 */
+	private static class Entity {
+		// Fields
+		private String mePath;
+		private boolean meIsMessage;
+		private String meType;
+		private String meEncoding = "7bit";
+		private byte[] meDelimiter;	// '--' and the boundary, for a multipart
+		private boolean meIsDigest;
+		private int meChildCount;
+
+		private Entity(String partPath, boolean isMessage, String defaultType) {
+			this.mePath = partPath;
+			this.meIsMessage = isMessage;
+			this.meType = defaultType;
+		}
+	}
+
+	// Fields
+	private static final int STATE_HEADER = 0;
+	private static final int STATE_BODY = 1;
+	private static final int STATE_SKIP = 2;	// A multipart's preamble or epilogue
+	private static final int MAX_LINE = 16384;			// Longer body lines are passed on in pieces
+	private static final int MAX_FIELD = 65536;			// Longer header fields are cut
+	private static final int MAX_DEPTH = 64;			// Deeper parts are not parsed further
+	private static final int OUT_SIZE = 8192;
+	private static final int DECODE_SLICE = 4096;		// Decodes into less than what is left of the output block
+	private static final byte[] CRLF = {13, 10};
+	private Handler meHandler;
+	private ArrayList<Entity> meStack;
+	private int meState;
+	private byte[] meCarry;			// The start of the line being framed
+	private int meCarryLen;
+	private boolean meIsPiece;		// The rest of a long body line is being received (it cannot be a boundary)
+	private byte[] meField;			// The header field being parsed
+	private int meFieldLen;
+	private byte[] meJoin;			// Joins the words of split 'ReceivedLine's
+	private byte[] meOut;
+	private int meOutLen;
+	private String meBodyPath;
+	private IStreamDecoder meDecoder;	// The current body's decoder ('null' if it is not encoded)
+	private Base64Decoder meBase64;
+	private QuotedPrintableDecoder meQp;
+	private boolean meIsCrlfDue;	// The line-break before the next body line (held back, since a boundary owns it)
+	private boolean meIsClosed;
+
+	/**
+	 * A constructor that takes the receiver of the parsed structure as a parameter.
+	 * @param parseHandler	the receiver of the parsed structure.
+	 */
+	public MimeStreamParser(Handler parseHandler) {
+		this.meHandler = Objects.requireNonNull(parseHandler, "The 'parseHandler' argument cannot be 'null'.");
+		this.meStack = new ArrayList<>();
+		this.meCarry = new byte[256];
+		this.meField = new byte[256];
+		this.meOut = new byte[MimeStreamParser.OUT_SIZE];
+		this.meBase64 = new Base64Decoder();
+		this.meQp = new QuotedPrintableDecoder();
+		this.meStack.add(new Entity("", true, "text/plain"));
+		this.meState = MimeStreamParser.STATE_HEADER;
+		this.meHandler.partStarted("", true);
+	}
+
+	@Override
+	public void write(int theByte) {
+		this.write(new byte[] {(byte)theByte}, 0, 1);
+	}
+
+	/**
+	 * Pushes the specified bytes of the message.
+	 * @param theBytes		the buffer that holds the bytes.
+	 * @param byteOffset	the offset of the bytes in the buffer.
+	 * @param byteCount		the number of bytes.
+	 */
+	@Override
+	public void write(byte[] theBytes, int byteOffset, int byteCount) {
+		Objects.checkFromIndexSize(byteOffset, byteCount, theBytes.length);
+		if (this.meIsClosed) {
+			return;
+		}
+		var tmpEnd = byteOffset + byteCount;
+		while (byteOffset < tmpEnd) {
+			var tmpLf = byteOffset;
+			while (tmpLf < tmpEnd && theBytes[tmpLf] != 10) {
+				tmpLf++;
+			}
+			if (tmpLf == tmpEnd) {
+				this.carry(theBytes, byteOffset, tmpEnd - byteOffset);
+				return;
+			}
+			if (this.meCarryLen == 0) { // The whole line is in the pushed bytes
+				this.lineFramed(theBytes, byteOffset, tmpLf);
+			} else {
+				this.carry(theBytes, byteOffset, tmpLf - byteOffset);
+				this.lineFramed(this.meCarry, 0, this.meCarryLen);
+				this.meCarryLen = 0;
+			}
+			byteOffset = tmpLf + 1;
+		}
+	}
+
+	/**
+	 * Pushes a complete line of the message (without its line ending).
+	 * @param lineBuffer	the buffer that holds the line.
+	 * @param lineOffset	the offset of the line in the buffer.
+	 * @param lineLength	the length of the line.
+	 */
+	public void feedLine(byte[] lineBuffer, int lineOffset, int lineLength) {
+		Objects.checkFromIndexSize(lineOffset, lineLength, lineBuffer.length);
+		if (!this.meIsClosed) {
+			this.lineFramed(lineBuffer, lineOffset, lineOffset + lineLength);
+		}
+	}
+
+	/**
+	 * Pushes a complete line received by a connection (a whole line keeps its spacing exactly; the words of a split line
+	 * are joined by single spaces).
+	 * @param receivedLine	the received line.
+	 */
+	public void feedLine(ReceivedLine receivedLine) {
+		var tmpCount = receivedLine.getWordCount();
+		if (tmpCount <= 1) {
+			this.feedLine(receivedLine.getBuffer(), tmpCount == 0 ? 0 : receivedLine.getWordOffset(0), tmpCount == 0 ? 0 : receivedLine.getWordLength(0));
+			return;
+		}
+		var tmpLen = tmpCount - 1;
+		for (var i = 0; i < tmpCount; i++) {
+			tmpLen += receivedLine.getWordLength(i);
+		}
+		if (this.meJoin == null || this.meJoin.length < tmpLen) {
+			this.meJoin = new byte[Math.max(tmpLen, 256)];
+		}
+		var tmpPos = 0;
+		for (var i = 0; i < tmpCount; i++) {
+			if (i > 0) {
+				this.meJoin[tmpPos++] = 32;
+			}
+			System.arraycopy(receivedLine.getBuffer(), receivedLine.getWordOffset(i), this.meJoin, tmpPos, receivedLine.getWordLength(i));
+			tmpPos += receivedLine.getWordLength(i);
+		}
+		this.feedLine(this.meJoin, 0, tmpPos);
+	}
+
+	/**
+	 * Hands the decoded body bytes parsed so far to the handler (they are otherwise handed over in blocks).
+	 */
+	@Override
+	public void flush() {
+		if (this.meOutLen > 0) {
+			this.meHandler.bodyChunk(this.meBodyPath, this.meOut, 0, this.meOutLen);
+			this.meOutLen = 0;
+		}
+	}
+
+	/**
+	 * Ends the message: the last unterminated line is parsed, and all the parts still open are ended.
+	 */
+	@Override
+	public void close() {
+		if (this.meIsClosed) {
+			return;
+		}
+		if (this.meCarryLen > 0) {
+			this.lineFramed(this.meCarry, 0, this.meCarryLen);
+			this.meCarryLen = 0;
+		}
+		this.endAbove(-1);
+		this.meIsClosed = true;
+	}
+
+	/**
+	 * Keeps the start of a line until its end arrives (a long body line is passed on in pieces instead, and a long line
+	 * elsewhere is cut).
+	 */
+	private void carry(byte[] theBytes, int byteOffset, int byteCount) {
+		var tmpNeed = this.meCarryLen + byteCount;
+		if (tmpNeed > MimeStreamParser.MAX_LINE) {
+			if (this.meState == MimeStreamParser.STATE_BODY) {
+				this.bodyLine(this.meCarry, 0, this.meCarryLen, false);
+				this.bodyLine(theBytes, byteOffset, byteOffset + byteCount, false);
+				this.meCarryLen = 0;
+				this.meIsPiece = true;
+				return;
+			}
+			byteCount = MimeStreamParser.MAX_LINE - this.meCarryLen;
+			tmpNeed = MimeStreamParser.MAX_LINE;
+		}
+		if (tmpNeed > this.meCarry.length) {
+			this.meCarry = Arrays.copyOf(this.meCarry, Math.min(Math.max(tmpNeed, this.meCarry.length << 1), MimeStreamParser.MAX_LINE));
+		}
+		System.arraycopy(theBytes, byteOffset, this.meCarry, this.meCarryLen, byteCount);
+		this.meCarryLen += byteCount;
+	}
+
+	/**
+	 * Parses a framed line.
+	 * @param lineBuffer	the buffer that holds the line.
+	 * @param lineStart		the start of the line.
+	 * @param lineEnd		the end of the line (exclusive, the line-feed if any is not included).
+	 */
+	private void lineFramed(byte[] lineBuffer, int lineStart, int lineEnd) {
+		if (lineEnd > lineStart && lineBuffer[lineEnd - 1] == 13) {
+			lineEnd--;
+		}
+		if (this.meIsPiece) { // The end of a long body line
+			this.meIsPiece = false;
+			this.bodyLine(lineBuffer, lineStart, lineEnd, true);
+			return;
+		}
+		if (lineEnd - lineStart >= 2 && lineBuffer[lineStart] == '-' && lineBuffer[lineStart + 1] == '-' && this.boundaryLine(lineBuffer, lineStart, lineEnd)) {
+			return;
+		}
+		switch (this.meState) {
+			case MimeStreamParser.STATE_HEADER:
+				this.headerLine(lineBuffer, lineStart, lineEnd);
+				break;
+			case MimeStreamParser.STATE_BODY:
+				this.bodyLine(lineBuffer, lineStart, lineEnd, true);
+				break;
+			default:
+				break; // Preambles and epilogues are ignored
+		}
+	}
+
+	/**
+	 * Checks if the specified line is a boundary of an open multipart (the innermost first), and acts on it.
+	 * @return	'true' if the line was a boundary.
+	 */
+	private boolean boundaryLine(byte[] lineBuffer, int lineStart, int lineEnd) {
+		for (var i = this.meStack.size() - 1; i >= 0; i--) {
+			var tmpDelim = this.meStack.get(i).meDelimiter;
+			if (tmpDelim == null || lineEnd - lineStart < tmpDelim.length || !Arrays.equals(lineBuffer, lineStart, lineStart + tmpDelim.length, tmpDelim, 0, tmpDelim.length)) {
+				continue;
+			}
+			var tmpPos = lineStart + tmpDelim.length;
+			var tmpIsClose = lineEnd - tmpPos >= 2 && lineBuffer[tmpPos] == '-' && lineBuffer[tmpPos + 1] == '-';
+			for (tmpPos += tmpIsClose ? 2 : 0; tmpPos < lineEnd; tmpPos++) {
+				if (lineBuffer[tmpPos] != 32 && lineBuffer[tmpPos] != 9) {
+					return false; // Only trailing white space may follow a boundary
+				}
+			}
+			this.endAbove(i);
+			var tmpMulti = this.meStack.get(i);
+			if (tmpIsClose) {
+				this.meState = MimeStreamParser.STATE_SKIP;
+			} else {
+				var tmpNum = ++tmpMulti.meChildCount;
+				var tmpPath = tmpMulti.mePath.isEmpty() ? Integer.toString(tmpNum) : tmpMulti.mePath + "." + tmpNum;
+				this.meStack.add(new Entity(tmpPath, false, tmpMulti.meIsDigest ? "message/rfc822" : "text/plain"));
+				this.meState = MimeStreamParser.STATE_HEADER;
+				this.meHandler.partStarted(tmpPath, false);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private void headerLine(byte[] lineBuffer, int lineStart, int lineEnd) {
+		if (lineEnd == lineStart) {
+			this.fieldDone();
+			this.headerDone();
+		} else if (lineBuffer[lineStart] == 32 || lineBuffer[lineStart] == 9) { // A folded continuation
+			this.appendField(lineBuffer, lineStart, lineEnd - lineStart);
+		} else {
+			this.fieldDone();
+			this.appendField(lineBuffer, lineStart, lineEnd - lineStart);
+		}
+	}
+
+	private void appendField(byte[] lineBuffer, int lineStart, int lineLength) {
+		lineLength = Math.min(lineLength, MimeStreamParser.MAX_FIELD - this.meFieldLen);
+		if (this.meFieldLen + lineLength > this.meField.length) {
+			this.meField = Arrays.copyOf(this.meField, Math.min(Math.max(this.meFieldLen + lineLength, this.meField.length << 1), MimeStreamParser.MAX_FIELD));
+		}
+		System.arraycopy(lineBuffer, lineStart, this.meField, this.meFieldLen, lineLength);
+		this.meFieldLen += lineLength;
+	}
+
+	/**
+	 * Reports the header field collected so far (if any), and remembers the fields the parsing depends on.
+	 */
+	private void fieldDone() {
+		if (this.meFieldLen == 0) {
+			return;
+		}
+		var tmpColon = 0;
+		while (tmpColon < this.meFieldLen && this.meField[tmpColon] != ':') {
+			tmpColon++;
+		}
+		var tmpLen = this.meFieldLen;
+		this.meFieldLen = 0;
+		if (tmpColon == tmpLen) {
+			return; // Not a field
+		}
+		var tmpName = new String(this.meField, 0, tmpColon, StandardCharsets.US_ASCII).trim();
+		var tmpValue = TextDecoder.decode(this.meField, tmpColon + 1, tmpLen - tmpColon - 1).trim(); // Raw UTF-8 is allowed by RFC 6532
+		var tmpEntity = this.meStack.get(this.meStack.size() - 1);
+		if (tmpName.equalsIgnoreCase("Content-Type")) {
+			tmpEntity.meType = tmpValue;
+		} else if (tmpName.equalsIgnoreCase("Content-Transfer-Encoding")) {
+			tmpEntity.meEncoding = tmpValue.toLowerCase(Locale.ROOT);
+		}
+		this.meHandler.headerField(tmpEntity.mePath, tmpName, tmpValue);
+	}
+
+	/**
+	 * Acts on the end of the current part's header: a multipart waits for its first boundary, a 'message/rfc822' part
+	 * starts the header of its message, and a leaf part starts its body.
+	 */
+	private void headerDone() {
+		var tmpEntity = this.meStack.get(this.meStack.size() - 1);
+		var tmpMime = MimeStreamParser.mimeType(tmpEntity.meType);
+		var tmpBoundary = tmpMime.startsWith("multipart/") ? MimeStreamParser.parameter(tmpEntity.meType, "boundary") : null;
+		var tmpIsDeep = this.meStack.size() >= MimeStreamParser.MAX_DEPTH;
+		if (tmpBoundary != null && !tmpBoundary.isEmpty() && !tmpIsDeep) {
+			tmpEntity.meDelimiter = ("--" + tmpBoundary).getBytes(StandardCharsets.ISO_8859_1);
+			tmpEntity.meIsDigest = tmpMime.equals("multipart/digest");
+			this.meState = MimeStreamParser.STATE_SKIP;
+		} else if (tmpMime.equals("message/rfc822") && !tmpEntity.meIsMessage && !tmpIsDeep
+				&& !tmpEntity.meEncoding.equals("base64") && !tmpEntity.meEncoding.equals("quoted-printable")) {
+			this.meStack.add(new Entity(tmpEntity.mePath, true, "text/plain"));
+			this.meState = MimeStreamParser.STATE_HEADER;
+			this.meHandler.partStarted(tmpEntity.mePath, true);
+		} else {
+			this.meBodyPath = !tmpEntity.meIsMessage ? tmpEntity.mePath : tmpEntity.mePath.isEmpty() ? "1" : tmpEntity.mePath + ".1";
+			this.meDecoder = tmpEntity.meEncoding.equals("base64") ? this.meBase64 : tmpEntity.meEncoding.equals("quoted-printable") ? this.meQp : null;
+			if (this.meDecoder != null) {
+				this.meDecoder.reset();
+			}
+			this.meIsCrlfDue = false;
+			this.meState = MimeStreamParser.STATE_BODY;
+			this.meHandler.bodyStarted(this.meBodyPath, tmpEntity.meType);
+		}
+	}
+
+	/**
+	 * Ends the parts above the specified index of the stack (innermost first).
+	 * @param stackIndex	the index of the part that stays open (-1 to end all).
+	 */
+	private void endAbove(int stackIndex) {
+		for (var i = this.meStack.size() - 1; i > stackIndex; i--) {
+			if (this.meState == MimeStreamParser.STATE_HEADER) {
+				this.fieldDone();
+			} else if (this.meState == MimeStreamParser.STATE_BODY) {
+				if (this.meDecoder != null) { // The line-break due belongs to the boundary, and the decoder lets go of what it holds
+					if (this.meOut.length - this.meOutLen < this.meDecoder.getMaxDecoded(0)) {
+						this.flush();
+					}
+					this.meOutLen += this.meDecoder.finish(this.meOut, this.meOutLen);
+				}
+				this.flush();
+			}
+			this.meState = MimeStreamParser.STATE_SKIP;
+			var tmpEntity = this.meStack.remove(i);
+			this.meHandler.partEnded(tmpEntity.mePath, tmpEntity.meIsMessage);
+		}
+	}
+
+	/**
+	 * Decodes a body line (or a piece of a long one) into the output block.
+	 * @param isLineEnd	'true' if the line ends here.
+	 */
+	private void bodyLine(byte[] lineBuffer, int lineStart, int lineEnd, boolean isLineEnd) {
+		if (this.meDecoder == null) {
+			if (this.meIsCrlfDue) {
+				this.output(MimeStreamParser.CRLF, 0, 2);
+			}
+			this.output(lineBuffer, lineStart, lineEnd - lineStart);
+		} else {
+			if (this.meIsCrlfDue) { // Ends the line before (a quoted-printable soft break or padding needs it)
+				this.decode(MimeStreamParser.CRLF, 0, 2);
+			}
+			this.decode(lineBuffer, lineStart, lineEnd);
+		}
+		this.meIsCrlfDue = isLineEnd;
+	}
+
+	private void decode(byte[] srcBuffer, int srcStart, int srcEnd) {
+		while (srcStart < srcEnd) {
+			var tmpLen = Math.min(srcEnd - srcStart, MimeStreamParser.DECODE_SLICE);
+			if (this.meOut.length - this.meOutLen < this.meDecoder.getMaxDecoded(tmpLen)) {
+				this.flush();
+			}
+			this.meOutLen += this.meDecoder.decode(srcBuffer, srcStart, tmpLen, this.meOut, this.meOutLen);
+			srcStart += tmpLen;
+		}
+	}
+
+	private void output(byte[] srcBuffer, int srcOffset, int srcLength) {
+		while (srcLength > 0) {
+			if (this.meOutLen == this.meOut.length) {
+				this.flush();
+			}
+			var tmpCount = Math.min(srcLength, this.meOut.length - this.meOutLen);
+			System.arraycopy(srcBuffer, srcOffset, this.meOut, this.meOutLen, tmpCount);
+			this.meOutLen += tmpCount;
+			srcOffset += tmpCount;
+			srcLength -= tmpCount;
+		}
+	}
+
+	/**
+	 * Extracts the lower-case 'type/subtype' of a 'Content-Type' value.
+	 */
+	static String mimeType(String contentType) {
+		var tmpSemi = contentType.indexOf(';');
+		return (tmpSemi < 0 ? contentType : contentType.substring(0, tmpSemi)).trim().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Extracts the value of the specified parameter of a header value (like the 'boundary' of a 'Content-Type').
+	 * @return	the unquoted value (or 'null' if the parameter is not there).
+	 */
+	static String parameter(String headerValue, String paramName) {
+		var tmpLen = headerValue.length();
+		var tmpPos = headerValue.indexOf(';');
+		while (tmpPos >= 0 && tmpPos < tmpLen) {
+			var tmpStart = tmpPos + 1;
+			var tmpEq = headerValue.indexOf('=', tmpStart);
+			if (tmpEq < 0) {
+				return null;
+			}
+			var tmpName = headerValue.substring(tmpStart, tmpEq).trim();
+			var tmpValStart = tmpEq + 1;
+			while (tmpValStart < tmpLen && headerValue.charAt(tmpValStart) == ' ') {
+				tmpValStart++;
+			}
+			String tmpValue;
+			if (tmpValStart < tmpLen && headerValue.charAt(tmpValStart) == '"') {
+				var tmpBuild = new StringBuilder();
+				var i = tmpValStart + 1;
+				for (; i < tmpLen && headerValue.charAt(i) != '"'; i++) {
+					if (headerValue.charAt(i) == '\\' && i + 1 < tmpLen) {
+						i++;
+					}
+					tmpBuild.append(headerValue.charAt(i));
+				}
+				tmpValue = tmpBuild.toString();
+				tmpPos = headerValue.indexOf(';', i);
+			} else {
+				tmpPos = headerValue.indexOf(';', tmpValStart);
+				tmpValue = headerValue.substring(tmpValStart, tmpPos < 0 ? tmpLen : tmpPos).trim();
+			}
+			if (tmpName.equalsIgnoreCase(paramName)) {
+				return tmpValue;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,395 @@
+package model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import view.LiteralSink;
+import view.ReceivedLine;
+
+/**
+ * A class that fetches the parts of messages one by one ('BODY.PEEK[path]', guided by a 'BodyStructure') instead of
+ * whole messages, so showing a message costs only its text and the attachments are fetched when (and if) they are needed.
+ * The fetched bodies stream through the connection's literal sink into a 'MimeStreamParser' that decodes them, and the
+ * decoded parts are cached per UID and part path (the least recently used ones are dropped beyond a byte budget).
+ * Background fetches have a lower priority: they are sent one slice at a time, and only while no foreground fetch is
+ * in flight, so a foreground fetch waits for one slice at most. Whole raw messages (to keep in a 'MessageStore') are
+ * fetched the same way in the background, and stream into the channel they are fetched for (like a store's appender)
+ * without being decoded, cached, or held in memory.
+ * This fetcher takes over the connection's literal sink, and one is needed per selected mailbox (UIDs are only
+ * meaningful within it).
+ * @author Janty Azmat
+ */
+public class PartFetcher implements LiteralSink {
+
+	/**
+	 * Holds the state of one part being fetched.
+	 */
+	private static class Task {
+		// Fields
+		private String meKey;
+		private long meUid;
+		private BodyStructure mePart;	// 'null' for a whole raw message
+		private boolean meIsBackground;
+		private ByteArrayOutputStream meBody;	// 'null' for a whole raw message
+		private MimeStreamParser meParser;	// 'null' for a whole raw message
+		private WritableByteChannel meChannel;
+		private long meOffset;			// The encoded bytes received so far (where the next slice starts)
+		private long meSliceSize;		// The size of the slice in flight (0 for the rest of the part)
+		private long meLiteralSize;		// The size of the literal received for the slice in flight (-1 if none)
+		private CompletableFuture<byte[]> meFuture = new CompletableFuture<>();
+	}
+
+	// Fields
+	public static final long DEFAULT_CACHE_BYTES = 32L << 20;
+	private static final long BACKGROUND_SLICE = 256L << 10;
+	private ImapPipeline mePipe;
+	private long meCacheLimit;
+	private long meCacheBytes;
+	private LinkedHashMap<String, byte[]> meCache;			// In access order (the least recently used first)
+	private Map<String, Task> meRunning;					// The fetches in flight or queued (by key)
+	private ConcurrentLinkedDeque<Task> meAwaiting;			// The tasks whose slice was sent (in sending order)
+	private ArrayDeque<Task> meBackground;					// The background tasks waiting for their next slice
+	private int meForegroundCount;
+	private boolean meIsBackgroundSent;
+
+	/**
+	 * A constructor that takes the pipeline to fetch over (with the mailbox selected) as a parameter, and uses the default
+	 * cache budget.
+	 * @param mailboxPipeline	the pipeline to fetch over.
+	 */
+	public PartFetcher(ImapPipeline mailboxPipeline) {
+		this(mailboxPipeline, PartFetcher.DEFAULT_CACHE_BYTES);
+	}
+
+	/**
+	 * A constructor that takes the pipeline to fetch over (with the mailbox selected) and the cache budget as parameters.
+	 * @param mailboxPipeline	the pipeline to fetch over.
+	 * @param cacheBytes		the most decoded bytes to keep cached.
+	 */
+	public PartFetcher(ImapPipeline mailboxPipeline, long cacheBytes) {
+		this.mePipe = Objects.requireNonNull(mailboxPipeline, "The 'mailboxPipeline' argument cannot be 'null'.");
+		this.meCacheLimit = cacheBytes;
+		this.meCache = new LinkedHashMap<>(16, 0.75f, true);
+		this.meRunning = new HashMap<>();
+		this.meAwaiting = new ConcurrentLinkedDeque<>();
+		this.meBackground = new ArrayDeque<>();
+		this.mePipe.getConnection().setLiteralSink(this);
+	}
+
+	/**
+	 * Fetches the structure of the specified message.
+	 * @param messageUid	the message's UID.
+	 * @return				a future that completes with the message's structure.
+	 */
+	public CompletableFuture<BodyStructure> fetchStructure(long messageUid) {
+		return this.mePipe.submit("UID FETCH " + messageUid + " (UID BODYSTRUCTURE)").thenApply(resp -> {
+			if (!resp.isOk() || resp.getUntagged().isEmpty()) {
+				throw new IllegalStateException("The server did not give the structure of message " + messageUid + ": " + resp);
+			}
+			return BodyStructure.parse(resp.getUntagged());
+		});
+	}
+
+	/**
+	 * Fetches (or gets from the cache) the decoded body of the specified part, ahead of any background fetches.
+	 * @param messageUid	the message's UID.
+	 * @param leafPart		the part (a leaf of the message's structure).
+	 * @return				a future that completes with the decoded body.
+	 */
+	public CompletableFuture<byte[]> fetchPart(long messageUid, BodyStructure leafPart) {
+		return this.fetchPart(messageUid, leafPart, false);
+	}
+
+	/**
+	 * Fetches the decoded body of the specified part in the background (when no foreground fetch is in flight) to have it
+	 * cached before it is asked for.
+	 * @param messageUid	the message's UID.
+	 * @param leafPart		the part (a leaf of the message's structure).
+	 * @return				a future that completes with the decoded body.
+	 */
+	public CompletableFuture<byte[]> fetchPartInBackground(long messageUid, BodyStructure leafPart) {
+		return this.fetchPart(messageUid, leafPart, true);
+	}
+
+	/**
+	 * Fetches the whole raw message (not decoded, and not cached) in the background, streaming it into the specified
+	 * channel (like a 'MessageStore.Appender'), which is left open.
+	 * @param messageUid		the message's UID.
+	 * @param messageChannel	the channel that gets the raw message.
+	 * @return					a future that completes when the whole message was written to the channel (it fails if
+	 * 							the message is already being fetched into another channel).
+	 */
+	public CompletableFuture<Void> fetchMessageInBackground(long messageUid, WritableByteChannel messageChannel) {
+		Objects.requireNonNull(messageChannel, "The 'messageChannel' argument cannot be 'null'.");
+		return this.fetchPart(messageUid, null, true, messageChannel).thenAccept(none -> {});
+	}
+
+	private CompletableFuture<byte[]> fetchPart(long messageUid, BodyStructure leafPart, boolean isBackground) {
+		return this.fetchPart(messageUid, leafPart, isBackground, null);
+	}
+
+	private synchronized CompletableFuture<byte[]> fetchPart(long messageUid, BodyStructure leafPart, boolean isBackground, WritableByteChannel messageChannel) {
+		if (leafPart != null && !leafPart.isLeaf()) {
+			throw new IllegalArgumentException("Only leaf parts have a body to fetch.");
+		}
+		var tmpKey = messageUid + "/" + (leafPart == null ? "" : leafPart.getPath());
+		var tmpCached = this.meCache.get(tmpKey);
+		if (tmpCached != null) {
+			return CompletableFuture.completedFuture(tmpCached);
+		}
+		var tmpTask = this.meRunning.get(tmpKey);
+		if (tmpTask != null) {
+			if (leafPart == null) { // Its bytes go to the channel it was first fetched for
+				return CompletableFuture.failedFuture(new IllegalStateException("Message " + messageUid + " is already being fetched."));
+			}
+			if (!isBackground && tmpTask.meIsBackground) { // Promoted: the rest of it goes out as soon as possible
+				tmpTask.meIsBackground = false;
+				if (this.meBackground.remove(tmpTask)) {
+					this.sendSlice(tmpTask);
+				}
+			}
+			return tmpTask.meFuture;
+		}
+		tmpTask = new Task();
+		tmpTask.meKey = tmpKey;
+		tmpTask.meUid = messageUid;
+		tmpTask.mePart = leafPart;
+		tmpTask.meIsBackground = isBackground;
+		if (leafPart == null) {
+			tmpTask.meChannel = messageChannel;
+		} else {
+			var tmpBody = tmpTask.meBody = new ByteArrayOutputStream();
+			tmpTask.meParser = new MimeStreamParser(new MimeStreamParser.Handler() {
+				@Override
+				public void bodyChunk(String partPath, byte[] chunkBuffer, int chunkOffset, int chunkLength) {
+					tmpBody.write(chunkBuffer, chunkOffset, chunkLength);
+				}
+			});
+			var tmpHeader = ("Content-Transfer-Encoding: " + leafPart.getEncoding() + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+			tmpTask.meParser.write(tmpHeader, 0, tmpHeader.length); // The fetched body comes without its header
+			tmpTask.meChannel = Channels.newChannel(tmpTask.meParser);
+		}
+		this.meRunning.put(tmpKey, tmpTask);
+		if (isBackground) {
+			this.meBackground.add(tmpTask);
+			this.sendBackground();
+		} else {
+			this.sendSlice(tmpTask);
+		}
+		return tmpTask.meFuture;
+	}
+
+	/**
+	 * Sends the next background slice if nothing else is in flight.
+	 */
+	private synchronized void sendBackground() {
+		if (this.meForegroundCount == 0 && !this.meIsBackgroundSent && !this.meBackground.isEmpty()) {
+			this.sendSlice(this.meBackground.poll());
+		}
+	}
+
+	/**
+	 * Sends the fetch of the specified task's next slice (the whole rest of the part for a foreground task).
+	 */
+	private synchronized void sendSlice(Task theTask) {
+		if (theTask.meIsBackground) {
+			this.meIsBackgroundSent = true;
+			theTask.meSliceSize = PartFetcher.BACKGROUND_SLICE;
+		} else {
+			this.meForegroundCount++;
+			theTask.meSliceSize = 0L;
+		}
+		theTask.meLiteralSize = -1L;
+		var tmpCmd = new StringBuilder("UID FETCH ").append(theTask.meUid).append(" (UID BODY.PEEK[").append(PartFetcher.pathOf(theTask)).append(']');
+		if (theTask.meSliceSize > 0L || theTask.meOffset > 0L) {
+			tmpCmd.append('<').append(theTask.meOffset).append('.').append(theTask.meSliceSize > 0L ? theTask.meSliceSize : Integer.MAX_VALUE).append('>');
+		}
+		this.meAwaiting.add(theTask);
+		CompletableFuture<ImapPipeline.Response> tmpResp;
+		try {
+			tmpResp = this.mePipe.submit(tmpCmd.append(')').toString());
+		} catch (RuntimeException e) { // Like a dropped connection: undone, so the other fetches are not held up by it
+			this.meAwaiting.remove(theTask);
+			if (theTask.meSliceSize > 0L) {
+				this.meIsBackgroundSent = false;
+			} else {
+				this.meForegroundCount--;
+			}
+			this.meRunning.remove(theTask.meKey);
+			theTask.meFuture.completeExceptionally(e);
+			this.sendBackground();
+			return;
+		}
+		tmpResp.whenComplete((resp, err) -> this.sliceDone(theTask, resp, err));
+		try {
+			this.mePipe.flush();
+		} catch (IOException e) {
+			// The submitted command fails on its own then
+		}
+	}
+
+	/**
+	 * Acts on the response to a task's slice: the task completes, or (in the background) waits for its next slice.
+	 */
+	private void sliceDone(Task theTask, ImapPipeline.Response theResp, Throwable theError) {
+		var tmpIsDone = true;
+		synchronized (this) {
+			this.meAwaiting.remove(theTask);
+			if (theTask.meSliceSize > 0L) {
+				this.meIsBackgroundSent = false;
+			} else {
+				this.meForegroundCount--;
+			}
+			if (theError == null && !theResp.isOk()) {
+				theError = new IOException("The server refused to fetch part " + theTask.meKey + ": " + theResp);
+			}
+			if (theError == null && theTask.meLiteralSize < 0L) { // A short body may come as a quoted string instead of a literal
+				try {
+					theTask.meLiteralSize = PartFetcher.writeQuoted(theResp, theTask.meChannel);
+				} catch (IOException e) {
+					theError = e;
+				}
+			}
+			if (theError == null) {
+				theTask.meOffset += theTask.meLiteralSize;
+				tmpIsDone = theTask.meSliceSize == 0L || theTask.meLiteralSize < theTask.meSliceSize;
+				if (!tmpIsDone) {
+					if (theTask.meIsBackground) {
+						this.meBackground.addFirst(theTask);
+					} else {
+						this.sendSlice(theTask); // Was promoted while its slice was in flight
+					}
+				}
+			}
+			if (tmpIsDone) {
+				this.meRunning.remove(theTask.meKey);
+			}
+		}
+		if (theError != null) {
+			theTask.meFuture.completeExceptionally(theError);
+		} else if (tmpIsDone) {
+			byte[] tmpBody = null; // A raw message is in the caller's channel instead
+			if (theTask.meParser != null) {
+				theTask.meParser.close();
+				tmpBody = theTask.meBody.toByteArray();
+				theTask.meBody = null;
+				this.cache(theTask.meKey, tmpBody);
+			}
+			theTask.meFuture.complete(tmpBody);
+		}
+		this.sendBackground();
+	}
+
+	/**
+	 * Writes the body that the server sent as a quoted string (or 'NIL') in the response.
+	 * @return	the number of bytes written.
+	 */
+	private static long writeQuoted(ImapPipeline.Response theResp, WritableByteChannel theChannel) throws IOException {
+		var tmpText = new StringBuilder();
+		var tmpIsFound = false;
+		for (var tmpLine : theResp.getUntagged()) {
+			for (var tmpWord : tmpLine) {
+				if (tmpIsFound) {
+					tmpText.append(tmpText.length() > 0 ? " " : "").append(new String(tmpWord, StandardCharsets.ISO_8859_1));
+				} else if (tmpWord.length > 5 && new String(tmpWord, 0, 5, StandardCharsets.US_ASCII).equalsIgnoreCase("BODY[")) {
+					tmpIsFound = true;
+				}
+			}
+		}
+		if (tmpText.length() == 0 || tmpText.charAt(0) != '"') {
+			return 0L; // 'NIL'
+		}
+		var tmpBody = new StringBuilder();
+		for (var i = 1; i < tmpText.length() && tmpText.charAt(i) != '"'; i++) {
+			if (tmpText.charAt(i) == '\\') {
+				i++;
+			}
+			tmpBody.append(tmpText.charAt(i));
+		}
+		var tmpBytes = ByteBuffer.wrap(tmpBody.toString().getBytes(StandardCharsets.ISO_8859_1));
+		while (tmpBytes.hasRemaining()) {
+			theChannel.write(tmpBytes);
+		}
+		return tmpBytes.capacity();
+	}
+
+	private static String pathOf(Task theTask) {
+		return theTask.mePart == null ? "" : theTask.mePart.getPath();
+	}
+
+	private synchronized void cache(String theKey, byte[] theBody) {
+		if (theBody.length > this.meCacheLimit) {
+			return;
+		}
+		var tmpOld = this.meCache.put(theKey, theBody);
+		this.meCacheBytes += theBody.length - (tmpOld == null ? 0 : tmpOld.length);
+		var tmpIter = this.meCache.values().iterator();
+		while (this.meCacheBytes > this.meCacheLimit && tmpIter.hasNext()) {
+			this.meCacheBytes -= tmpIter.next().length;
+			tmpIter.remove();
+		}
+	}
+
+	/**
+	 * Used to get the decoded body of a part if it is cached.
+	 * @param messageUid	the message's UID.
+	 * @param partPath		the part's section number.
+	 * @return				the decoded body, or 'null' if it is not cached.
+	 */
+	public synchronized byte[] getCached(long messageUid, String partPath) {
+		return this.meCache.get(messageUid + "/" + partPath);
+	}
+
+	/**
+	 * Used to get the number of decoded bytes currently cached.
+	 * @return	the number of cached bytes.
+	 */
+	public synchronized long getCachedBytes() {
+		return this.meCacheBytes;
+	}
+
+	/**
+	 * Streams a literal into the parser of the part it belongs to: the oldest sent part whose section the announcing
+	 * line names (other literals are received as lines).
+	 */
+	@Override
+	public WritableByteChannel openLiteral(ReceivedLine announcingLine, long literalSize) {
+		var tmpCount = announcingLine.getWordCount();
+		if (tmpCount < 2) {
+			return null;
+		}
+		var tmpTask = this.meAwaiting.peekFirst();
+		if (tmpTask == null) {
+			return null;
+		}
+		var tmpItem = ("BODY[" + PartFetcher.pathOf(tmpTask) + "]").getBytes(StandardCharsets.US_ASCII);
+		var tmpWord = tmpCount - 2; // The item right before the literal, like 'BODY[2]' or 'BODY[2]<0>'
+		if (announcingLine.getWordLength(tmpWord) < tmpItem.length) {
+			return null;
+		}
+		var tmpBuf = announcingLine.getBuffer();
+		var tmpOff = announcingLine.getWordOffset(tmpWord);
+		for (var i = 0; i < tmpItem.length; i++) {
+			if (Character.toUpperCase(tmpBuf[tmpOff + i]) != tmpItem[i]) {
+				return null;
+			}
+		}
+		tmpTask.meLiteralSize = literalSize;
+		return tmpTask.meChannel;
+	}
+
+	@Override
+	public void closeLiteral(WritableByteChannel literalChannel, long literalSize) {
+		// The parser goes on with the next slice, and is closed when the part is done
+	}
+}
@@ -0,0 +1,589 @@
+package model;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.BiConsumer;
+import lib.IEventEmitter;
+import view.IConnection;
+import view.ReceivedLine;
+import view.SslConnection.ConnectionEvent;
+
+/**
+ * A class that represents a POP3 client on top of a connection to a POP3 server. Like 'ImapPipeline', every command
+ * gets a CompletableFuture that completes when its reply arrives (POP3 servers reply in order), and when the server
+ * advertises PIPELINING (RFC 2449) several commands are kept in flight instead of waiting a round trip for each.
+ * New messages are found by diffing 'UIDL' against a locally stored 'SeenSet', and each one is streamed to its own
+ * file as it arrives (multi-line replies are written line by line, never held whole on the heap).
+ * The futures complete on the connection's read-thread, so dependent stages should not block.
+ * @author Janty Azmat
+ */
+public class Pop3Client implements AutoCloseable {
+
+	/**
+	 * A class that represents the reply to a command.
+	 * @author Janty Azmat
+	 */
+	public static class Reply {
+		// Fields
+		private byte[][] meStatus;
+		private List<byte[][]> meLines;
+
+		private Reply(byte[][] statusLine, List<byte[][]> bodyLines) {
+			this.meStatus = statusLine;
+			this.meLines = Collections.unmodifiableList(bodyLines);
+		}
+
+		/**
+		 * Checks if the command succeeded.
+		 * @return	'true' if the status of the reply is '+OK'.
+		 */
+		public boolean isOk() {
+			return this.meStatus.length > 0 && ResponseWords.equalsIgnoreCase(this.meStatus[0], Pop3Client.WORD_OK);
+		}
+
+		/**
+		 * Used to get the status line of the reply ('+OK' or '-ERR', and the rest of the line).
+		 * @return	the status line (as words).
+		 */
+		public byte[][] getStatusLine() {
+			return this.meStatus;
+		}
+
+		/**
+		 * Used to get the lines of a multi-line reply (without the terminating '.' and the dot-stuffing), unless they
+		 * were streamed somewhere else.
+		 * @return	the lines (as words).
+		 */
+		public List<byte[][]> getLines() {
+			return this.meLines;
+		}
+
+		@Override
+		public String toString() {
+			var outBuild = new StringBuilder();
+			for (var tmpWord : this.meStatus) {
+				outBuild.append(outBuild.length() > 0 ? " " : "").append(new String(tmpWord, StandardCharsets.ISO_8859_1));
+			}
+			return outBuild.toString();
+		}
+	}
+
+	/**
+	 * A class that represents the UIDs of the messages already downloaded from a maildrop, kept in a file (one UID per
+	 * line). Adding a UID appends it to the file, so a crash loses at most the UID being added (its message is then
+	 * downloaded again).
+	 * @author Janty Azmat
+	 */
+	public static class SeenSet {
+		// Fields
+		private Path meFile;
+		private Set<String> meUids;
+
+		/**
+		 * A constructor that takes the file of the UIDs as a parameter (loading it if it exists).
+		 * @param seenFile		the file of the UIDs.
+		 * @throws IOException	when the existing file cannot be read.
+		 */
+		public SeenSet(Path seenFile) throws IOException {
+			this.meFile = Objects.requireNonNull(seenFile, "The 'seenFile' argument cannot be 'null'.");
+			this.meUids = new HashSet<>();
+			try {
+				for (var tmpLine : Files.readAllLines(seenFile, StandardCharsets.US_ASCII)) {
+					if (!tmpLine.isEmpty()) {
+						this.meUids.add(tmpLine);
+					}
+				}
+			} catch (NoSuchFileException e) {
+				// Nothing seen yet
+			}
+		}
+
+		/**
+		 * Checks if the specified UID was seen.
+		 * @param messageUid	the UID.
+		 * @return				'true' if the UID was seen.
+		 */
+		public synchronized boolean contains(String messageUid) {
+			return this.meUids.contains(messageUid);
+		}
+
+		/**
+		 * Adds the specified UID (and appends it to the file).
+		 * @param messageUid	the UID.
+		 * @throws IOException	when the file cannot be written.
+		 */
+		public synchronized void add(String messageUid) throws IOException {
+			if (this.meUids.add(messageUid)) {
+				Files.writeString(this.meFile, messageUid + "\n", StandardCharsets.US_ASCII, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			}
+		}
+
+		/**
+		 * Removes the UIDs that are not in the specified collection (the messages no longer in the maildrop), and rewrites
+		 * the file if any was removed.
+		 * @param maildropUids	the UIDs still in the maildrop.
+		 * @throws IOException	when the file cannot be written.
+		 */
+		public synchronized void retain(Collection<String> maildropUids) throws IOException {
+			if (this.meUids.retainAll(maildropUids instanceof Set ? maildropUids : new HashSet<>(maildropUids))) {
+				var tmpFile = this.meFile.resolveSibling(this.meFile.getFileName() + ".tmp");
+				Files.write(tmpFile, this.meUids, StandardCharsets.US_ASCII);
+				Files.move(tmpFile, this.meFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+		}
+
+		/**
+		 * Used to get the number of seen UIDs.
+		 * @return	the number of seen UIDs.
+		 */
+		public synchronized int size() {
+			return this.meUids.size();
+		}
+	}
+
+	/**
+	 * Holds a command in flight.
+	 */
+	private static class Pending {
+		// Fields
+		private boolean meIsMulti;
+		private OutputStream meSink;
+		private IOException meSinkError;
+		private byte[][] meStatus;		// Set once the '+OK' of a multi-line reply arrived
+		private List<byte[][]> meLines = new ArrayList<>();
+		private CompletableFuture<Reply> meFuture = new CompletableFuture<>();
+
+		private Pending(boolean isMultiline, OutputStream bodySink) {
+			this.meIsMulti = isMultiline;
+			this.meSink = bodySink;
+		}
+	}
+
+	/**
+	 * Holds the state of one 'downloadNew' call.
+	 */
+	private static class Download {
+		// Fields
+		private Iterator<Map.Entry<String, Integer>> meNext;
+		private int meLeft;
+		private int meCount;
+		private SeenSet meSeen;
+		private Path meDir;
+		private boolean meIsDelete;
+		private List<CompletableFuture<Reply>> meDeletes = new ArrayList<>();
+		private CompletableFuture<Integer> meFuture = new CompletableFuture<>();
+	}
+
+	// Fields
+	public static final int PIPELINE_WINDOW = 16; // The RETRs kept in flight when pipelining (bounded, as RFC 2449 advises)
+	private static final byte[] WORD_OK = "+OK".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] WORD_PIPELINING = "PIPELINING".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CRLF = {13, 10};
+	private IConnection meConn;
+	private ConcurrentLinkedDeque<Pending> mePending;
+	private final Object meSendLock = new Object();
+	private CompletableFuture<Reply> meGreeting;
+	private volatile boolean meIsPipelining;
+	private BiConsumer<IEventEmitter<ConnectionEvent>, Object> meLineListener;
+	private BiConsumer<IEventEmitter<ConnectionEvent>, Object> meInterListener;
+
+	/**
+	 * A constructor that takes the (not yet connected) connection to the POP3 server as a parameter (the server's
+	 * greeting arrives right after connecting, so the client should be there to get it). The connection is switched to
+	 * whole lines, so the messages are stored exactly as received.
+	 * @param pop3Connection			the connection to the POP3 server.
+	 * @throws IllegalStateException	when the specified connection is already connected.
+	 * @throws NullPointerException		when the specified connection is 'null'.
+	 */
+	public Pop3Client(IConnection pop3Connection) throws IllegalStateException, NullPointerException {
+		this.meConn = Objects.requireNonNull(pop3Connection, "The 'pop3Connection' argument cannot be 'null'.");
+		if (pop3Connection.isConnected()) {
+			throw new IllegalStateException("The POP3 client should be created before connecting.");
+		}
+		this.meConn.setWholeLines(true); // Keeps the spacing of the messages' lines
+		this.mePending = new ConcurrentLinkedDeque<>();
+		var tmpGreet = new Pending(false, null);
+		this.mePending.add(tmpGreet);
+		this.meGreeting = tmpGreet.meFuture;
+		this.meLineListener = (emit, data) -> this.handleLine(data);
+		this.meInterListener = (emit, data) -> this.failAll(new IOException("Receiving from the POP3 server was interrupted."));
+		this.meConn.addEventListener(ConnectionEvent.LINE_RECEIVED, this.meLineListener);
+		this.meConn.addEventListener(ConnectionEvent.RECEIVE_ITERRUPTED, this.meInterListener);
+	}
+
+	/**
+	 * Used to get the server's greeting.
+	 * @return	a future that completes with the greeting.
+	 */
+	public CompletableFuture<Reply> getGreeting() {
+		return this.meGreeting;
+	}
+
+	/**
+	 * Sends the specified command that has a single-line reply (without waiting for the replies of the commands before it).
+	 * @param pop3Command				the command without the line ending (e.g. 'DELE 3').
+	 * @return							a future that completes with the command's reply (or exceptionally when the
+	 * 									connection fails before the reply arrives).
+	 * @throws IllegalStateException	when the connection is not yet connected.
+	 */
+	public CompletableFuture<Reply> submit(String pop3Command) throws IllegalStateException {
+		return this.submit(pop3Command, false, null);
+	}
+
+	/**
+	 * Sends the specified command that has a multi-line reply (like 'UIDL'), collecting the reply's lines.
+	 * @param pop3Command				the command without the line ending.
+	 * @return							a future that completes with the command's reply (or exceptionally when the
+	 * 									connection fails before the reply arrives).
+	 * @throws IllegalStateException	when the connection is not yet connected.
+	 */
+	public CompletableFuture<Reply> submitMultiline(String pop3Command) throws IllegalStateException {
+		return this.submit(pop3Command, true, null);
+	}
+
+	/**
+	 * Sends 'RETR' for the specified message, and writes the message to the specified stream as it arrives (with CRLF
+	 * line endings, and without the dot-stuffing). The stream is not closed.
+	 * @param messageNumber				the number of the message.
+	 * @param outStream					the stream to write the message to (written on the connection's read-thread).
+	 * @return							a future that completes with the command's reply (or exceptionally when writing
+	 * 									to the stream or the connection fails).
+	 * @throws IllegalStateException	when the connection is not yet connected.
+	 */
+	public CompletableFuture<Reply> retrieve(int messageNumber, OutputStream outStream) throws IllegalStateException {
+		return this.submit("RETR " + messageNumber, true, Objects.requireNonNull(outStream, "The 'outStream' argument cannot be 'null'."));
+	}
+
+	private CompletableFuture<Reply> submit(String pop3Command, boolean isMultiline, OutputStream bodySink) throws IllegalStateException {
+		var tmpCmd = pop3Command.getBytes(StandardCharsets.UTF_8);
+		var tmpLine = new byte[tmpCmd.length + Pop3Client.CRLF.length];
+		System.arraycopy(tmpCmd, 0, tmpLine, 0, tmpCmd.length);
+		System.arraycopy(Pop3Client.CRLF, 0, tmpLine, tmpCmd.length, Pop3Client.CRLF.length);
+		synchronized (this.meSendLock) { // Keeps the pending commands in the order they were sent
+			var outPend = new Pending(isMultiline, bodySink);
+			this.mePending.add(outPend);
+			try {
+				this.meConn.send(tmpLine);
+			} catch (IOException e) {
+				this.mePending.remove(outPend);
+				outPend.meFuture.completeExceptionally(e);
+			} catch (RuntimeException e) { // Like not being connected (an orphan would get the replies of the next commands)
+				this.mePending.remove(outPend);
+				throw e;
+			}
+			return outPend.meFuture;
+		}
+	}
+
+	/**
+	 * Sends 'CAPA' and remembers whether the server advertises PIPELINING.
+	 * @return	a future that completes with the reply (a server without 'CAPA' replies '-ERR', and is not pipelined).
+	 */
+	public CompletableFuture<Reply> capabilities() {
+		return this.submitMultiline("CAPA").thenApply(resp -> {
+			this.meIsPipelining = resp.isOk() && resp.getLines().stream().anyMatch(line -> line.length > 0 && ResponseWords.equalsIgnoreCase(line[0], Pop3Client.WORD_PIPELINING));
+			return resp;
+		});
+	}
+
+	/**
+	 * Checks if commands are pipelined (the server advertised PIPELINING in its 'CAPA' reply).
+	 * @return	'true' if commands are pipelined.
+	 */
+	public boolean isPipelining() {
+		return this.meIsPipelining;
+	}
+
+	/**
+	 * Logs in with 'USER' and 'PASS' (sent together when pipelining).
+	 * @param userName	the user name.
+	 * @param passWord	the password.
+	 * @return			a future that completes when logged in (or exceptionally when the server refuses).
+	 */
+	public CompletableFuture<Void> login(String userName, String passWord) {
+		var tmpUser = this.submit("USER " + userName);
+		var tmpPass = this.meIsPipelining ? this.submit("PASS " + passWord) : tmpUser.thenCompose(resp -> resp.isOk() ? this.submit("PASS " + passWord) : CompletableFuture.completedFuture(resp));
+		return tmpUser.thenCombine(tmpPass, (user, pass) -> {
+			if (!user.isOk() || !pass.isOk()) {
+				throw new IllegalStateException("The server refused the login: " + (user.isOk() ? pass : user));
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * Sends 'UIDL' and maps the UIDs of the messages to their numbers.
+	 * @return	a future that completes with the message numbers keyed by UID (in the maildrop's order).
+	 */
+	public CompletableFuture<Map<String, Integer>> uidl() {
+		return this.submitMultiline("UIDL").thenApply(resp -> {
+			if (!resp.isOk()) {
+				throw new IllegalStateException("The server refused 'UIDL': " + resp);
+			}
+			var outMap = new LinkedHashMap<String, Integer>();
+			for (var tmpLine : resp.getLines()) {
+				var tmpNum = tmpLine.length > 1 ? ResponseWords.parseNumber(tmpLine[0]) : -1L;
+				if (tmpNum > 0L) {
+					outMap.put(new String(tmpLine[1], StandardCharsets.US_ASCII), (int)tmpNum);
+				}
+			}
+			return outMap;
+		});
+	}
+
+	/**
+	 * Downloads the messages whose UIDs are not in the specified seen-set into the specified directory (one file per
+	 * message, named after its UID), adding each UID to the seen-set once its file is complete. The UIDs of messages no
+	 * longer in the maildrop are removed from the seen-set. With pipelining, up to 'PIPELINE_WINDOW' messages are in
+	 * flight at once.
+	 * @param seenSet		the UIDs already downloaded.
+	 * @param messageDir	the directory to download into.
+	 * @param isDelete		'true' to delete each message from the server (with 'DELE') once it is downloaded.
+	 * @return				a future that completes with the number of downloaded messages (after the 'DELE' replies,
+	 * 						if any; 'QUIT' is still needed for the deletions to happen).
+	 */
+	public CompletableFuture<Integer> downloadNew(SeenSet seenSet, Path messageDir, boolean isDelete) {
+		return this.uidl().thenCompose(uids -> {
+			var tmpNew = new LinkedHashMap<String, Integer>();
+			try {
+				seenSet.retain(uids.keySet());
+			} catch (IOException e) {
+				return CompletableFuture.failedFuture(e);
+			}
+			uids.forEach((uid, num) -> {
+				if (!seenSet.contains(uid)) {
+					tmpNew.put(uid, num);
+				}
+			});
+			var tmpJob = new Download();
+			tmpJob.meNext = tmpNew.entrySet().iterator();
+			tmpJob.meLeft = tmpNew.size();
+			tmpJob.meSeen = seenSet;
+			tmpJob.meDir = messageDir;
+			tmpJob.meIsDelete = isDelete;
+			if (tmpJob.meLeft == 0) {
+				tmpJob.meFuture.complete(0);
+			}
+			for (var i = this.meIsPipelining ? Pop3Client.PIPELINE_WINDOW : 1; i > 0; i--) {
+				this.retrieveNext(tmpJob);
+			}
+			return tmpJob.meFuture;
+		});
+	}
+
+	/**
+	 * Sends 'RETR' for the next message of the specified download (if any), streaming it to a temporary file that is
+	 * moved in place once the message is complete.
+	 */
+	private void retrieveNext(Download theJob) {
+		Map.Entry<String, Integer> tmpEntry;
+		synchronized (theJob) {
+			if (!theJob.meNext.hasNext() || theJob.meFuture.isDone()) {
+				return;
+			}
+			tmpEntry = theJob.meNext.next();
+		}
+		var tmpFile = theJob.meDir.resolve(Pop3Client.fileNameOf(tmpEntry.getKey()));
+		var tmpPart = theJob.meDir.resolve(tmpFile.getFileName() + ".part");
+		OutputStream tmpOut;
+		try {
+			tmpOut = new BufferedOutputStream(Files.newOutputStream(tmpPart), 65536);
+		} catch (IOException e) {
+			theJob.meFuture.completeExceptionally(e);
+			return;
+		}
+		CompletableFuture<Reply> tmpRetr;
+		try {
+			tmpRetr = this.retrieve(tmpEntry.getValue(), tmpOut);
+		} catch (RuntimeException e) { // Like after a local disconnect (thrown in a completion callback, it would be lost)
+			try {
+				tmpOut.close();
+				Files.deleteIfExists(tmpPart);
+			} catch (IOException ex) {
+				// Failing anyway
+			}
+			theJob.meFuture.completeExceptionally(e);
+			return;
+		}
+		tmpRetr.whenComplete((resp, err) -> {
+			try {
+				tmpOut.close();
+				if (err == null && !resp.isOk()) {
+					err = new IOException("The server refused 'RETR': " + resp);
+				}
+				if (err != null) {
+					Files.deleteIfExists(tmpPart);
+					theJob.meFuture.completeExceptionally(err);
+					return;
+				}
+				Files.move(tmpPart, tmpFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				theJob.meSeen.add(tmpEntry.getKey());
+			} catch (IOException e) {
+				theJob.meFuture.completeExceptionally(e);
+				return;
+			}
+			CompletableFuture<Reply> tmpDelete = null;
+			synchronized (theJob) {
+				theJob.meCount++;
+				if (theJob.meIsDelete) {
+					try {
+						tmpDelete = this.submit("DELE " + tmpEntry.getValue());
+					} catch (RuntimeException e) { // Lost in this completion callback if thrown
+						theJob.meFuture.completeExceptionally(e);
+						return;
+					}
+					theJob.meDeletes.add(tmpDelete);
+				}
+				if (--theJob.meLeft == 0) {
+					CompletableFuture.allOf(theJob.meDeletes.toArray(CompletableFuture[]::new)).whenComplete((none, delErr) -> {
+						if (delErr != null) {
+							theJob.meFuture.completeExceptionally(delErr);
+						} else {
+							theJob.meFuture.complete(theJob.meCount);
+						}
+					});
+				}
+			}
+			if (tmpDelete != null && !this.meIsPipelining) { // Without pipelining, a command waits for the reply of the one before
+				tmpDelete.whenComplete((delResp, delErr) -> this.retrieveNext(theJob));
+			} else {
+				this.retrieveNext(theJob);
+			}
+		});
+	}
+
+	/**
+	 * Handles a line received from the server (runs on the connection's read-thread).
+	 * @param lineData	the received whole line (a 'ReceivedLine' view, or the words).
+	 */
+	private void handleLine(Object lineData) {
+		var tmpPend = this.mePending.peekFirst();
+		if (tmpPend == null) {
+			return; // POP3 servers send nothing unasked
+		}
+		byte[] tmpBuf;
+		int tmpOff;
+		int tmpLen;
+		if (lineData instanceof ReceivedLine) {
+			var tmpView = (ReceivedLine)lineData;
+			tmpBuf = tmpView.getBuffer();
+			tmpOff = tmpView.getWordCount() == 0 ? 0 : tmpView.getWordOffset(0);
+			tmpLen = tmpView.getWordCount() == 0 ? 0 : tmpView.getWordLength(0);
+		} else {
+			var tmpWords = (byte[][])lineData;
+			tmpBuf = tmpWords.length == 0 ? Pop3Client.CRLF : tmpWords[0];
+			tmpOff = 0;
+			tmpLen = tmpWords.length == 0 ? 0 : tmpBuf.length;
+		}
+		if (tmpPend.meStatus == null) {
+			var tmpStatus = Pop3Client.splitWords(tmpBuf, tmpOff, tmpLen);
+			if (tmpPend.meIsMulti && tmpStatus.length > 0 && ResponseWords.equalsIgnoreCase(tmpStatus[0], Pop3Client.WORD_OK)) {
+				tmpPend.meStatus = tmpStatus;
+			} else {
+				this.mePending.pollFirst();
+				tmpPend.meFuture.complete(new Reply(tmpStatus, tmpPend.meLines));
+			}
+			return;
+		}
+		if (tmpLen > 0 && tmpBuf[tmpOff] == '.') {
+			if (tmpLen == 1) { // The end of the multi-line reply
+				this.mePending.pollFirst();
+				if (tmpPend.meSinkError != null) {
+					tmpPend.meFuture.completeExceptionally(tmpPend.meSinkError);
+				} else {
+					tmpPend.meFuture.complete(new Reply(tmpPend.meStatus, tmpPend.meLines));
+				}
+				return;
+			}
+			tmpOff++; // Removes the dot-stuffing
+			tmpLen--;
+		}
+		if (tmpPend.meSink == null) {
+			tmpPend.meLines.add(Pop3Client.splitWords(tmpBuf, tmpOff, tmpLen));
+		} else if (tmpPend.meSinkError == null) {
+			try {
+				tmpPend.meSink.write(tmpBuf, tmpOff, tmpLen);
+				tmpPend.meSink.write(Pop3Client.CRLF);
+			} catch (IOException e) {
+				tmpPend.meSinkError = e; // The rest of the reply is still consumed
+			}
+		}
+	}
+
+	/**
+	 * Splits the specified part of a whole line into its space-separated words.
+	 */
+	private static byte[][] splitWords(byte[] lineBuffer, int lineOffset, int lineLength) {
+		var outWords = new ArrayList<byte[]>(4);
+		var tmpStart = lineOffset;
+		var tmpEnd = lineOffset + lineLength;
+		for (var i = lineOffset; i <= tmpEnd; i++) {
+			if (i == tmpEnd || lineBuffer[i] == 32) {
+				if (i > tmpStart) {
+					outWords.add(Arrays.copyOfRange(lineBuffer, tmpStart, i));
+				}
+				tmpStart = i + 1;
+			}
+		}
+		return outWords.toArray(new byte[outWords.size()][]);
+	}
+
+	/**
+	 * Makes a file name out of a UID (UIDs are printable ASCII, but may hold characters that file names cannot).
+	 */
+	private static String fileNameOf(String messageUid) {
+		var outBuild = new StringBuilder(messageUid.length() + 4);
+		for (var i = 0; i < messageUid.length(); i++) {
+			var tmpChar = messageUid.charAt(i);
+			if (tmpChar >= 'a' && tmpChar <= 'z' || tmpChar >= 'A' && tmpChar <= 'Z' || tmpChar >= '0' && tmpChar <= '9' || tmpChar == '-' || tmpChar == '.') {
+				outBuild.append(tmpChar);
+			} else {
+				outBuild.append('_').append(Character.forDigit(tmpChar >> 4, 16)).append(Character.forDigit(tmpChar & 15, 16));
+			}
+		}
+		return outBuild.append(".eml").toString();
+	}
+
+	/**
+	 * Fails all the commands in flight.
+	 * @param theError	the error to fail the commands with.
+	 */
+	private void failAll(IOException theError) {
+		Pending tmpPend;
+		while ((tmpPend = this.mePending.pollFirst()) != null) {
+			tmpPend.meFuture.completeExceptionally(theError);
+		}
+	}
+
+	/**
+	 * Detaches this client from the connection (the connection itself is not closed, and 'QUIT' is not sent) and fails
+	 * the commands still in flight.
+	 */
+	@Override
+	public void close() {
+		this.meConn.removeEventListener(ConnectionEvent.LINE_RECEIVED, this.meLineListener);
+		this.meConn.removeEventListener(ConnectionEvent.RECEIVE_ITERRUPTED, this.meInterListener);
+		this.meConn.setWholeLines(false);
+		this.failAll(new IOException("The POP3 client was closed."));
+	}
+}
@@ -0,0 +1,114 @@
+package model;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A class that holds what the clients of this package share to read the words of the lines mail servers send (IMAP
+ * responses, and POP3 replies): numbers, keywords and the UID of a 'FETCH' response.
+ * @author Janty Azmat
+ */
+class ResponseWords {
+	// Fields
+	private static final byte[] WORD_FETCH = "FETCH".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] WORD_UID = "UID".getBytes(StandardCharsets.US_ASCII);
+
+	private ResponseWords() {
+	}
+
+	/**
+	 * Parses the specified word as a non-negative decimal number.
+	 * @param theWord	the word.
+	 * @return			the number (or -1 if the word is not a number that fits).
+	 */
+	static long parseNumber(byte[] theWord) {
+		return ResponseWords.parseDigits(theWord, theWord.length);
+	}
+
+	/**
+	 * Parses the specified start of a word as a non-negative decimal number (up to 'Long.MAX_VALUE', like the largest
+	 * mod-sequence RFC 7162 allows).
+	 * @return	the number (or -1 if the start is not a number that fits).
+	 */
+	private static long parseDigits(byte[] theWord, int digitCount) {
+		if (digitCount == 0 || digitCount > 19) {
+			return -1L;
+		}
+		var outNum = 0L;
+		for (var i = 0; i < digitCount; i++) {
+			var tmpDigit = theWord[i] - '0';
+			if (tmpDigit < 0 || tmpDigit > 9 || outNum > (Long.MAX_VALUE - tmpDigit) / 10L) {
+				return -1L;
+			}
+			outNum = outNum * 10L + tmpDigit;
+		}
+		return outNum;
+	}
+
+	/**
+	 * Checks if the specified word is the specified keyword, ignoring the case of the word.
+	 * @param theWord		the word.
+	 * @param upperAscii	the keyword in upper-case ASCII.
+	 * @return				'true' if the word is the keyword.
+	 */
+	static boolean equalsIgnoreCase(byte[] theWord, byte[] upperAscii) {
+		if (theWord.length != upperAscii.length) {
+			return false;
+		}
+		for (var i = 0; i < theWord.length; i++) {
+			var tmpByte = theWord[i];
+			if (tmpByte >= 'a' && tmpByte <= 'z') {
+				tmpByte -= 32;
+			}
+			if (tmpByte != upperAscii[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the UID in a 'FETCH' response line.
+	 * @param theLine	the words of the line.
+	 * @return			the UID (or -1 if the line is not a 'FETCH' response with a UID).
+	 */
+	static long fetchUid(byte[][] theLine) {
+		if (theLine.length < 3 || !ResponseWords.equalsIgnoreCase(theLine[2], ResponseWords.WORD_FETCH)) {
+			return -1L;
+		}
+		return ResponseWords.findNumber(theLine, ResponseWords.WORD_UID);
+	}
+
+	/**
+	 * Finds the number after the specified key in a line (ignoring the brackets and parentheses around them, like in
+	 * '[UIDNEXT 4392]' or '(UID 17 FLAGS').
+	 * @param theLine	the words of the line.
+	 * @param upperKey	the key in upper-case ASCII.
+	 * @return			the number (or -1 if the key or the number is not found).
+	 */
+	static long findNumber(byte[][] theLine, byte[] upperKey) {
+		for (var i = 1; i < theLine.length - 1; i++) {
+			var tmpWord = theLine[i];
+			var tmpStart = 0;
+			while (tmpStart < tmpWord.length && (tmpWord[tmpStart] == '[' || tmpWord[tmpStart] == '(')) {
+				tmpStart++;
+			}
+			if (tmpWord.length - tmpStart != upperKey.length) {
+				continue;
+			}
+			var tmpIsKey = true;
+			for (var j = 0; j < upperKey.length && tmpIsKey; j++) {
+				var tmpByte = tmpWord[tmpStart + j];
+				tmpIsKey = (tmpByte >= 'a' && tmpByte <= 'z' ? tmpByte - 32 : tmpByte) == upperKey[j];
+			}
+			if (tmpIsKey) {
+				var tmpNext = theLine[i + 1];
+				var tmpEnd = tmpNext.length;
+				while (tmpEnd > 0 && (tmpNext[tmpEnd - 1] == ']' || tmpNext[tmpEnd - 1] == ')')) {
+					tmpEnd--;
+				}
+				return ResponseWords.parseDigits(tmpNext, tmpEnd);
+			}
+		}
+		return -1L;
+	}
+}
@@ -0,0 +1,1256 @@
+package model;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import lib.TextDecoder;
+
+/**
+ * A class that represents a full-text index of the messages of one mailbox (their subject, sender and text), kept on
+ * disk as an inverted index: every term maps to the UIDs of the messages that have it (delta-encoded as varints), and
+ * to the term's positions in each of them (for phrase queries). New messages are indexed in memory, and written out as
+ * an immutable segment file every few thousand messages; when there are too many segments, the smallest ones are merged
+ * in the background (dropping the removed messages). The segments are read through memory mappings, and a manifest
+ * file (replaced atomically) lists the live ones, so a crash loses only what was not yet written out ('indexStore'
+ * indexes it again).
+ * Queries are words (all of them must match), 'OR' between groups of words, and quoted phrases; a word or phrase can be
+ * limited to a field with a prefix ('subject:', 'from:' or 'body:'). Indexing runs on a background thread, and so do
+ * queries (on another one), so neither blocks the caller.
+ * @author Janty Azmat
+ */
+public class SearchIndex implements AutoCloseable {
+
+	/**
+	 * An enumeration that represents the indexed fields of a message.
+	 * @author Janty Azmat
+	 */
+	public static enum Field {
+		SUBJECT,
+		FROM,
+		BODY
+	}
+
+	/**
+	 * Holds an open segment.
+	 */
+	private static class Segment {
+		// Fields
+		private int meNumber;
+		private Path meFile;
+		private ByteBuffer meMap;
+		private long[] meUids;			// The UIDs of its messages (ascending)
+		private int meTermCount;
+		private int meEntries;			// The offset of the term entries
+	}
+
+	/**
+	 * Holds the postings of a term in a segment: the UIDs (ascending), and the term's positions in each.
+	 */
+	private static class Postings {
+		// Fields
+		private long[] meUids;
+		private int[][] mePositions;	// 'null' if only the UIDs were read
+		private int mePositionsOffset;	// Where the positions start in the segment
+	}
+
+	/**
+	 * A growable list of ints.
+	 */
+	private static class IntList {
+		// Fields
+		private int[] meValues = new int[4];
+		private int meCount;
+
+		private void add(int theValue) {
+			if (this.meCount == this.meValues.length) {
+				this.meValues = Arrays.copyOf(this.meValues, this.meCount << 1);
+			}
+			this.meValues[this.meCount++] = theValue;
+		}
+
+		private int[] toArray() {
+			return Arrays.copyOf(this.meValues, this.meCount);
+		}
+	}
+
+	/**
+	 * Holds a part of a query: a word or a phrase (as its terms), and the field it is limited to ('null' for any).
+	 */
+	private static class Unit {
+		// Fields
+		private Field meField;
+		private String[] meTerms;
+	}
+
+	// Fields
+	private static final int SEGMENT_MAGIC = 0x45455353;		// 'EESS'
+	private static final int MANIFEST_MAGIC = 0x4545534D;		// 'EESM'
+	private static final int VERSION = 1;
+	private static final int SEGMENT_HEADER = 32;				// Magic, version, doc count, term count, docs offset, terms offset, entries offset, 0
+	private static final int ENTRY_SIZE = 12;					// Term offset, term length, postings offset
+	private static final int FLUSH_DOCS = 4000;					// Messages indexed in memory before they are written out
+	private static final int FLUSH_POSITIONS = 2000000;
+	private static final int MAX_SEGMENTS = 8;
+	private static final int MERGE_FACTOR = 4;
+	private static final long MAX_MERGED_BYTES = 1L << 30;		// Segments are mapped whole, so they stay well below 2 GB
+	private static final int MAX_TOKEN = 64;					// Longer runs (like base64 or hashes) are not words
+	private static final int MAX_TEXT_BYTES = 1 << 20;			// The text indexed per message
+	private static final String MANIFEST_FILE = "manifest.dat";
+	private Path meDirectory;
+	private long meUidValidity;
+	private int meNextNumber;
+	private volatile List<Segment> meSegments;					// Replaced (never changed) when segments are written or merged
+	private TreeMap<Long, Map<String, int[]>> meMemory;			// The messages not written out yet: term (field + word) to positions
+	private int meMemoryPositions;
+	private volatile long[] meRemoved;							// Removed, but still in a segment (ascending; replaced, never changed)
+	private boolean meIsRemovedDirty;							// Removed since the manifest was saved (only used by the writer thread)
+	private AtomicInteger meRemovesDue;							// Removals queued and not run yet
+	private ExecutorService meWriter;
+	private ExecutorService meSearcher;
+
+	/**
+	 * A constructor that takes the index's directory and the mailbox's UIDVALIDITY as parameters (opening the index in
+	 * the directory, or creating it).
+	 * @param indexDirectory	the index's directory (one per mailbox).
+	 * @param uidValidity		the mailbox's UIDVALIDITY (the index is emptied if it was kept for another one).
+	 * @throws IOException		when the index cannot be opened or created.
+	 */
+	public SearchIndex(Path indexDirectory, long uidValidity) throws IOException {
+		this.meDirectory = indexDirectory;
+		this.meUidValidity = uidValidity;
+		this.meSegments = List.of();
+		this.meMemory = new TreeMap<>();
+		this.meRemoved = new long[0];
+		this.meRemovesDue = new AtomicInteger();
+		this.meNextNumber = 1;
+		Files.createDirectories(indexDirectory);
+		var tmpLive = new ArrayList<Segment>();
+		if (!this.loadManifest(tmpLive)) {
+			tmpLive.clear();
+			this.meRemoved = new long[0];
+		}
+		this.meSegments = List.copyOf(tmpLive);
+		try (var tmpFiles = Files.newDirectoryStream(indexDirectory)) {
+			for (var tmpFile : tmpFiles) {
+				var tmpName = tmpFile.getFileName().toString();
+				if (tmpName.endsWith(".tmp") || tmpName.endsWith(".seg") && tmpLive.stream().noneMatch(seg -> seg.meFile.equals(tmpFile))) {
+					SearchIndex.deleteQuietly(tmpFile); // Left by a crash, or merged (and still mapped then, on Windows)
+				}
+			}
+		}
+		this.meWriter = Executors.newSingleThreadExecutor(task -> {
+			var outThrd = new Thread(task, "SearchIndex-writer");
+			outThrd.setDaemon(true);
+			return outThrd;
+		});
+		this.meSearcher = Executors.newSingleThreadExecutor(task -> {
+			var outThrd = new Thread(task, "SearchIndex-searcher");
+			outThrd.setDaemon(true);
+			return outThrd;
+		});
+	}
+
+	/**
+	 * Loads the manifest and opens the segments it lists.
+	 * @return	'true' if the manifest belongs to the index's UIDVALIDITY and all its segments opened.
+	 */
+	private boolean loadManifest(List<Segment> outSegments) {
+		try {
+			var tmpBytes = Files.readAllBytes(this.meDirectory.resolve(SearchIndex.MANIFEST_FILE));
+			var tmpCrc = new CRC32();
+			tmpCrc.update(tmpBytes, 0, tmpBytes.length - 4);
+			var tmpBuf = ByteBuffer.wrap(tmpBytes);
+			if (tmpBuf.getInt(tmpBytes.length - 4) != (int)tmpCrc.getValue() || tmpBuf.getInt() != SearchIndex.MANIFEST_MAGIC || tmpBuf.getLong() != this.meUidValidity) {
+				return false;
+			}
+			this.meNextNumber = tmpBuf.getInt();
+			for (var i = tmpBuf.getInt(); i > 0; i--) {
+				outSegments.add(this.openSegment(tmpBuf.getInt()));
+			}
+			var tmpRemoved = new long[tmpBuf.getInt()];
+			for (var i = 0; i < tmpRemoved.length; i++) {
+				tmpRemoved[i] = tmpBuf.getLong();
+			}
+			this.meRemoved = tmpRemoved;
+			return true;
+		} catch (IOException | RuntimeException e) {
+			return false; // A new index (or a damaged one, which is built again)
+		}
+	}
+
+	/**
+	 * Writes the manifest to a temporary file and moves it over the manifest (so a crash never leaves a half-written one).
+	 */
+	private void saveManifest() throws IOException {
+		List<Segment> tmpSegments = this.meSegments;
+		var tmpRemoved = this.meRemoved;
+		var tmpBuf = ByteBuffer.allocate(28 + 4 * tmpSegments.size() + 8 * tmpRemoved.length);
+		tmpBuf.putInt(SearchIndex.MANIFEST_MAGIC).putLong(this.meUidValidity).putInt(this.meNextNumber).putInt(tmpSegments.size());
+		for (var tmpSeg : tmpSegments) {
+			tmpBuf.putInt(tmpSeg.meNumber);
+		}
+		tmpBuf.putInt(tmpRemoved.length);
+		for (var tmpUid : tmpRemoved) {
+			tmpBuf.putLong(tmpUid);
+		}
+		var tmpCrc = new CRC32();
+		tmpCrc.update(tmpBuf.array(), 0, tmpBuf.position());
+		tmpBuf.putInt((int)tmpCrc.getValue());
+		var tmpFile = this.meDirectory.resolve(SearchIndex.MANIFEST_FILE);
+		var tmpTemp = this.meDirectory.resolve(SearchIndex.MANIFEST_FILE + ".tmp");
+		try (var tmpOut = FileChannel.open(tmpTemp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			tmpOut.write(tmpBuf.flip());
+			tmpOut.force(true);
+		}
+		Files.move(tmpTemp, tmpFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.meIsRemovedDirty = false;
+	}
+
+	private Segment openSegment(int segNumber) throws IOException {
+		var outSeg = new Segment();
+		outSeg.meNumber = segNumber;
+		outSeg.meFile = this.meDirectory.resolve(segNumber + ".seg");
+		try (var tmpChannel = FileChannel.open(outSeg.meFile, StandardOpenOption.READ)) {
+			outSeg.meMap = tmpChannel.map(FileChannel.MapMode.READ_ONLY, 0L, tmpChannel.size());
+		}
+		var tmpMap = outSeg.meMap;
+		if (tmpMap.getInt(0) != SearchIndex.SEGMENT_MAGIC || tmpMap.getInt(4) != SearchIndex.VERSION) {
+			throw new IOException("Not a segment file: " + outSeg.meFile);
+		}
+		outSeg.meUids = new long[tmpMap.getInt(8)];
+		outSeg.meTermCount = tmpMap.getInt(12);
+		outSeg.meEntries = tmpMap.getInt(24);
+		var tmpIn = tmpMap.duplicate().position(tmpMap.getInt(16));
+		var tmpUid = 0L;
+		for (var i = 0; i < outSeg.meUids.length; i++) {
+			tmpUid += SearchIndex.readVarint(tmpIn);
+			outSeg.meUids[i] = tmpUid;
+		}
+		return outSeg;
+	}
+
+	/**
+	 * Indexes the specified message in the background (a message already indexed is skipped, since the message of a UID
+	 * never changes).
+	 * @param messageUid	the message's UID.
+	 * @param rawMessage	the raw message (like one read from a 'MessageStore'; it is read later, on the index's thread).
+	 * @return				a future that completes when the message is indexed (in memory at least).
+	 */
+	public CompletableFuture<Void> add(long messageUid, ByteBuffer rawMessage) {
+		return CompletableFuture.runAsync(() -> {
+			if (!this.isIndexed(messageUid)) {
+				this.addRaw(messageUid, rawMessage);
+			}
+		}, this.meWriter);
+	}
+
+	/**
+	 * Indexes the specified text of a message in the background (a message already indexed is skipped).
+	 * @param messageUid	the message's UID.
+	 * @param subjectText	the message's subject (decoded).
+	 * @param fromText		the message's sender (decoded).
+	 * @param bodyText		the message's text.
+	 * @return				a future that completes when the message is indexed (in memory at least).
+	 */
+	public CompletableFuture<Void> add(long messageUid, String subjectText, String fromText, String bodyText) {
+		return CompletableFuture.runAsync(() -> {
+			if (!this.isIndexed(messageUid)) {
+				this.addText(messageUid, subjectText, fromText, bodyText);
+			}
+		}, this.meWriter);
+	}
+
+	/**
+	 * Indexes the messages of the specified store that are not indexed yet (like the ones lost to a crash) in the
+	 * background.
+	 * @param messageStore	the store of the mailbox's messages.
+	 * @return				a future that completes with the number of messages indexed.
+	 */
+	public CompletableFuture<Integer> indexStore(MessageStore messageStore) {
+		return CompletableFuture.supplyAsync(() -> {
+			var outCount = 0;
+			for (var tmpUid : messageStore.getUids()) {
+				if (!this.isIndexed(tmpUid)) {
+					try {
+						var tmpRaw = messageStore.read(tmpUid);
+						if (tmpRaw != null) {
+							this.addRaw(tmpUid, tmpRaw);
+							outCount++;
+						}
+					} catch (IOException e) {
+						throw new IllegalStateException("Reading message " + tmpUid + " from the store failed.", e);
+					}
+				}
+			}
+			return outCount;
+		}, this.meWriter);
+	}
+
+	/**
+	 * Removes the specified messages from the query results (their terms are dropped from the segments when they are
+	 * merged).
+	 * @param messageUids	the messages' UIDs.
+	 * @return				a future that completes when the removal is saved (removals queued one after another are
+	 * 						saved together, with the last of them).
+	 */
+	public CompletableFuture<Void> remove(long... messageUids) {
+		this.meRemovesDue.incrementAndGet();
+		return CompletableFuture.runAsync(() -> {
+			var tmpRemoved = new long[messageUids.length];
+			var tmpCount = 0;
+			synchronized (this) {
+				for (var tmpUid : messageUids) {
+					if (this.meMemory.remove(tmpUid) == null && this.meSegments.stream().anyMatch(seg -> Arrays.binarySearch(seg.meUids, tmpUid) >= 0)) {
+						tmpRemoved[tmpCount++] = tmpUid;
+					}
+				}
+				if (tmpCount > 0) {
+					Arrays.sort(tmpRemoved, 0, tmpCount);
+					this.meRemoved = SearchIndex.union(this.meRemoved, Arrays.copyOf(tmpRemoved, tmpCount));
+					this.meIsRemovedDirty = true;
+				}
+			}
+			if (this.meRemovesDue.decrementAndGet() == 0 && this.meIsRemovedDirty) {
+				try {
+					this.saveManifest();
+				} catch (IOException e) {
+					throw new IllegalStateException("Saving the index's manifest failed.", e);
+				}
+			}
+		}, this.meWriter);
+	}
+
+	/**
+	 * Writes the messages indexed in memory to a segment in the background.
+	 * @return	a future that completes when they are written.
+	 */
+	public CompletableFuture<Void> flush() {
+		return CompletableFuture.runAsync(this::writeMemory, this.meWriter);
+	}
+
+	/**
+	 * Checks if the specified message is indexed (or was, and was removed since).
+	 * @param messageUid	the message's UID.
+	 * @return				'true' if the message is indexed.
+	 */
+	public boolean isIndexed(long messageUid) {
+		synchronized (this) {
+			if (this.meMemory.containsKey(messageUid)) {
+				return true;
+			}
+		}
+		for (var tmpSeg : this.meSegments) {
+			if (Arrays.binarySearch(tmpSeg.meUids, messageUid) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Used to get the number of indexed messages (not counting the removed ones).
+	 * @return	the number of messages.
+	 */
+	public synchronized int getCount() {
+		var outCount = this.meMemory.size() - this.meRemoved.length;
+		for (var tmpSeg : this.meSegments) {
+			outCount += tmpSeg.meUids.length;
+		}
+		return outCount;
+	}
+
+	/**
+	 * Used to get the number of segments on disk.
+	 * @return	the number of segments.
+	 */
+	public int getSegmentCount() {
+		return this.meSegments.size();
+	}
+
+	/**
+	 * Runs the specified query in the background (see the class's description for its syntax).
+	 * @param queryText	the query (like 'invoice from:alice', 'report OR summary', or 'subject:"team meeting"').
+	 * @return			a future that completes with the UIDs of the matching messages (ascending).
+	 */
+	public CompletableFuture<long[]> search(String queryText) {
+		return CompletableFuture.supplyAsync(() -> this.evaluate(SearchIndex.parseQuery(queryText)), this.meSearcher);
+	}
+
+	/**
+	 * Writes what is indexed in memory, and stops the index's threads (the queries and additions not run yet are dropped).
+	 * @throws IOException	when writing fails.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			this.flush().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (java.util.concurrent.ExecutionException e) {
+			throw new IOException("Writing the index failed.", e.getCause());
+		} finally {
+			this.meWriter.shutdown();
+			this.meSearcher.shutdownNow();
+			try {
+				this.meWriter.awaitTermination(1L, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Extracts the text of a raw message and indexes it (on the writer thread).
+	 */
+	private void addRaw(long messageUid, ByteBuffer rawMessage) {
+		var tmpText = new Extractor();
+		try (var tmpParser = new MimeStreamParser(tmpText)) {
+			var tmpSrc = rawMessage.duplicate();
+			var tmpChunk = new byte[8192];
+			while (tmpSrc.hasRemaining()) {
+				var tmpCount = Math.min(tmpChunk.length, tmpSrc.remaining());
+				tmpSrc.get(tmpChunk, 0, tmpCount);
+				tmpParser.write(tmpChunk, 0, tmpCount);
+			}
+		}
+		this.addText(messageUid, tmpText.meSubject.toString(), tmpText.meFrom.toString(), tmpText.meBody.toString());
+	}
+
+	/**
+	 * Indexes the text of a message in memory (on the writer thread), and writes out the memory when it is full.
+	 */
+	private void addText(long messageUid, String subjectText, String fromText, String bodyText) {
+		var tmpTerms = new HashMap<String, IntList>();
+		var tmpCount = SearchIndex.tokenize(subjectText, Field.SUBJECT, tmpTerms) + SearchIndex.tokenize(fromText, Field.FROM, tmpTerms)
+				+ SearchIndex.tokenize(bodyText, Field.BODY, tmpTerms);
+		var tmpDoc = new HashMap<String, int[]>(tmpTerms.size() * 4 / 3 + 1);
+		tmpTerms.forEach((term, positions) -> tmpDoc.put(term, positions.toArray()));
+		boolean tmpIsFull;
+		synchronized (this) {
+			this.meMemory.put(messageUid, tmpDoc);
+			this.meMemoryPositions += tmpCount;
+			tmpIsFull = this.meMemory.size() >= SearchIndex.FLUSH_DOCS || this.meMemoryPositions >= SearchIndex.FLUSH_POSITIONS;
+		}
+		if (tmpIsFull) {
+			this.writeMemory();
+		}
+	}
+
+	/**
+	 * Writes the messages indexed in memory to a new segment (on the writer thread), then merges segments if there are
+	 * too many.
+	 */
+	private void writeMemory() {
+		TreeMap<Long, Map<String, int[]>> tmpMemory;
+		synchronized (this) {
+			tmpMemory = this.meMemory;
+		}
+		if (tmpMemory.isEmpty()) {
+			return;
+		}
+		var tmpTerms = new HashMap<String, ArrayList<Object>>(); // Term to its UIDs and positions (alternating), by ascending UID
+		for (var tmpDoc : tmpMemory.entrySet()) {
+			for (var tmpTerm : tmpDoc.getValue().entrySet()) {
+				var tmpList = tmpTerms.computeIfAbsent(tmpTerm.getKey(), term -> new ArrayList<>());
+				tmpList.add(tmpDoc.getKey());
+				tmpList.add(tmpTerm.getValue());
+			}
+		}
+		var tmpSorted = new ArrayList<byte[]>(tmpTerms.size());
+		var tmpByBytes = new HashMap<ByteBuffer, ArrayList<Object>>(tmpTerms.size() * 4 / 3 + 1);
+		tmpTerms.forEach((term, list) -> {
+			var tmpBytes = SearchIndex.termBytes(term);
+			tmpSorted.add(tmpBytes);
+			tmpByBytes.put(ByteBuffer.wrap(tmpBytes), list);
+		});
+		tmpSorted.sort(Arrays::compareUnsigned);
+		var tmpUids = tmpMemory.keySet().stream().mapToLong(Long::longValue).toArray();
+		try {
+			var tmpSeg = this.writeSegment(tmpUids, tmpSorted.size(), i -> {
+				var tmpList = tmpByBytes.get(ByteBuffer.wrap(tmpSorted.get(i)));
+				var outPost = new Postings();
+				outPost.meUids = new long[tmpList.size() / 2];
+				outPost.mePositions = new int[outPost.meUids.length][];
+				for (var j = 0; j < outPost.meUids.length; j++) {
+					outPost.meUids[j] = (Long)tmpList.get(j * 2);
+					outPost.mePositions[j] = (int[])tmpList.get(j * 2 + 1);
+				}
+				return outPost;
+			}, tmpSorted::get);
+			var tmpList = new ArrayList<>(this.meSegments);
+			tmpList.add(tmpSeg);
+			synchronized (this) {
+				this.meSegments = List.copyOf(tmpList);
+				this.meMemory = new TreeMap<>();
+				this.meMemoryPositions = 0;
+			}
+			this.saveManifest();
+			this.mergeIfNeeded();
+		} catch (IOException e) {
+			throw new IllegalStateException("Writing an index segment failed.", e);
+		}
+	}
+
+	/**
+	 * Supplies the postings of the i-th term of a segment being written.
+	 */
+	private static interface PostingsSource {
+		Postings get(int termIndex) throws IOException;
+	}
+
+	/**
+	 * Supplies the bytes of the i-th term of a segment being written.
+	 */
+	private static interface TermSource {
+		byte[] get(int termIndex) throws IOException;
+	}
+
+	/**
+	 * Writes a segment file (a temporary one, forced to disk and then renamed) and opens it.
+	 */
+	private Segment writeSegment(long[] segUids, int termCount, PostingsSource thePostings, TermSource theTerms) throws IOException {
+		var tmpNumber = this.meNextNumber++;
+		var tmpFile = this.meDirectory.resolve(tmpNumber + ".seg");
+		var tmpTemp = this.meDirectory.resolve(tmpNumber + ".seg.tmp");
+		var tmpTermBlob = new ByteArrayOutputStream();
+		var tmpEntries = new int[termCount * 3];
+		int tmpDocsOffset, tmpTermsOffset, tmpEntriesOffset;
+		try (var tmpOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpTemp), 1 << 16))) {
+			tmpOut.write(new byte[SearchIndex.SEGMENT_HEADER]); // Filled in at the end
+			for (var i = 0; i < termCount; i++) {
+				var tmpPost = thePostings.get(i);
+				var tmpTerm = theTerms.get(i);
+				tmpEntries[i * 3] = tmpTermBlob.size();
+				tmpEntries[i * 3 + 1] = tmpTerm.length;
+				tmpEntries[i * 3 + 2] = tmpOut.size();
+				tmpTermBlob.write(tmpTerm, 0, tmpTerm.length);
+				SearchIndex.writeVarint(tmpOut, tmpPost.meUids.length);
+				var tmpPrev = 0L;
+				for (var tmpUid : tmpPost.meUids) {
+					SearchIndex.writeVarint(tmpOut, tmpUid - tmpPrev);
+					tmpPrev = tmpUid;
+				}
+				for (var tmpPositions : tmpPost.mePositions) {
+					SearchIndex.writeVarint(tmpOut, tmpPositions.length);
+					var tmpPrevPos = 0;
+					for (var tmpPos : tmpPositions) {
+						SearchIndex.writeVarint(tmpOut, tmpPos - tmpPrevPos);
+						tmpPrevPos = tmpPos;
+					}
+				}
+			}
+			tmpDocsOffset = tmpOut.size();
+			var tmpPrev = 0L;
+			for (var tmpUid : segUids) {
+				SearchIndex.writeVarint(tmpOut, tmpUid - tmpPrev);
+				tmpPrev = tmpUid;
+			}
+			tmpTermsOffset = tmpOut.size();
+			tmpTermBlob.writeTo(tmpOut);
+			tmpEntriesOffset = tmpOut.size();
+			for (var i = 0; i < termCount; i++) {
+				tmpOut.writeInt(tmpTermsOffset + tmpEntries[i * 3]);
+				tmpOut.writeInt(tmpEntries[i * 3 + 1]);
+				tmpOut.writeInt(tmpEntries[i * 3 + 2]);
+			}
+			if (tmpOut.size() == Integer.MAX_VALUE) {
+				throw new IOException("The segment is too big.");
+			}
+		} catch (IOException e) {
+			SearchIndex.deleteQuietly(tmpTemp);
+			throw e;
+		}
+		try (var tmpChannel = FileChannel.open(tmpTemp, StandardOpenOption.WRITE)) {
+			var tmpHeader = ByteBuffer.allocate(SearchIndex.SEGMENT_HEADER).putInt(SearchIndex.SEGMENT_MAGIC).putInt(SearchIndex.VERSION).putInt(segUids.length)
+					.putInt(termCount).putInt(tmpDocsOffset).putInt(tmpTermsOffset).putInt(tmpEntriesOffset).putInt(0).flip();
+			tmpChannel.write(tmpHeader, 0L);
+			tmpChannel.force(true);
+		}
+		Files.move(tmpTemp, tmpFile, StandardCopyOption.ATOMIC_MOVE);
+		return this.openSegment(tmpNumber);
+	}
+
+	/**
+	 * Merges the smallest segments (as long as there are too many, and the merged one would not be too big), dropping the
+	 * removed messages.
+	 */
+	private void mergeIfNeeded() throws IOException {
+		while (this.meSegments.size() > SearchIndex.MAX_SEGMENTS) {
+			var tmpBySize = new ArrayList<>(this.meSegments);
+			tmpBySize.sort(Comparator.comparingInt(seg -> seg.meMap.capacity()));
+			var tmpMerged = new ArrayList<Segment>();
+			var tmpBytes = 0L;
+			for (var tmpSeg : tmpBySize) {
+				if (tmpMerged.size() == SearchIndex.MERGE_FACTOR || tmpBytes + tmpSeg.meMap.capacity() > SearchIndex.MAX_MERGED_BYTES) {
+					break;
+				}
+				tmpMerged.add(tmpSeg);
+				tmpBytes += tmpSeg.meMap.capacity();
+			}
+			if (tmpMerged.size() < 2) {
+				return;
+			}
+			var tmpSeg = this.merge(tmpMerged);
+			var tmpList = new ArrayList<Segment>();
+			for (var tmpOld : this.meSegments) {
+				if (!tmpMerged.contains(tmpOld)) {
+					tmpList.add(tmpOld);
+				}
+			}
+			tmpList.add(tmpSeg);
+			synchronized (this) {
+				this.meSegments = List.copyOf(tmpList);
+				this.meRemoved = Arrays.stream(this.meRemoved).filter(uid -> tmpList.stream().anyMatch(seg -> Arrays.binarySearch(seg.meUids, uid) >= 0)).toArray();
+			}
+			this.saveManifest();
+			for (var tmpOld : tmpMerged) {
+				SearchIndex.deleteQuietly(tmpOld.meFile); // The queries running on it keep their mapping
+			}
+		}
+	}
+
+	/**
+	 * Writes the specified segments as one (their terms merged in order, and their messages merged by UID).
+	 */
+	private Segment merge(List<Segment> theSegments) throws IOException {
+		var tmpRemoved = this.meRemoved;
+		var tmpUids = new long[0];
+		for (var tmpSeg : theSegments) {
+			tmpUids = SearchIndex.union(tmpUids, tmpSeg.meUids);
+		}
+		tmpUids = SearchIndex.minus(tmpUids, tmpRemoved);
+		var tmpCursors = new int[theSegments.size()]; // The next term of each segment
+		var tmpTerms = new ArrayList<byte[]>();
+		var tmpFrom = new ArrayList<int[]>(); // For each merged term: the term index in each segment (-1 if it is not there)
+		while (true) {
+			byte[] tmpLeast = null;
+			for (var i = 0; i < tmpCursors.length; i++) {
+				if (tmpCursors[i] < theSegments.get(i).meTermCount) {
+					var tmpTerm = SearchIndex.termAt(theSegments.get(i), tmpCursors[i]);
+					if (tmpLeast == null || Arrays.compareUnsigned(tmpTerm, tmpLeast) < 0) {
+						tmpLeast = tmpTerm;
+					}
+				}
+			}
+			if (tmpLeast == null) {
+				break;
+			}
+			var tmpIndexes = new int[tmpCursors.length];
+			for (var i = 0; i < tmpCursors.length; i++) {
+				if (tmpCursors[i] < theSegments.get(i).meTermCount && Arrays.equals(SearchIndex.termAt(theSegments.get(i), tmpCursors[i]), tmpLeast)) {
+					tmpIndexes[i] = tmpCursors[i]++;
+				} else {
+					tmpIndexes[i] = -1;
+				}
+			}
+			tmpTerms.add(tmpLeast);
+			tmpFrom.add(tmpIndexes);
+		}
+		return this.writeSegment(tmpUids, tmpTerms.size(), i -> {
+			var outPost = new Postings();
+			outPost.meUids = new long[0];
+			outPost.mePositions = new int[0][];
+			var tmpIndexes = tmpFrom.get(i);
+			for (var j = 0; j < tmpIndexes.length; j++) {
+				if (tmpIndexes[j] >= 0) {
+					var tmpPost = SearchIndex.readPostings(theSegments.get(j), SearchIndex.entryPostings(theSegments.get(j), tmpIndexes[j]), true);
+					outPost = SearchIndex.mergePostings(outPost, tmpPost, tmpRemoved);
+				}
+			}
+			return outPost;
+		}, tmpTerms::get);
+	}
+
+	/**
+	 * Merges two postings of the same term (from different segments, so their UIDs differ), dropping the removed messages.
+	 */
+	private static Postings mergePostings(Postings firstPost, Postings secondPost, long[] removedUids) {
+		var outPost = new Postings();
+		outPost.meUids = new long[firstPost.meUids.length + secondPost.meUids.length];
+		outPost.mePositions = new int[outPost.meUids.length][];
+		int i = 0, j = 0, k = 0;
+		while (i < firstPost.meUids.length || j < secondPost.meUids.length) {
+			var tmpIsFirst = j == secondPost.meUids.length || i < firstPost.meUids.length && firstPost.meUids[i] < secondPost.meUids[j];
+			var tmpUid = tmpIsFirst ? firstPost.meUids[i] : secondPost.meUids[j];
+			var tmpPositions = tmpIsFirst ? firstPost.mePositions[i++] : secondPost.mePositions[j++];
+			if (Arrays.binarySearch(removedUids, tmpUid) < 0) {
+				outPost.meUids[k] = tmpUid;
+				outPost.mePositions[k++] = tmpPositions;
+			}
+		}
+		outPost.meUids = Arrays.copyOf(outPost.meUids, k);
+		outPost.mePositions = Arrays.copyOf(outPost.mePositions, k);
+		return outPost;
+	}
+
+	/**
+	 * Runs a parsed query: the groups are OR-ed, and the units of a group are AND-ed.
+	 */
+	private long[] evaluate(List<List<Unit>> theQuery) {
+		List<Segment> tmpSegments;
+		TreeMap<Long, Map<String, int[]>> tmpMemory;
+		long[] tmpRemoved;
+		synchronized (this) { // Taken together, as writing out the memory or merging replaces them together
+			tmpSegments = this.meSegments;
+			tmpMemory = this.meMemory;
+			tmpRemoved = this.meRemoved;
+		}
+		var tmpGroups = new ArrayList<long[]>();
+		for (var tmpGroup : theQuery) {
+			long[] tmpGroupUids = null;
+			for (var tmpUnit : tmpGroup) {
+				var tmpMatches = new ArrayList<long[]>();
+				for (var tmpField : tmpUnit.meField == null ? Field.values() : new Field[] {tmpUnit.meField}) {
+					for (var tmpSeg : tmpSegments) {
+						tmpMatches.add(SearchIndex.match(tmpSeg, tmpField, tmpUnit.meTerms));
+					}
+					tmpMatches.add(this.matchMemory(tmpMemory, tmpField, tmpUnit.meTerms));
+				}
+				var tmpUnitUids = SearchIndex.unionAll(tmpMatches);
+				tmpGroupUids = tmpGroupUids == null ? tmpUnitUids : SearchIndex.intersect(tmpGroupUids, tmpUnitUids);
+				if (tmpGroupUids.length == 0) {
+					break;
+				}
+			}
+			if (tmpGroupUids != null) {
+				tmpGroups.add(tmpGroupUids);
+			}
+		}
+		return SearchIndex.minus(SearchIndex.unionAll(tmpGroups), tmpRemoved);
+	}
+
+	/**
+	 * Finds the messages of a segment that have the specified terms in the specified field (in a row, for a phrase). The
+	 * positions are read only for the messages that have all the terms (the others' are skipped).
+	 */
+	private static long[] match(Segment theSeg, Field theField, String[] theTerms) {
+		var tmpPosts = new Postings[theTerms.length];
+		var outUids = (long[])null;
+		for (var i = 0; i < theTerms.length; i++) {
+			var tmpEntry = SearchIndex.findTerm(theSeg, SearchIndex.termBytes(SearchIndex.termOf(theField, theTerms[i])));
+			if (tmpEntry < 0) {
+				return new long[0];
+			}
+			tmpPosts[i] = SearchIndex.readPostings(theSeg, SearchIndex.entryPostings(theSeg, tmpEntry), false);
+			outUids = outUids == null ? tmpPosts[i].meUids : SearchIndex.intersect(outUids, tmpPosts[i].meUids);
+		}
+		if (theTerms.length == 1 || outUids.length == 0) {
+			return outUids;
+		}
+		var tmpIns = new ByteBuffer[theTerms.length];	// Each term's positions, at the next message's
+		var tmpNexts = new int[theTerms.length];		// Each term's next message
+		for (var i = 0; i < theTerms.length; i++) {
+			tmpIns[i] = theSeg.meMap.duplicate().position(tmpPosts[i].mePositionsOffset);
+		}
+		var tmpPositions = new int[theTerms.length][];
+		var outCount = 0;
+		for (var tmpUid : outUids) {
+			for (var i = 0; i < theTerms.length; i++) {
+				var tmpUids = tmpPosts[i].meUids;
+				while (tmpUids[tmpNexts[i]] < tmpUid) {
+					SearchIndex.skipPositions(tmpIns[i]);
+					tmpNexts[i]++;
+				}
+				tmpPositions[i] = SearchIndex.readPositions(tmpIns[i]);
+				tmpNexts[i]++;
+			}
+			if (SearchIndex.isInRow(tmpPositions)) {
+				outUids[outCount++] = tmpUid;
+			}
+		}
+		return Arrays.copyOf(outUids, outCount);
+	}
+
+	/**
+	 * Finds the messages indexed in the specified memory that have the specified terms in the specified field (in a row,
+	 * for a phrase). Locked, as the current memory still gets messages added and removed.
+	 */
+	private synchronized long[] matchMemory(TreeMap<Long, Map<String, int[]>> theMemory, Field theField, String[] theTerms) {
+		var tmpKeys = new String[theTerms.length];
+		for (var i = 0; i < theTerms.length; i++) {
+			tmpKeys[i] = SearchIndex.termOf(theField, theTerms[i]);
+		}
+		var outUids = new long[theMemory.size()];
+		var outCount = 0;
+		var tmpPositions = new int[theTerms.length][];
+		for (var tmpDoc : theMemory.entrySet()) {
+			var tmpIsInAll = true;
+			for (var i = 0; i < tmpKeys.length && tmpIsInAll; i++) {
+				tmpPositions[i] = tmpDoc.getValue().get(tmpKeys[i]);
+				tmpIsInAll = tmpPositions[i] != null;
+			}
+			if (tmpIsInAll && (tmpKeys.length == 1 || SearchIndex.isInRow(tmpPositions))) {
+				outUids[outCount++] = tmpDoc.getKey();
+			}
+		}
+		return Arrays.copyOf(outUids, outCount);
+	}
+
+	/**
+	 * Checks if the terms of a phrase are in a row somewhere (given each term's positions, ascending).
+	 */
+	private static boolean isInRow(int[][] termPositions) {
+		for (var tmpStart : termPositions[0]) {
+			var tmpIsInRow = true;
+			for (var i = 1; i < termPositions.length && tmpIsInRow; i++) {
+				tmpIsInRow = Arrays.binarySearch(termPositions[i], tmpStart + i) >= 0;
+			}
+			if (tmpIsInRow) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Finds the entry of the specified term in a segment (by binary search over the sorted entries).
+	 * @return	the entry's index, or -1 if the segment does not have the term.
+	 */
+	private static int findTerm(Segment theSeg, byte[] theTerm) {
+		int tmpLow = 0, tmpHigh = theSeg.meTermCount - 1;
+		var tmpMap = theSeg.meMap;
+		while (tmpLow <= tmpHigh) {
+			var tmpMid = (tmpLow + tmpHigh) >>> 1;
+			var tmpEntry = theSeg.meEntries + tmpMid * SearchIndex.ENTRY_SIZE;
+			var tmpOffset = tmpMap.getInt(tmpEntry);
+			var tmpLength = tmpMap.getInt(tmpEntry + 4);
+			var tmpCmp = 0;
+			for (var i = 0; i < Math.min(tmpLength, theTerm.length) && tmpCmp == 0; i++) {
+				tmpCmp = Integer.compare(tmpMap.get(tmpOffset + i) & 0xFF, theTerm[i] & 0xFF);
+			}
+			if (tmpCmp == 0) {
+				tmpCmp = Integer.compare(tmpLength, theTerm.length);
+			}
+			if (tmpCmp < 0) {
+				tmpLow = tmpMid + 1;
+			} else if (tmpCmp > 0) {
+				tmpHigh = tmpMid - 1;
+			} else {
+				return tmpMid;
+			}
+		}
+		return -1;
+	}
+
+	private static byte[] termAt(Segment theSeg, int entryIndex) {
+		var tmpEntry = theSeg.meEntries + entryIndex * SearchIndex.ENTRY_SIZE;
+		var outTerm = new byte[theSeg.meMap.getInt(tmpEntry + 4)];
+		theSeg.meMap.get(theSeg.meMap.getInt(tmpEntry), outTerm);
+		return outTerm;
+	}
+
+	private static int entryPostings(Segment theSeg, int entryIndex) {
+		return theSeg.meMap.getInt(theSeg.meEntries + entryIndex * SearchIndex.ENTRY_SIZE + 8);
+	}
+
+	/**
+	 * Reads the postings at the specified offset of a segment (the positions only if they are needed).
+	 */
+	private static Postings readPostings(Segment theSeg, int postOffset, boolean isWithPositions) {
+		var tmpIn = theSeg.meMap.duplicate().position(postOffset);
+		var outPost = new Postings();
+		outPost.meUids = new long[(int)SearchIndex.readVarint(tmpIn)];
+		var tmpUid = 0L;
+		for (var i = 0; i < outPost.meUids.length; i++) {
+			tmpUid += SearchIndex.readVarint(tmpIn);
+			outPost.meUids[i] = tmpUid;
+		}
+		outPost.mePositionsOffset = tmpIn.position();
+		if (isWithPositions) {
+			outPost.mePositions = new int[outPost.meUids.length][];
+			for (var i = 0; i < outPost.meUids.length; i++) {
+				outPost.mePositions[i] = SearchIndex.readPositions(tmpIn);
+			}
+		}
+		return outPost;
+	}
+
+	/**
+	 * Reads the positions of a term in one message (their count, then their deltas).
+	 */
+	private static int[] readPositions(ByteBuffer theIn) {
+		var outPositions = new int[(int)SearchIndex.readVarint(theIn)];
+		var tmpPos = 0;
+		for (var i = 0; i < outPositions.length; i++) {
+			tmpPos += (int)SearchIndex.readVarint(theIn);
+			outPositions[i] = tmpPos;
+		}
+		return outPositions;
+	}
+
+	/**
+	 * Skips the positions of a term in one message (counting the last bytes of the varints, without decoding them).
+	 */
+	private static void skipPositions(ByteBuffer theIn) {
+		var tmpCount = SearchIndex.readVarint(theIn);
+		var tmpPos = theIn.position();
+		while (tmpCount > 0L) {
+			if (theIn.get(tmpPos++) >= 0) {
+				tmpCount--;
+			}
+		}
+		theIn.position(tmpPos);
+	}
+
+	/**
+	 * Parses a query into groups (to be OR-ed) of units (to be AND-ed).
+	 */
+	private static List<List<Unit>> parseQuery(String queryText) {
+		var outQuery = new ArrayList<List<Unit>>();
+		var tmpGroup = new ArrayList<Unit>();
+		var tmpLen = queryText.length();
+		var i = 0;
+		while (i < tmpLen) {
+			if (Character.isWhitespace(queryText.charAt(i))) {
+				i++;
+				continue;
+			}
+			var tmpStart = i;
+			while (i < tmpLen && !Character.isWhitespace(queryText.charAt(i)) && queryText.charAt(i) != '"' && queryText.charAt(i) != ':') {
+				i++;
+			}
+			Field tmpField = null;
+			if (i < tmpLen && queryText.charAt(i) == ':') {
+				var tmpName = queryText.substring(tmpStart, i).toUpperCase(Locale.ROOT);
+				for (var tmpCandidate : Field.values()) {
+					if (tmpCandidate.name().equals(tmpName)) {
+						tmpField = tmpCandidate;
+					}
+				}
+				if (tmpField != null) {
+					tmpStart = ++i;
+				}
+			}
+			String tmpText;
+			if (i < tmpLen && queryText.charAt(i) == '"' && i == tmpStart) { // A phrase
+				var tmpEnd = queryText.indexOf('"', i + 1);
+				tmpEnd = tmpEnd < 0 ? tmpLen : tmpEnd;
+				tmpText = queryText.substring(i + 1, tmpEnd);
+				i = Math.min(tmpLen, tmpEnd + 1);
+			} else {
+				while (i < tmpLen && !Character.isWhitespace(queryText.charAt(i))) {
+					i++;
+				}
+				tmpText = queryText.substring(tmpStart, i);
+				if (tmpField == null && tmpText.equals("OR")) {
+					if (!tmpGroup.isEmpty()) {
+						outQuery.add(tmpGroup);
+						tmpGroup = new ArrayList<>();
+					}
+					continue;
+				}
+			}
+			var tmpTerms = new HashMap<String, IntList>();
+			var tmpWords = new ArrayList<String>();
+			SearchIndex.tokenize(tmpText, null, tmpTerms, tmpWords);
+			if (!tmpWords.isEmpty()) { // A word that splits into more (like 'e-mail') is a phrase
+				var tmpUnit = new Unit();
+				tmpUnit.meField = tmpField;
+				tmpUnit.meTerms = tmpWords.toArray(new String[0]);
+				tmpGroup.add(tmpUnit);
+			}
+		}
+		if (!tmpGroup.isEmpty()) {
+			outQuery.add(tmpGroup);
+		}
+		return outQuery;
+	}
+
+	/**
+	 * Splits the specified text into words and adds their positions to the terms of the specified field.
+	 * @return	the number of words.
+	 */
+	private static int tokenize(String theText, Field theField, Map<String, IntList> outTerms) {
+		return SearchIndex.tokenize(theText, theField, outTerms, null);
+	}
+
+	/**
+	 * Splits the specified text into words: runs of letters and digits (lower-cased), except that every ideograph is a
+	 * word of its own (CJK text has no spaces between its words).
+	 */
+	private static int tokenize(String theText, Field theField, Map<String, IntList> outTerms, List<String> outWords) {
+		var outCount = 0;
+		var tmpLen = theText.length();
+		var i = 0;
+		while (i < tmpLen) {
+			var tmpCode = theText.codePointAt(i);
+			if (!Character.isLetterOrDigit(tmpCode)) {
+				i += Character.charCount(tmpCode);
+				continue;
+			}
+			var tmpStart = i;
+			i += Character.charCount(tmpCode);
+			if (!Character.isIdeographic(tmpCode)) {
+				while (i < tmpLen) {
+					var tmpNext = theText.codePointAt(i);
+					if (!Character.isLetterOrDigit(tmpNext) || Character.isIdeographic(tmpNext)) {
+						break;
+					}
+					i += Character.charCount(tmpNext);
+				}
+			}
+			if (i - tmpStart > SearchIndex.MAX_TOKEN) {
+				continue;
+			}
+			var tmpWord = theText.substring(tmpStart, i).toLowerCase(Locale.ROOT);
+			if (outWords != null) {
+				outWords.add(tmpWord);
+			}
+			if (theField != null) {
+				outTerms.computeIfAbsent(SearchIndex.termOf(theField, tmpWord), term -> new IntList()).add(outCount);
+			}
+			outCount++;
+		}
+		return outCount;
+	}
+
+	private static String termOf(Field theField, String theWord) {
+		return (char)('0' + theField.ordinal()) + theWord;
+	}
+
+	/**
+	 * Encodes a term as it is kept in segments: its field's number as a byte, then its word in UTF-8.
+	 */
+	private static byte[] termBytes(String theTerm) {
+		var outBytes = theTerm.getBytes(StandardCharsets.UTF_8);
+		outBytes[0] -= '0';
+		return outBytes;
+	}
+
+	private static long[] union(long[] firstUids, long[] secondUids) {
+		if (firstUids.length == 0 || secondUids.length == 0) {
+			return firstUids.length == 0 ? secondUids : firstUids;
+		}
+		var outUids = new long[firstUids.length + secondUids.length];
+		int i = 0, j = 0, k = 0;
+		while (i < firstUids.length && j < secondUids.length) {
+			var tmpFirst = firstUids[i];
+			var tmpSecond = secondUids[j];
+			outUids[k++] = tmpFirst <= tmpSecond ? tmpFirst : tmpSecond;
+			i += tmpFirst <= tmpSecond ? 1 : 0;
+			j += tmpSecond <= tmpFirst ? 1 : 0;
+		}
+		System.arraycopy(firstUids, i, outUids, k, firstUids.length - i);
+		k += firstUids.length - i;
+		System.arraycopy(secondUids, j, outUids, k, secondUids.length - j);
+		return Arrays.copyOf(outUids, k + secondUids.length - j);
+	}
+
+	/**
+	 * Unites the specified lists of UIDs (in pairs, so every UID is copied only about log2(list count) times).
+	 */
+	private static long[] unionAll(List<long[]> uidLists) {
+		var tmpLists = new ArrayList<>(uidLists);
+		while (tmpLists.size() > 1) {
+			var tmpNext = new ArrayList<long[]>((tmpLists.size() + 1) / 2);
+			for (var i = 0; i < tmpLists.size(); i += 2) {
+				tmpNext.add(i + 1 < tmpLists.size() ? SearchIndex.union(tmpLists.get(i), tmpLists.get(i + 1)) : tmpLists.get(i));
+			}
+			tmpLists = tmpNext;
+		}
+		return tmpLists.isEmpty() ? new long[0] : tmpLists.get(0);
+	}
+
+	private static long[] intersect(long[] firstUids, long[] secondUids) {
+		var outUids = new long[Math.min(firstUids.length, secondUids.length)];
+		int i = 0, j = 0, k = 0;
+		while (i < firstUids.length && j < secondUids.length) {
+			if (firstUids[i] < secondUids[j]) {
+				i++;
+			} else if (firstUids[i] > secondUids[j]) {
+				j++;
+			} else {
+				outUids[k++] = firstUids[i++];
+				j++;
+			}
+		}
+		return Arrays.copyOf(outUids, k);
+	}
+
+	private static long[] minus(long[] theUids, long[] removedUids) {
+		if (removedUids.length == 0) {
+			return theUids;
+		}
+		var outUids = new long[theUids.length];
+		int j = 0, k = 0;
+		for (var tmpUid : theUids) {
+			while (j < removedUids.length && removedUids[j] < tmpUid) {
+				j++;
+			}
+			if (j == removedUids.length || removedUids[j] != tmpUid) {
+				outUids[k++] = tmpUid;
+			}
+		}
+		return Arrays.copyOf(outUids, k);
+	}
+
+	private static void writeVarint(DataOutputStream theOut, long theValue) throws IOException {
+		while ((theValue & ~0x7FL) != 0L) {
+			theOut.write((int)(theValue & 0x7F | 0x80));
+			theValue >>>= 7;
+		}
+		theOut.write((int)theValue);
+	}
+
+	private static long readVarint(ByteBuffer theIn) {
+		var outValue = 0L;
+		for (var tmpShift = 0; ; tmpShift += 7) {
+			var tmpByte = theIn.get();
+			outValue |= (long)(tmpByte & 0x7F) << tmpShift;
+			if (tmpByte >= 0) {
+				return outValue;
+			}
+		}
+	}
+
+	private static void deleteQuietly(Path theFile) {
+		try {
+			Files.deleteIfExists(theFile);
+		} catch (IOException e) {
+			// Left for the next opening
+		}
+	}
+
+	/**
+	 * Extracts the indexed text of a message: its subject and sender, and its text parts ('text/html' ones only if there
+	 * was no 'text/plain' before them, since they are mostly the alternatives of one; attachments are left out).
+	 */
+	private static class Extractor implements MimeStreamParser.Handler {
+		// Fields
+		private StringBuilder meSubject = new StringBuilder();
+		private StringBuilder meFrom = new StringBuilder();
+		private StringBuilder meBody = new StringBuilder();
+		private boolean meIsAttachment;
+		private boolean meHasPlain;
+		private ByteArrayOutputStream meText;		// The text part being received ('null' if none)
+		private Charset meCharset;
+		private boolean meIsHtml;
+		private int meBudget = SearchIndex.MAX_TEXT_BYTES;
+
+		@Override
+		public void partStarted(String partPath, boolean isMessage) {
+			this.meIsAttachment = false;
+		}
+
+		@Override
+		public void headerField(String partPath, String fieldName, String fieldValue) {
+			if (partPath.isEmpty() && fieldName.equalsIgnoreCase("Subject")) {
+				this.meSubject.append(TextDecoder.decodeWords(fieldValue));
+			} else if (partPath.isEmpty() && fieldName.equalsIgnoreCase("From")) {
+				this.meFrom.append(TextDecoder.decodeWords(fieldValue));
+			} else if (fieldName.equalsIgnoreCase("Content-Disposition")) {
+				this.meIsAttachment = MimeStreamParser.mimeType(fieldValue).equals("attachment");
+			}
+		}
+
+		@Override
+		public void bodyStarted(String partPath, String contentType) {
+			var tmpType = MimeStreamParser.mimeType(contentType);
+			if (!this.meIsAttachment && (tmpType.equals("text/plain") || tmpType.equals("text/html") && !this.meHasPlain)) {
+				this.meHasPlain |= tmpType.equals("text/plain");
+				this.meIsHtml = !tmpType.equals("text/plain");
+				this.meCharset = TextDecoder.charsetOf(MimeStreamParser.parameter(contentType, "charset"));
+				this.meText = new ByteArrayOutputStream();
+			}
+		}
+
+		@Override
+		public void bodyChunk(String partPath, byte[] chunkBuffer, int chunkOffset, int chunkLength) {
+			if (this.meText != null && this.meBudget > 0) {
+				var tmpCount = Math.min(chunkLength, this.meBudget);
+				this.meText.write(chunkBuffer, chunkOffset, tmpCount);
+				this.meBudget -= tmpCount;
+			}
+		}
+
+		@Override
+		public void partEnded(String partPath, boolean isMessage) {
+			if (this.meText != null) {
+				var tmpBytes = this.meText.toByteArray();
+				var tmpText = TextDecoder.decode(tmpBytes, 0, tmpBytes.length, this.meCharset);
+				this.meBody.append(this.meIsHtml ? Extractor.stripTags(tmpText) : tmpText).append('\n');
+				this.meText = null;
+			}
+		}
+
+		/**
+		 * Keeps the text of HTML (without its tags, scripts and styles; the common entities are decoded).
+		 */
+		private static String stripTags(String theHtml) {
+			var outBuild = new StringBuilder(theHtml.length());
+			var tmpLen = theHtml.length();
+			var i = 0;
+			while (i < tmpLen) {
+				var tmpChar = theHtml.charAt(i);
+				if (tmpChar == '<') {
+					var tmpEnd = theHtml.indexOf('>', i);
+					if (tmpEnd < 0) {
+						break;
+					}
+					var tmpTag = theHtml.regionMatches(true, i, "<script", 0, 7) ? "</script" : theHtml.regionMatches(true, i, "<style", 0, 6) ? "</style" : null;
+					if (tmpTag != null) { // Skips to the closing tag
+						var tmpClose = theHtml.toLowerCase(Locale.ROOT).indexOf(tmpTag, tmpEnd);
+						tmpEnd = tmpClose < 0 ? tmpLen - 1 : Math.max(tmpClose, theHtml.indexOf('>', tmpClose));
+					}
+					outBuild.append(' ');
+					i = tmpEnd + 1;
+				} else if (tmpChar == '&') {
+					var tmpSemi = theHtml.indexOf(';', i);
+					var tmpEntity = tmpSemi > i && tmpSemi - i < 10 ? theHtml.substring(i + 1, tmpSemi) : "";
+					var tmpCode = -1;
+					switch (tmpEntity) {
+						case "amp": tmpCode = '&'; break;
+						case "lt": tmpCode = '<'; break;
+						case "gt": tmpCode = '>'; break;
+						case "quot": tmpCode = '"'; break;
+						case "nbsp": tmpCode = ' '; break;
+						case "apos": tmpCode = '\''; break;
+						default:
+							if (tmpEntity.length() > 1 && tmpEntity.charAt(0) == '#') {
+								try {
+									tmpCode = tmpEntity.charAt(1) == 'x' || tmpEntity.charAt(1) == 'X' ? Integer.parseInt(tmpEntity.substring(2), 16) : Integer.parseInt(tmpEntity.substring(1));
+								} catch (NumberFormatException e) {
+									tmpCode = -1;
+								}
+							}
+							break;
+					}
+					if (Character.isValidCodePoint(tmpCode)) {
+						outBuild.appendCodePoint(tmpCode);
+						i = tmpSemi + 1;
+					} else {
+						outBuild.append(tmpChar);
+						i++;
+					}
+				} else {
+					outBuild.append(tmpChar);
+					i++;
+				}
+			}
+			return outBuild.toString();
+		}
+	}
+}
@@ -0,0 +1,545 @@
+package model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import lib.BufferPool;
+import lib.IEventEmitter;
+import view.IConnection;
+import view.ReceivedLine;
+import view.SslConnection.ConnectionEvent;
+
+/**
+ * A class that represents an SMTP submission client on top of a connection to an SMTP server. Like 'Pop3Client', every
+ * command gets a CompletableFuture that completes when its reply arrives. When the server advertises PIPELINING (RFC
+ * 2920), a message's whole envelope ('MAIL FROM', all the 'RCPT TO's, and 'DATA') is sent at once, so it costs one round
+ * trip however many recipients there are. When it advertises CHUNKING (RFC 3030), the message is streamed from its
+ * file in 'BDAT' chunks (as is, without dot-stuffing) through a pooled direct buffer, so even a large message never
+ * lands on the heap; otherwise it is streamed after 'DATA' with the dot-stuffing done on the fly.
+ * The messages are streamed on the client's own sender thread, and the futures complete on the connection's
+ * read-thread (or the sender thread), so dependent stages should not block.
+ * @author Janty Azmat
+ */
+public class SmtpClient implements AutoCloseable {
+
+	/**
+	 * A class that represents the (possibly multi-line) reply to a command.
+	 * @author Janty Azmat
+	 */
+	public static class Reply {
+		// Fields
+		private int meCode;
+		private List<String> meLines;
+
+		private Reply(int replyCode, List<String> replyLines) {
+			this.meCode = replyCode;
+			this.meLines = Collections.unmodifiableList(replyLines);
+		}
+
+		/**
+		 * Used to get the reply code.
+		 * @return	the reply code (like 250).
+		 */
+		public int getCode() {
+			return this.meCode;
+		}
+
+		/**
+		 * Used to get the text of each line of the reply (without the reply code).
+		 * @return	the text lines.
+		 */
+		public List<String> getLines() {
+			return this.meLines;
+		}
+
+		/**
+		 * Checks if the reply is a completion (2xx) or an intermediate (3xx) reply.
+		 * @return	'true' if the reply is positive.
+		 */
+		public boolean isPositive() {
+			return this.meCode >= 200 && this.meCode < 400;
+		}
+
+		@Override
+		public String toString() {
+			return this.meCode + " " + String.join(" / ", this.meLines);
+		}
+	}
+
+	/**
+	 * A class that represents the outcome of sending a message.
+	 * @author Janty Azmat
+	 */
+	public static class SendResult {
+		// Fields
+		private List<String> meAccepted;
+		private Map<String, Reply> meRejected;
+		private Reply meReply;
+
+		private SendResult(List<String> acceptedRecipients, Map<String, Reply> rejectedRecipients, Reply finalReply) {
+			this.meAccepted = Collections.unmodifiableList(acceptedRecipients);
+			this.meRejected = Collections.unmodifiableMap(rejectedRecipients);
+			this.meReply = finalReply;
+		}
+
+		/**
+		 * Checks if the server accepted the message (for the accepted recipients).
+		 * @return	'true' if the message was accepted.
+		 */
+		public boolean isSent() {
+			return this.meReply.getCode() / 100 == 2 && !this.meAccepted.isEmpty();
+		}
+
+		/**
+		 * Used to get the recipients the server accepted.
+		 * @return	the accepted recipients.
+		 */
+		public List<String> getAccepted() {
+			return this.meAccepted;
+		}
+
+		/**
+		 * Used to get the recipients the server rejected, with the replies that rejected them.
+		 * @return	the rejected recipients.
+		 */
+		public Map<String, Reply> getRejected() {
+			return this.meRejected;
+		}
+
+		/**
+		 * Used to get the reply that ended the transaction (to the message data, or to the envelope when it failed).
+		 * @return	the final reply.
+		 */
+		public Reply getReply() {
+			return this.meReply;
+		}
+
+		@Override
+		public String toString() {
+			return (this.isSent() ? "sent" : "not sent") + " {accepted: " + this.meAccepted.size() + ", rejected: " + this.meRejected.size() + ", reply: " + this.meReply + "}";
+		}
+	}
+
+	/**
+	 * Holds a command in flight.
+	 */
+	private static class Pending {
+		// Fields
+		private List<String> meLines = new ArrayList<>(1);
+		private CompletableFuture<Reply> meFuture = new CompletableFuture<>();
+	}
+
+	// Fields
+	public static final int CHUNK_SIZE = 256 << 10;	// The size of the 'BDAT' chunks (and of the 'DATA' blocks)
+	private static final byte[] CRLF = {13, 10};
+	private static final byte[] END_DATA = {'.', 13, 10};
+	private IConnection meConn;
+	private ConcurrentLinkedDeque<Pending> mePending;
+	private final Object meSendLock = new Object();
+	private CompletableFuture<Reply> meGreeting;
+	private volatile Map<String, String> meCaps;	// The EHLO keywords (upper-case) and their parameters
+	private ExecutorService meSender;
+	private BiConsumer<IEventEmitter<ConnectionEvent>, Object> meLineListener;
+	private BiConsumer<IEventEmitter<ConnectionEvent>, Object> meInterListener;
+
+	/**
+	 * A constructor that takes the (not yet connected) connection to the SMTP server as a parameter (the server's
+	 * greeting arrives right after connecting, so the client should be there to get it).
+	 * @param smtpConnection			the connection to the SMTP server.
+	 * @throws IllegalStateException	when the specified connection is already connected.
+	 * @throws NullPointerException		when the specified connection is 'null'.
+	 */
+	public SmtpClient(IConnection smtpConnection) throws IllegalStateException, NullPointerException {
+		this.meConn = Objects.requireNonNull(smtpConnection, "The 'smtpConnection' argument cannot be 'null'.");
+		if (smtpConnection.isConnected()) {
+			throw new IllegalStateException("The SMTP client should be created before connecting.");
+		}
+		this.mePending = new ConcurrentLinkedDeque<>();
+		var tmpGreet = new Pending();
+		this.mePending.add(tmpGreet);
+		this.meGreeting = tmpGreet.meFuture;
+		this.meCaps = Map.of();
+		this.meSender = Executors.newSingleThreadExecutor(task -> {
+			var outThrd = new Thread(task, "SmtpSender-" + smtpConnection.getServerAddress());
+			outThrd.setDaemon(true);
+			return outThrd;
+		});
+		this.meLineListener = (emit, data) -> this.handleLine(data instanceof ReceivedLine ? ((ReceivedLine)data).copy() : (byte[][])data);
+		this.meInterListener = (emit, data) -> this.failAll(new IOException("Receiving from the SMTP server was interrupted."));
+		this.meConn.addEventListener(ConnectionEvent.LINE_RECEIVED, this.meLineListener);
+		this.meConn.addEventListener(ConnectionEvent.RECEIVE_ITERRUPTED, this.meInterListener);
+	}
+
+	/**
+	 * Used to get the server's greeting.
+	 * @return	a future that completes with the greeting.
+	 */
+	public CompletableFuture<Reply> getGreeting() {
+		return this.meGreeting;
+	}
+
+	/**
+	 * Sends the specified command (without waiting for the replies of the commands before it) and flushes it.
+	 * @param smtpCommand				the command without the line ending (e.g. 'NOOP').
+	 * @return							a future that completes with the command's reply (or exceptionally when the
+	 * 									connection fails before the reply arrives).
+	 * @throws IllegalStateException	when the connection is not yet connected.
+	 */
+	public CompletableFuture<Reply> submit(String smtpCommand) throws IllegalStateException {
+		var outFuture = this.send(smtpCommand);
+		this.flushOrFail(outFuture);
+		return outFuture;
+	}
+
+	/**
+	 * Sends 'EHLO' and remembers the server's capabilities.
+	 * @param clientDomain	the client's domain (or address literal).
+	 * @return				a future that completes with the reply.
+	 */
+	public CompletableFuture<Reply> ehlo(String clientDomain) {
+		return this.submit("EHLO " + clientDomain).thenApply(resp -> {
+			var tmpCaps = new HashMap<String, String>();
+			for (var i = 1; i < resp.getLines().size() && resp.getCode() == 250; i++) { // The first line is the greeting
+				var tmpLine = resp.getLines().get(i).trim();
+				var tmpSpace = tmpLine.indexOf(' ');
+				tmpCaps.put((tmpSpace < 0 ? tmpLine : tmpLine.substring(0, tmpSpace)).toUpperCase(Locale.ROOT), tmpSpace < 0 ? "" : tmpLine.substring(tmpSpace + 1));
+			}
+			this.meCaps = tmpCaps;
+			return resp;
+		});
+	}
+
+	/**
+	 * Checks if the server advertised the specified capability in its 'EHLO' reply.
+	 * @param theKeyword	the capability's keyword (like 'PIPELINING').
+	 * @return				'true' if the capability was advertised.
+	 */
+	public boolean hasCapability(String theKeyword) {
+		return this.meCaps.containsKey(theKeyword.toUpperCase(Locale.ROOT));
+	}
+
+	/**
+	 * Authenticates with 'AUTH PLAIN' (in one command, with the initial response).
+	 * @param userName	the user name.
+	 * @param passWord	the password.
+	 * @return			a future that completes when authenticated (or exceptionally when the server refuses).
+	 */
+	public CompletableFuture<Void> authPlain(String userName, String passWord) {
+		var tmpCred = Base64.getEncoder().encodeToString(("\0" + userName + "\0" + passWord).getBytes(StandardCharsets.UTF_8));
+		return this.submit("AUTH PLAIN " + tmpCred).thenAccept(resp -> {
+			if (resp.getCode() != 235) {
+				throw new IllegalStateException("The server refused the authentication: " + resp);
+			}
+		});
+	}
+
+	/**
+	 * Sends the message in the specified file (with CRLF line endings, headers included) to the specified recipients.
+	 * The envelope is pipelined when the server supports it, and the message is streamed from the file on the sender
+	 * thread. When the envelope fails, or no recipient is accepted, the transaction is reset and nothing is streamed.
+	 * @param senderAddress		the envelope sender (may be empty for bounces).
+	 * @param recipientAddresses	the envelope recipients.
+	 * @param messageFile		the file that holds the message.
+	 * @return					a future that completes with the outcome (or exceptionally when the connection or
+	 * 							reading the file fails).
+	 * @throws IllegalArgumentException	when an address holds a CR, an LF, a '<' or a '>' (nothing is sent then).
+	 */
+	public CompletableFuture<SendResult> send(String senderAddress, Collection<String> recipientAddresses, Path messageFile) throws IllegalArgumentException {
+		SmtpClient.checkAddress(senderAddress);
+		recipientAddresses.forEach(SmtpClient::checkAddress);
+		var tmpIsPipe = this.hasCapability("PIPELINING");
+		var tmpIsChunk = this.hasCapability("CHUNKING");
+		var tmpRcpts = List.copyOf(recipientAddresses);
+		long tmpSize;
+		try {
+			tmpSize = Files.size(messageFile);
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		var tmpMail = "MAIL FROM:<" + senderAddress + ">" + (this.hasCapability("SIZE") ? " SIZE=" + tmpSize : "");
+		var tmpCmds = new ArrayList<String>(tmpRcpts.size() + 2);
+		tmpCmds.add(tmpMail);
+		tmpRcpts.forEach(rcpt -> tmpCmds.add("RCPT TO:<" + rcpt + ">"));
+		if (!tmpIsChunk) {
+			tmpCmds.add("DATA"); // Allowed as the last command of a pipelined group
+		}
+		CompletableFuture<List<Reply>> tmpEnvelope;
+		if (tmpIsPipe) {
+			var tmpFutures = new ArrayList<CompletableFuture<Reply>>(tmpCmds.size());
+			tmpCmds.forEach(cmd -> tmpFutures.add(this.send(cmd)));
+			this.flushOrFail(tmpFutures.get(tmpFutures.size() - 1));
+			tmpEnvelope = CompletableFuture.allOf(tmpFutures.toArray(CompletableFuture[]::new)).thenApply(none -> {
+				var outList = new ArrayList<Reply>(tmpFutures.size());
+				tmpFutures.forEach(fut -> outList.add(fut.join()));
+				return outList;
+			});
+		} else {
+			tmpEnvelope = this.submitInTurn(tmpCmds, 0, new ArrayList<>(tmpCmds.size()));
+		}
+		return tmpEnvelope.thenComposeAsync(replies -> {
+			var tmpAccepted = new ArrayList<String>(tmpRcpts.size());
+			var tmpRejected = new LinkedHashMap<String, Reply>();
+			for (var i = 0; i < tmpRcpts.size() && i + 1 < replies.size(); i++) {
+				if (replies.get(i + 1).getCode() / 100 == 2) {
+					tmpAccepted.add(tmpRcpts.get(i));
+				} else {
+					tmpRejected.put(tmpRcpts.get(i), replies.get(i + 1));
+				}
+			}
+			var tmpMailReply = replies.get(0);
+			var tmpDataReply = !tmpIsChunk && replies.size() == tmpCmds.size() ? replies.get(replies.size() - 1) : null;
+			try {
+				if (tmpMailReply.getCode() / 100 != 2 || tmpAccepted.isEmpty() || !tmpIsChunk && (tmpDataReply == null || tmpDataReply.getCode() != 354)) {
+					var tmpFinal = tmpMailReply;
+					if (tmpMailReply.getCode() / 100 == 2) {
+						tmpFinal = tmpAccepted.isEmpty() && !tmpRejected.isEmpty() ? tmpRejected.values().iterator().next() : tmpDataReply;
+					}
+					if (tmpDataReply != null && tmpDataReply.getCode() == 354) { // Some servers go on to 'DATA' without recipients
+						this.sendRaw(null, SmtpClient.END_DATA);
+					}
+					this.submit("RSET");
+					return CompletableFuture.completedFuture(new SendResult(tmpAccepted, tmpRejected, tmpFinal));
+				}
+				var tmpReply = tmpIsChunk ? this.streamChunks(messageFile, tmpIsPipe) : this.streamData(messageFile);
+				return tmpReply.thenApply(resp -> new SendResult(tmpAccepted, tmpRejected, resp));
+			} catch (IOException e) {
+				return CompletableFuture.failedFuture(e);
+			}
+		}, this.meSender);
+	}
+
+	/**
+	 * Makes sure the specified address cannot end its '<...>' early or add commands to the envelope.
+	 */
+	private static void checkAddress(String theAddress) throws IllegalArgumentException {
+		for (var i = 0; i < theAddress.length(); i++) {
+			var tmpChar = theAddress.charAt(i);
+			if (tmpChar == '\r' || tmpChar == '\n' || tmpChar == '<' || tmpChar == '>') {
+				throw new IllegalArgumentException("The address '" + theAddress.replace("\r", "\\r").replace("\n", "\\n") + "' cannot hold a CR, an LF, a '<' or a '>'.");
+			}
+		}
+	}
+
+	/**
+	 * Submits the specified commands one after the other, each after the reply to the one before it (for servers
+	 * without PIPELINING). Stops early when 'MAIL FROM' fails, and skips 'DATA' when no recipient was accepted.
+	 */
+	private CompletableFuture<List<Reply>> submitInTurn(List<String> theCommands, int nextIndex, List<Reply> theReplies) {
+		if (nextIndex == theCommands.size()) {
+			return CompletableFuture.completedFuture(theReplies);
+		}
+		if (nextIndex > 1 && theCommands.get(nextIndex).equals("DATA") && theReplies.stream().skip(1).noneMatch(rep -> rep.getCode() / 100 == 2)) {
+			return CompletableFuture.completedFuture(theReplies);
+		}
+		return this.submit(theCommands.get(nextIndex)).thenCompose(resp -> {
+			theReplies.add(resp);
+			if (nextIndex == 0 && resp.getCode() / 100 != 2) {
+				return CompletableFuture.completedFuture(theReplies);
+			}
+			return this.submitInTurn(theCommands, nextIndex + 1, theReplies);
+		});
+	}
+
+	/**
+	 * Streams the specified file in 'BDAT' chunks through a direct buffer leased from the shared BufferPool (runs on the
+	 * sender thread). With pipelining, the chunks are sent without waiting for their replies. When a chunk fails, the
+	 * transaction is reset (like when the envelope fails).
+	 * @return	a future that completes with the reply to the last chunk (or to the first failed one).
+	 */
+	private CompletableFuture<Reply> streamChunks(Path messageFile, boolean isPipelined) throws IOException {
+		var tmpFutures = new ArrayList<CompletableFuture<Reply>>();
+		var tmpBuf = BufferPool.getShared().lease(SmtpClient.CHUNK_SIZE);
+		try (var tmpChan = FileChannel.open(messageFile, StandardOpenOption.READ)) {
+			var tmpLeft = tmpChan.size();
+			do {
+				tmpBuf.clear().limit((int)Math.min(tmpBuf.capacity(), tmpLeft));
+				while (tmpBuf.hasRemaining()) {
+					if (tmpChan.read(tmpBuf) < 0) {
+						throw new IOException("The message file was truncated while being sent.");
+					}
+				}
+				tmpLeft -= tmpBuf.flip().remaining();
+				var tmpHead = ("BDAT " + tmpBuf.remaining() + (tmpLeft == 0L ? " LAST" : "") + "\r\n").getBytes(StandardCharsets.US_ASCII);
+				var tmpFuture = this.sendRaw(ByteBuffer.wrap(tmpHead), tmpBuf);
+				tmpFutures.add(tmpFuture);
+				if (!isPipelined && tmpLeft > 0L) {
+					this.flushOrFail(tmpFuture);
+					if (tmpFuture.join().getCode() / 100 != 2) {
+						break;
+					}
+				}
+			} while (tmpLeft > 0L);
+		} finally {
+			BufferPool.getShared().release(tmpBuf);
+		}
+		this.flushOrFail(tmpFutures.get(tmpFutures.size() - 1));
+		return CompletableFuture.allOf(tmpFutures.toArray(CompletableFuture[]::new)).thenApply(none -> {
+			for (var tmpFut : tmpFutures) {
+				var tmpReply = tmpFut.join();
+				if (tmpReply.getCode() / 100 != 2) {
+					try {
+						this.submit("RSET"); // So the next message does not start in this one's transaction
+					} catch (IllegalStateException e) {
+						// Disconnected: there is no transaction left to reset
+					}
+					return tmpReply;
+				}
+			}
+			return tmpFutures.get(tmpFutures.size() - 1).join();
+		});
+	}
+
+	/**
+	 * Streams the specified file after a '354' reply to 'DATA', doubling the dots that start lines (and turning bare
+	 * line-feeds into CRLFs), then ends the data.
+	 * @return	a future that completes with the reply to the data.
+	 */
+	private CompletableFuture<Reply> streamData(Path messageFile) throws IOException {
+		var tmpIn = BufferPool.getShared().lease(SmtpClient.CHUNK_SIZE);
+		var tmpOut = new byte[SmtpClient.CHUNK_SIZE << 1]; // Room for the worst-case expansion of a block
+		var tmpIsLineStart = true;
+		var tmpLast = (byte)10;
+		try (var tmpChan = FileChannel.open(messageFile, StandardOpenOption.READ)) {
+			while (tmpChan.read(tmpIn.clear()) >= 0) {
+				tmpIn.flip();
+				var tmpPos = 0;
+				while (tmpIn.hasRemaining()) {
+					var tmpByte = tmpIn.get();
+					if (tmpIsLineStart && tmpByte == '.') {
+						tmpOut[tmpPos++] = '.';
+					}
+					if (tmpByte == 10 && tmpLast != 13) {
+						tmpOut[tmpPos++] = 13;
+					}
+					tmpOut[tmpPos++] = tmpByte;
+					tmpIsLineStart = tmpByte == 10;
+					tmpLast = tmpByte;
+				}
+				synchronized (this.meSendLock) {
+					this.meConn.send(ByteBuffer.wrap(tmpOut, 0, tmpPos));
+				}
+			}
+		} finally {
+			BufferPool.getShared().release(tmpIn);
+		}
+		var outFuture = this.sendRaw(null, tmpIsLineStart ? SmtpClient.END_DATA : new byte[] {13, 10, '.', 13, 10});
+		this.flushOrFail(outFuture);
+		return outFuture;
+	}
+
+	/**
+	 * Sends the specified command line (without flushing).
+	 */
+	private CompletableFuture<Reply> send(String smtpCommand) throws IllegalStateException {
+		var tmpCmd = smtpCommand.getBytes(StandardCharsets.UTF_8);
+		var tmpLine = new byte[tmpCmd.length + SmtpClient.CRLF.length];
+		System.arraycopy(tmpCmd, 0, tmpLine, 0, tmpCmd.length);
+		System.arraycopy(SmtpClient.CRLF, 0, tmpLine, tmpCmd.length, SmtpClient.CRLF.length);
+		return this.sendRaw(null, tmpLine);
+	}
+
+	private CompletableFuture<Reply> sendRaw(ByteBuffer headBuffer, byte[] theBytes) {
+		return this.sendRaw(headBuffer, ByteBuffer.wrap(theBytes));
+	}
+
+	/**
+	 * Sends the specified data as something that gets one reply (without flushing).
+	 */
+	private CompletableFuture<Reply> sendRaw(ByteBuffer headBuffer, ByteBuffer dataBuffer) throws IllegalStateException {
+		synchronized (this.meSendLock) { // Keeps the pending replies in the order the commands were sent
+			var tmpPend = new Pending();
+			this.mePending.add(tmpPend);
+			try {
+				if (headBuffer == null) {
+					this.meConn.send(dataBuffer);
+				} else {
+					this.meConn.send(headBuffer, dataBuffer);
+				}
+			} catch (IOException e) {
+				this.mePending.remove(tmpPend);
+				tmpPend.meFuture.completeExceptionally(e);
+			} catch (RuntimeException e) { // Like not being connected (an orphan would get the replies of the next commands)
+				this.mePending.remove(tmpPend);
+				throw e;
+			}
+			return tmpPend.meFuture;
+		}
+	}
+
+	private void flushOrFail(CompletableFuture<Reply> lastFuture) {
+		try {
+			this.meConn.flush();
+		} catch (IOException e) {
+			lastFuture.completeExceptionally(new CompletionException(e));
+		}
+	}
+
+	/**
+	 * Handles a line received from the server (runs on the connection's read-thread).
+	 * @param theLine	the words of the received line.
+	 */
+	private void handleLine(byte[][] theLine) {
+		var tmpPend = this.mePending.peekFirst();
+		if (tmpPend == null || theLine.length == 0 || theLine[0].length < 3) {
+			return;
+		}
+		var tmpFirst = theLine[0];
+		var tmpText = new StringBuilder();
+		if (tmpFirst.length > 4) {
+			tmpText.append(new String(tmpFirst, 4, tmpFirst.length - 4, StandardCharsets.UTF_8));
+		}
+		for (var i = 1; i < theLine.length; i++) {
+			tmpText.append(tmpText.length() > 0 ? " " : "").append(new String(theLine[i], StandardCharsets.UTF_8));
+		}
+		tmpPend.meLines.add(tmpText.toString());
+		if (tmpFirst.length > 3 && tmpFirst[3] == '-') {
+			return; // More lines follow
+		}
+		var tmpCode = (tmpFirst[0] - '0') * 100 + (tmpFirst[1] - '0') * 10 + (tmpFirst[2] - '0');
+		this.mePending.pollFirst();
+		tmpPend.meFuture.complete(new Reply(tmpCode, tmpPend.meLines));
+	}
+
+	/**
+	 * Fails all the commands in flight.
+	 * @param theError	the error to fail the commands with.
+	 */
+	private void failAll(IOException theError) {
+		Pending tmpPend;
+		while ((tmpPend = this.mePending.pollFirst()) != null) {
+			tmpPend.meFuture.completeExceptionally(theError);
+		}
+	}
+
+	/**
+	 * Detaches this client from the connection (the connection itself is not closed, and 'QUIT' is not sent), stops the
+	 * sender thread, and fails the commands still in flight.
+	 */
+	@Override
+	public void close() {
+		this.meConn.removeEventListener(ConnectionEvent.LINE_RECEIVED, this.meLineListener);
+		this.meConn.removeEventListener(ConnectionEvent.RECEIVE_ITERRUPTED, this.meInterListener);
+		this.meSender.shutdown();
+		this.failAll(new IOException("The SMTP client was closed."));
+	}
+}
@@ -0,0 +1,946 @@
+package model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import lib.TextDecoder;
+
+/**
+ * A class that represents the conversation threads of one mailbox, kept up to date as the headers of its messages
+ * arrive. Every message is linked in by its 'Message-ID' and the IDs it refers to (as in Jamie Zawinski's threading
+ * algorithm: an ID referred to before its message arrives gets an empty node, which the message fills in later), so
+ * adding a message only touches its own thread and nothing is ever rebuilt. A message that refers to no other one, but
+ * whose subject is a reply ('Re: ...') to a thread's, joins that thread.
+ * The threads are kept ordered by their latest message, so the ones active in a date range are found without looking at
+ * the others. The added and removed messages are appended to a log file (records with a CRC-32), which is replayed when
+ * the index is opened (a torn record at the end is cut off); once the removals outweigh the live messages, the live
+ * records are copied to a new log that replaces the old one.
+ * UIDs are only meaningful for one UIDVALIDITY, so opening the index with another one empties it.
+ * @author Janty Azmat
+ */
+public class ThreadIndex implements AutoCloseable {
+
+	/**
+	 * A class that represents a conversation thread as it was when it was listed.
+	 * @author Janty Azmat
+	 */
+	public static class Conversation {
+		// Fields
+		private long meFirstUid;
+		private String meSubject;
+		private long meFirstDate;
+		private long meLastDate;
+		private int meCount;
+
+		private Conversation(Node rootNode) {
+			this.meFirstUid = rootNode.meFirstUid;
+			this.meSubject = rootNode.meFirstSubject;
+			this.meFirstDate = rootNode.meFirstDate;
+			this.meLastDate = rootNode.meLastDate;
+			this.meCount = rootNode.meCount;
+		}
+
+		/**
+		 * Used to get the UID of the thread's earliest message (what the thread can be shown by).
+		 * @return	the UID of the earliest message.
+		 */
+		public long getFirstUid() {
+			return this.meFirstUid;
+		}
+
+		/**
+		 * Used to get the subject of the thread's earliest message (decoded).
+		 * @return	the thread's subject.
+		 */
+		public String getSubject() {
+			return this.meSubject;
+		}
+
+		/**
+		 * Used to get the date of the thread's earliest message.
+		 * @return	the date in milliseconds since the epoch (0 if unknown).
+		 */
+		public long getFirstDate() {
+			return this.meFirstDate;
+		}
+
+		/**
+		 * Used to get the date of the thread's latest message.
+		 * @return	the date in milliseconds since the epoch (0 if unknown).
+		 */
+		public long getLastDate() {
+			return this.meLastDate;
+		}
+
+		/**
+		 * Used to get the number of messages in the thread.
+		 * @return	the number of messages.
+		 */
+		public int getCount() {
+			return this.meCount;
+		}
+
+		@Override
+		public String toString() {
+			return "Conversation[" + this.meCount + " messages from UID " + this.meFirstUid + ": " + this.meSubject + "]";
+		}
+	}
+
+	/**
+	 * Holds a message, or an ID referred to whose message has not arrived (an empty node). A thread's root also holds
+	 * the thread's totals.
+	 */
+	private static class Node {
+		// Fields
+		private String meId;
+		private long meUid = -1L;			// -1 for an empty node
+		private long meDate;
+		private String meSubject;
+		private boolean meIsReply;			// Its subject is a reply
+		private boolean meHasRefs;			// It refers to other messages
+		private Node meParent;
+		private ArrayList<Node> meChildren;	// 'null' if none
+		private long meSeq;					// Tells apart the roots whose latest messages have the same date
+		private boolean meIsListed;			// In the ordered roots
+		private String meTopic;				// The base subject the thread is found by (for a root)
+		private int meCount;				// The thread's totals (for a root)
+		private long meFirstDate;
+		private long meLastDate;
+		private long meFirstUid;
+		private String meFirstSubject;
+
+		private Node(String nodeId, long nodeSeq) {
+			this.meId = nodeId;
+			this.meSeq = nodeSeq;
+		}
+
+		private boolean isEmpty() {
+			return this.meUid < 0L;
+		}
+
+		/**
+		 * Checks if the node is the root of a thread with messages (a root that is still in the index).
+		 */
+		private boolean isRoot() {
+			return this.meParent == null && this.meCount > 0;
+		}
+
+		private boolean hasChildren() {
+			return this.meChildren != null && !this.meChildren.isEmpty();
+		}
+
+		/**
+		 * Adds a message to the totals of the thread this node is the root of.
+		 */
+		private void count(long msgUid, long msgDate, String msgSubject, int msgCount, long lastDate) {
+			if (this.meCount == 0 || msgDate < this.meFirstDate) {
+				this.meFirstDate = msgDate;
+				this.meFirstUid = msgUid;
+				this.meFirstSubject = msgSubject;
+			}
+			this.meLastDate = this.meCount == 0 ? lastDate : Math.max(this.meLastDate, lastDate);
+			this.meCount += msgCount;
+		}
+	}
+
+	// Fields
+	private static final int LOG_MAGIC = 0x45455448;			// 'EETH'
+	private static final int RECORD_MAGIC = 0x45455452;		// 'EETR'
+	private static final int VERSION = 1;
+	private static final int LOG_HEADER = 16;					// Magic, version, UIDVALIDITY
+	private static final int RECORD_HEADER = 12;				// Magic, length, CRC-32
+	private static final byte TYPE_ADD = 1;
+	private static final byte TYPE_REMOVE = 2;
+	private static final int MAX_REFS = 64;					// The nearest ancestors kept of a long 'References'
+	private static final int MAX_TEXT = 4096;					// Longer subjects are cut (they are saved with 'writeUTF')
+	private static final int COMPACT_MIN_REMOVED = 1024;		// Less removals than this are not worth compacting
+	private static final String LOG_FILE = "threads.dat";
+	private static final byte[] WORD_ENVELOPE = "ENVELOPE".getBytes(StandardCharsets.US_ASCII);
+	private static final DateTimeFormatter INTERNAL_DATE = DateTimeFormatter.ofPattern("d-MMM-yyyy HH:mm:ss Z", Locale.ENGLISH);
+	private static final Comparator<Node> BY_LATEST = Comparator.<Node>comparingLong(node -> node.meLastDate).thenComparingLong(node -> node.meSeq);
+	private Path meDirectory;
+	private long meUidValidity;
+	private FileChannel meChannel;
+	private HashMap<String, Node> meIds;
+	private HashMap<Long, Node> meUids;
+	private HashMap<String, Node> meTopics;					// Base subject to the root of a thread with it
+	private TreeSet<Node> meRoots;								// The roots with messages, by their threads' latest message
+	private long meNextSeq;
+	private int meRemovedCount;									// Removal records in the log (and the adds they cancel)
+	private boolean meIsReplaying;								// The roots are ordered once the log is replayed
+
+	/**
+	 * A constructor that takes the index's directory and the mailbox's UIDVALIDITY as parameters (opening the index in
+	 * the directory, or creating it).
+	 * @param indexDirectory	the index's directory (one per mailbox).
+	 * @param uidValidity		the mailbox's UIDVALIDITY (the index is emptied if it was kept for another one).
+	 * @throws IOException		when the index cannot be opened or created.
+	 */
+	public ThreadIndex(Path indexDirectory, long uidValidity) throws IOException {
+		this.meDirectory = indexDirectory;
+		this.meUidValidity = uidValidity;
+		this.meIds = new HashMap<>();
+		this.meUids = new HashMap<>();
+		this.meTopics = new HashMap<>();
+		this.meRoots = new TreeSet<>(ThreadIndex.BY_LATEST);
+		Files.createDirectories(indexDirectory);
+		var tmpFile = indexDirectory.resolve(ThreadIndex.LOG_FILE);
+		Files.deleteIfExists(indexDirectory.resolve(ThreadIndex.LOG_FILE + ".tmp")); // Left by a crash while compacting
+		this.meChannel = FileChannel.open(tmpFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			var tmpHeader = ByteBuffer.allocate(ThreadIndex.LOG_HEADER);
+			while (tmpHeader.hasRemaining() && this.meChannel.read(tmpHeader, tmpHeader.position()) > 0) {
+			}
+			tmpHeader.flip();
+			if (tmpHeader.remaining() == ThreadIndex.LOG_HEADER && tmpHeader.getInt(0) == ThreadIndex.LOG_MAGIC && tmpHeader.getInt(4) == ThreadIndex.VERSION
+					&& tmpHeader.getLong(8) == uidValidity) {
+				this.replay();
+			} else {
+				this.meChannel.truncate(0L);
+				this.meChannel.write(ThreadIndex.logHeader(uidValidity), 0L);
+			}
+			if (this.meRemovedCount >= ThreadIndex.COMPACT_MIN_REMOVED && this.meRemovedCount > this.meUids.size()) {
+				this.compact();
+			}
+		} catch (IOException | RuntimeException e) {
+			this.meChannel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the log's records and applies them, cutting off a torn (or damaged) record at the end.
+	 */
+	private void replay() throws IOException {
+		var tmpSize = this.meChannel.size();
+		var tmpMap = this.meChannel.map(FileChannel.MapMode.READ_ONLY, 0L, tmpSize);
+		var tmpPos = ThreadIndex.LOG_HEADER;
+		this.meIsReplaying = true;
+		while (tmpPos + ThreadIndex.RECORD_HEADER <= tmpSize && tmpMap.getInt(tmpPos) == ThreadIndex.RECORD_MAGIC) {
+			var tmpLength = tmpMap.getInt(tmpPos + 4);
+			if (tmpLength < 9 || tmpLength > tmpSize - tmpPos - ThreadIndex.RECORD_HEADER) {
+				break;
+			}
+			var tmpPayload = tmpMap.slice(tmpPos + ThreadIndex.RECORD_HEADER, tmpLength);
+			var tmpCrc = new CRC32();
+			tmpCrc.update(tmpPayload.duplicate());
+			if ((int)tmpCrc.getValue() != tmpMap.getInt(tmpPos + 8)) {
+				break;
+			}
+			this.apply(tmpPayload);
+			tmpPos += ThreadIndex.RECORD_HEADER + tmpLength;
+		}
+		this.meIsReplaying = false;
+		for (var tmpNode : this.meIds.values()) {
+			this.list(tmpNode);
+		}
+		if (tmpPos < tmpSize) {
+			this.meChannel.truncate(tmpPos);
+		}
+	}
+
+	/**
+	 * Applies a record's payload (without logging it again).
+	 */
+	private void apply(ByteBuffer thePayload) throws IOException {
+		var tmpType = thePayload.get();
+		var tmpUid = thePayload.getLong();
+		if (tmpType == ThreadIndex.TYPE_REMOVE) {
+			this.unindex(tmpUid);
+			this.meRemovedCount++;
+		} else {
+			var tmpBytes = new byte[thePayload.remaining()];
+			thePayload.get(tmpBytes);
+			var tmpIn = new DataInputStream(new ByteArrayInputStream(tmpBytes));
+			var tmpDate = tmpIn.readLong();
+			var tmpId = tmpIn.readUTF();
+			var tmpRefs = tmpIn.readUTF();
+			var tmpSubject = tmpIn.readUTF();
+			this.index(tmpUid, tmpId.isEmpty() ? null : tmpId, tmpRefs.isEmpty() ? new String[0] : tmpRefs.split(" "), tmpSubject, tmpDate);
+		}
+	}
+
+	private static ByteBuffer logHeader(long uidValidity) {
+		return ByteBuffer.allocate(ThreadIndex.LOG_HEADER).putInt(ThreadIndex.LOG_MAGIC).putInt(ThreadIndex.VERSION).putLong(uidValidity).flip();
+	}
+
+	/**
+	 * Used to get the mailbox's UIDVALIDITY the index is for.
+	 * @return	the UIDVALIDITY.
+	 */
+	public long getUidValidity() {
+		return this.meUidValidity;
+	}
+
+	/**
+	 * Used to get the number of messages in the index.
+	 * @return	the number of messages.
+	 */
+	public synchronized int getCount() {
+		return this.meUids.size();
+	}
+
+	/**
+	 * Used to get the number of threads.
+	 * @return	the number of threads.
+	 */
+	public synchronized int getConversationCount() {
+		return this.meRoots.size();
+	}
+
+	/**
+	 * Checks if the specified message is in the index.
+	 * @param messageUid	the message's UID.
+	 * @return				'true' if the message is in the index.
+	 */
+	public synchronized boolean contains(long messageUid) {
+		return this.meUids.containsKey(messageUid);
+	}
+
+	/**
+	 * Adds the messages of the specified fetched chunk (their 'ENVELOPE', and their 'INTERNALDATE' if it was fetched) to
+	 * their threads. The messages already in the index are skipped, and so are the lines without an 'ENVELOPE'.
+	 * @param chunkLines	the untagged 'FETCH' response lines of the chunk's messages.
+	 * @return				the number of messages added.
+	 * @throws IOException	when logging the messages fails (the ones logged so far stay in the index).
+	 */
+	public synchronized int addAll(List<byte[][]> chunkLines) throws IOException {
+		var tmpLog = new ByteArrayOutputStream();
+		var outCount = 0;
+		try {
+			for (var tmpLines : HeaderFetcher.splitMessages(chunkLines)) {
+				var tmpUid = ResponseWords.fetchUid(tmpLines.get(0));
+				if (tmpUid > 0L && !this.meUids.containsKey(tmpUid)) {
+					var tmpItems = ThreadIndex.parseItems(tmpLines);
+					if (tmpItems != null && this.add(tmpUid, tmpItems, tmpLog)) {
+						outCount++;
+					}
+				}
+			}
+		} finally {
+			this.write(tmpLog);
+		}
+		return outCount;
+	}
+
+	/**
+	 * Adds a message to its thread (it is skipped if it is already in the index).
+	 * @param messageUid	the message's UID.
+	 * @param messageId		the message's 'Message-ID' (with its angle brackets), or 'null' if it has none.
+	 * @param referredIds	the IDs the message refers to, oldest first (its 'References', then its 'In-Reply-To' if that
+	 * 						is not the last of them).
+	 * @param theSubject	the message's subject (decoded).
+	 * @param theDate		the message's date in milliseconds since the epoch.
+	 * @return				'true' if the message was added.
+	 * @throws IOException	when logging the message fails.
+	 */
+	public synchronized boolean add(long messageUid, String messageId, String[] referredIds, String theSubject, long theDate) throws IOException {
+		if (this.meUids.containsKey(messageUid)) {
+			return false;
+		}
+		var tmpLog = new ByteArrayOutputStream();
+		this.log(tmpLog, messageUid, messageId, referredIds, theSubject, theDate);
+		this.write(tmpLog);
+		this.index(messageUid, messageId, referredIds, theSubject, theDate);
+		return true;
+	}
+
+	private boolean add(long messageUid, Object[] theItems, ByteArrayOutputStream logOut) throws IOException {
+		var tmpId = (String)theItems[0];
+		var tmpRefs = (String[])theItems[1];
+		var tmpSubject = (String)theItems[2];
+		var tmpDate = (long)theItems[3];
+		this.log(logOut, messageUid, tmpId, tmpRefs, tmpSubject, tmpDate);
+		this.index(messageUid, tmpId, tmpRefs, tmpSubject, tmpDate);
+		return true;
+	}
+
+	/**
+	 * Removes a message from its thread (an expunged one). Its node is kept (empty) while other messages are below it.
+	 * @param messageUid	the message's UID.
+	 * @return				'true' if the message was in the index.
+	 * @throws IOException	when logging the removal fails.
+	 */
+	public synchronized boolean remove(long messageUid) throws IOException {
+		if (!this.meUids.containsKey(messageUid)) {
+			return false;
+		}
+		var tmpLog = new ByteArrayOutputStream();
+		var tmpOut = new DataOutputStream(tmpLog);
+		tmpOut.writeByte(ThreadIndex.TYPE_REMOVE);
+		tmpOut.writeLong(messageUid);
+		ThreadIndex.frame(tmpLog, 0);
+		this.write(tmpLog);
+		this.unindex(messageUid);
+		this.meRemovedCount++;
+		return true;
+	}
+
+	/**
+	 * Lists the threads whose latest message is in the specified date range, latest first.
+	 * @param fromDate	the start of the range in milliseconds since the epoch (inclusive).
+	 * @param toDate	the end of the range in milliseconds since the epoch (inclusive).
+	 * @param maxCount	the most threads listed (the latest ones are kept).
+	 * @return			the threads.
+	 */
+	public synchronized List<Conversation> listConversations(long fromDate, long toDate, int maxCount) {
+		var outList = new ArrayList<Conversation>();
+		if (fromDate > toDate) {
+			return outList;
+		}
+		var tmpLow = new Node(null, Long.MIN_VALUE);
+		tmpLow.meLastDate = fromDate;
+		var tmpHigh = new Node(null, Long.MAX_VALUE);
+		tmpHigh.meLastDate = toDate;
+		for (var tmpRoot : this.meRoots.subSet(tmpLow, true, tmpHigh, true).descendingSet()) {
+			if (outList.size() == maxCount) {
+				break;
+			}
+			outList.add(new Conversation(tmpRoot));
+		}
+		return outList;
+	}
+
+	/**
+	 * Used to get the thread of the specified message.
+	 * @param messageUid	the message's UID.
+	 * @return				the message's thread, or 'null' if the message is not in the index.
+	 */
+	public synchronized Conversation getConversation(long messageUid) {
+		var tmpNode = this.meUids.get(messageUid);
+		return tmpNode == null ? null : new Conversation(ThreadIndex.rootOf(tmpNode));
+	}
+
+	/**
+	 * Lists the messages of the specified message's thread in the order they are shown: every message is followed by its
+	 * replies (by date), and each is given with its depth in the thread (the replies to a message that is not in the
+	 * index are shown at its depth).
+	 * @param messageUid	the UID of a message in the thread.
+	 * @return				an array of the UID and the depth of each message (empty if the message is not in the index).
+	 */
+	public synchronized List<long[]> listConversation(long messageUid) {
+		var outList = new ArrayList<long[]>();
+		var tmpNode = this.meUids.get(messageUid);
+		if (tmpNode == null) {
+			return outList;
+		}
+		var tmpStack = new ArrayDeque<Object[]>();
+		tmpStack.push(new Object[] {ThreadIndex.rootOf(tmpNode), 0L});
+		while (!tmpStack.isEmpty()) {
+			var tmpTop = tmpStack.pop();
+			var tmpCurrent = (Node)tmpTop[0];
+			var tmpDepth = (long)tmpTop[1];
+			if (!tmpCurrent.isEmpty()) {
+				outList.add(new long[] {tmpCurrent.meUid, tmpDepth++});
+			}
+			if (tmpCurrent.hasChildren()) {
+				var tmpChildren = new ArrayList<>(tmpCurrent.meChildren);
+				tmpChildren.sort(Comparator.comparingLong(node -> ThreadIndex.earliestOf(node)));
+				for (var i = tmpChildren.size() - 1; i >= 0; i--) {
+					tmpStack.push(new Object[] {tmpChildren.get(i), tmpDepth});
+				}
+			}
+		}
+		return outList;
+	}
+
+	/**
+	 * Forces the logged messages to disk.
+	 * @throws IOException	when forcing fails.
+	 */
+	public synchronized void sync() throws IOException {
+		this.meChannel.force(false);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (this.meChannel.isOpen()) {
+			try {
+				this.meChannel.force(false);
+			} finally {
+				this.meChannel.close();
+			}
+		}
+	}
+
+	/**
+	 * Links a message into its thread (JWZ: its node is found or created by its ID, the IDs it refers to are linked as
+	 * a chain of parents where they were not linked yet, and its node is put below the last of them).
+	 */
+	private void index(long messageUid, String messageId, String[] referredIds, String theSubject, long theDate) {
+		var tmpNode = messageId == null ? null : this.meIds.get(messageId);
+		if (tmpNode == null || !tmpNode.isEmpty()) { // A new ID, or one a message already has (it is treated as missing)
+			var tmpId = tmpNode == null && messageId != null ? messageId : "\0" + messageUid;
+			tmpNode = new Node(tmpId, this.meNextSeq++);
+			this.meIds.put(tmpId, tmpNode);
+		}
+		var tmpRoot = ThreadIndex.rootOf(tmpNode);
+		this.unlist(tmpRoot);
+		tmpNode.meUid = messageUid;
+		tmpNode.meDate = theDate;
+		tmpNode.meSubject = theSubject;
+		tmpNode.meIsReply = ThreadIndex.isReply(theSubject);
+		tmpNode.meHasRefs = referredIds.length > 0;
+		this.meUids.put(messageUid, tmpNode);
+		tmpRoot.count(messageUid, theDate, theSubject, 1, theDate);
+		this.list(tmpRoot);
+		Node tmpPrev = null;
+		for (var tmpRefId : referredIds) {
+			if (tmpRefId.equals(tmpNode.meId)) {
+				continue;
+			}
+			var tmpRef = this.meIds.get(tmpRefId);
+			if (tmpRef == null) {
+				tmpRef = new Node(tmpRefId, this.meNextSeq++);
+				this.meIds.put(tmpRefId, tmpRef);
+			}
+			if (tmpPrev != null && tmpRef.meParent == null && tmpRef != tmpPrev && !ThreadIndex.isAncestor(tmpRef, tmpPrev)) {
+				this.link(tmpPrev, tmpRef); // An earlier message's own references take precedence over this one's
+			}
+			tmpPrev = tmpRef;
+		}
+		if (tmpPrev != null && tmpNode.meParent != tmpPrev && !ThreadIndex.isAncestor(tmpNode, tmpPrev)) {
+			if (tmpNode.meParent != null) {
+				this.unlink(tmpNode);
+			}
+			this.link(tmpPrev, tmpNode); // The message's own references decide its parent
+		}
+		if (tmpNode.meParent == null && !tmpNode.meHasRefs) {
+			this.joinBySubject(tmpNode);
+		}
+		this.nameTopic(ThreadIndex.rootOf(tmpNode));
+	}
+
+	/**
+	 * Puts a message that refers to no other one into a thread with the same base subject: below its root if the
+	 * message is a reply, or above its root if the root is a reply that refers to no other message either.
+	 */
+	private void joinBySubject(Node theNode) {
+		var tmpTopic = ThreadIndex.topicOf(theNode.meSubject);
+		if (tmpTopic.isEmpty()) {
+			return;
+		}
+		var tmpRoot = this.meTopics.get(tmpTopic);
+		if (tmpRoot == null || tmpRoot == theNode || !tmpRoot.isRoot()) {
+			return;
+		}
+		if (theNode.meIsReply) {
+			this.link(tmpRoot, theNode);
+		} else if (!tmpRoot.isEmpty() && tmpRoot.meIsReply && !tmpRoot.meHasRefs) {
+			this.link(theNode, tmpRoot);
+			theNode.meTopic = tmpTopic;
+			this.meTopics.put(tmpTopic, theNode);
+		}
+	}
+
+	/**
+	 * Gives a root the base subject of its earliest message (if it has none yet), so replies can find it.
+	 */
+	private void nameTopic(Node theRoot) {
+		if (theRoot.meTopic == null && theRoot.meCount > 0) {
+			theRoot.meTopic = ThreadIndex.topicOf(theRoot.meFirstSubject);
+			var tmpOld = this.meTopics.get(theRoot.meTopic);
+			if (!theRoot.meTopic.isEmpty() && (tmpOld == null || !tmpOld.isRoot())) {
+				this.meTopics.put(theRoot.meTopic, theRoot);
+			}
+		}
+	}
+
+	/**
+	 * Removes a message from its thread: its node becomes empty, and is dropped if nothing is below it (and so are the
+	 * empty nodes above it that are left with nothing below them).
+	 */
+	private void unindex(long messageUid) {
+		var tmpNode = this.meUids.remove(messageUid);
+		if (tmpNode == null) {
+			return;
+		}
+		var tmpRoot = ThreadIndex.rootOf(tmpNode);
+		this.unlist(tmpRoot);
+		tmpNode.meUid = -1L;
+		tmpNode.meSubject = null;
+		while (tmpNode != null && tmpNode.isEmpty() && !tmpNode.hasChildren()) {
+			var tmpParent = tmpNode.meParent;
+			if (tmpParent != null) {
+				tmpParent.meChildren.remove(tmpNode);
+				tmpNode.meParent = null;
+			}
+			this.meIds.remove(tmpNode.meId);
+			if (this.meTopics.get(tmpNode.meTopic) == tmpNode) {
+				this.meTopics.remove(tmpNode.meTopic);
+			}
+			tmpNode = tmpParent;
+		}
+		if (tmpRoot.isEmpty() && !tmpRoot.hasChildren()) {
+			return; // The whole thread is gone
+		}
+		ThreadIndex.recount(tmpRoot);
+		this.list(tmpRoot);
+	}
+
+	/**
+	 * Puts a root (and its thread) below the specified node.
+	 */
+	private void link(Node parentNode, Node childNode) {
+		var tmpRoot = ThreadIndex.rootOf(parentNode);
+		this.unlist(childNode);
+		this.unlist(tmpRoot);
+		childNode.meParent = parentNode;
+		if (parentNode.meChildren == null) {
+			parentNode.meChildren = new ArrayList<>(2);
+		}
+		parentNode.meChildren.add(childNode);
+		if (childNode.meCount > 0) {
+			tmpRoot.count(childNode.meFirstUid, childNode.meFirstDate, childNode.meFirstSubject, childNode.meCount, childNode.meLastDate);
+		}
+		this.list(tmpRoot);
+	}
+
+	/**
+	 * Takes a node (and what is below it) out of its thread, making it a root.
+	 */
+	private void unlink(Node theNode) {
+		var tmpRoot = ThreadIndex.rootOf(theNode);
+		this.unlist(tmpRoot);
+		theNode.meParent.meChildren.remove(theNode);
+		theNode.meParent = null;
+		ThreadIndex.recount(tmpRoot);
+		this.list(tmpRoot);
+		ThreadIndex.recount(theNode);
+		this.list(theNode);
+	}
+
+	private void unlist(Node theRoot) {
+		if (theRoot.meIsListed && !this.meIsReplaying) {
+			this.meRoots.remove(theRoot);
+			theRoot.meIsListed = false;
+		}
+	}
+
+	private void list(Node theRoot) {
+		if (theRoot.isRoot() && !theRoot.meIsListed && !this.meIsReplaying) {
+			this.meRoots.add(theRoot);
+			theRoot.meIsListed = true;
+		}
+	}
+
+	/**
+	 * Counts the messages of a root's thread again (after a message or a part of the thread left it).
+	 */
+	private static void recount(Node theRoot) {
+		theRoot.meCount = 0;
+		var tmpStack = new ArrayDeque<Node>();
+		tmpStack.push(theRoot);
+		while (!tmpStack.isEmpty()) {
+			var tmpNode = tmpStack.pop();
+			if (!tmpNode.isEmpty()) {
+				theRoot.count(tmpNode.meUid, tmpNode.meDate, tmpNode.meSubject, 1, tmpNode.meDate);
+			}
+			if (tmpNode.hasChildren()) {
+				tmpNode.meChildren.forEach(tmpStack::push);
+			}
+		}
+	}
+
+	private static Node rootOf(Node theNode) {
+		while (theNode.meParent != null) {
+			theNode = theNode.meParent;
+		}
+		return theNode;
+	}
+
+	/**
+	 * Checks if the first node is the second one or above it (so linking the first below the second would make a loop).
+	 */
+	private static boolean isAncestor(Node upperNode, Node lowerNode) {
+		for (var tmpNode = lowerNode; tmpNode != null; tmpNode = tmpNode.meParent) {
+			if (tmpNode == upperNode) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Used to get the date a node is ordered among its siblings by (an empty node's is its earliest child's).
+	 */
+	private static long earliestOf(Node theNode) {
+		while (theNode.isEmpty() && theNode.hasChildren()) {
+			var tmpEarliest = theNode.meChildren.get(0);
+			for (var tmpChild : theNode.meChildren) {
+				if (!tmpChild.isEmpty() && (tmpEarliest.isEmpty() || tmpChild.meDate < tmpEarliest.meDate)) {
+					tmpEarliest = tmpChild;
+				}
+			}
+			theNode = tmpEarliest;
+		}
+		return theNode.meDate;
+	}
+
+	/**
+	 * Checks if a subject is a reply (starts with 'Re:', or a localized form of it).
+	 */
+	private static boolean isReply(String theSubject) {
+		var tmpLen = ThreadIndex.prefixLength(theSubject, 0);
+		return tmpLen > 0 && !ThreadIndex.isForward(theSubject, theSubject.length() - theSubject.stripLeading().length());
+	}
+
+	private static boolean isForward(String theSubject, int prefixStart) {
+		return theSubject.regionMatches(true, prefixStart, "fw", 0, 2);
+	}
+
+	/**
+	 * Used to get a subject without its reply and forward prefixes ('Re:', 'Fwd:', 'Re[2]:', 'AW:'...), lower-cased and
+	 * with its white space collapsed (what threads are found by when their messages have no references).
+	 */
+	private static String topicOf(String theSubject) {
+		if (theSubject == null) {
+			return "";
+		}
+		var tmpPos = 0;
+		for (var tmpLen = ThreadIndex.prefixLength(theSubject, tmpPos); tmpLen > 0; tmpLen = ThreadIndex.prefixLength(theSubject, tmpPos)) {
+			tmpPos += tmpLen;
+		}
+		var outBuild = new StringBuilder(theSubject.length() - tmpPos);
+		var tmpIsSpace = false;
+		for (var i = tmpPos; i < theSubject.length(); i++) {
+			var tmpChar = theSubject.charAt(i);
+			if (Character.isWhitespace(tmpChar)) {
+				tmpIsSpace = outBuild.length() > 0;
+			} else {
+				if (tmpIsSpace) {
+					outBuild.append(' ');
+					tmpIsSpace = false;
+				}
+				outBuild.append(tmpChar);
+			}
+		}
+		return outBuild.toString().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Used to get the length of a reply or forward prefix (with the white space before it) at the specified position.
+	 * @return	the prefix's length, or 0 if there is none.
+	 */
+	private static int prefixLength(String theSubject, int fromIndex) {
+		var i = fromIndex;
+		while (i < theSubject.length() && Character.isWhitespace(theSubject.charAt(i))) {
+			i++;
+		}
+		var tmpStart = i;
+		while (i < theSubject.length() && i - tmpStart < 4 && Character.isLetter(theSubject.charAt(i))) {
+			i++;
+		}
+		var tmpWord = theSubject.substring(tmpStart, i).toLowerCase(Locale.ROOT);
+		if (!tmpWord.equals("re") && !tmpWord.equals("fw") && !tmpWord.equals("fwd") && !tmpWord.equals("aw") && !tmpWord.equals("sv")
+				&& !tmpWord.equals("antw") && !tmpWord.equals("vs") && !tmpWord.equals("tr")) {
+			return 0;
+		}
+		if (i < theSubject.length() && theSubject.charAt(i) == '[') { // Like 'Re[2]:'
+			var tmpClose = theSubject.indexOf(']', i);
+			i = tmpClose < 0 ? i : tmpClose + 1;
+		}
+		return i < theSubject.length() && (theSubject.charAt(i) == ':' || theSubject.charAt(i) == '\uFF1A') ? i + 1 - fromIndex : 0;
+	}
+
+	/**
+	 * Parses the items of a message's 'FETCH' response that the threading needs.
+	 * @return	the message's ID, the IDs it refers to, its subject and its date (or 'null' if there is no 'ENVELOPE').
+	 */
+	private static Object[] parseItems(List<byte[][]> messageLines) {
+		var tmpText = new StringBuilder();
+		var tmpIsFound = false;
+		for (var tmpLine : messageLines) {
+			if (tmpText.length() > 0) {
+				tmpText.append('\n'); // Marks the end of a line that announced a literal
+			}
+			for (var i = tmpText.length() == 0 ? 3 : 0; i < tmpLine.length; i++) { // After '* n FETCH'
+				tmpIsFound |= ThreadIndex.isEnvelope(tmpLine[i]);
+				tmpText.append(TextDecoder.decode(tmpLine[i], 0, tmpLine[i].length)).append(' ');
+			}
+		}
+		if (!tmpIsFound) {
+			return null;
+		}
+		List<Object> tmpItems;
+		try {
+			tmpItems = new BodyStructure.Tokens(tmpText).nextList();
+		} catch (RuntimeException e) {
+			return null; // Malformed (the message is threaded when it is fetched again)
+		}
+		List<?> tmpEnvelope = null;
+		String tmpInternal = null;
+		for (var i = 0; i + 1 < tmpItems.size(); i += 2) {
+			if (!(tmpItems.get(i) instanceof String)) {
+				continue;
+			}
+			var tmpName = ((String)tmpItems.get(i)).toUpperCase(Locale.ROOT);
+			if (tmpName.equals("ENVELOPE") && tmpItems.get(i + 1) instanceof List) {
+				tmpEnvelope = (List<?>)tmpItems.get(i + 1);
+			} else if (tmpName.equals("INTERNALDATE") && tmpItems.get(i + 1) instanceof String) {
+				tmpInternal = (String)tmpItems.get(i + 1);
+			}
+		}
+		if (tmpEnvelope == null || tmpEnvelope.size() < 10) {
+			return null;
+		}
+		var tmpIds = ThreadIndex.messageIds(tmpEnvelope.get(9));
+		var tmpSubject = tmpEnvelope.get(1) instanceof String ? TextDecoder.decodeWords((String)tmpEnvelope.get(1)) : "";
+		var tmpDate = ThreadIndex.parseDate(tmpInternal, ThreadIndex.INTERNAL_DATE);
+		if (tmpDate == Long.MIN_VALUE) {
+			tmpDate = ThreadIndex.parseDate(tmpEnvelope.get(0) instanceof String ? (String)tmpEnvelope.get(0) : null, DateTimeFormatter.RFC_1123_DATE_TIME);
+		}
+		return new Object[] {tmpIds.length == 0 ? null : tmpIds[0], ThreadIndex.messageIds(tmpEnvelope.get(8)), tmpSubject, tmpDate == Long.MIN_VALUE ? 0L : tmpDate};
+	}
+
+	private static boolean isEnvelope(byte[] theWord) {
+		var tmpName = ThreadIndex.WORD_ENVELOPE;
+		if (theWord.length != tmpName.length) {
+			return false;
+		}
+		for (var i = 0; i < tmpName.length; i++) {
+			if ((theWord[i] & 0xDF) != tmpName[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the message IDs ('<...>') in a header value (a 'null' value has none).
+	 */
+	private static String[] messageIds(Object headerValue) {
+		if (!(headerValue instanceof String)) {
+			return new String[0];
+		}
+		var tmpValue = (String)headerValue;
+		var outIds = new ArrayList<String>();
+		for (var tmpStart = tmpValue.indexOf('<'); tmpStart >= 0; tmpStart = tmpValue.indexOf('<', tmpStart + 1)) {
+			var tmpEnd = tmpValue.indexOf('>', tmpStart);
+			if (tmpEnd < 0) {
+				break;
+			}
+			outIds.add(tmpValue.substring(tmpStart, tmpEnd + 1).replace(" ", "")); // Folding may have split it
+		}
+		var tmpFrom = Math.max(0, outIds.size() - ThreadIndex.MAX_REFS);
+		return outIds.subList(tmpFrom, outIds.size()).toArray(new String[0]);
+	}
+
+	/**
+	 * Parses a date (without the comment that may follow it, like ' (UTC)').
+	 * @return	the date in milliseconds since the epoch, or 'Long.MIN_VALUE' if it is missing or malformed.
+	 */
+	private static long parseDate(String theDate, DateTimeFormatter theFormat) {
+		if (theDate == null) {
+			return Long.MIN_VALUE;
+		}
+		var tmpEnd = theDate.indexOf('(');
+		var tmpText = (tmpEnd < 0 ? theDate : theDate.substring(0, tmpEnd)).strip();
+		try {
+			return ZonedDateTime.parse(tmpText, theFormat).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return Long.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * Writes an add record (framed) to the specified buffer.
+	 */
+	private void log(ByteArrayOutputStream logOut, long messageUid, String messageId, String[] referredIds, String theSubject, long theDate) throws IOException {
+		var tmpStart = logOut.size();
+		var tmpOut = new DataOutputStream(logOut);
+		tmpOut.writeByte(ThreadIndex.TYPE_ADD);
+		tmpOut.writeLong(messageUid);
+		tmpOut.writeLong(theDate);
+		tmpOut.writeUTF(ThreadIndex.cut(messageId == null ? "" : messageId));
+		var tmpRefs = String.join(" ", referredIds);
+		while (tmpRefs.length() > ThreadIndex.MAX_TEXT) { // Keeps the nearest ancestors
+			tmpRefs = tmpRefs.substring(tmpRefs.indexOf(' ', tmpRefs.length() - ThreadIndex.MAX_TEXT) + 1);
+		}
+		tmpOut.writeUTF(tmpRefs);
+		tmpOut.writeUTF(ThreadIndex.cut(theSubject == null ? "" : theSubject));
+		tmpOut.flush();
+		ThreadIndex.frame(logOut, tmpStart);
+	}
+
+	private static String cut(String theText) {
+		return theText.length() > ThreadIndex.MAX_TEXT ? theText.substring(0, ThreadIndex.MAX_TEXT) : theText;
+	}
+
+	/**
+	 * Puts the record header before the payload that starts at the specified offset of the buffer.
+	 */
+	private static void frame(ByteArrayOutputStream logOut, int payloadStart) {
+		var tmpAll = logOut.toByteArray();
+		var tmpCrc = new CRC32();
+		tmpCrc.update(tmpAll, payloadStart, tmpAll.length - payloadStart);
+		logOut.reset();
+		logOut.write(tmpAll, 0, payloadStart);
+		var tmpHeader = ByteBuffer.allocate(ThreadIndex.RECORD_HEADER).putInt(ThreadIndex.RECORD_MAGIC).putInt(tmpAll.length - payloadStart).putInt((int)tmpCrc.getValue());
+		logOut.write(tmpHeader.array(), 0, ThreadIndex.RECORD_HEADER);
+		logOut.write(tmpAll, payloadStart, tmpAll.length - payloadStart);
+	}
+
+	/**
+	 * Appends the specified records to the log.
+	 */
+	private void write(ByteArrayOutputStream theRecords) throws IOException {
+		if (theRecords.size() > 0) {
+			var tmpBuf = ByteBuffer.wrap(theRecords.toByteArray());
+			var tmpPos = this.meChannel.size();
+			while (tmpBuf.hasRemaining()) {
+				tmpPos += this.meChannel.write(tmpBuf, tmpPos);
+			}
+		}
+	}
+
+	/**
+	 * Copies the add records of the messages still in the index to a new log (forced to disk, then moved over the old
+	 * one), dropping the removed messages' records and the removal records.
+	 */
+	private void compact() throws IOException {
+		var tmpFile = this.meDirectory.resolve(ThreadIndex.LOG_FILE);
+		var tmpTemp = this.meDirectory.resolve(ThreadIndex.LOG_FILE + ".tmp");
+		var tmpMap = this.meChannel.map(FileChannel.MapMode.READ_ONLY, 0L, this.meChannel.size());
+		try (var tmpOut = FileChannel.open(tmpTemp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			tmpOut.write(ThreadIndex.logHeader(this.meUidValidity));
+			var tmpPos = ThreadIndex.LOG_HEADER;
+			while (tmpPos < tmpMap.limit()) {
+				var tmpLength = tmpMap.getInt(tmpPos + 4);
+				var tmpRecord = tmpMap.slice(tmpPos, ThreadIndex.RECORD_HEADER + tmpLength);
+				var tmpUid = tmpMap.getLong(tmpPos + ThreadIndex.RECORD_HEADER + 1);
+				if (tmpMap.get(tmpPos + ThreadIndex.RECORD_HEADER) == ThreadIndex.TYPE_ADD && this.meUids.containsKey(tmpUid)) {
+					while (tmpRecord.hasRemaining()) {
+						tmpOut.write(tmpRecord);
+					}
+				}
+				tmpPos += ThreadIndex.RECORD_HEADER + tmpLength;
+			}
+			tmpOut.force(true);
+		}
+		this.meChannel.close();
+		Files.move(tmpTemp, tmpFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.meChannel = FileChannel.open(tmpFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.meRemovedCount = 0;
+	}
+}
@@ -5,6 +5,8 @@ module easyEmail {
 	requires javafx.controls;
 	requires javafx.fxml;
 	requires transitive javafx.graphics;
+	requires java.management;
+	requires static jdk.jfr;
 	opens loader to javafx.graphics;
 	opens view to javafx.fxml;
 }
@@ -0,0 +1,279 @@
+package view;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+import lib.LatencyHistogram;
+
+/**
+ * A class that represents the instrumentation of a connection (or, for the aggregates of a 'MetricsRegistry', of all
+ * the connections to an endpoint or of all connections). Whatever a connection records is also added to its endpoint's
+ * aggregate and to the registry's total, so slow servers can be told apart from a slow receive loop.
+ * The counters are cumulative across the reconnects of a connection object, and can be read from any thread.
+ * @author Janty Azmat
+ */
+public class ConnectionMetrics {
+
+	/**
+	 * Holds the lazily looked up ThreadMXBean (used for the CPU time of the read-threads).
+	 */
+	private static class MxHolder {
+		private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	}
+
+	// Fields
+	private String meName;
+	private ConnectionMetrics meParent;
+	private MetricsRegistry meRegistry;
+	private long meCreated;
+	private LongAdder meBytesIn;
+	private LongAdder meBytesOut;
+	private LongAdder meLinesIn;
+	private LongAdder meReads;
+	private LongAdder meReadNanos;
+	private LongAdder meHandshakes;
+	private LongAdder meResumed;
+	private LongAdder meReaderCpu;
+	private LatencyHistogram meHandHist;
+	private LatencyHistogram meFirstByteHist;
+	private volatile long meSentAt;		// When data was sent after the last receive (0 if no response is awaited)
+	private volatile Thread meReader;
+	private long meSessionBytesIn;		// The counters when the current connection started (for the JFR session event)
+	private long meSessionBytesOut;
+	private long meSessionLines;
+	private long meSessionReadNanos;
+
+	/**
+	 * A constructor that takes the name (like 'host:port'), the aggregate that also gets what is recorded, and the
+	 * registry it belongs to as parameters.
+	 * @param metricsName		the name.
+	 * @param parentMetrics		the aggregate that also gets what is recorded (or 'null').
+	 * @param ownerRegistry		the registry.
+	 */
+	ConnectionMetrics(String metricsName, ConnectionMetrics parentMetrics, MetricsRegistry ownerRegistry) {
+		this.meName = metricsName;
+		this.meParent = parentMetrics;
+		this.meRegistry = ownerRegistry;
+		this.meCreated = System.nanoTime();
+		this.meBytesIn = new LongAdder();
+		this.meBytesOut = new LongAdder();
+		this.meLinesIn = new LongAdder();
+		this.meReads = new LongAdder();
+		this.meReadNanos = new LongAdder();
+		this.meHandshakes = new LongAdder();
+		this.meResumed = new LongAdder();
+		this.meReaderCpu = new LongAdder();
+		this.meHandHist = new LatencyHistogram();
+		this.meFirstByteHist = new LatencyHistogram();
+	}
+
+	/**
+	 * Records a completed SSL handshake.
+	 * @param handNanos		how long the handshake took.
+	 * @param isResumed		'true' if the handshake resumed an earlier session.
+	 */
+	void recordHandshake(long handNanos, boolean isResumed) {
+		this.meSentAt = 0L;
+		for (var tmpMetrics = this; tmpMetrics != null; tmpMetrics = tmpMetrics.meParent) {
+			tmpMetrics.meHandshakes.increment();
+			if (isResumed) {
+				tmpMetrics.meResumed.increment();
+			}
+			tmpMetrics.meHandHist.record(handNanos);
+		}
+		if (this.meRegistry.isJfrEnabled()) {
+			JfrEvents.commitHandshake(this.meName, handNanos, isResumed);
+		}
+	}
+
+	/**
+	 * Records bytes written to the TLS layer (after compression, if any).
+	 * @param byteCount	the number of bytes written.
+	 */
+	void recordSend(int byteCount) {
+		if (this.meSentAt == 0L) {
+			this.meSentAt = System.nanoTime();
+		}
+		for (var tmpMetrics = this; tmpMetrics != null; tmpMetrics = tmpMetrics.meParent) {
+			tmpMetrics.meBytesOut.add(byteCount);
+		}
+	}
+
+	/**
+	 * Records bytes read from the TLS layer (before decompression, if any), and the first-byte time if a response was awaited.
+	 * @param byteCount		the number of bytes read.
+	 * @param readNanos		how long the read was blocked (0 for non-blocking reads).
+	 * @param readEnd		when the read returned (in 'System.nanoTime()' terms).
+	 */
+	void recordRead(int byteCount, long readNanos, long readEnd) {
+		var tmpSentAt = this.meSentAt;
+		if (tmpSentAt != 0L) {
+			this.meSentAt = 0L;
+		}
+		for (var tmpMetrics = this; tmpMetrics != null; tmpMetrics = tmpMetrics.meParent) {
+			tmpMetrics.meReads.increment();
+			tmpMetrics.meBytesIn.add(byteCount);
+			tmpMetrics.meReadNanos.add(readNanos);
+			if (tmpSentAt != 0L) {
+				tmpMetrics.meFirstByteHist.record(readEnd - tmpSentAt);
+			}
+		}
+	}
+
+	/**
+	 * Records received lines.
+	 * @param lineCount	the number of lines.
+	 */
+	void recordLines(int lineCount) {
+		if (lineCount > 0) {
+			for (var tmpMetrics = this; tmpMetrics != null; tmpMetrics = tmpMetrics.meParent) {
+				tmpMetrics.meLinesIn.add(lineCount);
+			}
+		}
+	}
+
+	/**
+	 * Marks the start of receiving on a connection.
+	 * @param readerThread	the thread that reads for the connection (or 'null' if there is no dedicated one).
+	 */
+	void sessionStarted(Thread readerThread) {
+		this.meReader = readerThread;
+		this.meSessionBytesIn = this.meBytesIn.sum();
+		this.meSessionBytesOut = this.meBytesOut.sum();
+		this.meSessionLines = this.meLinesIn.sum();
+		this.meSessionReadNanos = this.meReadNanos.sum();
+	}
+
+	/**
+	 * Marks the end of receiving on a connection (should be called on the read-thread itself, if there is one).
+	 */
+	void sessionEnded() {
+		var tmpCpu = 0L;
+		if (this.meReader != null && this.meReader == Thread.currentThread()) {
+			tmpCpu = Math.max(0L, ConnectionMetrics.threadCpuNanos(this.meReader));
+			for (var tmpMetrics = this; tmpMetrics != null; tmpMetrics = tmpMetrics.meParent) {
+				tmpMetrics.meReaderCpu.add(tmpCpu);
+			}
+		}
+		this.meReader = null;
+		if (this.meRegistry.isJfrEnabled()) {
+			JfrEvents.commitSession(this.meName, this.meBytesIn.sum() - this.meSessionBytesIn, this.meBytesOut.sum() - this.meSessionBytesOut,
+					this.meLinesIn.sum() - this.meSessionLines, this.meReadNanos.sum() - this.meSessionReadNanos, tmpCpu);
+		}
+	}
+
+	private static long threadCpuNanos(Thread theThread) {
+		return MxHolder.THREADS.isThreadCpuTimeSupported() ? MxHolder.THREADS.getThreadCpuTime(theThread.getId()) : -1L; // -1 for virtual threads too
+	}
+
+	/**
+	 * Used to get the name of what is measured ('host:port', or 'total').
+	 * @return	the name.
+	 */
+	public String getName() {
+		return this.meName;
+	}
+
+	/**
+	 * Used to get the number of bytes read from the TLS layer (compressed bytes, if the connection is compressed).
+	 * @return	the number of bytes received.
+	 */
+	public long getBytesIn() {
+		return this.meBytesIn.sum();
+	}
+
+	/**
+	 * Used to get the number of bytes written to the TLS layer (compressed bytes, if the connection is compressed).
+	 * @return	the number of bytes sent.
+	 */
+	public long getBytesOut() {
+		return this.meBytesOut.sum();
+	}
+
+	/**
+	 * Used to get the number of lines received.
+	 * @return	the number of lines received.
+	 */
+	public long getLinesIn() {
+		return this.meLinesIn.sum();
+	}
+
+	/**
+	 * Used to get the average number of lines received per second since this object was created.
+	 * @return	the lines per second.
+	 */
+	public double getLinesPerSecond() {
+		var tmpSeconds = (System.nanoTime() - this.meCreated) / 1e9;
+		return tmpSeconds <= 0.0 ? 0.0 : this.meLinesIn.sum() / tmpSeconds;
+	}
+
+	/**
+	 * Used to get the number of reads from the TLS layer.
+	 * @return	the number of reads.
+	 */
+	public long getReadCount() {
+		return this.meReads.sum();
+	}
+
+	/**
+	 * Used to get the total time the read-threads were blocked in 'read()' (0 for connections that read without blocking).
+	 * @return	the time blocked in reads in nanoseconds.
+	 */
+	public long getReadBlockedNanos() {
+		return this.meReadNanos.sum();
+	}
+
+	/**
+	 * Used to get the number of SSL handshakes.
+	 * @return	the number of handshakes.
+	 */
+	public long getHandshakeCount() {
+		return this.meHandshakes.sum();
+	}
+
+	/**
+	 * Used to get the number of SSL handshakes that resumed an earlier session.
+	 * @return	the number of resumed handshakes.
+	 */
+	public long getResumedCount() {
+		return this.meResumed.sum();
+	}
+
+	/**
+	 * Used to get the histogram of the SSL handshake times.
+	 * @return	the handshake histogram.
+	 */
+	public LatencyHistogram getHandshakeHistogram() {
+		return this.meHandHist;
+	}
+
+	/**
+	 * Used to get the histogram of the first-byte times (from sending after a receive until the next bytes are received,
+	 * which is the server's response time plus the round trip).
+	 * @return	the first-byte histogram.
+	 */
+	public LatencyHistogram getFirstByteHistogram() {
+		return this.meFirstByteHist;
+	}
+
+	/**
+	 * Used to get the CPU time used by the read-threads: the ended ones, plus the running one of a single connection
+	 * (connections without a dedicated read-thread, and virtual read-threads, are not measured).
+	 * @return	the CPU time in nanoseconds.
+	 */
+	public long getReaderCpuNanos() {
+		var outCpu = this.meReaderCpu.sum();
+		var tmpReader = this.meReader;
+		if (tmpReader != null && tmpReader.isAlive()) {
+			outCpu += Math.max(0L, ConnectionMetrics.threadCpuNanos(tmpReader));
+		}
+		return outCpu;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s {in: %d B, out: %d B, lines: %d (%.1f/s), reads: %d, blocked: %.1f ms, cpu: %.1f ms, handshakes: %d (%d resumed) %s, first byte: %s}",
+				this.meName, this.getBytesIn(), this.getBytesOut(), this.getLinesIn(), this.getLinesPerSecond(), this.getReadCount(),
+				this.getReadBlockedNanos() / 1e6, this.getReaderCpuNanos() / 1e6, this.getHandshakeCount(), this.getResumedCount(), this.meHandHist, this.meFirstByteHist);
+	}
+}
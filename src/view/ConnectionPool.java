@@ -0,0 +1,344 @@
+package view;
+
+import java.io.IOException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+
+/**
+ * A class that represents a pool of connections to email servers keyed by 'host:port' and account. Released (already
+ * authenticated) connections are kept idle for a while to be acquired again for the same account instead of
+ * reconnecting (never for another account of the same server), and new connections share one
+ * SSLContext whose client session cache is tuned so that reconnecting to the same server resumes the SSL session. The
+ * pool also records the handshake statistics of every endpoint.
+ * @author Janty Azmat
+ */
+public class ConnectionPool implements AutoCloseable {
+
+	/**
+	 * The interface required from the factory that creates the pool's new (not yet connected) connections.
+	 * @author Janty Azmat
+	 */
+	@FunctionalInterface
+	public static interface ConnectionFactory {
+
+		/**
+		 * Creates a new (not yet connected) connection.
+		 * @param serverAddress	the server's address.
+		 * @param serverPort	the server's port.
+		 * @param sslContext	the pool's shared SSLContext.
+		 * @return				the new connection.
+		 * @throws IOException	when the connection cannot be created.
+		 */
+		IConnection create(String serverAddress, int serverPort, SSLContext sslContext) throws IOException;
+	}
+
+	/**
+	 * A class that represents the handshake and reuse statistics of one endpoint (a snapshot).
+	 * @author Janty Azmat
+	 */
+	public static class EndpointStats {
+		// Fields
+		private int meFullCount;
+		private int meResumedCount;
+		private int meReuseCount;
+		private long meTotalNanos;
+		private long meLastNanos;
+
+		private EndpointStats() {
+		}
+
+		private EndpointStats(EndpointStats otherStats) {
+			this.meFullCount = otherStats.meFullCount;
+			this.meResumedCount = otherStats.meResumedCount;
+			this.meReuseCount = otherStats.meReuseCount;
+			this.meTotalNanos = otherStats.meTotalNanos;
+			this.meLastNanos = otherStats.meLastNanos;
+		}
+
+		/**
+		 * Used to get the number of full SSL handshakes.
+		 * @return	the number of full handshakes.
+		 */
+		public int getFullHandshakes() {
+			return this.meFullCount;
+		}
+
+		/**
+		 * Used to get the number of handshakes that resumed an earlier SSL session.
+		 * @return	the number of resumed handshakes.
+		 */
+		public int getResumedHandshakes() {
+			return this.meResumedCount;
+		}
+
+		/**
+		 * Used to get the number of times an idle connection was reused (no handshake at all).
+		 * @return	the number of reuses.
+		 */
+		public int getReuseCount() {
+			return this.meReuseCount;
+		}
+
+		/**
+		 * Used to get the average handshake time.
+		 * @return	the average handshake time in nanoseconds (0 if there was no handshake).
+		 */
+		public long getAverageHandshakeNanos() {
+			var tmpCount = this.meFullCount + this.meResumedCount;
+			return tmpCount == 0 ? 0L : this.meTotalNanos / tmpCount;
+		}
+
+		/**
+		 * Used to get the time of the last handshake.
+		 * @return	the last handshake time in nanoseconds.
+		 */
+		public long getLastHandshakeNanos() {
+			return this.meLastNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("{full: %d, resumed: %d, reused: %d, avg handshake: %.1f ms}", this.meFullCount, this.meResumedCount,
+					this.meReuseCount, this.getAverageHandshakeNanos() / 1e6);
+		}
+	}
+
+	/**
+	 * Holds an idle connection and when it was released.
+	 */
+	private static class Idle {
+		private IConnection meConn;
+		private long meSince;
+
+		private Idle(IConnection idleConnection) {
+			this.meConn = idleConnection;
+			this.meSince = System.nanoTime();
+		}
+	}
+
+	// Fields
+	public static final int DEFAULT_SESSION_CACHE_SIZE = 512;
+	public static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 8 * 60 * 60;
+	private SSLContext meCtx;
+	private ConnectionFactory meFactory;
+	private int meMaxIdle;
+	private long meIdleNanos;
+	private Map<String, ArrayDeque<Idle>> meIdle;
+	private Map<String, EndpointStats> meStats;
+	private boolean meIsClosed;
+
+	/**
+	 * A constructor that creates a pool of 'SslConnection' objects with a new tuned SSLContext (that trusts the default
+	 * trust store), up to 2 idle connections per endpoint and account, and an idle timeout of 5 minutes.
+	 * @throws IllegalStateException	when the default TLS implementation is not available.
+	 */
+	public ConnectionPool() throws IllegalStateException {
+		this(ConnectionPool.newContext(), 2, TimeUnit.MINUTES.toMillis(5));
+	}
+
+	/**
+	 * A constructor that creates a pool of 'SslConnection' objects and takes the SSLContext, the maximum idle connections
+	 * per endpoint and account, and the idle timeout as parameters.
+	 * @param sslContext				the SSLContext shared by the new connections (its client session cache gets tuned).
+	 * @param maxIdlePerEndpoint		the maximum number of idle connections kept per endpoint and account.
+	 * @param idleTimeoutMillis			how long an idle connection is kept before it is closed.
+	 * @throws NullPointerException		when the specified SSLContext is 'null'.
+	 */
+	public ConnectionPool(SSLContext sslContext, int maxIdlePerEndpoint, long idleTimeoutMillis) throws NullPointerException {
+		this((host, port, ctx) -> new SslConnection(host, port, ctx.getSocketFactory(), Thread::new), sslContext, maxIdlePerEndpoint, idleTimeoutMillis);
+	}
+
+	/**
+	 * A constructor that takes the connection factory, the SSLContext, the maximum idle connections per endpoint and
+	 * account, and the idle timeout as parameters.
+	 * @param connectionFactory			the factory that creates the new connections.
+	 * @param sslContext				the SSLContext shared by the new connections (its client session cache gets tuned).
+	 * @param maxIdlePerEndpoint		the maximum number of idle connections kept per endpoint and account.
+	 * @param idleTimeoutMillis			how long an idle connection is kept before it is closed.
+	 * @throws NullPointerException		when the specified factory or SSLContext is 'null'.
+	 */
+	public ConnectionPool(ConnectionFactory connectionFactory, SSLContext sslContext, int maxIdlePerEndpoint, long idleTimeoutMillis) throws NullPointerException {
+		this.meFactory = Objects.requireNonNull(connectionFactory, "The 'connectionFactory' argument cannot be 'null'.");
+		this.meCtx = Objects.requireNonNull(sslContext, "The 'sslContext' argument cannot be 'null'.");
+		this.meMaxIdle = Math.max(0, maxIdlePerEndpoint);
+		this.meIdleNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+		this.meIdle = new HashMap<>();
+		this.meStats = new HashMap<>();
+		ConnectionPool.tuneSessionCache(sslContext, ConnectionPool.DEFAULT_SESSION_CACHE_SIZE, ConnectionPool.DEFAULT_SESSION_TIMEOUT_SECONDS);
+	}
+
+	/**
+	 * Creates a new SSLContext (with the default key and trust managers) for the pools' connections.
+	 * @return							the new SSLContext.
+	 * @throws IllegalStateException	when the default TLS implementation is not available.
+	 */
+	private static SSLContext newContext() throws IllegalStateException {
+		try {
+			var outCtx = SSLContext.getInstance("TLS");
+			outCtx.init(null, null, null);
+			return outCtx;
+		} catch (NoSuchAlgorithmException | KeyManagementException e) {
+			throw new IllegalStateException("The default TLS implementation is not available.", e);
+		}
+	}
+
+	/**
+	 * Tunes the client session cache of the specified SSLContext so that sessions survive long enough to be resumed.
+	 * @param sslContext		the SSLContext to tune.
+	 * @param cacheSize			the maximum number of cached sessions.
+	 * @param timeoutSeconds	how long a cached session stays valid.
+	 */
+	public static void tuneSessionCache(SSLContext sslContext, int cacheSize, int timeoutSeconds) {
+		var tmpSessCtx = sslContext.getClientSessionContext();
+		tmpSessCtx.setSessionCacheSize(cacheSize);
+		tmpSessCtx.setSessionTimeout(timeoutSeconds);
+	}
+
+	/**
+	 * Acquires a connection to the specified endpoint for the specified account: an idle one already authenticated as
+	 * that account if there is any, otherwise a newly connected one (that the caller authenticates).
+	 * @param serverAddress				the server's address.
+	 * @param serverPort				the server's port.
+	 * @param accountName				the account (user name) the connection is authenticated as.
+	 * @return							the connected connection.
+	 * @throws IOException				when connecting to server fails.
+	 * @throws IllegalStateException	when this pool is closed.
+	 * @throws NullPointerException		when the specified account is 'null'.
+	 */
+	public IConnection acquire(String serverAddress, int serverPort, String accountName) throws IOException, IllegalStateException, NullPointerException {
+		var tmpEndpoint = serverAddress + ":" + serverPort;
+		var tmpKey = tmpEndpoint + "/" + Objects.requireNonNull(accountName, "The 'accountName' argument cannot be 'null'.");
+		var tmpDropped = new ArrayList<IConnection>();
+		try {
+			synchronized (this) {
+				if (this.meIsClosed) {
+					throw new IllegalStateException("The connection pool is closed.");
+				}
+				var tmpQueue = this.meIdle.get(tmpKey);
+				Idle tmpIdle;
+				while (tmpQueue != null && (tmpIdle = tmpQueue.pollLast()) != null) { // The most recently used first
+					if (tmpIdle.meConn.isConnected() && System.nanoTime() - tmpIdle.meSince < this.meIdleNanos) {
+						this.meStats.computeIfAbsent(tmpEndpoint, key -> new EndpointStats()).meReuseCount++;
+						return tmpIdle.meConn;
+					}
+					tmpDropped.add(tmpIdle.meConn);
+				}
+			}
+		} finally {
+			ConnectionPool.disconnectQuietly(tmpDropped); // Outside the lock (closing can wait for a read-thread)
+		}
+		var outConn = this.meFactory.create(serverAddress, serverPort, this.meCtx);
+		outConn.connect();
+		synchronized (this) {
+			var tmpStats = this.meStats.computeIfAbsent(tmpEndpoint, key -> new EndpointStats());
+			if (outConn.isSessionResumed()) {
+				tmpStats.meResumedCount++;
+			} else {
+				tmpStats.meFullCount++;
+			}
+			tmpStats.meLastNanos = outConn.getHandshakeNanos();
+			tmpStats.meTotalNanos += tmpStats.meLastNanos;
+		}
+		return outConn;
+	}
+
+	/**
+	 * Returns the specified connection to the pool to be reused for the same account (the caller should remove its own
+	 * event listeners first). The connection is closed instead if it is no longer connected or the endpoint already has
+	 * enough idle ones for the account.
+	 * @param usedConnection		the connection to release.
+	 * @param accountName			the account (user name) the connection is authenticated as.
+	 * @throws NullPointerException	when the specified account is 'null'.
+	 */
+	public void release(IConnection usedConnection, String accountName) throws NullPointerException {
+		var tmpKey = usedConnection.getServerAddress() + ":" + usedConnection.getServerPort() + "/" + Objects.requireNonNull(accountName, "The 'accountName' argument cannot be 'null'.");
+		var tmpDropped = new ArrayList<IConnection>();
+		tmpDropped.add(usedConnection);
+		synchronized (this) {
+			if (!this.meIsClosed && usedConnection.isConnected()) {
+				var tmpQueue = this.meIdle.computeIfAbsent(tmpKey, key -> new ArrayDeque<>());
+				this.evictExpired(tmpQueue, tmpDropped);
+				if (tmpQueue.size() < this.meMaxIdle) {
+					tmpQueue.addLast(new Idle(usedConnection));
+					tmpDropped.remove(0);
+				}
+			}
+		}
+		ConnectionPool.disconnectQuietly(tmpDropped);
+	}
+
+	/**
+	 * Used to get a snapshot of the statistics of the specified endpoint.
+	 * @param serverAddress	the server's address.
+	 * @param serverPort	the server's port.
+	 * @return				the endpoint's statistics (all zeros if it was never connected to).
+	 */
+	public synchronized EndpointStats getStats(String serverAddress, int serverPort) {
+		var tmpStats = this.meStats.get(serverAddress + ":" + serverPort);
+		return tmpStats == null ? new EndpointStats() : new EndpointStats(tmpStats);
+	}
+
+	/**
+	 * Used to get a snapshot of the statistics of all endpoints (keyed by 'host:port').
+	 * @return	the statistics of all endpoints.
+	 */
+	public synchronized Map<String, EndpointStats> getAllStats() {
+		var outMap = new HashMap<String, EndpointStats>();
+		this.meStats.forEach((key, stats) -> outMap.put(key, new EndpointStats(stats)));
+		return Collections.unmodifiableMap(outMap);
+	}
+
+	/**
+	 * Used to get the number of idle connections currently kept.
+	 * @return	the number of idle connections.
+	 */
+	public synchronized int getIdleCount() {
+		return this.meIdle.values().stream().mapToInt(ArrayDeque::size).sum();
+	}
+
+	/**
+	 * Removes the expired (or no longer connected) connections from the specified idle queue, and adds them to the
+	 * specified list to be closed once the pool is unlocked.
+	 */
+	private void evictExpired(ArrayDeque<Idle> idleQueue, List<IConnection> droppedList) {
+		Idle tmpIdle;
+		while ((tmpIdle = idleQueue.peekFirst()) != null && (System.nanoTime() - tmpIdle.meSince >= this.meIdleNanos || !tmpIdle.meConn.isConnected())) {
+			idleQueue.pollFirst();
+			droppedList.add(tmpIdle.meConn);
+		}
+	}
+
+	private static void disconnectQuietly(List<IConnection> theConnections) {
+		for (var tmpConn : theConnections) {
+			try {
+				tmpConn.disconnect();
+			} catch (IOException e) {
+				// Nothing more to do about it
+			}
+		}
+	}
+
+	/**
+	 * Closes all the idle connections (connections that are acquired at the time are not affected, and are closed when
+	 * they are released).
+	 */
+	@Override
+	public void close() {
+		var tmpDropped = new ArrayList<IConnection>();
+		synchronized (this) {
+			this.meIsClosed = true;
+			this.meIdle.values().forEach(queue -> queue.forEach(idle -> tmpDropped.add(idle.meConn)));
+			this.meIdle.clear();
+		}
+		ConnectionPool.disconnectQuietly(tmpDropped);
+	}
+}
@@ -0,0 +1,149 @@
+package view;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A class that holds the deflate state of a connection that switched to compressed I/O (RFC 4978 'COMPRESS=DEFLATE').
+ * Both directions are raw deflate streams (no zlib header); every write is ended with a sync-flush so the server can
+ * decompress it right away. The Deflater, the Inflater and the buffers are reused across reconnects of the connection.
+ * @author Janty Azmat
+ */
+class DeflateCodec {
+	// Fields
+	private Deflater meDeflater;
+	private Inflater meInflater;
+	private byte[] meInBuf;		// Compressed bytes received (the Inflater reads them in-place)
+	private byte[] meOutBuf;	// Compressed bytes to be written
+	private volatile boolean meIsInflating;
+	private volatile boolean meIsDeflating;
+
+	DeflateCodec() {
+		this.meDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		this.meInflater = new Inflater(true);
+		this.meInBuf = new byte[SendBuffer.RECORD_SIZE];
+		this.meOutBuf = new byte[SendBuffer.RECORD_SIZE];
+	}
+
+	/**
+	 * Switches both directions back to plain I/O and drops the deflate state (used when the connection is re-established).
+	 */
+	synchronized void reset() {
+		this.meIsInflating = false;
+		this.meIsDeflating = false;
+		this.meDeflater.reset();
+		this.meInflater.reset();
+	}
+
+	/**
+	 * Switches both directions to compressed I/O.
+	 * @param srcData	the array that holds the compressed bytes already received after the last plain line.
+	 * @param srcOffset	the offset of the bytes in the array.
+	 * @param srcLength	the number of bytes.
+	 */
+	void start(byte[] srcData, int srcOffset, int srcLength) {
+		if (srcLength > this.meInBuf.length) {
+			this.meInBuf = new byte[srcLength];
+		}
+		System.arraycopy(srcData, srcOffset, this.meInBuf, 0, srcLength);
+		this.meInflater.setInput(this.meInBuf, 0, srcLength);
+		this.meIsInflating = true;
+		this.meIsDeflating = true;
+	}
+
+	boolean isInflating() {
+		return this.meIsInflating;
+	}
+
+	boolean isDeflating() {
+		return this.meIsDeflating;
+	}
+
+	/**
+	 * Checks if all the compressed bytes received so far were decompressed.
+	 * @return	'true' if more compressed bytes are needed.
+	 */
+	boolean needsInput() {
+		return this.meInflater.needsInput();
+	}
+
+	/**
+	 * Reads the next block of compressed bytes from the specified stream (should only be called when 'needsInput()').
+	 * @param inStream		the stream to read from.
+	 * @return				the number of bytes read, or -1 when the end of the stream was reached.
+	 * @throws IOException	when an I/O error occurs while reading.
+	 */
+	int read(InputStream inStream) throws IOException {
+		var outRead = inStream.read(this.meInBuf, 0, this.meInBuf.length);
+		if (outRead > 0) {
+			this.meInflater.setInput(this.meInBuf, 0, outRead);
+		}
+		return outRead;
+	}
+
+	/**
+	 * Copies as much of the remaining compressed bytes of the specified buffer as fits (should only be called when 'needsInput()').
+	 * @param srcBuffer	the buffer to copy from.
+	 * @return			the number of bytes copied.
+	 */
+	int read(ByteBuffer srcBuffer) {
+		var outCount = Math.min(srcBuffer.remaining(), this.meInBuf.length);
+		srcBuffer.get(this.meInBuf, 0, outCount);
+		this.meInflater.setInput(this.meInBuf, 0, outCount);
+		return outCount;
+	}
+
+	/**
+	 * Decompresses the received bytes into the specified array.
+	 * @param dstData		the array to decompress into.
+	 * @param dstOffset		the offset to start at.
+	 * @param dstLength		the maximum number of bytes to decompress.
+	 * @return				the number of bytes decompressed (0 when more compressed bytes are needed).
+	 * @throws IOException	when the received bytes are not a valid deflate stream, or the stream ended.
+	 */
+	int inflate(byte[] dstData, int dstOffset, int dstLength) throws IOException {
+		try {
+			var outCount = this.meInflater.inflate(dstData, dstOffset, dstLength);
+			if (outCount == 0 && (this.meInflater.finished() || this.meInflater.needsDictionary())) {
+				throw new ZipException("The compressed stream from the server ended.");
+			}
+			return outCount;
+		} catch (DataFormatException e) {
+			throw new ZipException("Invalid compressed data from the server: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Compresses the specified data and writes the result (sync-flushed) to the specified writer.
+	 * @param srcData		the array that holds the data.
+	 * @param srcOffset		the offset of the data in the array.
+	 * @param srcLength		the length of the data.
+	 * @param dstWriter		the writer that the compressed bytes are written to.
+	 * @throws IOException	when an I/O error occurs while writing.
+	 */
+	synchronized void deflate(byte[] srcData, int srcOffset, int srcLength, SendBuffer.RecordWriter dstWriter) throws IOException {
+		this.meDeflater.setInput(srcData, srcOffset, srcLength);
+		int tmpCount;
+		do { // A full output buffer means the flush is not complete yet
+			tmpCount = this.meDeflater.deflate(this.meOutBuf, 0, this.meOutBuf.length, Deflater.SYNC_FLUSH);
+			if (tmpCount > 0) {
+				dstWriter.write(this.meOutBuf, 0, tmpCount);
+			}
+		} while (tmpCount == this.meOutBuf.length || !this.meDeflater.needsInput());
+	}
+
+	/**
+	 * Used to get the ratio of the plain bytes to the compressed bytes (both directions) since compression started.
+	 * @return	the compression ratio (1 when nothing was compressed yet).
+	 */
+	double getRatio() {
+		var tmpCompressed = this.meInflater.getBytesRead() + this.meDeflater.getBytesWritten();
+		var tmpPlain = this.meInflater.getBytesWritten() + this.meDeflater.getBytesRead();
+		return tmpCompressed == 0L ? 1.0 : (double)tmpPlain / tmpCompressed;
+	}
+}
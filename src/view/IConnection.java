@@ -0,0 +1,204 @@
+package view;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+import lib.EventQueue;
+import lib.IEventEmitter;
+
+/**
+ * The interface required from a connection to an email server (the connection emits the events in 'SslConnection.ConnectionEvent').
+ * @author Janty Azmat
+ */
+public interface IConnection extends IEventEmitter<SslConnection.ConnectionEvent>, AutoCloseable {
+
+	/**
+	 * Starts the connection to server.
+	 * @throws IOException				when connecting to server or the SSL handshake fails.
+	 * @throws IllegalStateException	when this connection is already connected to server.
+	 */
+	void connect() throws IOException, IllegalStateException;
+
+	/**
+	 * Sends the specified data using this connection.
+	 * @param dataToSend				the data to be sent.
+	 * @throws IOException				when an I/O error occurs while writing.
+	 * @throws IllegalStateException	when this connection is not yet connected to server.
+	 */
+	void send(byte[] dataToSend) throws IOException, IllegalStateException;
+
+	/**
+	 * Sends the remaining data of the specified buffers as if they were one (gathering).
+	 * @param dataToSend				the buffers that hold the data to be sent (their positions are advanced).
+	 * @throws IOException				when an I/O error occurs while writing.
+	 * @throws IllegalStateException	when this connection is not yet connected to server.
+	 */
+	void send(ByteBuffer... dataToSend) throws IOException, IllegalStateException;
+
+	/**
+	 * Writes whatever the earlier sends left in the send buffer (only needed in buffered send mode).
+	 * @throws IOException				when an I/O error occurs while writing.
+	 * @throws IllegalStateException	when this connection is not yet connected to server.
+	 */
+	void flush() throws IOException, IllegalStateException;
+
+	/**
+	 * Stops the currently established connection to server if any.
+	 * @throws IOException	when an I/O error occurs while closing.
+	 */
+	void disconnect() throws IOException;
+
+	@Override
+	void close() throws IOException;
+
+	/**
+	 * Checks if this connection is currently connected to server.
+	 * @return	'true' if this connection is connected.
+	 */
+	boolean isConnected();
+
+	/**
+	 * Used to get how long the SSL handshake of the last 'connect()' took.
+	 * @return	the duration of the last handshake in nanoseconds.
+	 */
+	long getHandshakeNanos();
+
+	/**
+	 * Checks if the last 'connect()' resumed an earlier SSL session (an abbreviated handshake) instead of doing a full one.
+	 * @return	'true' if the last handshake resumed an earlier session.
+	 */
+	boolean isSessionResumed();
+
+	/**
+	 * Used to get the server's address.
+	 * @return	the server's address.
+	 */
+	String getServerAddress();
+
+	/**
+	 * Used to get the server's port.
+	 * @return	the server's port.
+	 */
+	int getServerPort();
+
+	/**
+	 * Used to get the receiver of the literals announced by received lines.
+	 * @return	the literal sink (or 'null' if literals are received as normal lines).
+	 */
+	LiteralSink getLiteralSink();
+
+	/**
+	 * Sets the receiver of the literals announced by received lines (literals are streamed to it instead of being framed).
+	 * @param literalSink	the literal sink (or 'null' to receive literals as normal lines).
+	 */
+	void setLiteralSink(LiteralSink literalSink);
+
+	/**
+	 * Used to get the event queue between the connection's reading and the listeners.
+	 * @return	the event queue (or 'null' if events are emitted directly).
+	 */
+	EventQueue<SslConnection.ConnectionEvent> getEventQueue();
+
+	/**
+	 * Sets up a bounded event queue between the connection's reading and the listeners, or removes it.
+	 * @param queueCapacity		the maximum number of events waiting for the listeners (0 to emit events directly).
+	 * @param overflowPolicy	what happens when the queue is full ('BLOCK' stops reading, 'FAIL' ends the connection
+	 * 							with 'RECEIVE_ITERRUPTED').
+	 * @param dispatchExecutor	the Executor that runs the listeners (or 'null' for a shared default one).
+	 */
+	void setEventQueue(int queueCapacity, EventQueue.OverflowPolicy overflowPolicy, Executor dispatchExecutor);
+
+	/**
+	 * Checks if small sends are coalesced into full TLS records (until the buffer fills, 'flush()' is called, or the
+	 * auto-flush delay passes without sends).
+	 * @return	'true' if sends are buffered.
+	 */
+	boolean isSendBuffered();
+
+	/**
+	 * Sets whether small sends are coalesced into full TLS records (turning it off flushes what is buffered).
+	 * @param isBuffered	'true' to buffer sends.
+	 * @throws IOException	when an I/O error occurs while flushing.
+	 */
+	void setSendBuffered(boolean isBuffered) throws IOException;
+
+	/**
+	 * Used to get the delay without sends after which buffered data is flushed automatically.
+	 * @return	the auto-flush delay in milliseconds (0 means no auto-flush).
+	 */
+	long getAutoFlushDelay();
+
+	/**
+	 * Sets the delay without sends after which buffered data is flushed automatically.
+	 * @param delayMillis	the auto-flush delay in milliseconds (0 disables auto-flush).
+	 */
+	void setAutoFlushDelay(long delayMillis);
+
+	/**
+	 * Used to get an estimate of the number of TLS records written so far (by this connection object, across reconnects):
+	 * each write counts as the number of full-size records its data needs, whatever the TLS layer really produced.
+	 * @return	the estimated number of TLS records written.
+	 */
+	long getRecordsWritten();
+
+	/**
+	 * Used to get the number of plain bytes written so far (by this connection object, across reconnects).
+	 * @return	the number of bytes written.
+	 */
+	long getBytesWritten();
+
+	/**
+	 * Checks if 'LINE_RECEIVED' events carry a reused 'ReceivedLine' view instead of a copied 'byte[][]'.
+	 * @return	'true' if line views are enabled.
+	 */
+	boolean isLineViewEnabled();
+
+	/**
+	 * Sets whether 'LINE_RECEIVED' events carry a reused 'ReceivedLine' view instead of a copied 'byte[][]'.
+	 * @param isLineView	'true' to enable line views.
+	 */
+	void setLineViewEnabled(boolean isLineView);
+
+	/**
+	 * Checks if received lines are kept whole instead of being split into words.
+	 * @return	'true' if lines are kept whole.
+	 */
+	boolean isWholeLines();
+
+	/**
+	 * Sets whether received lines are kept whole (each line is a single word holding it exactly as received, without the
+	 * line ending, and an empty line has no words) instead of being split into words at spaces. Takes effect from the
+	 * next line framed.
+	 * @param isWhole	'true' to keep lines whole.
+	 */
+	void setWholeLines(boolean isWhole);
+
+	/**
+	 * Used to get the instrumentation of this connection (its counters are also added to the aggregates of the shared
+	 * 'MetricsRegistry').
+	 * @return	the metrics of this connection.
+	 */
+	ConnectionMetrics getMetrics();
+
+	/**
+	 * Arms the switch of this connection to deflate-compressed I/O (RFC 4978 'COMPRESS=DEFLATE'): both directions switch
+	 * right after the first received line that the specified predicate accepts (like the tagged 'OK' of 'COMPRESS DEFLATE').
+	 * @param lastPlainLine				recognizes the last plain line (or 'null' to disarm the switch).
+	 * @throws IllegalStateException	when this connection is not yet connected, or is already compressed.
+	 */
+	void enableCompression(Predicate<ReceivedLine> lastPlainLine) throws IllegalStateException;
+
+	/**
+	 * Checks if this connection switched to compressed I/O.
+	 * @return	'true' if this connection is compressed.
+	 */
+	boolean isCompressed();
+
+	/**
+	 * Used to get the ratio of the plain bytes to the compressed bytes (both directions) since this connection switched
+	 * to compressed I/O.
+	 * @return	the compression ratio (1 when nothing was compressed yet).
+	 */
+	double getCompressionRatio();
+}
@@ -1,5 +1,6 @@
 package view;
 
+import java.util.List;
 import lib.ConstraintList;
 import lib.IEventEmitter;
 
@@ -17,8 +18,17 @@ public interface IEmailDisplay extends IEventEmitter<IEmailDisplay.EmailDisplayE
 		DISPLAY_STARTED,
 //		CREDENTIALS_PROVIDED,
 		EMAIL_LIST_REQUESTED,
+
+		/**
+		 * Informs that the user has requested an email's data (the event's data is the email's UID as a 'Long').
+		 */
 		EMAIL_DATA_REQUESTED,
 
+		/**
+		 * Informs that the user has searched the emails (the event's data is the query as a 'String').
+		 */
+		EMAIL_SEARCH_REQUESTED,
+
 		/**
 		 * Informs that the user has requested exiting the application.
 		 */
@@ -29,24 +39,65 @@ public interface IEmailDisplay extends IEventEmitter<IEmailDisplay.EmailDisplayE
 
 	ConstraintList requestData(String dataTitle, String dataMsg, ConstraintList requestedData);
 
-	void displayEamilList();
+	/**
+	 * Used to display a chunk of the email list. The chunks of a listing arrive in mailbox order, possibly from a
+	 * connection's thread rather than the display's own one. Outside the first chunk, an email already displayed (with
+	 * the same UID) is replaced, like when a refresh brings its new flags, and the others are added in UID order.
+	 * @param listChunk		the untagged 'FETCH' response lines of the chunk's messages.
+	 * @param isFirstChunk	'true' if this is the first chunk of a new listing (what was displayed before should be cleared).
+	 */
+	void displayEamilList(List<byte[][]> listChunk, boolean isFirstChunk);
 
-	void displayEmailData();
+	/**
+	 * Used to remove emails from the displayed list, like the ones a refresh found expunged. It may be called from a
+	 * connection's thread rather than the display's own one.
+	 * @param emailUids	the UIDs of the removed emails (ascending).
+	 */
+	void displayRemovedEmails(long[] emailUids);
+
+	/**
+	 * Used to display an email's text (its attachments and inline images follow through 'displayEmailPart' as they
+	 * arrive). It may be called from a connection's thread rather than the display's own one.
+	 * @param emailUid		the email's UID.
+	 * @param textType		the type of the text (like 'text/plain', or 'text/html'), or 'null' if the email has no text.
+	 * @param emailText		the decoded text (or 'null').
+	 */
+	void displayEmailData(long emailUid, String textType, String emailText);
+
+	/**
+	 * Used to display (or offer to save) a part of an email other than its text, like an attachment or an inline image.
+	 * It may be called from a connection's thread rather than the display's own one.
+	 * @param emailUid		the email's UID.
+	 * @param partPath		the part's section number (like '2', or '1.2').
+	 * @param partType		the type of the part (like 'image/png').
+	 * @param fileName		the part's file name (or 'null').
+	 * @param partContent	the decoded content of the part.
+	 */
+	void displayEmailPart(long emailUid, String partPath, String partType, String fileName, byte[] partContent);
+
+	/**
+	 * Used to display the result of a search of the emails. It may be called from a background thread rather than the
+	 * display's own one.
+	 * @param searchQuery	the query searched for.
+	 * @param emailUids		the UIDs of the matching emails (ascending).
+	 */
+	void displaySearchResult(String searchQuery, long[] emailUids);
 
 	/**
-	 * Used to display an information message to the user.
+	 * Used to display an information message to the user. It may be called from any thread (the message is then shown
+	 * on the display's own one, without waiting for it).
 	 * @param infoMsg	the information message.
 	 */
 	void displayInformation(String infoMsg);
 
 	/**
-	 * Used to display a warning message to the user
+	 * Used to display a warning message to the user. It may be called from any thread, like 'displayInformation'.
 	 * @param warningMsg	the warning message.
 	 */
 	void displayWarning(String warningMsg);
 
 	/**
-	 * Used to display an error message to the user.
+	 * Used to display an error message to the user. It may be called from any thread, like 'displayInformation'.
 	 * @param errorMsg	the error message.
 	 */
 	void displayError(String errorMsg);
@@ -1,18 +1,34 @@
 package view;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.function.BiConsumer;
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.collections.transformation.FilteredList;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Alert.AlertType;
+import javafx.scene.control.Hyperlink;
 import javafx.scene.control.Label;
 import javafx.scene.control.SplitPane;
+import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableView;
+import javafx.scene.control.TextArea;
+import javafx.scene.control.TextField;
 import javafx.scene.control.TreeItem;
 import javafx.scene.control.TreeView;
 import javafx.scene.layout.AnchorPane;
+import javafx.scene.layout.FlowPane;
+import javafx.stage.FileChooser;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 import lib.ConstraintList;
@@ -29,7 +45,14 @@ public class JavaFxEmailDisplay extends SplitPane implements IEmailDisplay {
 	@FXML private SplitPane meEmailSplit;
 	@FXML private TreeView<String> meSideBar;
 	@FXML private TableView<String[]> meEmailList;
+	@FXML private TextField meSearchField;
 	@FXML private AnchorPane meEmailBoard;
+	@FXML private TextArea meEmailText;
+	@FXML private FlowPane meEmailParts;
+	private long meShownUid = -1L;	// The UID of the email shown on the board (only used on the JavaFX thread)
+	private ObservableList<String[]> meRows;		// All the listed rows, in UID order (the table shows the ones the search matched)
+	private FilteredList<String[]> meShownRows;
+	private String meSearchQuery;	// The last searched query (only used on the JavaFX thread)
 
 	/**
 	 * Default constructor for the user interface.
@@ -43,9 +66,116 @@ public class JavaFxEmailDisplay extends SplitPane implements IEmailDisplay {
 		tmpLoad.setRoot(this);
 		tmpLoad.load();
 //		meEmailSplit.setOrientation(Orientation.HORIZONTAL);
+		var tmpColumns = this.meEmailList.getColumns(); // A row is the UID and the rest of the 'FETCH' items
+		for (var i = 0; i < tmpColumns.size(); i++) {
+			var tmpIndex = i;
+			@SuppressWarnings("unchecked")
+			var tmpColumn = (TableColumn<String[], String>)tmpColumns.get(i);
+			tmpColumn.setCellValueFactory(cell -> new ReadOnlyStringWrapper(tmpIndex < cell.getValue().length ? cell.getValue()[tmpIndex] : null));
+		}
+		this.meRows = FXCollections.observableArrayList();
+		this.meShownRows = new FilteredList<>(this.meRows);
+		this.meEmailList.setItems(this.meShownRows);
+		this.meSearchField.setOnAction(evt -> {
+			this.meSearchQuery = this.meSearchField.getText().strip();
+			if (this.meSearchQuery.isEmpty()) {
+				this.meShownRows.setPredicate(null);
+			} else {
+				this.meEmit.emitEvent(EmailDisplayEvent.EMAIL_SEARCH_REQUESTED, this.meSearchQuery);
+			}
+		});
+		this.meEmailList.getSelectionModel().selectedItemProperty().addListener((obs, oldRow, newRow) -> {
+			if (newRow != null && Long.parseLong(newRow[0]) != this.meShownUid) { // Not the same email's row replaced by a refresh
+				this.meShownUid = Long.parseLong(newRow[0]);
+				this.meEmailText.clear();
+				this.meEmailParts.getChildren().clear();
+				this.meEmit.emitEvent(EmailDisplayEvent.EMAIL_DATA_REQUESTED, this.meShownUid);
+			}
+		});
+	}
+
+	/**
+	 * Finds the row of the specified email in the rows (which are in UID order).
+	 * @return	the index of the row, or '-(insertion point) - 1' if it is not there.
+	 */
+	private static int indexOf(List<String[]> listRows, long emailUid) {
+		var tmpLow = 0;
+		var tmpHigh = listRows.size() - 1;
+		while (tmpLow <= tmpHigh) {
+			var tmpMid = (tmpLow + tmpHigh) >>> 1;
+			var tmpComp = Long.compare(Long.parseLong(listRows.get(tmpMid)[0]), emailUid);
+			if (tmpComp < 0) {
+				tmpLow = tmpMid + 1;
+			} else if (tmpComp > 0) {
+				tmpHigh = tmpMid - 1;
+			} else {
+				return tmpMid;
+			}
+		}
+		return -(tmpLow + 1);
+	}
+
+	/**
+	 * Makes the rows of the specified 'FETCH' response lines: the UID, and the words after it (the lines that follow a
+	 * literal are added to the row of their message).
+	 */
+	private static List<String[]> toRows(List<byte[][]> listChunk) {
+		var outRows = new ArrayList<String[]>();
+		StringBuilder tmpText = null;
+		for (var tmpLine : listChunk) {
+			if (tmpLine.length > 0 && tmpLine[0].length == 1 && tmpLine[0][0] == '*') {
+				tmpText = null;
+				for (var i = 3; i < tmpLine.length - 1 && tmpText == null; i++) {
+					var tmpWord = new String(tmpLine[i], StandardCharsets.US_ASCII);
+					if (tmpWord.equalsIgnoreCase("UID") || tmpWord.equalsIgnoreCase("(UID")) {
+						var tmpUid = new String(tmpLine[i + 1], StandardCharsets.US_ASCII).replace(")", "");
+						if (!tmpUid.isEmpty() && tmpUid.chars().allMatch(Character::isDigit)) {
+							tmpText = new StringBuilder();
+							outRows.add(new String[] {tmpUid, null});
+						}
+					}
+				}
+			}
+			if (tmpText != null) {
+				for (var i = tmpText.length() == 0 ? 3 : 0; i < tmpLine.length; i++) {
+					tmpText.append(tmpText.length() == 0 ? "" : " ").append(new String(tmpLine[i], StandardCharsets.UTF_8));
+				}
+				outRows.get(outRows.size() - 1)[1] = tmpText.toString();
+			}
+		}
+		return outRows;
+	}
+
+	/**
+	 * Makes a readable plain text of an HTML text (without its scripts, styles and tags).
+	 */
+	private static String toPlainText(String htmlText) {
+		return htmlText.replaceAll("(?is)<(script|style)\\b.*?</\\1\\s*>", "").replaceAll("(?i)<br\\s*/?>|</(p|div|tr|li|h[1-6])\\s*>", "\n")
+				.replaceAll("(?s)<[^>]*>", "").replace("&nbsp;", " ").replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&#39;", "'")
+				.replace("&amp;", "&").replaceAll("\n[ \t]*\n\\s*\n", "\n\n").strip();
+	}
+
+	private void saveEmailPart(String fileName, byte[] partContent) {
+		var tmpChooser = new FileChooser();
+		tmpChooser.setTitle("Save Attachment..");
+		if (fileName != null) {
+			tmpChooser.setInitialFileName(fileName);
+		}
+		var tmpFile = tmpChooser.showSaveDialog(this.getScene().getWindow());
+		if (tmpFile != null) {
+			try {
+				Files.write(tmpFile.toPath(), partContent);
+			} catch (IOException e) {
+				this.displayError("Saving the attachment failed: " + e.getMessage());
+			}
+		}
 	}
 
 	private void displayMesssage(String theMsg, String msgTitle, AlertType msgType) {
+		if (!Platform.isFxApplicationThread()) { // An 'Alert' can only be made (and shown) on the JavaFX thread
+			Platform.runLater(() -> this.displayMesssage(theMsg, msgTitle, msgType));
+			return;
+		}
 		Alert tmpAlert = new Alert(msgType);
 		((Label)tmpAlert.getDialogPane().getChildren().get(1)).setMinWidth(600.0);
 		String tmpStyle = "-fx-font-size: 16px; -fx-font-weight: bold;";
@@ -82,9 +212,6 @@ public class JavaFxEmailDisplay extends SplitPane implements IEmailDisplay {
 		tmpTreeRoot.getChildren().add(new TreeItem<String>("Three"));
 		this.meSideBar.setRoot(tmpTreeRoot);
 		this.meSideBar.setShowRoot(false);
-		for (int i = 0; i < 50; i++) {
-			this.meEmailList.getItems().add(new String[] {"cell1", "cell2"});
-		}
 	}
 
 	@Override
@@ -115,15 +242,69 @@ public class JavaFxEmailDisplay extends SplitPane implements IEmailDisplay {
 	}
 
 	@Override
-	public void displayEamilList() {
-		// TODO Auto-generated method stub
+	public void displayEamilList(List<byte[][]> listChunk, boolean isFirstChunk) {
+		var tmpRows = JavaFxEmailDisplay.toRows(listChunk);
+		Platform.runLater(() -> {
+			var tmpItems = this.meRows;
+			if (isFirstChunk) {
+				tmpItems.clear();
+			}
+			for (var tmpRow : tmpRows) {
+				var tmpIndex = JavaFxEmailDisplay.indexOf(tmpItems, Long.parseLong(tmpRow[0]));
+				if (tmpIndex >= 0) {
+					tmpItems.set(tmpIndex, tmpRow);
+				} else {
+					tmpItems.add(-tmpIndex - 1, tmpRow);
+				}
+			}
+		});
+	}
 
+	@Override
+	public void displayRemovedEmails(long[] emailUids) {
+		var tmpUids = emailUids.clone();
+		Platform.runLater(() -> {
+			var tmpItems = this.meRows;
+			for (var tmpUid : tmpUids) {
+				var tmpIndex = JavaFxEmailDisplay.indexOf(tmpItems, tmpUid);
+				if (tmpIndex >= 0) {
+					tmpItems.remove(tmpIndex);
+				}
+			}
+		});
 	}
 
 	@Override
-	public void displayEmailData() {
-		// TODO Auto-generated method stub
+	public void displayEmailData(long emailUid, String textType, String emailText) {
+		var tmpText = emailText == null ? "" : "text/html".equalsIgnoreCase(textType) ? JavaFxEmailDisplay.toPlainText(emailText) : emailText;
+		Platform.runLater(() -> {
+			if (emailUid == this.meShownUid) { // Not the late text of an email selected before
+				this.meEmailText.setText(tmpText);
+				this.meEmailText.positionCaret(0);
+			}
+		});
+	}
 
+	@Override
+	public void displayEmailPart(long emailUid, String partPath, String partType, String fileName, byte[] partContent) {
+		var tmpContent = partContent == null ? new byte[0] : partContent;
+		Platform.runLater(() -> {
+			if (emailUid == this.meShownUid) {
+				var tmpLink = new Hyperlink((fileName == null ? "Part " + partPath : fileName) + " (" + partType + ", " + tmpContent.length + " bytes)");
+				tmpLink.setOnAction(evt -> this.saveEmailPart(fileName, tmpContent));
+				this.meEmailParts.getChildren().add(tmpLink);
+			}
+		});
+	}
+
+	@Override
+	public void displaySearchResult(String searchQuery, long[] emailUids) {
+		var tmpUids = emailUids.clone();
+		Platform.runLater(() -> {
+			if (searchQuery.equals(this.meSearchQuery)) { // Not the late result of a query searched before
+				this.meShownRows.setPredicate(row -> Arrays.binarySearch(tmpUids, Long.parseLong(row[0])) >= 0);
+			}
+		});
 	}
 
 	@Override
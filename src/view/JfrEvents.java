@@ -0,0 +1,77 @@
+package view;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A class that holds the JFR events of the connections (only loaded when a 'MetricsRegistry' has JFR events on, so the
+ * 'jdk.jfr' module stays optional).
+ * @author Janty Azmat
+ */
+final class JfrEvents {
+
+	@Name("easyEmail.Handshake")
+	@Label("Connection Handshake")
+	@Category({"EasyEmail", "Connection"})
+	private static class HandshakeEvent extends Event {
+		@Label("Endpoint")
+		private String endpoint;
+		@Label("Handshake Time")
+		@Timespan(Timespan.NANOSECONDS)
+		private long handshakeTime;
+		@Label("Resumed")
+		private boolean resumed;
+	}
+
+	@Name("easyEmail.Session")
+	@Label("Connection Session")
+	@Category({"EasyEmail", "Connection"})
+	private static class SessionEvent extends Event {
+		@Label("Endpoint")
+		private String endpoint;
+		@Label("Bytes In")
+		@DataAmount
+		private long bytesIn;
+		@Label("Bytes Out")
+		@DataAmount
+		private long bytesOut;
+		@Label("Lines In")
+		private long linesIn;
+		@Label("Read Blocked Time")
+		@Timespan(Timespan.NANOSECONDS)
+		private long readBlocked;
+		@Label("Reader CPU Time")
+		@Timespan(Timespan.NANOSECONDS)
+		private long readerCpu;
+	}
+
+	private JfrEvents() {
+	}
+
+	static void commitHandshake(String endpointName, long handNanos, boolean isResumed) {
+		var tmpEvent = new HandshakeEvent();
+		if (tmpEvent.shouldCommit()) {
+			tmpEvent.endpoint = endpointName;
+			tmpEvent.handshakeTime = handNanos;
+			tmpEvent.resumed = isResumed;
+			tmpEvent.commit();
+		}
+	}
+
+	static void commitSession(String endpointName, long bytesIn, long bytesOut, long linesIn, long readNanos, long cpuNanos) {
+		var tmpEvent = new SessionEvent();
+		if (tmpEvent.shouldCommit()) {
+			tmpEvent.endpoint = endpointName;
+			tmpEvent.bytesIn = bytesIn;
+			tmpEvent.bytesOut = bytesOut;
+			tmpEvent.linesIn = linesIn;
+			tmpEvent.readBlocked = readNanos;
+			tmpEvent.readerCpu = cpuNanos;
+			tmpEvent.commit();
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package view;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A class that frames the bytes received from a server into lines of space-separated words. The bytes are read in
+ * blocks into a reusable buffer, and each complete line is split in-place into a reused 'ReceivedLine' view (its words
+ * are described by offsets and lengths into the buffer) so framing a line does not allocate.
+ * @author Janty Azmat
+ */
+class LineFramer {
+	// Fields
+	static final int DEFAULT_CAPACITY = 16384; // The maximum plain-text size of a TLS record
+	private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final long LF_MASK = 0x0A0A0A0A0A0A0A0AL;
+	private static final long LOW_BITS = 0x0101010101010101L;
+	private static final long HIGH_BITS = 0x8080808080808080L;
+	private byte[] meBuf;
+	private int meStart;	// The start of the line that is not framed yet
+	private int meScan;		// Where the search for the next line-feed resumes
+	private int meEnd;		// The end of the valid data in 'meBuf'
+	private ReceivedLine meLine;
+	private boolean meIsWhole;	// Lines are not split into words
+
+	/**
+	 * A constructor that takes the initial capacity of the receive buffer as a parameter (the buffer grows when a
+	 * single line does not fit in it).
+	 * @param initialCapacity	the initial capacity of the receive buffer.
+	 */
+	LineFramer(int initialCapacity) {
+		this.meBuf = new byte[Math.max(initialCapacity, 64)];
+		this.meLine = new ReceivedLine();
+	}
+
+	/**
+	 * Reads the next block of bytes from the specified stream into the receive buffer.
+	 * @param inStream		the stream to read from.
+	 * @return				the number of bytes read, or -1 when the end of the stream was reached.
+	 * @throws IOException	when an I/O error occurs while reading.
+	 */
+	int fill(InputStream inStream) throws IOException {
+		this.makeRoom();
+		var outRead = inStream.read(this.meBuf, this.meEnd, this.meBuf.length - this.meEnd);
+		if (outRead > 0) {
+			this.meEnd += outRead;
+		}
+		return outRead;
+	}
+
+	/**
+	 * Copies as much of the remaining bytes of the specified buffer as fits into the receive buffer.
+	 * @param srcBuffer	the buffer to copy from.
+	 * @return			the number of bytes copied.
+	 */
+	int fill(ByteBuffer srcBuffer) {
+		this.makeRoom();
+		var outCount = Math.min(srcBuffer.remaining(), this.meBuf.length - this.meEnd);
+		srcBuffer.get(this.meBuf, this.meEnd, outCount);
+		this.meEnd += outCount;
+		return outCount;
+	}
+
+	/**
+	 * Decompresses as much of the compressed bytes received by the specified codec as fits into the receive buffer.
+	 * @param deflateCodec	the codec that holds the compressed bytes.
+	 * @return				the number of bytes decompressed (0 when the codec needs more compressed bytes).
+	 * @throws IOException	when the compressed bytes are invalid.
+	 */
+	int fill(DeflateCodec deflateCodec) throws IOException {
+		this.makeRoom();
+		var outCount = deflateCodec.inflate(this.meBuf, this.meEnd, this.meBuf.length - this.meEnd);
+		this.meEnd += outCount;
+		return outCount;
+	}
+
+	/**
+	 * Hands the unframed bytes in the receive buffer to the specified codec as the start of the compressed stream, and
+	 * switches it to compressed I/O (used right after the last plain line was framed).
+	 * @param deflateCodec	the codec to start.
+	 */
+	void startCompressed(DeflateCodec deflateCodec) {
+		deflateCodec.start(this.meBuf, this.meStart, this.meEnd - this.meStart);
+		this.meStart = this.meEnd;
+		this.meScan = this.meEnd;
+	}
+
+	/**
+	 * Frames the next complete line (if any) in the receive buffer.
+	 * @return	'true' if a line was framed and its words are available.
+	 */
+	boolean nextLine() {
+		var tmpLf = this.indexOfLineFeed();
+		if (tmpLf < 0) {
+			this.meScan = this.meEnd;
+			return false;
+		}
+		this.split(this.meStart, tmpLf);
+		this.meStart = tmpLf + 1;
+		this.meScan = this.meStart;
+		return true;
+	}
+
+	/**
+	 * Writes the unframed bytes in the receive buffer (up to the specified maximum) to the specified channel, skipping
+	 * them from framing (used to stream literals).
+	 * @param dstChannel	the channel to write to.
+	 * @param maxBytes		the maximum number of bytes to write.
+	 * @return				the number of bytes written.
+	 * @throws IOException	when an I/O error occurs while writing.
+	 */
+	int drainTo(WritableByteChannel dstChannel, long maxBytes) throws IOException {
+		var outCount = (int)Math.min(maxBytes, this.meEnd - this.meStart);
+		var tmpSrc = ByteBuffer.wrap(this.meBuf, this.meStart, outCount);
+		while (tmpSrc.hasRemaining()) {
+			dstChannel.write(tmpSrc);
+		}
+		this.meStart += outCount;
+		this.meScan = Math.max(this.meScan, this.meStart);
+		return outCount;
+	}
+
+	/**
+	 * Frames whatever is left in the receive buffer as a last line (used when the end of the stream was reached).
+	 * @return	'true' if the left data ends with a non-empty word (a left-over line is only reported in that case).
+	 */
+	boolean finishLine() {
+		if (this.meStart >= this.meEnd) {
+			return false;
+		}
+		var outIsWordLeft = this.split(this.meStart, this.meEnd);
+		this.meStart = this.meEnd;
+		this.meScan = this.meEnd;
+		return outIsWordLeft;
+	}
+
+	/**
+	 * Sets whether the lines framed from now on are kept whole (a single word holding the line as received, without the
+	 * line ending) instead of being split into words.
+	 * @param isWhole	'true' to keep lines whole.
+	 */
+	void setWholeLines(boolean isWhole) {
+		this.meIsWhole = isWhole;
+	}
+
+	/**
+	 * Used to get the view of the last framed line (only valid until the next 'fill').
+	 * @return	the view of the last framed line.
+	 */
+	ReceivedLine getLine() {
+		return this.meLine;
+	}
+
+	/**
+	 * Makes sure there is a reasonable free space at the end of the receive buffer (by moving the unframed data to the
+	 * start, or growing the buffer when a single line fills it).
+	 */
+	private void makeRoom() {
+		var tmpLeft = this.meEnd - this.meStart;
+		if (tmpLeft == 0) {
+			this.meStart = this.meScan = this.meEnd = 0;
+		} else if (this.meStart > 0 && this.meBuf.length - this.meEnd < this.meBuf.length >> 2) {
+			System.arraycopy(this.meBuf, this.meStart, this.meBuf, 0, tmpLeft);
+			this.meScan -= this.meStart;
+			this.meStart = 0;
+			this.meEnd = tmpLeft;
+		}
+		if (this.meEnd == this.meBuf.length) {
+			var tmpNew = new byte[this.meBuf.length << 1];
+			System.arraycopy(this.meBuf, this.meStart, tmpNew, 0, tmpLeft);
+			this.meScan -= this.meStart;
+			this.meStart = 0;
+			this.meEnd = tmpLeft;
+			this.meBuf = tmpNew;
+		}
+	}
+
+	/**
+	 * Searches for the next line-feed (8 bytes at a time) starting from where the last search stopped.
+	 * @return	the index of the line-feed, or -1 if there is none.
+	 */
+	private int indexOfLineFeed() {
+		final var tmpBuf = this.meBuf;
+		var tmpInd = this.meScan;
+		for (var tmpLast = this.meEnd - Long.BYTES; tmpInd <= tmpLast; tmpInd += Long.BYTES) {
+			var tmpWord = (long)LONG_VIEW.get(tmpBuf, tmpInd) ^ LF_MASK; // Line-feed bytes become zero
+			var tmpZeros = (tmpWord - LOW_BITS) & ~tmpWord & HIGH_BITS;
+			if (tmpZeros != 0L) {
+				return tmpInd + (Long.numberOfTrailingZeros(tmpZeros) >>> 3);
+			}
+		}
+		for (; tmpInd < this.meEnd; tmpInd++) {
+			if (tmpBuf[tmpInd] == 10) {
+				return tmpInd;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Splits the specified part of the receive buffer into words (in-place). Spaces separate words and carriage-returns
+	 * are dropped wherever they are (they are squeezed out of the buffer). A line kept whole becomes a single word.
+	 * @param lineStart	the start of the line.
+	 * @param lineEnd	the end of the line (exclusive).
+	 * @return			'true' if the line ends with a non-empty word.
+	 */
+	private boolean split(int lineStart, int lineEnd) {
+		final var tmpBuf = this.meBuf;
+		if (this.meIsWhole) {
+			var tmpEnd = lineEnd > lineStart && tmpBuf[lineEnd - 1] == 13 ? lineEnd - 1 : lineEnd; // Only the line ending's carriage-return is dropped
+			this.meLine.reset(tmpBuf);
+			this.addWord(lineStart, tmpEnd - lineStart);
+			return tmpEnd > lineStart;
+		}
+		var tmpOut = lineStart;	// Where the next kept byte goes
+		var tmpWordStart = lineStart;
+		this.meLine.reset(tmpBuf);
+		for (var i = lineStart; i < lineEnd; i++) {
+			var tmpByte = tmpBuf[i];
+			if (tmpByte == 32) {
+				this.addWord(tmpWordStart, tmpOut - tmpWordStart);
+				tmpWordStart = tmpOut;
+			} else if (tmpByte != 13) {
+				if (tmpOut != i) {
+					tmpBuf[tmpOut] = tmpByte;
+				}
+				tmpOut++;
+			}
+		}
+		this.addWord(tmpWordStart, tmpOut - tmpWordStart);
+		return tmpOut > tmpWordStart;
+	}
+
+	private void addWord(int wordOffset, int wordLength) {
+		if (wordLength > 0) {
+			this.meLine.addWord(wordOffset, wordLength);
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package view;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.Predicate;
+import lib.EventQueue;
+import view.SslConnection.ConnectionEvent;
+
+/**
+ * A class that turns the bytes a connection receives into its 'LINE_RECEIVED' events (shared by the connection
+ * implementations). Lines are framed by a 'LineFramer', and literals announced at the end of a line are streamed to
+ * the connection's 'LiteralSink' (if any) instead of being framed. After the connection switches to compressed I/O, the
+ * received bytes are decompressed into the framer's buffer.
+ * @author Janty Azmat
+ */
+class LineReceiver {
+	// Fields
+	private IConnection meOwner;
+	private LineFramer meFramer;
+	private volatile LiteralSink meSink;
+	private WritableByteChannel meLitChan;
+	private long meLitSize;
+	private long meLitLeft;
+	private volatile boolean meIsStopped;
+	private volatile DeflateCodec meCodec;
+	private volatile Predicate<ReceivedLine> meSwitch;	// Recognizes the last plain line before compressed I/O
+	private int meLineCount;
+
+	/**
+	 * A constructor that takes the connection that emits the events as a parameter.
+	 * @param ownerConnection	the connection that emits the events.
+	 */
+	LineReceiver(IConnection ownerConnection) {
+		this.meOwner = ownerConnection;
+		this.meFramer = new LineFramer(LineFramer.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Reads the next block of bytes from the specified stream.
+	 * @param inStream		the stream to read from.
+	 * @return				the number of bytes read, or -1 when the end of the stream was reached.
+	 * @throws IOException	when an I/O error occurs while reading.
+	 */
+	int fill(InputStream inStream) throws IOException {
+		var tmpCodec = this.meCodec;
+		if (tmpCodec == null || !tmpCodec.isInflating()) {
+			return this.meFramer.fill(inStream);
+		}
+		var outRead = 0;
+		if (tmpCodec.needsInput()) {
+			outRead = tmpCodec.read(inStream);
+			if (outRead < 0) {
+				return outRead;
+			}
+		}
+		this.meFramer.fill(tmpCodec);
+		return outRead;
+	}
+
+	/**
+	 * Copies as much of the remaining bytes of the specified buffer as fits.
+	 * @param srcBuffer		the buffer to copy from.
+	 * @return				the number of bytes copied.
+	 * @throws IOException	when the compressed bytes are invalid.
+	 */
+	int fill(ByteBuffer srcBuffer) throws IOException {
+		var tmpCodec = this.meCodec;
+		if (tmpCodec == null || !tmpCodec.isInflating()) {
+			return this.meFramer.fill(srcBuffer);
+		}
+		var outCount = tmpCodec.needsInput() ? tmpCodec.read(srcBuffer) : 0;
+		this.meFramer.fill(tmpCodec);
+		return outCount;
+	}
+
+	/**
+	 * Emits all the complete lines received so far (and streams the literals they announce).
+	 * @throws IOException	when writing to the literal sink fails, or the compressed bytes are invalid.
+	 */
+	void dispatch() throws IOException {
+		while (!this.meIsStopped) {
+			if (this.meLitChan != null) {
+				this.meLitLeft -= this.meFramer.drainTo(this.meLitChan, this.meLitLeft);
+				if (this.meLitLeft > 0L) {
+					if (this.inflateMore()) {
+						continue;
+					}
+					return; // The rest of the literal has not arrived yet
+				}
+				var tmpChan = this.meLitChan;
+				this.meLitChan = null;
+				this.meSink.closeLiteral(tmpChan, this.meLitSize);
+			}
+			this.meFramer.setWholeLines(this.meOwner.isWholeLines());
+			if (!this.meFramer.nextLine()) {
+				if (this.inflateMore()) {
+					continue;
+				}
+				return;
+			}
+			var tmpSwitch = this.meSwitch;
+			if (tmpSwitch != null && tmpSwitch.test(this.meFramer.getLine())) {
+				this.meSwitch = null;
+				this.meFramer.startCompressed(this.meCodec); // What follows this line is compressed
+				this.emitLine();
+				continue;
+			}
+			this.emitLine();
+			var tmpSink = this.meSink;
+			var tmpSize = tmpSink == null ? -1L : LineReceiver.literalSize(this.meFramer.getLine());
+			if (tmpSize >= 0L) {
+				this.meLitChan = tmpSink.openLiteral(this.meFramer.getLine(), tmpSize);
+				this.meLitSize = tmpSize;
+				this.meLitLeft = tmpSize;
+			}
+		}
+	}
+
+	/**
+	 * Emits whatever is left as a last line (used when the end of the stream was reached).
+	 */
+	void finish() {
+		this.meFramer.setWholeLines(this.meOwner.isWholeLines());
+		if (!this.meIsStopped && this.meLitChan == null && this.meFramer.finishLine()) {
+			this.emitLine();
+		}
+	}
+
+	/**
+	 * Stops emitting events (used when the connection is closed locally).
+	 */
+	void stop() {
+		this.meIsStopped = true;
+	}
+
+	LiteralSink getLiteralSink() {
+		return this.meSink;
+	}
+
+	void setLiteralSink(LiteralSink literalSink) {
+		this.meSink = literalSink;
+	}
+
+	/**
+	 * Used to get the number of lines emitted since the last call (for the connection's metrics).
+	 * @return	the number of lines emitted.
+	 */
+	int takeLineCount() {
+		var outCount = this.meLineCount;
+		this.meLineCount = 0;
+		return outCount;
+	}
+
+	/**
+	 * Arms (or disarms) the switch to compressed I/O: both directions switch right after the first received line that the
+	 * specified predicate accepts (checked on the receiving thread, before the line's listeners could send anything).
+	 * @param deflateCodec		the codec to switch to.
+	 * @param lastPlainLine		recognizes the last plain line (or 'null' to disarm the switch).
+	 */
+	void setCompressionSwitch(DeflateCodec deflateCodec, Predicate<ReceivedLine> lastPlainLine) {
+		this.meCodec = deflateCodec;
+		this.meSwitch = lastPlainLine;
+	}
+
+	/**
+	 * Decompresses more of the received compressed bytes into the framer (if the connection is compressed).
+	 * @return				'true' if anything was decompressed.
+	 * @throws IOException	when the compressed bytes are invalid.
+	 */
+	private boolean inflateMore() throws IOException {
+		var tmpCodec = this.meCodec;
+		return tmpCodec != null && tmpCodec.isInflating() && !tmpCodec.needsInput() && this.meFramer.fill(tmpCodec) > 0;
+	}
+
+	private void emitLine() {
+		this.meLineCount++;
+		this.meOwner.emitEvent(ConnectionEvent.LINE_RECEIVED, this.meOwner.isLineViewEnabled() ? this.meFramer.getLine() : this.meFramer.getLine().copy());
+	}
+
+	/**
+	 * Puts an event of a connection into the connection's event queue (line views are detached since the reused view
+	 * will have changed by the time the event is consumed).
+	 * @param eventQueue	the connection's event queue.
+	 * @param theEvent		the event.
+	 * @param eventData		the extra data about the event (can be null).
+	 * @throws UncheckedIOException	when the queue is full and its policy is 'FAIL'.
+	 */
+	static void queueEvent(EventQueue<ConnectionEvent> eventQueue, ConnectionEvent theEvent, Object eventData) throws UncheckedIOException {
+		if (theEvent == ConnectionEvent.RECEIVE_ITERRUPTED) {
+			eventQueue.putFinal(theEvent, eventData); // The last event of the connection gets the spare slot
+		} else if (!eventQueue.put(theEvent, eventData instanceof ReceivedLine ? ((ReceivedLine)eventData).detach() : eventData)) {
+			throw new UncheckedIOException(new IOException("The event queue of the connection overflowed."));
+		}
+	}
+
+	/**
+	 * Checks if the specified line ends with a literal announcement ('{123}', or the non-synchronizing '{123+}').
+	 * @param theLine	the line to check.
+	 * @return			the size of the announced literal, or -1 if there is none.
+	 */
+	private static long literalSize(ReceivedLine theLine) {
+		var tmpCount = theLine.getWordCount();
+		if (tmpCount == 0) {
+			return -1L;
+		}
+		var tmpBuf = theLine.getBuffer();
+		var tmpStart = theLine.getWordOffset(tmpCount - 1);
+		var tmpEnd = tmpStart + theLine.getWordLength(tmpCount - 1) - 1; // The index of the '}'
+		if (tmpEnd - tmpStart < 2 || tmpBuf[tmpStart] != '{' || tmpBuf[tmpEnd] != '}') {
+			return -1L;
+		}
+		if (tmpBuf[tmpEnd - 1] == '+') {
+			tmpEnd--;
+		}
+		var outSize = 0L;
+		for (var i = tmpStart + 1; i < tmpEnd; i++) {
+			if (tmpBuf[i] < '0' || tmpBuf[i] > '9' || outSize > (Long.MAX_VALUE - 9L) / 10L) {
+				return -1L;
+			}
+			outSize = outSize * 10L + (tmpBuf[i] - '0');
+		}
+		return tmpEnd > tmpStart + 1 ? outSize : -1L;
+	}
+}
@@ -0,0 +1,32 @@
+package view;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The interface required from a receiver of byte-count literals (like IMAP's '{12345}' message bodies). When a
+ * connection has a LiteralSink, a received line that ends with a literal announcement is emitted as usual, and then the
+ * literal's bytes are streamed to the sink's channel as they arrive (without being split into words or held on the heap).
+ * The methods are called on the connection's read-thread.
+ * @author Janty Azmat
+ */
+public interface LiteralSink {
+
+	/**
+	 * Called when a received line announces a literal (right after the line's 'LINE_RECEIVED' event).
+	 * @param announcingLine	the view of the line that announced the literal (only valid during this call).
+	 * @param literalSize		the size of the literal in bytes.
+	 * @return					the channel to stream the literal's bytes into, or 'null' to receive the literal as
+	 * 							normal lines.
+	 * @throws IOException		when the channel cannot be opened.
+	 */
+	WritableByteChannel openLiteral(ReceivedLine announcingLine, long literalSize) throws IOException;
+
+	/**
+	 * Called when all the literal's bytes were written to the channel returned by 'openLiteral'.
+	 * @param literalChannel	the channel that the literal was streamed into.
+	 * @param literalSize		the size of the literal in bytes.
+	 * @throws IOException		when finishing the literal fails.
+	 */
+	void closeLiteral(WritableByteChannel literalChannel, long literalSize) throws IOException;
+}
@@ -0,0 +1,101 @@
+package view;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A class that represents a registry of connection metrics. Every connection gets its own 'ConnectionMetrics', and what
+ * it records is also added to the aggregate of its endpoint ('host:port') and to the registry's total. Optionally, the
+ * handshakes and the ended connections are also reported as JFR events ('easyEmail.Handshake' and 'easyEmail.Session').
+ * @author Janty Azmat
+ */
+public class MetricsRegistry {
+
+	/**
+	 * Holds the lazily created shared MetricsRegistry.
+	 */
+	private static class SharedHolder {
+		private static final MetricsRegistry SHARED = new MetricsRegistry();
+	}
+
+	// Fields
+	private ConnectionMetrics meTotal;
+	private Map<String, ConnectionMetrics> meEndpoints;
+	private volatile boolean meIsJfr;
+
+	/**
+	 * A constructor that creates an empty registry (JFR events are off).
+	 */
+	public MetricsRegistry() {
+		this.meTotal = new ConnectionMetrics("total", null, this);
+		this.meEndpoints = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Used to get the MetricsRegistry that the connections use.
+	 * @return	the shared MetricsRegistry.
+	 */
+	public static MetricsRegistry getShared() {
+		return SharedHolder.SHARED;
+	}
+
+	/**
+	 * Creates the metrics of a new connection (whatever it records is also added to its endpoint's aggregate and the total).
+	 * @param serverAddress	the server's address.
+	 * @param serverPort	the server's port.
+	 * @return				the new connection's metrics.
+	 */
+	public ConnectionMetrics newConnectionMetrics(String serverAddress, int serverPort) {
+		var tmpName = serverAddress + ":" + serverPort;
+		var tmpEndpoint = this.meEndpoints.computeIfAbsent(tmpName, name -> new ConnectionMetrics(name, this.meTotal, this));
+		return new ConnectionMetrics(tmpName, tmpEndpoint, this);
+	}
+
+	/**
+	 * Used to get the aggregate of all the connections of this registry.
+	 * @return	the total metrics.
+	 */
+	public ConnectionMetrics getTotal() {
+		return this.meTotal;
+	}
+
+	/**
+	 * Used to get the aggregate of all the connections to the specified endpoint.
+	 * @param serverAddress	the server's address.
+	 * @param serverPort	the server's port.
+	 * @return				the endpoint's metrics (or 'null' if no connection to it was created).
+	 */
+	public ConnectionMetrics getEndpoint(String serverAddress, int serverPort) {
+		return this.meEndpoints.get(serverAddress + ":" + serverPort);
+	}
+
+	/**
+	 * Used to get the aggregates of all endpoints (keyed by 'host:port').
+	 * @return	the metrics of all endpoints.
+	 */
+	public Map<String, ConnectionMetrics> getEndpoints() {
+		return Collections.unmodifiableMap(this.meEndpoints);
+	}
+
+	/**
+	 * Checks if the handshakes and the ended connections are reported as JFR events.
+	 * @return	'true' if JFR events are on.
+	 */
+	public boolean isJfrEnabled() {
+		return this.meIsJfr;
+	}
+
+	/**
+	 * Sets whether the handshakes and the ended connections are reported as JFR events (they are only recorded while a
+	 * flight recording is running).
+	 * @param isJfr								'true' to report JFR events.
+	 * @throws UnsupportedOperationException	when the 'jdk.jfr' module is not available.
+	 */
+	public void setJfrEnabled(boolean isJfr) throws UnsupportedOperationException {
+		if (isJfr && ModuleLayer.boot().findModule("jdk.jfr").isEmpty()) {
+			throw new UnsupportedOperationException("The 'jdk.jfr' module is not available.");
+		}
+		this.meIsJfr = isJfr;
+	}
+}
@@ -0,0 +1,753 @@
+package view;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import lib.BufferPool;
+import lib.EventEmitter;
+import lib.EventQueue;
+import lib.EventQueue.OverflowPolicy;
+import view.SslConnection.ConnectionEvent;
+
+/**
+ * A class that represents a secure connection to an email server that uses a non-blocking SocketChannel and an SSLEngine.
+ * Instead of having its own read-thread, the connection is served by a 'SelectorLoop' thread that can serve hundreds of
+ * connections. It emits the same events as 'SslConnection' (on the loop thread, so listeners should not block).
+ * Its I/O buffers are direct buffers leased from the shared 'BufferPool' on every 'connect()' and returned when the
+ * channel is closed, so many connections share a bounded amount of native memory and the buffers are not garbage.
+ * @author Janty Azmat
+ */
+public class NioSslConnection extends EventEmitter<ConnectionEvent> implements IConnection, SelectorLoop.Handler {
+	// Fields
+	private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+	private static final int MAX_PENDING_OUT = 1 << 20; // 'send' waits while more than this is waiting to be written
+	private InetSocketAddress meAddr;
+	private SSLContext meCtx;
+	private SelectorLoop meLoop;
+	private SocketChannel meChan;
+	private SelectionKey meKey;
+	private SSLEngine meEngine;
+	private ByteBuffer meNetIn;		// Encrypted bytes read from the channel (in write mode)
+	private ByteBuffer meAppIn;		// Decrypted bytes not yet framed (in write mode)
+	private ByteBuffer meNetOut;	// Encrypted bytes not yet written to the channel (in write mode; 'null' once closed)
+	private BufferPool mePool;
+	private LineReceiver meReceiver;
+	private volatile LiteralSink meSink;
+	private volatile EventQueue<ConnectionEvent> meQueue;
+	private volatile DeflateCodec meCodec;
+	private ConnectionMetrics meMetrics;
+	private CompletableFuture<Void> meHandshake;
+	private CompletableFuture<Void> meClosed;
+	private final Object meWriteLock = new Object();
+	private volatile boolean meIsClosing;
+	private volatile boolean meIsLineView;
+	private volatile boolean meIsWhole;
+	private SendBuffer meSendBuf;
+	private volatile long meHandStart;
+	private volatile long meHandStartMillis;
+	private volatile long meHandNanos;
+	private volatile boolean meIsResumed;
+
+	/**
+	 * A constructor that takes the server's address and port as parameters (the default SSLContext and the shared
+	 * SelectorLoop are used).
+	 * @param serverAddress				the server's address.
+	 * @param serverPort				the server's port.
+	 * @throws UnknownHostException		when the provided host is not a proper host name or IP address.
+	 * @throws SecurityException		when some security issues don't allow resolving host name to IP.
+	 * @throws IllegalArgumentException	when invalid port specified.
+	 * @throws IllegalStateException	when the default SSLContext is not available.
+	 */
+	public NioSslConnection(String serverAddress, int serverPort) throws UnknownHostException, SecurityException, IllegalArgumentException, IllegalStateException {
+		this(serverAddress, serverPort, NioSslConnection.defaultContext(), SelectorLoop.getShared());
+	}
+
+	/**
+	 * A constructor that takes the server's address and port, the SSLContext, and the SelectorLoop to use as parameters.
+	 * @param serverAddress				the server's address.
+	 * @param serverPort				the server's port.
+	 * @param sslContext				the SSLContext used to create the connection's SSLEngine.
+	 * @param selectorLoop				the SelectorLoop that will serve the connection.
+	 * @throws UnknownHostException		when the provided host is not a proper host name or IP address.
+	 * @throws SecurityException		when some security issues don't allow resolving host name to IP.
+	 * @throws IllegalArgumentException	when invalid port specified.
+	 */
+	public NioSslConnection(String serverAddress, int serverPort, SSLContext sslContext, SelectorLoop selectorLoop) throws UnknownHostException, SecurityException, IllegalArgumentException {
+		super(ConnectionEvent.class);
+		this.meAddr = new InetSocketAddress(InetAddress.getByName(serverAddress), serverPort);
+		this.meCtx = sslContext;
+		this.meLoop = selectorLoop;
+		this.meSendBuf = new SendBuffer(this::writeRecord);
+		this.mePool = BufferPool.getShared();
+		this.meMetrics = MetricsRegistry.getShared().newConnectionMetrics(this.meAddr.getHostString(), serverPort);
+	}
+
+	private static SSLContext defaultContext() throws IllegalStateException {
+		try {
+			return SSLContext.getDefault();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("The default SSLContext is not available.", e);
+		}
+	}
+
+	@Override
+	public void handleReady(SelectionKey readyKey) {
+		try {
+			if (readyKey.isConnectable()) {
+				this.meChan.finishConnect();
+				readyKey.interestOps(SelectionKey.OP_READ);
+				this.beginHandshake();
+			}
+			if (readyKey.isValid() && readyKey.isWritable()) {
+				synchronized (this.meWriteLock) {
+					this.flushOut();
+				}
+			}
+			if (readyKey.isValid() && readyKey.isReadable()) {
+				this.readIn();
+			}
+		} catch (IOException e) {
+			this.fail(e);
+		} catch (UncheckedIOException e) { // An event queue overflow
+			this.fail(e.getCause());
+		}
+	}
+
+	/**
+	 * Starts the SSL handshake once the channel is connected (runs on the loop thread).
+	 * @throws IOException	when an I/O or SSL error occurs.
+	 */
+	private void beginHandshake() throws IOException {
+		this.meHandStartMillis = System.currentTimeMillis();
+		this.meHandStart = System.nanoTime();
+		this.meEngine.beginHandshake();
+		this.wrapAndFlush(NioSslConnection.EMPTY_BUFFER);
+	}
+
+	/**
+	 * Reads the available encrypted bytes, decrypts them, and frames the decrypted lines (runs on the loop thread).
+	 * @throws IOException	when an I/O or SSL error occurs.
+	 */
+	private void readIn() throws IOException {
+		if (this.meChan.read(this.meNetIn) < 0) {
+			try {
+				this.meEngine.closeInbound();
+			} catch (SSLException e) {
+				// The server did not send 'close_notify'; the connection is closing anyway
+			}
+			this.finish();
+			return;
+		}
+		this.meNetIn.flip();
+		try {
+			while (true) {
+				var tmpRes = this.meEngine.unwrap(this.meNetIn, this.meAppIn);
+				if (tmpRes.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					this.deliverAppData();
+					if (this.meAppIn.remaining() < this.meEngine.getSession().getApplicationBufferSize()) {
+						this.meAppIn = this.enlarge(this.meAppIn, this.meEngine.getSession().getApplicationBufferSize());
+					}
+					continue;
+				} else if (tmpRes.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+					if (this.meNetIn.capacity() < this.meEngine.getSession().getPacketBufferSize()) {
+						this.meNetIn = this.enlarge(this.meNetIn.compact(), this.meEngine.getSession().getPacketBufferSize()).flip();
+					}
+					break;
+				} else if (tmpRes.getStatus() == SSLEngineResult.Status.CLOSED) {
+					this.deliverAppData();
+					this.finish();
+					return;
+				}
+				if (this.handleHandshake(tmpRes.getHandshakeStatus()) && tmpRes.bytesConsumed() == 0 && tmpRes.bytesProduced() == 0) {
+					break; // Nothing more can be done with what was read
+				}
+			}
+		} finally {
+			this.meNetIn.compact();
+		}
+		this.deliverAppData();
+	}
+
+	/**
+	 * Does whatever the handshake needs after an SSLEngine operation.
+	 * @param handStatus	the handshake status returned by the operation.
+	 * @return				'true' if nothing is needed from this side.
+	 * @throws IOException	when an I/O or SSL error occurs.
+	 */
+	private boolean handleHandshake(HandshakeStatus handStatus) throws IOException {
+		if (handStatus == HandshakeStatus.NEED_TASK) {
+			this.runDelegatedTasks();
+			handStatus = this.meEngine.getHandshakeStatus();
+		}
+		if (handStatus == HandshakeStatus.NEED_WRAP) {
+			this.wrapAndFlush(NioSslConnection.EMPTY_BUFFER);
+			return false;
+		}
+		if (!this.meHandshake.isDone() && (handStatus == HandshakeStatus.FINISHED || handStatus == HandshakeStatus.NOT_HANDSHAKING)) {
+			this.meHandshake.complete(null);
+		}
+		return handStatus != HandshakeStatus.NEED_TASK;
+	}
+
+	private void runDelegatedTasks() {
+		Runnable tmpTask;
+		while ((tmpTask = this.meEngine.getDelegatedTask()) != null) {
+			tmpTask.run();
+		}
+	}
+
+	/**
+	 * Frames the decrypted bytes and emits the complete lines.
+	 * @throws IOException	when writing to the literal sink fails.
+	 */
+	private void deliverAppData() throws IOException {
+		this.meAppIn.flip();
+		try {
+			if (this.meAppIn.hasRemaining()) {
+				this.meMetrics.recordRead(this.meAppIn.remaining(), 0L, System.nanoTime());
+			}
+			while (this.meAppIn.hasRemaining()) {
+				this.meReceiver.fill(this.meAppIn);
+				this.meReceiver.dispatch();
+			}
+		} finally {
+			this.meAppIn.clear();
+			this.meMetrics.recordLines(this.meReceiver.takeLineCount());
+		}
+	}
+
+	/**
+	 * Encrypts the specified data (or just the handshake/closure messages the SSLEngine needs) and writes as much as the
+	 * channel accepts now (the rest is written when the channel becomes writable).
+	 * @param srcData		the data to encrypt.
+	 * @throws IOException	when an I/O or SSL error occurs.
+	 */
+	private void wrapAndFlush(ByteBuffer srcData) throws IOException {
+		synchronized (this.meWriteLock) {
+			if (this.meNetOut == null) {
+				throw new ClosedChannelException(); // Its buffers were returned to the pool
+			}
+			while (true) {
+				var tmpRes = this.meEngine.wrap(srcData, this.meNetOut);
+				if (tmpRes.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					this.meNetOut = this.enlarge(this.meNetOut, this.meEngine.getSession().getPacketBufferSize());
+					continue;
+				}
+				if (tmpRes.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+					this.runDelegatedTasks();
+				}
+				if (tmpRes.getStatus() == SSLEngineResult.Status.CLOSED || (tmpRes.bytesConsumed() == 0 && tmpRes.bytesProduced() == 0)
+						|| (!srcData.hasRemaining() && this.meEngine.getHandshakeStatus() != HandshakeStatus.NEED_WRAP)) {
+					if (!this.meHandshake.isDone() && tmpRes.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+						this.meHandshake.complete(null);
+					}
+					break;
+				}
+			}
+			this.flushOut();
+		}
+	}
+
+	/**
+	 * Writes the pending encrypted bytes (should be called while holding 'meWriteLock').
+	 * @throws IOException	when an I/O error occurs while writing.
+	 */
+	private void flushOut() throws IOException {
+		if (this.meNetOut == null) {
+			throw new ClosedChannelException();
+		}
+		this.meNetOut.flip();
+		try {
+			this.meChan.write(this.meNetOut);
+		} finally {
+			this.meNetOut.compact();
+		}
+		try {
+			if (this.meNetOut.position() > 0) {
+				if ((this.meKey.interestOpsOr(SelectionKey.OP_WRITE) & SelectionKey.OP_WRITE) == 0 && !this.meLoop.isLoopThread()) {
+					this.meLoop.wakeup(); // Let the loop pick up the changed interest set
+				}
+			} else if ((this.meKey.interestOps() & SelectionKey.OP_WRITE) != 0) {
+				this.meKey.interestOpsAnd(~SelectionKey.OP_WRITE);
+			}
+		} catch (CancelledKeyException e) { // The loop closed the channel meanwhile
+			throw new ClosedChannelException();
+		}
+		if (this.meNetOut.position() <= NioSslConnection.MAX_PENDING_OUT) {
+			this.meWriteLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Replaces the specified buffer (in write mode) with a larger one from the pool that holds the same data.
+	 * @param theBuffer	the buffer to replace (returned to the pool).
+	 * @param minFree	the minimum free space needed after the data.
+	 * @return			the larger buffer.
+	 */
+	private ByteBuffer enlarge(ByteBuffer theBuffer, int minFree) {
+		var outBuf = this.mePool.lease(Math.max(theBuffer.capacity() << 1, theBuffer.position() + minFree));
+		outBuf.put(theBuffer.flip());
+		this.mePool.release(theBuffer);
+		return outBuf;
+	}
+
+	/**
+	 * Ends the connection after the server closed it (the left-over line is emitted like 'SslConnection' does).
+	 */
+	private void finish() {
+		this.meReceiver.finish();
+		this.meMetrics.recordLines(this.meReceiver.takeLineCount());
+		if (!this.meHandshake.isDone()) {
+			this.meHandshake.completeExceptionally(new EOFException("The server closed the connection during the handshake."));
+		}
+		this.closeChannel();
+	}
+
+	/**
+	 * Ends the connection after an I/O error.
+	 * @param theError	the error.
+	 */
+	private void fail(IOException theError) {
+		var tmpIsInterrupted = this.meHandshake.isDone() && !this.meIsClosing;
+		if (!this.meHandshake.isDone()) {
+			this.meHandshake.completeExceptionally(theError);
+		}
+		this.closeChannel();
+		if (tmpIsInterrupted) {
+			this.emitEvent(ConnectionEvent.RECEIVE_ITERRUPTED);
+		}
+	}
+
+	/**
+	 * Closes the channel and wakes up whoever waits for it (runs on the loop thread).
+	 */
+	private void closeChannel() {
+		if (this.meKey != null) {
+			this.meKey.cancel();
+		}
+		try {
+			this.meChan.close();
+		} catch (IOException e) {
+			// Nothing more to do about it
+		}
+		ByteBuffer tmpNetOut;
+		synchronized (this.meWriteLock) {
+			tmpNetOut = this.meNetOut;
+			this.meNetOut = null; // Late senders fail instead of writing into a buffer another connection may lease
+			this.meWriteLock.notifyAll();
+		}
+		if (tmpNetOut != null) { // Returned after whatever the loop thread is doing with them now
+			final var tmpNetIn = this.meNetIn;
+			final var tmpAppIn = this.meAppIn;
+			this.meLoop.execute(() -> {
+				this.mePool.release(tmpNetIn);
+				this.mePool.release(tmpAppIn);
+				this.mePool.release(tmpNetOut);
+			});
+		}
+		if (!this.meClosed.isDone()) {
+			this.meMetrics.sessionEnded();
+		}
+		this.meClosed.complete(null);
+	}
+
+	/**
+	 * Start an SSL connection to server (waits until the SSL handshake is done).
+	 * @throws IOException				when a channel cannot be created, error while connecting, or network error while SSL handshake.
+	 * @throws IllegalStateException	when this connection is already connected to server, when called on the loop thread,
+	 * 									or when the loop is closed.
+	 */
+	@Override
+	public void connect() throws IOException, IllegalStateException {
+		if (this.isConnected()) {
+			throw new IllegalStateException("Already connected.");
+		}
+		if (this.meLoop.isLoopThread()) {
+			throw new IllegalStateException("Cannot connect from the selector loop thread.");
+		}
+		if (!this.meLoop.isOpen()) { // Nothing would ever register the channel (or finish the handshake)
+			throw new IllegalStateException("The selector loop is closed.");
+		}
+		this.meEngine = this.meCtx.createSSLEngine(this.meAddr.getHostString(), this.meAddr.getPort());
+		this.meEngine.setUseClientMode(true);
+		this.meNetIn = this.mePool.lease(this.meEngine.getSession().getPacketBufferSize()); // Returned when the channel is closed
+		this.meAppIn = this.mePool.lease(this.meEngine.getSession().getApplicationBufferSize());
+		synchronized (this.meWriteLock) {
+			this.meNetOut = this.mePool.lease(this.meEngine.getSession().getPacketBufferSize());
+		}
+		this.meReceiver = new LineReceiver(this);
+		this.meReceiver.setLiteralSink(this.meSink);
+		var tmpQueue = this.meQueue;
+		if (tmpQueue != null) {
+			tmpQueue.reset();
+		}
+		this.meHandshake = new CompletableFuture<>();
+		this.meClosed = new CompletableFuture<>();
+		this.meIsClosing = false;
+		this.meSendBuf.reset();
+		if (this.meCodec != null) {
+			this.meCodec.reset();
+		}
+		final boolean tmpIsConnected;
+		try {
+			this.meChan = SocketChannel.open();
+			this.meChan.configureBlocking(false);
+			tmpIsConnected = this.meChan.connect(this.meAddr);
+		} catch (IOException | RuntimeException e) { // Like an unreachable network, or an unresolved address (unchecked)
+			this.abortConnect();
+			throw e instanceof IOException ? (IOException)e : new IOException("Connecting to " + this.meAddr + " failed.", e);
+		}
+		this.meLoop.execute(() -> {
+			try {
+				this.meKey = this.meLoop.register(this.meChan, tmpIsConnected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+				if (tmpIsConnected) {
+					this.beginHandshake();
+				}
+			} catch (IOException e) {
+				this.fail(e);
+			} catch (ClosedSelectorException e) { // The loop closed meanwhile
+				this.fail(new IOException("The selector loop is closed.", e));
+			}
+		});
+		try {
+			this.meHandshake.get();
+			this.meHandNanos = System.nanoTime() - this.meHandStart;
+			this.meIsResumed = this.meEngine.getSession().getCreationTime() < this.meHandStartMillis; // A resumed session keeps its original creation time
+			this.meMetrics.recordHandshake(this.meHandNanos, this.meIsResumed);
+			this.meMetrics.sessionStarted(null); // The loop thread is shared, so its CPU time is not the connection's
+		} catch (ExecutionException e) {
+			this.meChan.close();
+			throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			this.disconnect();
+			throw new InterruptedIOException("Interrupted while waiting for the SSL handshake.");
+		}
+	}
+
+	/**
+	 * Closes the channel and returns the buffers when 'connect' fails before the loop took the channel over.
+	 */
+	private void abortConnect() {
+		if (this.meChan != null) {
+			try {
+				this.meChan.close();
+			} catch (IOException e) {
+				// Nothing more to do about it
+			}
+		}
+		ByteBuffer tmpNetOut;
+		synchronized (this.meWriteLock) {
+			tmpNetOut = this.meNetOut;
+			this.meNetOut = null;
+		}
+		this.mePool.release(this.meNetIn);
+		this.mePool.release(this.meAppIn);
+		this.mePool.release(tmpNetOut);
+		this.meNetIn = null;
+		this.meAppIn = null;
+		this.meClosed.complete(null);
+	}
+
+	/**
+	 * Sends (or buffers) the specified data (waits while too much earlier data is still waiting to be written, unless
+	 * called on the loop thread).
+	 * @param dataToSend				the data to be sent.
+	 * @throws IOException				when an I/O error occurs while writing.
+	 * @throws IllegalStateException	when this connection is not yet connected to server.
+	 */
+	@Override
+	public void send(byte[] dataToSend) throws IOException, IllegalStateException {
+		this.awaitWritable();
+		this.meSendBuf.send(dataToSend, 0, dataToSend.length);
+	}
+
+	/**
+	 * Sends (or buffers) the remaining data of the specified buffers as if they were one (waits while too much earlier
+	 * data is still waiting to be written, unless called on the loop thread).
+	 * @param dataToSend				the buffers that hold the data to be sent (their positions are advanced).
+	 * @throws IOException				when an I/O error occurs while writing.
+	 * @throws IllegalStateException	when this connection is not yet connected to server.
+	 */
+	@Override
+	public void send(ByteBuffer... dataToSend) throws IOException, IllegalStateException {
+		this.awaitWritable();
+		this.meSendBuf.send(dataToSend);
+	}
+
+	@Override
+	public void flush() throws IOException, IllegalStateException {
+		this.awaitWritable();
+		this.meSendBuf.flush();
+	}
+
+	/**
+	 * Checks that this connection is connected, and waits while too much earlier data is still waiting to be written
+	 * (done before entering the SendBuffer, so the loop thread is never blocked behind a waiting sender).
+	 * @throws IOException				when interrupted while waiting.
+	 * @throws IllegalStateException	when this connection is not yet connected to server.
+	 */
+	private void awaitWritable() throws IOException, IllegalStateException {
+		if (!this.isConnected() || !this.meHandshake.isDone()) {
+			throw new IllegalStateException("Not yet connected.");
+		}
+		if (!this.meLoop.isLoopThread()) {
+			synchronized (this.meWriteLock) {
+				while (this.meNetOut != null && this.meNetOut.position() > NioSslConnection.MAX_PENDING_OUT && this.meChan.isOpen()) {
+					try {
+						this.meWriteLock.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while waiting to send.");
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Encrypts and writes the specified data for the SendBuffer (compressing it first if compressed I/O is on).
+	 * @param srcData		the array that holds the data.
+	 * @param srcOffset		the offset of the data in the array.
+	 * @param srcLength		the length of the data.
+	 * @throws IOException	when an I/O error occurs while writing.
+	 */
+	private void writeRecord(byte[] srcData, int srcOffset, int srcLength) throws IOException {
+		var tmpCodec = this.meCodec;
+		if (tmpCodec != null && tmpCodec.isDeflating()) {
+			tmpCodec.deflate(srcData, srcOffset, srcLength, this::wrapPlain);
+		} else {
+			this.wrapPlain(srcData, srcOffset, srcLength);
+		}
+	}
+
+	private void wrapPlain(byte[] srcData, int srcOffset, int srcLength) throws IOException {
+		this.wrapAndFlush(ByteBuffer.wrap(srcData, srcOffset, srcLength));
+		this.meMetrics.recordSend(srcLength);
+	}
+
+	/**
+	 * Stops the currently established SSL connection to server if any (waits until the channel is closed, unless
+	 * called on the loop thread).
+	 * @throws IOException	when an I/O error occurs while closing.
+	 */
+	@Override
+	public void disconnect() throws IOException {
+		if (this.meChan != null && this.meChan.isOpen()) {
+			if (this.meHandshake.isDone() && !this.meHandshake.isCompletedExceptionally()) {
+				try {
+					this.meSendBuf.flush(); // Whatever is still buffered
+				} catch (IOException e) {
+					// Closing anyway
+				}
+			}
+			this.meIsClosing = true;
+			this.meReceiver.stop();
+			var tmpQueue = this.meQueue;
+			if (tmpQueue != null) {
+				tmpQueue.abort(); // No events after disconnecting (and a loop thread waiting for room is released)
+			}
+			if (this.meHandshake.isDone() && !this.meHandshake.isCompletedExceptionally()) {
+				synchronized (this.meWriteLock) {
+					this.meEngine.closeOutbound();
+					try {
+						this.wrapAndFlush(NioSslConnection.EMPTY_BUFFER); // Best effort 'close_notify'
+					} catch (IOException e) {
+						// The channel is being closed anyway
+					}
+				}
+			}
+			if (this.meLoop.isLoopThread()) {
+				this.closeChannel();
+			} else {
+				this.meLoop.execute(this::closeChannel);
+				try {
+					this.meClosed.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					// Cannot happen ('meClosed' is never completed exceptionally)
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.disconnect();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return this.meChan != null && this.meChan.isOpen();
+	}
+
+	@Override
+	public long getHandshakeNanos() {
+		return this.meHandNanos;
+	}
+
+	@Override
+	public boolean isSessionResumed() {
+		return this.meIsResumed;
+	}
+
+	@Override
+	public String getServerAddress() {
+		return this.meAddr.getHostString();
+	}
+
+	@Override
+	public int getServerPort() {
+		return this.meAddr.getPort();
+	}
+
+	@Override
+	public LiteralSink getLiteralSink() {
+		return this.meSink;
+	}
+
+	@Override
+	public void setLiteralSink(LiteralSink literalSink) {
+		this.meSink = literalSink;
+		var tmpReceiver = this.meReceiver;
+		if (tmpReceiver != null) {
+			tmpReceiver.setLiteralSink(literalSink);
+		}
+	}
+
+	/**
+	 * Used to get the event queue between the loop thread and the listeners.
+	 * @return	the event queue (or 'null' if events are emitted directly on the loop thread).
+	 */
+	@Override
+	public EventQueue<ConnectionEvent> getEventQueue() {
+		return this.meQueue;
+	}
+
+	/**
+	 * Sets up a bounded event queue between the loop thread and the listeners (so slow listeners do not stall reading
+	 * until the queue is full), or removes it.
+	 * With the 'BLOCK' policy a full queue holds the loop thread, which stalls all the connections it serves (a dedicated
+	 * SelectorLoop avoids that).
+	 * @param queueCapacity		the maximum number of events waiting for the listeners (0 to emit events directly).
+	 * @param overflowPolicy	what happens when the queue is full ('BLOCK' stops reading, 'FAIL' ends the connection
+	 * 							with 'RECEIVE_ITERRUPTED').
+	 * @param dispatchExecutor	the Executor that runs the listeners (or 'null' for a shared default one).
+	 */
+	@Override
+	public void setEventQueue(int queueCapacity, OverflowPolicy overflowPolicy, Executor dispatchExecutor) {
+		this.meQueue = queueCapacity == 0 ? null : new EventQueue<>((ev, data) -> super.emitEvent(ev, data), queueCapacity, overflowPolicy, dispatchExecutor);
+	}
+
+	@Override
+	public void emitEvent(ConnectionEvent theEvent, Object eventData) {
+		var tmpQueue = this.meQueue;
+		if (tmpQueue == null) {
+			super.emitEvent(theEvent, eventData);
+		} else {
+			LineReceiver.queueEvent(tmpQueue, theEvent, eventData);
+		}
+	}
+
+	@Override
+	public boolean isSendBuffered() {
+		return this.meSendBuf.isBuffered();
+	}
+
+	@Override
+	public void setSendBuffered(boolean isBuffered) throws IOException {
+		this.meSendBuf.setBuffered(isBuffered);
+	}
+
+	@Override
+	public long getAutoFlushDelay() {
+		return this.meSendBuf.getAutoFlushDelay();
+	}
+
+	@Override
+	public void setAutoFlushDelay(long delayMillis) {
+		this.meSendBuf.setAutoFlushDelay(delayMillis);
+	}
+
+	@Override
+	public long getRecordsWritten() {
+		return this.meSendBuf.getRecordCount();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return this.meSendBuf.getByteCount();
+	}
+
+	@Override
+	public boolean isLineViewEnabled() {
+		return this.meIsLineView;
+	}
+
+	@Override
+	public void setLineViewEnabled(boolean isLineView) {
+		this.meIsLineView = isLineView;
+	}
+
+	@Override
+	public boolean isWholeLines() {
+		return this.meIsWhole;
+	}
+
+	@Override
+	public void setWholeLines(boolean isWhole) {
+		this.meIsWhole = isWhole;
+	}
+
+	@Override
+	public ConnectionMetrics getMetrics() {
+		return this.meMetrics;
+	}
+
+	@Override
+	public void enableCompression(Predicate<ReceivedLine> lastPlainLine) throws IllegalStateException {
+		if (!this.isConnected() || !this.meHandshake.isDone()) {
+			throw new IllegalStateException("Not yet connected.");
+		}
+		if (this.isCompressed()) {
+			throw new IllegalStateException("Already compressed.");
+		}
+		if (this.meCodec == null) {
+			this.meCodec = new DeflateCodec(); // Kept for the next connections of this object
+		}
+		this.meReceiver.setCompressionSwitch(this.meCodec, lastPlainLine);
+	}
+
+	@Override
+	public boolean isCompressed() {
+		var tmpCodec = this.meCodec;
+		return tmpCodec != null && tmpCodec.isInflating();
+	}
+
+	@Override
+	public double getCompressionRatio() {
+		var tmpCodec = this.meCodec;
+		return tmpCodec == null ? 1.0 : tmpCodec.getRatio();
+	}
+}
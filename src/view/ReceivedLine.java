@@ -0,0 +1,182 @@
+package view;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.StringJoiner;
+
+/**
+ * A class that represents a view of a line received by an 'SslConnection' object. The view does not hold its own copy
+ * of the line's words; it describes them as offsets and lengths into the connection's receive buffer. The same view is
+ * reused for every line, so it is only valid while the 'LINE_RECEIVED' listener is running (use 'copy()' to keep the data).
+ * @author Janty Azmat
+ */
+public class ReceivedLine {
+	// Fields
+	private byte[] meBuf;
+	private int[] meOffs;
+	private int[] meLens;
+	private int meCount;
+
+	/**
+	 * A package-private constructor (only 'LineFramer' creates/fills these views).
+	 */
+	ReceivedLine() {
+		this.meOffs = new int[32];
+		this.meLens = new int[32];
+	}
+
+	/**
+	 * Starts describing a new line in the specified buffer.
+	 * @param lineBuffer	the buffer that holds the line's words.
+	 */
+	void reset(byte[] lineBuffer) {
+		this.meBuf = lineBuffer;
+		this.meCount = 0;
+	}
+
+	/**
+	 * Adds a word to the described line.
+	 * @param wordOffset	the offset of the word in the buffer.
+	 * @param wordLength	the length of the word.
+	 */
+	void addWord(int wordOffset, int wordLength) {
+		if (this.meCount == this.meOffs.length) {
+			this.meOffs = Arrays.copyOf(this.meOffs, this.meCount << 1);
+			this.meLens = Arrays.copyOf(this.meLens, this.meCount << 1);
+		}
+		this.meOffs[this.meCount] = wordOffset;
+		this.meLens[this.meCount++] = wordLength;
+	}
+
+	/**
+	 * Used to get the buffer that holds the line's words (should not be modified or retained).
+	 * @return	the buffer that holds the line's words.
+	 */
+	public byte[] getBuffer() {
+		return this.meBuf;
+	}
+
+	/**
+	 * Used to get the number of words in the line.
+	 * @return	the number of words in the line.
+	 */
+	public int getWordCount() {
+		return this.meCount;
+	}
+
+	/**
+	 * Used to get the offset of the specified word in the buffer.
+	 * @param wordIndex						the index of the word.
+	 * @return								the offset of the word.
+	 * @throws IndexOutOfBoundsException	when the specified index is not of a word in the line.
+	 */
+	public int getWordOffset(int wordIndex) throws IndexOutOfBoundsException {
+		return this.meOffs[this.checkIndex(wordIndex)];
+	}
+
+	/**
+	 * Used to get the length of the specified word.
+	 * @param wordIndex						the index of the word.
+	 * @return								the length of the word.
+	 * @throws IndexOutOfBoundsException	when the specified index is not of a word in the line.
+	 */
+	public int getWordLength(int wordIndex) throws IndexOutOfBoundsException {
+		return this.meLens[this.checkIndex(wordIndex)];
+	}
+
+	/**
+	 * Checks if the specified word is equal to the specified bytes (without copying the word).
+	 * @param wordIndex						the index of the word.
+	 * @param theBytes						the bytes to compare with.
+	 * @return								'true' if the word is equal to the specified bytes.
+	 * @throws IndexOutOfBoundsException	when the specified index is not of a word in the line.
+	 */
+	public boolean wordEquals(int wordIndex, byte[] theBytes) throws IndexOutOfBoundsException {
+		var tmpOff = this.meOffs[this.checkIndex(wordIndex)];
+		return Arrays.equals(this.meBuf, tmpOff, tmpOff + this.meLens[wordIndex], theBytes, 0, theBytes.length);
+	}
+
+	/**
+	 * Checks if the specified word is equal to the specified ASCII bytes ignoring the letters' case (useful for status
+	 * words like 'OK' and 'NO').
+	 * @param wordIndex						the index of the word.
+	 * @param asciiBytes					the ASCII bytes to compare with.
+	 * @return								'true' if the word is equal to the specified bytes ignoring case.
+	 * @throws IndexOutOfBoundsException	when the specified index is not of a word in the line.
+	 */
+	public boolean wordEqualsIgnoreCase(int wordIndex, byte[] asciiBytes) throws IndexOutOfBoundsException {
+		var tmpOff = this.meOffs[this.checkIndex(wordIndex)];
+		if (this.meLens[wordIndex] != asciiBytes.length) {
+			return false;
+		}
+		for (var i = 0; i < asciiBytes.length; i++) {
+			var tmpByte = this.meBuf[tmpOff + i];
+			var tmpOther = asciiBytes[i];
+			if (tmpByte != tmpOther && ((tmpByte | 0x20) != (tmpOther | 0x20) || (tmpByte | 0x20) < 'a' || (tmpByte | 0x20) > 'z')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the specified word out of the buffer.
+	 * @param wordIndex						the index of the word.
+	 * @return								a copy of the word.
+	 * @throws IndexOutOfBoundsException	when the specified index is not of a word in the line.
+	 */
+	public byte[] copyWord(int wordIndex) throws IndexOutOfBoundsException {
+		var tmpOff = this.meOffs[this.checkIndex(wordIndex)];
+		return Arrays.copyOfRange(this.meBuf, tmpOff, tmpOff + this.meLens[wordIndex]);
+	}
+
+	/**
+	 * Copies the whole line out of the buffer (the same form as the default 'LINE_RECEIVED' payload).
+	 * @return	a copy of the line's words.
+	 */
+	public byte[][] copy() {
+		final var outLine = new byte[this.meCount][];
+		for (var i = 0; i < outLine.length; i++) {
+			outLine[i] = Arrays.copyOfRange(this.meBuf, this.meOffs[i], this.meOffs[i] + this.meLens[i]);
+		}
+		return outLine;
+	}
+
+	/**
+	 * Creates a view that owns a copy of the line (used when the line has to outlive the listener call, like when
+	 * events are queued).
+	 * @return	a detached copy of this view.
+	 */
+	ReceivedLine detach() {
+		var outLine = new ReceivedLine();
+		var tmpTotal = 0;
+		for (var i = 0; i < this.meCount; i++) {
+			tmpTotal += this.meLens[i];
+		}
+		var tmpBuf = new byte[tmpTotal];
+		outLine.reset(tmpBuf);
+		var tmpPos = 0;
+		for (var i = 0; i < this.meCount; i++) {
+			System.arraycopy(this.meBuf, this.meOffs[i], tmpBuf, tmpPos, this.meLens[i]);
+			outLine.addWord(tmpPos, this.meLens[i]);
+			tmpPos += this.meLens[i];
+		}
+		return outLine;
+	}
+
+	private int checkIndex(int wordIndex) throws IndexOutOfBoundsException {
+		if (wordIndex < 0 || wordIndex >= this.meCount) {
+			throw new IndexOutOfBoundsException("Word index " + wordIndex + " is out of bounds for line with " + this.meCount + " words.");
+		}
+		return wordIndex;
+	}
+
+	@Override
+	public String toString() {
+		StringJoiner outJoin = new StringJoiner(" ");
+		for (var i = 0; i < this.meCount; i++) {
+			outJoin.add(new String(this.meBuf, this.meOffs[i], this.meLens[i], StandardCharsets.ISO_8859_1));
+		}
+		return outJoin.toString();
+	}
+}
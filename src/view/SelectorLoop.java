@@ -0,0 +1,192 @@
+package view;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A class that represents a single I/O thread that serves many non-blocking connections using one Selector.
+ * @author Janty Azmat
+ */
+public class SelectorLoop implements AutoCloseable {
+
+	/**
+	 * The interface required from the objects registered with a SelectorLoop.
+	 * @author Janty Azmat
+	 */
+	static interface Handler {
+
+		/**
+		 * Called by the loop thread when the registered channel is ready for I/O.
+		 * @param readyKey	the selection key of the registered channel.
+		 */
+		void handleReady(SelectionKey readyKey);
+	}
+
+	/**
+	 * Holds the lazily created shared loop.
+	 */
+	private static class SharedHolder {
+		private static final SelectorLoop SHARED;
+		static {
+			try {
+				SHARED = new SelectorLoop("SslSelector-shared");
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	// Fields
+	private Selector meSelector;
+	private Thread meLoopThrd;
+	private ConcurrentLinkedQueue<Runnable> meTasks;
+	private volatile boolean meIsOpen;
+	private volatile boolean meIsDone;	// The loop thread has finished (the tasks are run by whoever queues them)
+
+	/**
+	 * A constructor that takes the name of the loop thread as a parameter (the loop thread is started immediately).
+	 * @param threadName	the name of the loop thread.
+	 * @throws IOException	when the Selector cannot be opened.
+	 */
+	public SelectorLoop(String threadName) throws IOException {
+		this.meSelector = Selector.open();
+		this.meTasks = new ConcurrentLinkedQueue<>();
+		this.meIsOpen = true;
+		this.meLoopThrd = new Thread(this::loopRunner, threadName);
+		this.meLoopThrd.setDaemon(true);
+		this.meLoopThrd.start();
+	}
+
+	/**
+	 * Used to get the loop shared by the connections that are not given a specific loop.
+	 * @return	the shared loop.
+	 */
+	public static SelectorLoop getShared() {
+		return SharedHolder.SHARED;
+	}
+
+	/**
+	 * A method run by 'meLoopThrd' loop-thread to wait for ready channels and dispatch them to their handlers.
+	 */
+	private void loopRunner() {
+		while (this.meIsOpen) {
+			try {
+				this.meSelector.select();
+			} catch (IOException e) {
+				break;
+			}
+			this.runTasks();
+			for (var tmpKey : this.meSelector.selectedKeys()) {
+				if (tmpKey.isValid()) {
+					try {
+						((Handler)tmpKey.attachment()).handleReady(tmpKey);
+					} catch (RuntimeException e) { // A failing listener should not stop the other connections
+						this.meLoopThrd.getUncaughtExceptionHandler().uncaughtException(this.meLoopThrd, e);
+					}
+				}
+			}
+			this.meSelector.selectedKeys().clear();
+		}
+		for (var tmpKey : this.meSelector.keys()) { // Whatever is still registered goes down with the loop
+			try {
+				tmpKey.channel().close();
+			} catch (IOException e) {
+				// Nothing more to do about it
+			}
+		}
+		try {
+			this.meSelector.close();
+		} catch (IOException e) {
+			// Nothing more to do about it
+		}
+		this.meIsDone = true;
+		this.runTasks(); // The ones queued meanwhile (like the releases of closed connections), so no one waits for them forever
+	}
+
+	/**
+	 * Runs the queued tasks until there are none left.
+	 */
+	private void runTasks() {
+		Runnable tmpTask;
+		while ((tmpTask = this.meTasks.poll()) != null) {
+			try {
+				tmpTask.run();
+			} catch (RuntimeException e) { // Like a failing listener, a failing task should not stop the other connections
+				this.meLoopThrd.getUncaughtExceptionHandler().uncaughtException(this.meLoopThrd, e);
+			}
+		}
+	}
+
+	/**
+	 * Runs the specified task on the loop thread (as soon as the loop wakes up), or on the calling thread once the loop
+	 * thread has finished.
+	 * @param theTask	the task to run.
+	 */
+	void execute(Runnable theTask) {
+		this.meTasks.add(theTask);
+		if (this.meIsDone) {
+			this.runTasks();
+		} else {
+			this.meSelector.wakeup();
+		}
+	}
+
+	/**
+	 * Wakes up the loop thread (so that it picks up changed interest sets).
+	 */
+	void wakeup() {
+		this.meSelector.wakeup();
+	}
+
+	/**
+	 * Registers the specified channel with this loop (should be called on the loop thread).
+	 * @param theChannel				the channel to register.
+	 * @param interestOps				the initial interest set.
+	 * @param theHandler				the handler to call when the channel is ready.
+	 * @return							the selection key of the registered channel.
+	 * @throws ClosedChannelException	when the channel is closed.
+	 */
+	SelectionKey register(SelectableChannel theChannel, int interestOps, Handler theHandler) throws ClosedChannelException {
+		return theChannel.register(this.meSelector, interestOps, theHandler);
+	}
+
+	/**
+	 * Checks if the current thread is this loop's thread.
+	 * @return	'true' if the current thread is this loop's thread.
+	 */
+	boolean isLoopThread() {
+		return Thread.currentThread() == this.meLoopThrd;
+	}
+
+	/**
+	 * Checks if this loop is still running.
+	 * @return	'true' if this loop is still running.
+	 */
+	public boolean isOpen() {
+		return this.meIsOpen;
+	}
+
+	/**
+	 * Stops this loop and closes all the channels still registered with it. The tasks still queued are run after that
+	 * (on a closed selector, so the ones that register channels fail them).
+	 */
+	@Override
+	public void close() {
+		if (this.meIsOpen) {
+			this.meIsOpen = false;
+			this.meSelector.wakeup();
+			if (!this.isLoopThread()) {
+				try {
+					this.meLoopThrd.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+}
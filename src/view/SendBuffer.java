@@ -0,0 +1,237 @@
+package view;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A class that sits between a connection's 'send' methods and its TLS layer. In buffered mode it coalesces small sends
+ * into full TLS records (written when the buffer fills, on 'flush()', or when the connection stays idle for the
+ * auto-flush delay); otherwise every send is written straight through. It also counts what was written.
+ * @author Janty Azmat
+ */
+class SendBuffer {
+
+	/**
+	 * The interface required from the TLS layer that the buffered data is written to.
+	 * @author Janty Azmat
+	 */
+	static interface RecordWriter {
+
+		/**
+		 * Writes (encrypts and sends) the specified data.
+		 * @param srcData		the array that holds the data.
+		 * @param srcOffset		the offset of the data in the array.
+		 * @param srcLength		the length of the data.
+		 * @throws IOException	when an I/O error occurs while writing.
+		 */
+		void write(byte[] srcData, int srcOffset, int srcLength) throws IOException;
+	}
+
+	/**
+	 * Holds the lazily created thread that runs the idle auto-flushes of all connections.
+	 */
+	private static class FlusherHolder {
+		private static final ScheduledExecutorService FLUSHER;
+		static {
+			var tmpExec = new ScheduledThreadPoolExecutor(1, run -> {
+				var outThrd = new Thread(run, "SendBuffer-flusher");
+				outThrd.setDaemon(true);
+				return outThrd;
+			});
+			tmpExec.setRemoveOnCancelPolicy(true);
+			FLUSHER = tmpExec;
+		}
+	}
+
+	// Fields
+	static final int RECORD_SIZE = 16384; // The maximum plain-text size of a TLS record
+	private RecordWriter meWriter;
+	private byte[] meBuf;
+	private int meCount;
+	private boolean meIsBuffered;
+	private long meAutoFlushMillis;
+	private ScheduledFuture<?> meFlushTask;
+	private long meLastSend; // When the last buffered send happened (in 'System.nanoTime()' terms)
+	private volatile long meRecords;	// Only updated under the lock (in 'write'), so volatile is enough for the readers
+	private volatile long meBytes;
+
+	/**
+	 * A constructor that takes the TLS layer writer as a parameter (the new SendBuffer is not in buffered mode).
+	 * @param recordWriter	the writer that the data is written to.
+	 */
+	SendBuffer(RecordWriter recordWriter) {
+		this.meWriter = recordWriter;
+	}
+
+	/**
+	 * Sends (or buffers) the specified data.
+	 * @param srcData		the array that holds the data.
+	 * @param srcOffset		the offset of the data in the array.
+	 * @param srcLength		the length of the data.
+	 * @throws IOException	when an I/O error occurs while writing.
+	 */
+	synchronized void send(byte[] srcData, int srcOffset, int srcLength) throws IOException {
+		if (!this.meIsBuffered) {
+			this.write(srcData, srcOffset, srcLength);
+			return;
+		}
+		if (this.meCount > 0) { // Top up what is already buffered first
+			var tmpLen = Math.min(srcLength, SendBuffer.RECORD_SIZE - this.meCount);
+			System.arraycopy(srcData, srcOffset, this.meBuf, this.meCount, tmpLen);
+			this.meCount += tmpLen;
+			srcOffset += tmpLen;
+			srcLength -= tmpLen;
+			if (this.meCount == SendBuffer.RECORD_SIZE) {
+				this.flushBuffer();
+			}
+		}
+		if (srcLength >= SendBuffer.RECORD_SIZE) { // Full records are written without copying
+			var tmpLen = srcLength - srcLength % SendBuffer.RECORD_SIZE;
+			this.write(srcData, srcOffset, tmpLen);
+			srcOffset += tmpLen;
+			srcLength -= tmpLen;
+		}
+		if (srcLength > 0) {
+			System.arraycopy(srcData, srcOffset, this.meBuf, this.meCount, srcLength);
+			this.meCount += srcLength;
+		}
+		this.scheduleFlush();
+	}
+
+	/**
+	 * Sends (or buffers) the remaining data of the specified buffers as if they were one (gathering).
+	 * @param srcBuffers	the buffers that hold the data (their positions are advanced).
+	 * @throws IOException	when an I/O error occurs while writing.
+	 */
+	synchronized void send(ByteBuffer... srcBuffers) throws IOException {
+		if (srcBuffers.length == 1 && srcBuffers[0].hasArray() && this.meCount == 0 && !this.meIsBuffered) {
+			var tmpBuf = srcBuffers[0];
+			this.write(tmpBuf.array(), tmpBuf.arrayOffset() + tmpBuf.position(), tmpBuf.remaining());
+			tmpBuf.position(tmpBuf.limit());
+			return;
+		}
+		this.ensureBuffer();
+		for (var tmpSrc : srcBuffers) {
+			while (tmpSrc.hasRemaining()) {
+				var tmpLen = Math.min(tmpSrc.remaining(), SendBuffer.RECORD_SIZE - this.meCount);
+				tmpSrc.get(this.meBuf, this.meCount, tmpLen);
+				this.meCount += tmpLen;
+				if (this.meCount == SendBuffer.RECORD_SIZE) {
+					this.flushBuffer();
+				}
+			}
+		}
+		if (this.meIsBuffered) {
+			this.scheduleFlush();
+		} else {
+			this.flushBuffer();
+		}
+	}
+
+	/**
+	 * Writes whatever is buffered.
+	 * @throws IOException	when an I/O error occurs while writing.
+	 */
+	synchronized void flush() throws IOException {
+		this.flushBuffer();
+	}
+
+	/**
+	 * Drops whatever is buffered (used when the connection is re-established).
+	 */
+	synchronized void reset() {
+		this.meCount = 0;
+		if (this.meFlushTask != null) {
+			this.meFlushTask.cancel(false);
+			this.meFlushTask = null;
+		}
+	}
+
+	synchronized boolean isBuffered() {
+		return this.meIsBuffered;
+	}
+
+	/**
+	 * Sets whether small sends are coalesced (turning buffered mode off flushes what is buffered).
+	 * @param isBuffered	'true' to coalesce sends.
+	 * @throws IOException	when an I/O error occurs while flushing.
+	 */
+	synchronized void setBuffered(boolean isBuffered) throws IOException {
+		this.meIsBuffered = isBuffered;
+		if (isBuffered) {
+			this.ensureBuffer();
+		} else {
+			this.flushBuffer();
+		}
+	}
+
+	synchronized long getAutoFlushDelay() {
+		return this.meAutoFlushMillis;
+	}
+
+	synchronized void setAutoFlushDelay(long delayMillis) {
+		this.meAutoFlushMillis = Math.max(0L, delayMillis);
+	}
+
+	long getRecordCount() {
+		return this.meRecords;
+	}
+
+	long getByteCount() {
+		return this.meBytes;
+	}
+
+	private void ensureBuffer() {
+		if (this.meBuf == null) {
+			this.meBuf = new byte[SendBuffer.RECORD_SIZE];
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		if (this.meCount > 0) {
+			var tmpCount = this.meCount;
+			this.meCount = 0; // Dropped even if writing fails (the connection is broken then)
+			this.write(this.meBuf, 0, tmpCount);
+		}
+	}
+
+	private void write(byte[] srcData, int srcOffset, int srcLength) throws IOException {
+		this.meWriter.write(srcData, srcOffset, srcLength);
+		this.meRecords += (srcLength + SendBuffer.RECORD_SIZE - 1) / SendBuffer.RECORD_SIZE;
+		this.meBytes += srcLength;
+	}
+
+	/**
+	 * Schedules an auto-flush (if enabled and none is scheduled) for the data left in the buffer.
+	 */
+	private void scheduleFlush() {
+		this.meLastSend = System.nanoTime();
+		if (this.meCount > 0 && this.meAutoFlushMillis > 0L && (this.meFlushTask == null || this.meFlushTask.isDone())) {
+			this.meFlushTask = FlusherHolder.FLUSHER.schedule(this::idleFlush, this.meAutoFlushMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Flushes the buffer if there was no send for the auto-flush delay (otherwise checks again when the delay would pass).
+	 */
+	private synchronized void idleFlush() {
+		this.meFlushTask = null;
+		if (this.meCount == 0 || this.meAutoFlushMillis == 0L) {
+			return;
+		}
+		var tmpLeft = TimeUnit.MILLISECONDS.toNanos(this.meAutoFlushMillis) - (System.nanoTime() - this.meLastSend);
+		if (tmpLeft > 0L) {
+			this.meFlushTask = FlusherHolder.FLUSHER.schedule(this::idleFlush, tmpLeft, TimeUnit.NANOSECONDS);
+			return;
+		}
+		try {
+			this.flushBuffer();
+		} catch (IOException e) {
+			// The read-thread will notice the broken connection
+		}
+	}
+}
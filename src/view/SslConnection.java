@@ -1,20 +1,27 @@
 package view;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Predicate;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import lib.EventEmitter;
+import lib.EventQueue;
+import lib.EventQueue.OverflowPolicy;
 
 /**
  * A class that represents a secure connection to an email server.
  * @author Janty Azmat
  */
-public class SslConnection extends EventEmitter<SslConnection.ConnectionEvent> implements AutoCloseable {
+public class SslConnection extends EventEmitter<SslConnection.ConnectionEvent> implements IConnection {
 
 	/**
 	 * An enum that represents the events an 'SslConnection' object can emit.
@@ -23,7 +30,8 @@ public class SslConnection extends EventEmitter<SslConnection.ConnectionEvent> i
 	public static enum ConnectionEvent {
 
 		/**
-		 * Informs that a line was received from server.
+		 * Informs that a line was received from server (the 'eventData' is the line's words as 'byte[][]', or a reused
+		 * 'ReceivedLine' view that is only valid during the listener call when line views are enabled).
 		 */
 		LINE_RECEIVED,
 
@@ -37,6 +45,18 @@ public class SslConnection extends EventEmitter<SslConnection.ConnectionEvent> i
 	private InetSocketAddress meAddr;
 	private SSLSocket meSock;
 	private Thread meReadThrd;
+	private ThreadFactory meReadFactory;
+	private SSLSocketFactory meSockFactory;
+	private volatile long meHandNanos;
+	private volatile boolean meIsResumed;
+	private volatile boolean meIsLineView;
+	private volatile boolean meIsWhole;
+	private SendBuffer meSendBuf;
+	private LineReceiver meReceiver;
+	private volatile LiteralSink meSink;
+	private volatile EventQueue<ConnectionEvent> meQueue;
+	private volatile DeflateCodec meCodec;
+	private ConnectionMetrics meMetrics;
 
 	/**
 	 * A constructor that takes the server's address and port as parameters.
@@ -47,42 +67,88 @@ public class SslConnection extends EventEmitter<SslConnection.ConnectionEvent> i
 	 * @throws IllegalArgumentException	when invalid port specified.
 	 */
 	public SslConnection(String serverAddress, int serverPort) throws UnknownHostException, SecurityException, IllegalArgumentException {
+		this(serverAddress, serverPort, Thread::new);
+	}
+
+	/**
+	 * A constructor that takes the server's address and port, and the factory of the read-thread as parameters (the
+	 * factory can create virtual threads, see 'virtualThreadFactory()').
+	 * @param serverAddress				the server's address.
+	 * @param serverPort				the server's port.
+	 * @param readThreadFactory			the factory used to create the read-thread on every 'connect()'.
+	 * @throws UnknownHostException		when the provided host is not a proper host name or IP address.
+	 * @throws SecurityException		when some security issues don't allow resolving host name to IP.
+	 * @throws IllegalArgumentException	when invalid port specified.
+	 * @throws NullPointerException		when the specified read-thread factory is 'null'.
+	 */
+	public SslConnection(String serverAddress, int serverPort, ThreadFactory readThreadFactory) throws UnknownHostException, SecurityException, IllegalArgumentException, NullPointerException {
+		this(serverAddress, serverPort, (SSLSocketFactory)SSLSocketFactory.getDefault(), readThreadFactory);
+	}
+
+	/**
+	 * A constructor that takes the server's address and port, the socket factory, and the factory of the read-thread as
+	 * parameters (connections whose socket factories come from the same SSLContext share its session cache, so their
+	 * reconnects can resume the SSL session instead of doing a full handshake).
+	 * @param serverAddress				the server's address.
+	 * @param serverPort				the server's port.
+	 * @param socketFactory				the factory used to create the SSL socket on every 'connect()'.
+	 * @param readThreadFactory			the factory used to create the read-thread on every 'connect()'.
+	 * @throws UnknownHostException		when the provided host is not a proper host name or IP address.
+	 * @throws SecurityException		when some security issues don't allow resolving host name to IP.
+	 * @throws IllegalArgumentException	when invalid port specified.
+	 * @throws NullPointerException		when the specified socket factory or read-thread factory is 'null'.
+	 */
+	public SslConnection(String serverAddress, int serverPort, SSLSocketFactory socketFactory, ThreadFactory readThreadFactory) throws UnknownHostException, SecurityException, IllegalArgumentException, NullPointerException {
 		super(ConnectionEvent.class);
+		this.meSockFactory = Objects.requireNonNull(socketFactory, "The 'socketFactory' argument cannot be 'null'.");
+		this.meReadFactory = Objects.requireNonNull(readThreadFactory, "The 'readThreadFactory' argument cannot be 'null'.");
+		this.meSendBuf = new SendBuffer(this::writeRecord);
 		this.meAddr = new InetSocketAddress(InetAddress.getByName(serverAddress), serverPort);
+		this.meMetrics = MetricsRegistry.getShared().newConnectionMetrics(this.meAddr.getHostString(), serverPort);
+	}
+
+	/**
+	 * Used to get a factory of virtual threads (to run the read-threads of many connections cheaply). Virtual threads
+	 * are looked up reflectively so that this class still runs on Java versions that do not have them.
+	 * @return									a factory that creates virtual threads.
+	 * @throws UnsupportedOperationException	when the running Java version does not support virtual threads.
+	 */
+	public static ThreadFactory virtualThreadFactory() throws UnsupportedOperationException {
+		try {
+			var tmpBuilderType = Class.forName("java.lang.Thread$Builder");
+			var tmpBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+			tmpBuilder = tmpBuilderType.getMethod("name", String.class, long.class).invoke(tmpBuilder, "SslConnection-reader-", 0L);
+			return (ThreadFactory)tmpBuilderType.getMethod("factory").invoke(tmpBuilder);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Virtual threads are not supported by this Java version.", e);
+		}
 	}
 
 	/**
 	 * A method run by 'meReadThrd' read-thread to independently read from socket's InputStream.
 	 */
 	private void receiveRunner() {
-		final var tmpLine = new LinkedList<byte[]>(); // Holds every line data
-		var tmpRead = 0;
-		try (final var tmpWord = new ByteArrayOutputStream()) { // 'tmpWord' holds the bytes of a single word in the read line
-			Runnable tmpRun = () -> { // Just a block of code to avoid code duplication
-				if (tmpWord.size() > 0) {
-					tmpLine.add(tmpWord.toByteArray());
-					tmpWord.reset();
-				}
-			};
-			while ((tmpRead = this.meSock.getInputStream().read()) > -1) {
-				if (tmpRead == 32) {
-					tmpRun.run(); // Extract last formed word (if any)
-				} else if (tmpRead == 10) {
-					tmpRun.run(); // Extract last formed word (if any)
-					this.emitEvent(ConnectionEvent.LINE_RECEIVED, tmpLine.toArray()); // The 'eventData' would be 'byte[][]' in this case
-					tmpLine.clear(); // Start a new line
-				} else if (tmpRead != 13) {
-					tmpWord.write(tmpRead); // Form part of a word
-				}
-			}
-			if (tmpWord.size() > 0) { // In case there was something left
-				tmpRun.run(); // Extract last formed word (if any)
-				this.emitEvent(ConnectionEvent.LINE_RECEIVED, tmpLine.toArray()); // The 'eventData' would be 'byte[][]' in this case
+		final var tmpMetrics = this.meMetrics;
+		tmpMetrics.sessionStarted(Thread.currentThread());
+		try {
+			final var tmpIn = this.meSock.getInputStream();
+			int tmpRead;
+			var tmpStart = System.nanoTime();
+			while ((tmpRead = this.meReceiver.fill(tmpIn)) > -1) { // Reads in blocks and frames the lines in-place
+				var tmpEnd = System.nanoTime();
+				tmpMetrics.recordRead(tmpRead, tmpEnd - tmpStart, tmpEnd);
+				this.meReceiver.dispatch();
+				tmpMetrics.recordLines(this.meReceiver.takeLineCount());
+				tmpStart = System.nanoTime();
 			}
-		} catch (IOException e) {
+			this.meReceiver.finish(); // In case there was something left
+			tmpMetrics.recordLines(this.meReceiver.takeLineCount());
+		} catch (IOException | UncheckedIOException e) { // The unchecked one is an event queue overflow
 			if (!this.meSock.isClosed()) {
 				this.emitEvent(ConnectionEvent.RECEIVE_ITERRUPTED);
 			}
+		} finally {
+			tmpMetrics.sessionEnded();
 		}
 	}
 
@@ -95,10 +161,32 @@ public class SslConnection extends EventEmitter<SslConnection.ConnectionEvent> i
 		if (this.meSock != null && !this.meSock.isClosed()) {
 			throw new IllegalStateException("Already connected.");
 		}
-		this.meSock = (SSLSocket)SSLSocketFactory.getDefault().createSocket();
-		this.meSock.connect(this.meAddr);
-		this.meSock.startHandshake();
-		this.meReadThrd = new Thread(this::receiveRunner);	// A separate thread to read incoming data
+		this.meSock = (SSLSocket)this.meSockFactory.createSocket();
+		var tmpStartMillis = 0L;
+		var tmpStart = 0L;
+		try {
+			this.meSock.connect(this.meAddr);
+			tmpStartMillis = System.currentTimeMillis();
+			tmpStart = System.nanoTime();
+			this.meSock.startHandshake();
+		} catch (IOException | RuntimeException e) {
+			this.meSock.close(); // Not left open without a read-thread
+			throw e;
+		}
+		this.meHandNanos = System.nanoTime() - tmpStart;
+		this.meIsResumed = this.meSock.getSession().getCreationTime() < tmpStartMillis; // A resumed session keeps its original creation time
+		this.meMetrics.recordHandshake(this.meHandNanos, this.meIsResumed);
+		this.meSendBuf.reset();
+		if (this.meCodec != null) {
+			this.meCodec.reset();
+		}
+		this.meReceiver = new LineReceiver(this);
+		this.meReceiver.setLiteralSink(this.meSink);
+		var tmpQueue = this.meQueue;
+		if (tmpQueue != null) {
+			tmpQueue.reset();
+		}
+		this.meReadThrd = this.meReadFactory.newThread(this::receiveRunner);	// A separate (maybe virtual) thread to read incoming data
 		this.meReadThrd.start();
 	}
 
@@ -112,15 +200,72 @@ public class SslConnection extends EventEmitter<SslConnection.ConnectionEvent> i
 		if (this.meSock == null || !this.meSock.isConnected()) {
 			throw new IllegalStateException("Not yet connected.");
 		}
-		this.meSock.getOutputStream().write(dataToSend);
+		this.meSendBuf.send(dataToSend, 0, dataToSend.length);
+	}
+
+	/**
+	 * Sends the remaining data of the specified buffers as if they were one (gathering).
+	 * @param dataToSend				the buffers that hold the data to be sent (their positions are advanced).
+	 * @throws IOException				when an I/O error occurs while writing.
+	 * @throws IllegalStateException	when this SslConnection object is not yet connected to server.
+	 */
+	public void send(ByteBuffer... dataToSend) throws IOException, IllegalStateException {
+		if (this.meSock == null || !this.meSock.isConnected()) {
+			throw new IllegalStateException("Not yet connected.");
+		}
+		this.meSendBuf.send(dataToSend);
+	}
+
+	/**
+	 * Writes whatever the earlier sends left in the send buffer (only needed in buffered send mode).
+	 * @throws IOException				when an I/O error occurs while writing.
+	 * @throws IllegalStateException	when this SslConnection object is not yet connected to server.
+	 */
+	public void flush() throws IOException, IllegalStateException {
+		if (this.meSock == null || !this.meSock.isConnected()) {
+			throw new IllegalStateException("Not yet connected.");
+		}
+		this.meSendBuf.flush();
+	}
+
+	/**
+	 * Writes the specified data to the socket for the SendBuffer (compressing it first if compressed I/O is on).
+	 * @param srcData		the array that holds the data.
+	 * @param srcOffset		the offset of the data in the array.
+	 * @param srcLength		the length of the data.
+	 * @throws IOException	when an I/O error occurs while writing.
+	 */
+	private void writeRecord(byte[] srcData, int srcOffset, int srcLength) throws IOException {
+		var tmpCodec = this.meCodec;
+		if (tmpCodec != null && tmpCodec.isDeflating()) {
+			tmpCodec.deflate(srcData, srcOffset, srcLength, this::writeSocket);
+		} else {
+			this.writeSocket(srcData, srcOffset, srcLength);
+		}
+	}
+
+	private void writeSocket(byte[] srcData, int srcOffset, int srcLength) throws IOException {
+		this.meSock.getOutputStream().write(srcData, srcOffset, srcLength);
+		this.meMetrics.recordSend(srcLength);
 	}
 
 	/**
 	 * Stops the currently established SSL connection to server if any.
-	 * @throws IOException	when an I/O error occurs while closing.
+	 * @throws IOException	when an I/O error occurs while closing (an 'InterruptedIOException', with the interrupt flag
+	 * 						restored, when interrupted while waiting for the read-thread; the socket is closed anyway).
 	 */
 	public void disconnect() throws IOException {
 		if (this.meSock != null && !this.meSock.isClosed()) {
+			var tmpIsInterrupted = false;
+			try {
+				this.meSendBuf.flush(); // Whatever is still buffered
+			} catch (IOException e) {
+				// Closing anyway
+			}
+			var tmpQueue = this.meQueue;
+			if (tmpQueue != null) {
+				tmpQueue.abort(); // No events after disconnecting (and a read-thread waiting for room is released)
+			}
 			if (!this.meSock.isInputShutdown()) {
 				this.meSock.getInputStream().close();	// Seem better this way to prevent unneeded
 //				this.meSock.shutdownInput();			// exception when closing socket
@@ -129,6 +274,7 @@ public class SslConnection extends EventEmitter<SslConnection.ConnectionEvent> i
 						this.meReadThrd.join();
 					} catch (InterruptedException e) {
 						Thread.currentThread().interrupt();
+						tmpIsInterrupted = true;
 					}
 				}
 			}
@@ -136,14 +282,227 @@ public class SslConnection extends EventEmitter<SslConnection.ConnectionEvent> i
 				this.meSock.getOutputStream().close();
 			}
 			this.meSock.close();
+			if (tmpIsInterrupted) {
+				throw new InterruptedIOException("Interrupted while waiting for the read-thread to end.");
+			}
 		}
 	}
 
 	@Override
-	public void close() throws IOException, InterruptedException {
+	public void close() throws IOException {
 		this.disconnect();
 	}
 
+	/**
+	 * Checks if 'LINE_RECEIVED' events carry a reused 'ReceivedLine' view instead of a copied 'byte[][]'.
+	 * @return	'true' if line views are enabled.
+	 */
+	public boolean isLineViewEnabled() {
+		return this.meIsLineView;
+	}
+
+	/**
+	 * Sets whether 'LINE_RECEIVED' events carry a reused 'ReceivedLine' view (no allocation per line) instead of a
+	 * copied 'byte[][]' (the default). Listeners that retain line data in view mode should use 'ReceivedLine.copy()'.
+	 * @param isLineView	'true' to enable line views.
+	 */
+	public void setLineViewEnabled(boolean isLineView) {
+		this.meIsLineView = isLineView;
+	}
+
+	/**
+	 * Checks if received lines are kept whole instead of being split into words.
+	 * @return	'true' if lines are kept whole.
+	 */
+	public boolean isWholeLines() {
+		return this.meIsWhole;
+	}
+
+	/**
+	 * Sets whether received lines are kept whole (each line is a single word holding it exactly as received, without the
+	 * line ending, and an empty line has no words) instead of being split into words at spaces (the default). Useful for
+	 * content where spacing matters, like the messages of a POP3 'RETR'. Takes effect from the next line framed.
+	 * @param isWhole	'true' to keep lines whole.
+	 */
+	public void setWholeLines(boolean isWhole) {
+		this.meIsWhole = isWhole;
+	}
+
+	/**
+	 * Used to get the receiver of the literals announced by received lines.
+	 * @return	the literal sink (or 'null' if literals are received as normal lines).
+	 */
+	public LiteralSink getLiteralSink() {
+		return this.meSink;
+	}
+
+	/**
+	 * Sets the receiver of the literals announced by received lines (literals are streamed to it instead of being framed).
+	 * @param literalSink	the literal sink (or 'null' to receive literals as normal lines).
+	 */
+	public void setLiteralSink(LiteralSink literalSink) {
+		this.meSink = literalSink;
+		var tmpReceiver = this.meReceiver;
+		if (tmpReceiver != null) {
+			tmpReceiver.setLiteralSink(literalSink);
+		}
+	}
+
+	/**
+	 * Used to get the event queue between the read-thread and the listeners.
+	 * @return	the event queue (or 'null' if events are emitted directly on the read-thread).
+	 */
+	public EventQueue<ConnectionEvent> getEventQueue() {
+		return this.meQueue;
+	}
+
+	/**
+	 * Sets up a bounded event queue between the read-thread and the listeners (so slow listeners do not stall reading
+	 * until the queue is full), or removes it.
+	 * @param queueCapacity		the maximum number of events waiting for the listeners (0 to emit events directly).
+	 * @param overflowPolicy	what happens when the queue is full ('BLOCK' stops reading, 'FAIL' ends the connection
+	 * 							with 'RECEIVE_ITERRUPTED').
+	 * @param dispatchExecutor	the Executor that runs the listeners (or 'null' for a shared default one).
+	 */
+	public void setEventQueue(int queueCapacity, OverflowPolicy overflowPolicy, Executor dispatchExecutor) {
+		this.meQueue = queueCapacity == 0 ? null : new EventQueue<>((ev, data) -> super.emitEvent(ev, data), queueCapacity, overflowPolicy, dispatchExecutor);
+	}
+
+	@Override
+	public void emitEvent(ConnectionEvent theEvent, Object eventData) {
+		var tmpQueue = this.meQueue;
+		if (tmpQueue == null) {
+			super.emitEvent(theEvent, eventData);
+		} else {
+			LineReceiver.queueEvent(tmpQueue, theEvent, eventData);
+		}
+	}
+
+	/**
+	 * Checks if small sends are coalesced into full TLS records (until the buffer fills, 'flush()' is called, or the
+	 * auto-flush delay passes without sends).
+	 * @return	'true' if sends are buffered.
+	 */
+	public boolean isSendBuffered() {
+		return this.meSendBuf.isBuffered();
+	}
+
+	/**
+	 * Sets whether small sends are coalesced into full TLS records (turning it off flushes what is buffered).
+	 * @param isBuffered	'true' to buffer sends.
+	 * @throws IOException	when an I/O error occurs while flushing.
+	 */
+	public void setSendBuffered(boolean isBuffered) throws IOException {
+		this.meSendBuf.setBuffered(isBuffered);
+	}
+
+	/**
+	 * Used to get the delay without sends after which buffered data is flushed automatically.
+	 * @return	the auto-flush delay in milliseconds (0 means no auto-flush).
+	 */
+	public long getAutoFlushDelay() {
+		return this.meSendBuf.getAutoFlushDelay();
+	}
+
+	/**
+	 * Sets the delay without sends after which buffered data is flushed automatically.
+	 * @param delayMillis	the auto-flush delay in milliseconds (0 disables auto-flush).
+	 */
+	public void setAutoFlushDelay(long delayMillis) {
+		this.meSendBuf.setAutoFlushDelay(delayMillis);
+	}
+
+	/**
+	 * Used to get an estimate of the number of TLS records written so far (by this SslConnection object, across reconnects):
+	 * each write counts as the number of full-size records its data needs, whatever the TLS layer really produced.
+	 * @return	the estimated number of TLS records written.
+	 */
+	public long getRecordsWritten() {
+		return this.meSendBuf.getRecordCount();
+	}
+
+	/**
+	 * Used to get the number of plain bytes written so far (by this SslConnection object, across reconnects).
+	 * @return	the number of bytes written.
+	 */
+	public long getBytesWritten() {
+		return this.meSendBuf.getByteCount();
+	}
+
+	/**
+	 * Used to get the instrumentation of this SslConnection object (its counters are also added to the aggregates of the
+	 * shared 'MetricsRegistry').
+	 * @return	the metrics of this SslConnection object.
+	 */
+	public ConnectionMetrics getMetrics() {
+		return this.meMetrics;
+	}
+
+	/**
+	 * Arms the switch of this SslConnection object to deflate-compressed I/O (RFC 4978 'COMPRESS=DEFLATE'): both
+	 * directions switch right after the first received line that the specified predicate accepts (like the tagged 'OK'
+	 * of 'COMPRESS DEFLATE'). The predicate runs on the read-thread before the line is emitted; the switch lasts until
+	 * the connection is re-established.
+	 * @param lastPlainLine				recognizes the last plain line (or 'null' to disarm the switch).
+	 * @throws IllegalStateException	when this SslConnection object is not yet connected, or is already compressed.
+	 */
+	public void enableCompression(Predicate<ReceivedLine> lastPlainLine) throws IllegalStateException {
+		if (this.meSock == null || !this.meSock.isConnected()) {
+			throw new IllegalStateException("Not yet connected.");
+		}
+		if (this.isCompressed()) {
+			throw new IllegalStateException("Already compressed.");
+		}
+		if (this.meCodec == null) {
+			this.meCodec = new DeflateCodec(); // Kept for the next connections of this object
+		}
+		this.meReceiver.setCompressionSwitch(this.meCodec, lastPlainLine);
+	}
+
+	/**
+	 * Checks if this SslConnection object switched to compressed I/O.
+	 * @return	'true' if this SslConnection object is compressed.
+	 */
+	public boolean isCompressed() {
+		var tmpCodec = this.meCodec;
+		return tmpCodec != null && tmpCodec.isInflating();
+	}
+
+	/**
+	 * Used to get the ratio of the plain bytes to the compressed bytes (both directions) since this SslConnection object
+	 * switched to compressed I/O.
+	 * @return	the compression ratio (1 when nothing was compressed yet).
+	 */
+	public double getCompressionRatio() {
+		var tmpCodec = this.meCodec;
+		return tmpCodec == null ? 1.0 : tmpCodec.getRatio();
+	}
+
+	/**
+	 * Checks if this SslConnection object is currently connected to server (and still reading from it).
+	 * @return	'true' if this SslConnection object is connected.
+	 */
+	public boolean isConnected() {
+		var tmpThrd = this.meReadThrd;
+		return this.meSock != null && !this.meSock.isClosed() && tmpThrd != null && tmpThrd.isAlive();
+	}
+
+	/**
+	 * Used to get how long the SSL handshake of the last 'connect()' took.
+	 * @return	the duration of the last handshake in nanoseconds.
+	 */
+	public long getHandshakeNanos() {
+		return this.meHandNanos;
+	}
+
+	/**
+	 * Checks if the last 'connect()' resumed an earlier SSL session (an abbreviated handshake) instead of doing a full one.
+	 * @return	'true' if the last handshake resumed an earlier session.
+	 */
+	public boolean isSessionResumed() {
+		return this.meIsResumed;
+	}
+
 	/**
 	 * Used to get the server's address.
 	 * @return	the server's address.